@@ -0,0 +1,54 @@
+package br.com.dotofcodex.bluetooth_sample;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.IBinder;
+import android.util.Log;
+
+import br.com.dotofcodex.bluetooth_sample.protocol.ConnectionExecutor;
+
+/**
+ * Owns the threads of every connection: accept loops, dials and session readers and writers all run on its
+ * {@link ConnectionExecutor}, so a recreated Activity reuses them instead of leaving its own behind. Bound by the
+ * Activity, it goes away with the last unbind, after the Activity has cancelled its loops and closed its sessions.
+ */
+public class ConnectionService extends Service {
+
+    private static final String TAG = "ConnectionService";
+
+    private ConnectionExecutor executor;
+    private LocalBinder binder;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        executor = new ConnectionExecutor();
+        binder = new LocalBinder();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        // interrupts what the sockets closing did not end and waits for it, off the main thread
+        final ConnectionExecutor closing = executor;
+        new Thread(() -> {
+            if (!closing.close(ConnectionExecutor.DEFAULT_SHUTDOWN_MILLIS)) {
+                Log.w(TAG, String.format("%s did not stop in time", closing));
+            }
+        }, "ConnectionClose").start();
+    }
+
+    public class LocalBinder extends Binder {
+
+        public ConnectionExecutor getExecutor() {
+            return executor;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package br.com.dotofcodex.bluetooth_sample;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import br.com.dotofcodex.bluetooth_sample.discovery.DeviceList;
+
+/**
+ * Shows the bonded and discovered devices. Every change to the list is a single row inserted or redrawn, so a
+ * sighting costs the same with five devices around or five hundred.
+ */
+public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.ViewHolder> implements DeviceList.Listener {
+
+    private final DeviceList devices;
+
+    public DeviceAdapter() {
+        super();
+        this.devices = new DeviceList(this);
+    }
+
+    /**
+     * The list to update, from the main thread only.
+     */
+    public DeviceList getDevices() {
+        return this.devices;
+    }
+
+    @Override
+    public void onInserted(int position) {
+        notifyItemInserted(position);
+    }
+
+    @Override
+    public void onChanged(int position) {
+        notifyItemChanged(position);
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_device, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        holder.device.setText(devices.get(position).toString());
+    }
+
+    @Override
+    public int getItemCount() {
+        return devices.size();
+    }
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        private final TextView device;
+
+        ViewHolder(@NonNull View itemView) {
+            super(itemView);
+            this.device = (TextView) itemView;
+        }
+    }
+}
@@ -5,37 +5,80 @@ import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.RecyclerView;
 
 import android.Manifest;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.pm.ChangedPackages;
 import android.content.pm.PackageManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Message;
+import android.os.Trace;
+import android.view.Choreographer;
 import android.util.Log;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import com.google.android.material.snackbar.Snackbar;
 
+import br.com.dotofcodex.bluetooth_sample.bluetooth.RfcommConnector;
+import br.com.dotofcodex.bluetooth_sample.bluetooth.RfcommTransportServer;
+import br.com.dotofcodex.bluetooth_sample.delivery.FrameBatcher;
+import br.com.dotofcodex.bluetooth_sample.discovery.ConnectOrchestrator;
+import br.com.dotofcodex.bluetooth_sample.discovery.DeviceCache;
+import br.com.dotofcodex.bluetooth_sample.discovery.DeviceList;
+import br.com.dotofcodex.bluetooth_sample.journal.Journals;
+import br.com.dotofcodex.bluetooth_sample.message.Ack;
+import br.com.dotofcodex.bluetooth_sample.message.Command;
+import br.com.dotofcodex.bluetooth_sample.message.RecordReader;
+import br.com.dotofcodex.bluetooth_sample.message.SensorReading;
+import br.com.dotofcodex.bluetooth_sample.metrics.Metrics;
+import br.com.dotofcodex.bluetooth_sample.metrics.StartupTrace;
+import br.com.dotofcodex.bluetooth_sample.protocol.ChatServer;
+import br.com.dotofcodex.bluetooth_sample.protocol.ChatSession;
+import br.com.dotofcodex.bluetooth_sample.protocol.ConnectionExecutor;
+import br.com.dotofcodex.bluetooth_sample.protocol.ConnectionListener;
+import br.com.dotofcodex.bluetooth_sample.protocol.FlowControl;
+import br.com.dotofcodex.bluetooth_sample.protocol.FrameException;
+import br.com.dotofcodex.bluetooth_sample.protocol.Frames;
+import br.com.dotofcodex.bluetooth_sample.protocol.PooledBuffer;
+import br.com.dotofcodex.bluetooth_sample.protocol.SessionRegistry;
+import br.com.dotofcodex.bluetooth_sample.protocol.Utf8StreamDecoder;
+import br.com.dotofcodex.bluetooth_sample.resume.ResumableSession;
+import br.com.dotofcodex.bluetooth_sample.resume.ResumeAcceptor;
+import br.com.dotofcodex.bluetooth_sample.resume.ResumingClient;
+import br.com.dotofcodex.bluetooth_sample.sync.History;
+import br.com.dotofcodex.bluetooth_sample.sync.HistorySync;
+import br.com.dotofcodex.bluetooth_sample.transfer.FileTransfers;
+import br.com.dotofcodex.bluetooth_sample.transfer.TransferListener;
+import br.com.dotofcodex.bluetooth_sample.transport.Connector;
+import br.com.dotofcodex.bluetooth_sample.transport.PrimedConnector;
+import br.com.dotofcodex.bluetooth_sample.transport.Transport;
+
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 import butterknife.BindView;
 import butterknife.ButterKnife;
@@ -49,13 +92,18 @@ public class MainActivity extends AppCompatActivity {
 
     private static final int STATE_CONNECTING = 0;
     private static final int STATE_CONNECTED = 1;
-    private static final int STATE_READ = 2;
-    private static final int STATE_WRITE = 3;
     private static final int STATE_CONNECTION_FAILED = 4;
 
     private static final String BLUETOOTH_APP_NAME = "Bluetooth Chat";
     private static final UUID BLUETOOTH_APP_UUID = UUID.fromString("5afc04a6-9c91-49d2-9271-ecf35d2f7158");
 
+    // messages kept on screen, older ones scroll out
+    private static final int MESSAGE_HISTORY = 500;
+    private static final long METRICS_DUMP_MILLIS = 60 * 1000;
+    private static final long PROBE_INTERVAL_MILLIS = 5 * 1000;
+    // half the receive buffers, a peer sending faster than we decode waits for credit instead of for the socket
+    private static final int INBOUND_WINDOW = ChatSession.RECEIVE_BUFFERS / 2;
+
     private static final String BLUETOOTH_ON = "Bluetooth Enabled";
     private static final String BLUETOOTH_OFF = "Bluetooth Disabled";
 
@@ -68,8 +116,8 @@ public class MainActivity extends AppCompatActivity {
     @BindView(R.id.tv_status)
     protected TextView status;
 
-    @BindView(R.id.tv_devices)
-    protected TextView devices;
+    @BindView(R.id.rv_devices)
+    protected RecyclerView devices;
 
     @BindView(R.id.bt_discover)
     protected Button discover;
@@ -80,29 +128,58 @@ public class MainActivity extends AppCompatActivity {
     @BindView(R.id.bt_send)
     protected Button send;
 
+    @BindView(R.id.rv_messages)
+    protected RecyclerView messages;
+
+    // when the start began, the first frame went out and bluetooth was set up
+    private StartupTrace startup;
+    // set once onBluetoothReady has run, the adapter and everything below it exist from then on
+    private boolean ready;
     private BluetoothAdapter adapter;
+    private File filesDir;
+    // receivers registered right now, each only while the feature it serves is in use
+    private final Set<BroadcastReceiver> registered = new HashSet<>();
     private BroadcastReceiver receiverAction;
     private BroadcastReceiver receiverState;
     private BroadcastReceiver receiverScan;
-    private List<BluetoothDevice> bts;
+    private DeviceCache deviceCache;
+    // bonded and discovered devices as shown, touched on the main thread only
+    private DeviceAdapter deviceAdapter;
+    // races the peers a scan turns up, one race per scan
+    private List<ConnectOrchestrator.Rule> connectRules;
+    private ConnectOrchestrator orchestrator;
     private Handler handler;
+    private SessionRegistry registry;
+    // counters and latency histograms of every connection, dumped to the log once a minute
+    private Metrics metrics;
+    private Runnable metricsDump;
+    private ChatServer server;
+    private MessageAdapter messageAdapter;
+    private FrameBatcher<String> batcher;
+    private FileTransfers transfers;
+    private SessionListener sessionListener;
+    // every message sent and received, per peer, written by a thread of its own
+    private Journals journals;
+    // chat goes through sessions that survive the link dropping, as server and as client
+    private ResumeAcceptor acceptor;
+    // keyed by address, one dial loop per peer however often discovery reports it
+    private Map<String, ResumingClient> clients;
+    // the threads of every connection, owned by the service so they outlive this activity; null until bound
+    private ConnectionExecutor executor;
+    private ServiceConnection serviceConnection;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        startup = new StartupTrace();
+        Trace.beginSection("MainActivity.onCreate");
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         ButterKnife.bind(this);
 
-        adapter = BluetoothAdapter.getDefaultAdapter();
-        if (adapter == null) {
-            Snackbar snackbar = Snackbar.make(getWindow().getDecorView(), "Bluetooth not supported", Snackbar.LENGTH_INDEFINITE);
-            snackbar.setAction("OK", (View v) -> {
-                finish();
-            });
-            snackbar.show();
-        }
-
         enable.setOnClickListener((View v) -> {
+            if (!isReady()) {
+                return;
+            }
             if (!adapter.isEnabled()) {
                 startActivityForResult(new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE), REQUEST_BLUETOOTH);
             }
@@ -112,6 +189,9 @@ public class MainActivity extends AppCompatActivity {
         });
 
         disable.setOnClickListener((View v) -> {
+            if (!isReady()) {
+                return;
+            }
             if (adapter.isEnabled()) {
                 adapter.disable();
                 status.setText(BLUETOOTH_OFF);
@@ -120,17 +200,46 @@ public class MainActivity extends AppCompatActivity {
 
         // start as a client
         discover.setOnClickListener((View v) -> {
+            if (!isReady()) {
+                return;
+            }
             requestBluetoothAdditionalPermission();
+            // the last peer that answered is dialled straight away, an inquiry scan takes about 12 seconds
+            DeviceCache.Entry last = deviceCache.getLastConnected();
+            if (executor == null) {
+                Log.w(TAG, "Connection service not bound yet");
+                return;
+            }
+            if (last != null && adapter.isEnabled() && BluetoothAdapter.checkBluetoothAddress(last.getAddress())) {
+                // a single attempt bounded by the race's timeout, the dial loop only starts once it connected
+                Log.i(TAG, String.format("Dialling %s without discovery", last));
+                BluetoothDevice device = adapter.getRemoteDevice(last.getAddress());
+                startRace(last.getAddress());
+                if (orchestrator.offer(new RfcommConnector(device, BLUETOOTH_APP_UUID), last.getName(), last.getRssi())) {
+                    orchestrator.finish();
+                    return;
+                }
+            }
             startDiscover();
         });
 
         // start as a server
         discoverability.setOnClickListener((View v) -> {
+            if (!isReady()) {
+                return;
+            }
             try {
-                new BluetoothServer(adapter, handler).start();
-            } catch (IOException e) {
+                // one accept loop however often this is tapped
+                if (executor != null && (server == null || !server.isRunning())) {
+                    server = new ChatServer(new RfcommTransportServer(adapter, BLUETOOTH_APP_NAME, BLUETOOTH_APP_UUID), registry,
+                            acceptor, new HandlerConnectionListener(adapter, handler, deviceAdapter.getDevices(), 2000));
+                    server.start(executor);
+                }
+            } catch (IOException | RejectedExecutionException e) {
                 e.printStackTrace();
             }
+            // only logs while the device is discoverable
+            register(scanReceiver(), new IntentFilter(BluetoothAdapter.ACTION_SCAN_MODE_CHANGED));
             Intent intent = new Intent(BluetoothAdapter.ACTION_REQUEST_DISCOVERABLE);
             int seconds = 60 * 2;
             intent.putExtra(BluetoothAdapter.EXTRA_DISCOVERABLE_DURATION, seconds);
@@ -138,47 +247,265 @@ public class MainActivity extends AppCompatActivity {
         });
 
         send.setOnClickListener((View v) -> {
-            if (BluetoothChat.getCurrentInstance() != null) {
-                Log.i(TAG, "Message sent...");
-                BluetoothChat.getCurrentInstance().write("Pedro Ferreira de Carvalho Junior".getBytes(Charset.forName("UTF-8")));
+            if (!isReady()) {
+                return;
+            }
+            // every peer gets the message, one that is reconnecting gets it once it resumes
+            byte[] message = "Pedro Ferreira de Carvalho Junior".getBytes(Utf8StreamDecoder.UTF_8);
+            for (ResumableSession session : getResumableSessions()) {
+                if (!session.send(Frames.TYPE_DATA, message)) {
+                    Log.e(TAG, String.format("Message not sent to %s, too much unacknowledged", session));
+                }
+                else {
+                    Log.i(TAG, "Message sent...");
+                    journals.offer(peerOf(session), true, message, 0, message.length);
+                }
+            }
+        });
+
+        // long press sends the newest file in files/outbox to every connected peer, one transfer per peer at a time
+        send.setOnLongClickListener((View v) -> {
+            if (!isReady()) {
+                return false;
+            }
+            File[] files = new File(filesDir, "outbox").listFiles();
+            if (files == null || files.length == 0 || registry.size() == 0) {
+                return false;
+            }
+            File newest = files[0];
+            for (File file : files) {
+                if (file.lastModified() > newest.lastModified()) {
+                    newest = file;
+                }
+            }
+
+            // hashing and offering does file io, keep it off the main thread
+            final File file = newest;
+            return runInBackground("FileOffer", () -> {
+                for (ChatSession session : registry.getSessions()) {
+                    try {
+                        transfers.send(session, file);
+                    } catch (IOException e) {
+                        Log.e(TAG, String.format("Could not send %s", file.getName()), e);
+                    }
+                }
+            });
+        });
+
+        handler = new Handler(new HandlerCallbackImpl(this));
+        deviceAdapter = new DeviceAdapter();
+        devices.setAdapter(deviceAdapter);
+        metrics = new Metrics();
+        clients = new ConcurrentHashMap<>();
+
+        // incoming messages reach the list at most once per frame, however fast peers send them
+        messageAdapter = new MessageAdapter(MESSAGE_HISTORY);
+        messages.setAdapter(messageAdapter);
+        batcher = new FrameBatcher<>(MESSAGE_HISTORY, new ChoreographerScheduler(), (List<String> batch, int dropped) -> {
+            if (dropped > 0) {
+                Log.w(TAG, String.format("%d messages dropped before display", dropped));
+            }
+            messageAdapter.append(batch);
+            messages.scrollToPosition(messageAdapter.getItemCount() - 1);
+        }, metrics.getDeliveryLatency());
+
+        // nothing bluetooth, storage or service related delays the first frame, it all comes up right after it
+        whenFirstFrameDrawn(() -> new Thread(this::queryBluetooth, "BluetoothSetup").start());
+        Trace.endSection();
+    }
+
+    /**
+     * Runs once the first frame has been drawn.
+     */
+    private void whenFirstFrameDrawn(final Runnable then) {
+        final View root = getWindow().getDecorView();
+        root.getViewTreeObserver().addOnDrawListener(new ViewTreeObserver.OnDrawListener() {
+            @Override
+            public void onDraw() {
+                if (!startup.mark(StartupTrace.FIRST_FRAME)) {
+                    return;
+                }
+                Log.i(TAG, startup.toString());
+                // listeners cannot be removed while the tree is being drawn
+                final ViewTreeObserver.OnDrawListener drawn = this;
+                handler.post(() -> {
+                    root.getViewTreeObserver().removeOnDrawListener(drawn);
+                    then.run();
+                });
             }
         });
+    }
+
+    /**
+     * Off the main thread: the adapter and its state are calls into the bluetooth service and the files directory
+     * is created on first use.
+     */
+    private void queryBluetooth() {
+        final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        final boolean enabled = adapter != null && adapter.isEnabled();
+        final File filesDir = getFilesDir();
+        runOnUiThread(() -> onBluetoothReady(adapter, enabled, filesDir));
+    }
+
+    /**
+     * Sets up everything that needs the adapter or storage, with what {@link #queryBluetooth()} found.
+     */
+    private void onBluetoothReady(BluetoothAdapter adapter, boolean enabled, File filesDir) {
+        if (isDestroyed()) {
+            return;
+        }
+        Trace.beginSection("MainActivity.onBluetoothReady");
+        if (adapter == null) {
+            Snackbar snackbar = Snackbar.make(getWindow().getDecorView(), "Bluetooth not supported", Snackbar.LENGTH_INDEFINITE);
+            snackbar.setAction("OK", (View v) -> {
+                finish();
+            });
+            snackbar.show();
+            Trace.endSection();
+            return;
+        }
+
+        this.adapter = adapter;
+        this.filesDir = filesDir;
+        registry = new SessionRegistry(metrics);
+        registry.setProbeInterval(PROBE_INTERVAL_MILLIS);
+        registry.setInboundWindow(INBOUND_WINDOW);
+        transfers = new FileTransfers(new File(filesDir, "received"), new LogTransferListener());
+        journals = new Journals(new File(filesDir, "journal"), (String peer, IOException error) ->
+                Log.e(TAG, String.format("Could not journal a message of %s", peer), error));
+        journals.start();
+        sessionListener = new SessionListener(batcher, transfers, journals, handler, deviceAdapter.getDevices());
+        acceptor = new ResumeAcceptor(sessionListener, sessionListener);
+        deviceCache = new DeviceCache(new File(filesDir, "devices.cache"));
+        connectRules = Arrays.asList(ConnectOrchestrator.nameContains("Lenovo", 1), ConnectOrchestrator.connectedBefore(deviceCache, 2));
+
+        metricsDump = new Runnable() {
+            @Override
+            public void run() {
+                if (registry.size() > 0) {
+                    Log.i(TAG, metrics.snapshot().toString());
+                    for (ChatSession session : registry.getSessions()) {
+                        FlowControl flow = session.getFlowControl();
+                        Log.i(TAG, String.format("%s %s, %d frames waiting for credit, %d dropped", session.getAddress(),
+                                session.getLinkEstimator(), flow.getPending(), flow.getDropped()));
+                    }
+                }
+                handler.postDelayed(this, METRICS_DUMP_MILLIS);
+            }
+        };
+        handler.postDelayed(metricsDump, METRICS_DUMP_MILLIS);
 
-        IntentFilter filterAction = new IntentFilter();
-        filterAction.addAction(BluetoothDevice.ACTION_FOUND);
-        filterAction.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+        serviceConnection = new ServiceConnection() {
+            @Override
+            public void onServiceConnected(ComponentName name, IBinder service) {
+                executor = ((ConnectionService.LocalBinder) service).getExecutor();
+                registry.setExecutor(executor);
+                sessionListener.setExecutor(executor);
+                // a few hundred bytes, but still file io
+                runInBackground("DeviceCacheLoad", () -> {
+                    try {
+                        deviceCache.load();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Could not load the device cache", e);
+                    }
+                });
+                listBondDevices();
+            }
+
+            @Override
+            public void onServiceDisconnected(ComponentName name) {
+                // same process, only if it dies with us
+            }
+        };
+        bindService(new Intent(this, ConnectionService.class), serviceConnection, Context.BIND_AUTO_CREATE);
+
+        // logs the adapter going on and off for as long as the activity lives
+        register(stateReceiver(), new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED));
+        // the bonded devices and the device cache are read once the service's threads are there
+        status.setText(enabled ? BLUETOOTH_ON : BLUETOOTH_OFF);
+        ready = true;
+
+        startup.mark(StartupTrace.BLUETOOTH_READY);
+        Log.i(TAG, startup.toString());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            reportFullyDrawn();
+        }
+        Trace.endSection();
+    }
+
+    /**
+     * Whether setup is done; tells the user to wait otherwise.
+     */
+    private boolean isReady() {
+        if (!ready) {
+            Snackbar.make(getWindow().getDecorView(), "Bluetooth starting, try again", Snackbar.LENGTH_SHORT).show();
+        }
+        return ready;
+    }
+
+    private void register(BroadcastReceiver receiver, IntentFilter filter) {
+        if (registered.add(receiver)) {
+            registerReceiver(receiver, filter);
+        }
+    }
+
+    private void unregister(BroadcastReceiver receiver) {
+        if (registered.remove(receiver)) {
+            unregisterReceiver(receiver);
+        }
+    }
+
+    /**
+     * Found devices and the end of a scan, registered while discovery runs.
+     */
+    private BroadcastReceiver discoveryReceiver() {
+        if (receiverAction != null) {
+            return receiverAction;
+        }
         receiverAction = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
                 if (BluetoothDevice.ACTION_FOUND.equals(intent.getAction())) {
                     BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                    short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
 
-                    if (!bts.contains(device)) {
-                        bts.add(device);
-
-                        if (device.getName() != null && device.getName().contains("Lenovo")) {
-                            try {
-                                new BluetoothClient(adapter, device, handler).start();
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                        }
+                    // a device answers many times during one scan, only the first answer is news
+                    if (deviceCache.onFound(device.getAddress(), device.getName(), rssi) == null) {
+                        Log.i(TAG, String.format("%s, %s, %d dBm", device.getName(), device.getAddress(), rssi));
                     }
+                    deviceAdapter.getDevices().onFound(device.getAddress(), device.getName(), rssi);
 
-                    for (BluetoothDevice dev : bts) {
-                        Log.i(TAG, String.format("%s, %s", dev.getName(), dev.getAddress()));
+                    ResumingClient running = clients.get(device.getAddress());
+                    if (orchestrator != null && (running == null || !running.isRunning())) {
+                        // dialled right away if the rules want it and an attempt is free, discovery keeps going meanwhile
+                        orchestrator.offer(new RfcommConnector(device, BLUETOOTH_APP_UUID), device.getName(), rssi);
                     }
                     return;
                 }
 
                 if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(intent.getAction())) {
-                    Log.i(TAG, "Discovery finished");
-                    bts.clear();
+                    Log.i(TAG, String.format("Discovery finished, %d devices known", deviceCache.size()));
+                    saveDeviceCache();
+                    if (orchestrator != null) {
+                        orchestrator.finish();
+                    }
+                    // a scan started again right away keeps it
+                    if (!adapter.isDiscovering()) {
+                        unregister(receiverAction);
+                    }
                 }
             }
         };
+        return receiverAction;
+    }
 
-        IntentFilter filterState = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
+    /**
+     * Adapter state changes, registered once bluetooth is set up.
+     */
+    private BroadcastReceiver stateReceiver() {
+        if (receiverState != null) {
+            return receiverState;
+        }
         receiverState = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
@@ -227,8 +554,16 @@ public class MainActivity extends AppCompatActivity {
                 }
             }
         };
+        return receiverState;
+    }
 
-        IntentFilter filterScan = new IntentFilter(BluetoothAdapter.ACTION_SCAN_MODE_CHANGED);
+    /**
+     * Scan mode changes, registered while the device is discoverable.
+     */
+    private BroadcastReceiver scanReceiver() {
+        if (receiverScan != null) {
+            return receiverScan;
+        }
         receiverScan = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
@@ -254,40 +589,58 @@ public class MainActivity extends AppCompatActivity {
                     }
 
                     Log.i(TAG, message);
+                    if (type != BluetoothAdapter.SCAN_MODE_CONNECTABLE_DISCOVERABLE) {
+                        unregister(receiverScan);
+                    }
                 }
             }
         };
-
-        if (bts == null) {
-            bts = new ArrayList<>();
-        }
-
-        handler = new Handler(new HandlerCallbackImpl(this));
-
-        registerReceiver(receiverAction, filterAction);
-        registerReceiver(receiverState, filterState);
-        registerReceiver(receiverScan, filterScan);
+        return receiverScan;
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
 
-        if (bts != null && !bts.isEmpty()) {
-            bts.clear();
+        for (BroadcastReceiver receiver : new ArrayList<>(registered)) {
+            unregister(receiver);
+        }
+        if (!ready) {
+            return;
         }
 
-        try {
-            unregisterReceiver(receiverAction);
-        } catch (IllegalArgumentException e) {  }
-
-        try {
-            unregisterReceiver(receiverState);
-        } catch (IllegalArgumentException e) {  }
+        handler.removeCallbacks(metricsDump);
+        Log.i(TAG, metrics.snapshot().toString());
 
-        try {
-            unregisterReceiver(receiverScan);
-        } catch (IllegalArgumentException e) {  }
+        if (server != null) {
+            server.cancel();
+            server = null;
+        }
+        if (orchestrator != null) {
+            orchestrator.cancel();
+            orchestrator = null;
+        }
+        for (ResumingClient client : clients.values()) {
+            client.cancel();
+        }
+        clients.clear();
+        acceptor.closeAll();
+        registry.closeAll();
+        // writes what is still queued and forces it to the storage, here if the service has no thread for it
+        Runnable store = () -> {
+            try {
+                deviceCache.save();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not save the device cache", e);
+            }
+            journals.close();
+        };
+        if (!runInBackground("ActivityClose", store)) {
+            store.run();
+        }
+        // last, the service closes the executor once nothing is bound, with every socket above already closed
+        unbindService(serviceConnection);
+        executor = null;
     }
 
     @Override
@@ -321,23 +674,149 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * The peer's address, also while the session waits for a reconnect, so a conversation stays in one journal and
+     * a history sync, which reads the journal by address, sees all of it.
+     */
+    private static String peerOf(ResumableSession session) {
+        String address = session.getAddress();
+        return address != null ? address : Long.toHexString(session.getId());
+    }
+
+    private List<ResumableSession> getResumableSessions() {
+        List<ResumableSession> sessions = new ArrayList<>(acceptor.getSessions());
+        for (ResumingClient client : clients.values()) {
+            sessions.add(client.getSession());
+        }
+        return sessions;
+    }
+
+    /**
+     * Starts a dial loop on the peer unless one is running; it keeps redialling with backoff whenever the link
+     * drops, the chat picks up where it was.
+     */
+    private void dial(BluetoothDevice device, Connector connector) {
+        ResumingClient running = clients.get(device.getAddress());
+        if (running != null && running.isRunning()) {
+            connector.cancel();
+            return;
+        }
+        // the side that dials starts the history sync, the peer answers once the first SYNC frame arrives
+        ConnectionListener listener = new CachingConnectionListener(deviceCache, device.getAddress(),
+                new SyncingConnectionListener(sessionListener,
+                new HandlerConnectionListener(adapter, handler, deviceAdapter.getDevices(), 1000)));
+        ResumingClient client = new ResumingClient(connector, registry, new ResumableSession(sessionListener, sessionListener), listener);
+        try {
+            client.start(executor);
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, String.format("No thread left to dial %s, %s", device.getAddress(), executor), e);
+            connector.cancel();
+            return;
+        }
+        clients.put(device.getAddress(), client);
+    }
+
+    private void saveDeviceCache() {
+        runInBackground("DeviceCacheSave", () -> {
+            try {
+                deviceCache.save();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not save the device cache", e);
+            }
+        });
+    }
+
+    /**
+     * Runs file and bluetooth service calls on the service's threads, like the connections; {@code false} when the
+     * service is not bound yet or has no thread left, the task then did not run.
+     */
+    private boolean runInBackground(String name, Runnable task) {
+        ConnectionExecutor current = executor;
+        if (current == null) {
+            Log.w(TAG, String.format("Connection service not bound, %s not run", name));
+            return false;
+        }
+        try {
+            current.execute(name, task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, String.format("No thread left for %s", name), e);
+            return false;
+        }
+    }
+
     private void startDiscover() {
         if (!adapter.isEnabled()) {
             Snackbar.make(getWindow().getDecorView(), "Bluetooth not enabled", Snackbar.LENGTH_SHORT).show();
             return;
         }
 
+        // found devices are only listened for while a scan runs, the receiver goes once it finishes
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(BluetoothDevice.ACTION_FOUND);
+        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+        register(discoveryReceiver(), filter);
+
         if (adapter.isDiscovering()) {
             Log.i(TAG, "starting discovery again...");
             adapter.cancelDiscovery();
+            startRace(null);
             adapter.startDiscovery();
             return;
         }
 
+        startRace(null);
         Log.i(TAG, "just starting...");
         adapter.startDiscovery();
     }
 
+    /**
+     * A fresh race for the scan about to start, or for the {@code cached} peer alone, which falls back to discovery
+     * when it does not answer; an earlier one still dialling is given up.
+     */
+    private void startRace(final String cached) {
+        if (orchestrator != null) {
+            orchestrator.cancel();
+        }
+        orchestrator = new ConnectOrchestrator(connectRules, ConnectOrchestrator.DEFAULT_PARALLELISM,
+                ConnectOrchestrator.DEFAULT_ATTEMPT_TIMEOUT_MILLIS, executor, new ConnectOrchestrator.Listener() {
+            @Override
+            public void onConnected(ConnectOrchestrator race, Connector winner, Transport transport) {
+                // the scan would only slow the new link down
+                adapter.cancelDiscovery();
+                Log.i(TAG, String.format("%s won the race after %d ms and %d attempts", winner.getRemoteAddress(),
+                        race.getElapsedNanos() / 1000000, race.getAttempts()));
+                runOnUiThread(() -> {
+                    if (isDestroyed() || executor == null) {
+                        try {
+                            transport.close();
+                        } catch (IOException ignored) {  }
+                        return;
+                    }
+                    BluetoothDevice device = adapter.getRemoteDevice(winner.getRemoteAddress());
+                    // the won link is used as it is, redials after it drops go through the connector
+                    dial(device, new PrimedConnector(transport, winner));
+                });
+            }
+
+            @Override
+            public void onFailed(ConnectOrchestrator race, IOException error) {
+                if (cached == null) {
+                    Log.i(TAG, "No peer answered during discovery", error);
+                    return;
+                }
+                Log.i(TAG, String.format("%s did not answer, discovering", cached), error);
+                // not dialled straight away again until it connects after a scan
+                deviceCache.onConnectFailed(cached);
+                runOnUiThread(() -> {
+                    if (!isDestroyed() && executor != null && orchestrator == race) {
+                        startDiscover();
+                    }
+                });
+            }
+        });
+    }
+
     private void requestBluetoothAdditionalPermission() {
         if (!isPermissionGranted()) {
             ActivityCompat.requestPermissions(this, new String[] { Manifest.permission.ACCESS_COARSE_LOCATION }, REQUEST_BLUETOOTH_PERMISSION);
@@ -348,29 +827,31 @@ public class MainActivity extends AppCompatActivity {
         return ContextCompat.checkSelfPermission(this, Manifest.permission.ACCESS_COARSE_LOCATION) == PackageManager.PERMISSION_GRANTED;
     }
 
+    /**
+     * Reads the bonded devices off the main thread, the adapter's state and each name can be a call into the
+     * bluetooth service, and adds them to the list on it; devices already listed only have their row updated.
+     */
     private void listBondDevices() {
-        final Set<BluetoothDevice> devices = adapter.getBondedDevices();
-
-        if (devices.isEmpty()) {
-            this.devices.setText("There are no bond devices");
-            return;
-        }
-
-        String[] names = new String[devices.size()];
-        int i = 0;
-        for (BluetoothDevice device : devices) {
-            names[i] = device.getName();
-            i++;
-        }
-
-        i = 0;
-        this.devices.setText(names[i]);
-        for (String device : names) {
-            if (i != 0) {
-                this.devices.setText(this.devices.getText().toString().concat("\n").concat(device));
+        // without the service yet, it lists them once bound
+        runInBackground("BondedDevices", () -> {
+            if (!adapter.isEnabled()) {
+                return;
             }
-            i++;
-        }
+            final List<String[]> bonded = new ArrayList<>();
+            for (BluetoothDevice device : adapter.getBondedDevices()) {
+                bonded.add(new String[] { device.getAddress(), device.getName() });
+            }
+            runOnUiThread(() -> {
+                if (isDestroyed()) {
+                    return;
+                }
+                DeviceList list = deviceAdapter.getDevices();
+                for (String[] device : bonded) {
+                    list.onBonded(device[0], device[1]);
+                }
+                Log.i(TAG, String.format("%d bonded devices", bonded.size()));
+            });
+        });
     }
 
     private static class HandlerCallbackImpl implements Handler.Callback {
@@ -398,17 +879,6 @@ public class MainActivity extends AppCompatActivity {
                     // update ui
                     break;
                 }
-                case STATE_READ: {
-                    // update ui
-                    byte[] bytes = (byte[])message.obj;
-                    Log.i(TAG, new String(bytes, 0, message.arg1));
-                    Toast.makeText(ctx, new String(bytes, 0, message.arg1), Toast.LENGTH_LONG).show();
-                    break;
-                }
-                case STATE_WRITE: {
-                    Toast.makeText(ctx, "Writing...", Toast.LENGTH_LONG).show();
-                    break;
-                }
                 case 1000: {
                     Toast.makeText(ctx, "Connected as Client", Toast.LENGTH_LONG).show();
                     break;
@@ -423,173 +893,339 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    private static class BluetoothServer extends Thread {
-
-        private final BluetoothAdapter adapter;
+    private static class SessionListener implements ChatSession.Listener, ResumableSession.Listener {
+        private final FrameBatcher<String> batcher;
+        private final FileTransfers transfers;
+        private final Journals journals;
+        // one per connection or resumable session, a character split between two frames is completed by the next one
+        private final ConcurrentHashMap<Object, Utf8StreamDecoder> decoders;
+        private final ConcurrentHashMap<Object, RecordDecoder> records;
+        private final ConcurrentHashMap<ChatSession, HistorySync> syncs;
         private final Handler handler;
-        private final BluetoothServerSocket bss;
-        private BluetoothChat chat;
+        private final DeviceList devices;
+        private volatile ConnectionExecutor executor;
 
-        public BluetoothServer(BluetoothAdapter adapter, Handler handler) throws IOException {
+        public SessionListener(FrameBatcher<String> batcher, FileTransfers transfers, Journals journals, Handler handler,
+                               DeviceList devices) {
             super();
-            this.adapter = adapter;
+            this.batcher = batcher;
+            this.transfers = transfers;
+            this.journals = journals;
             this.handler = handler;
-            this.bss = adapter.listenUsingRfcommWithServiceRecord(BLUETOOTH_APP_NAME, BLUETOOTH_APP_UUID);
+            this.devices = devices;
+            this.decoders = new ConcurrentHashMap<>();
+            this.records = new ConcurrentHashMap<>();
+            this.syncs = new ConcurrentHashMap<>();
         }
 
-        public BluetoothChat getBluetoothChat() {
-            return this.chat;
+        public void setExecutor(ConnectionExecutor executor) {
+            this.executor = executor;
         }
 
-        @Override
-        public void run() {
-            BluetoothSocket bs = null;
-
-            while (bs == null) {
-                Message message = Message.obtain();
-                message.what = STATE_CONNECTING;
-                handler.sendMessage(message);
-
-                try {
-                    bs = bss.accept();
-                } catch (IOException e) {
-                    e.printStackTrace();
-
-                    message = Message.obtain();
-                    message.what = STATE_CONNECTION_FAILED;
-                    handler.sendMessage(message);
-                }
+        /**
+         * Compares the journal of the session's peer with the peer's own and journals what this side missed. The
+         * initiator calls it before the session reads its first frame, the peer on the first SYNC frame.
+         */
+        public HistorySync startSync(ChatSession session, boolean initiator) {
+            ConnectionExecutor current = executor;
+            if (current == null) {
+                return null;
+            }
+            HistorySync sync = new HistorySync(session, initiator);
+            syncs.put(session, sync);
+            try {
+                current.execute("HistorySync-" + session.getAddress(), () -> sync(session, sync));
+            } catch (RejectedExecutionException e) {
+                syncs.remove(session, sync);
+                Log.w(TAG, String.format("No thread left to sync the history with %s", session.getAddress()), e);
+                return null;
+            }
+            return sync;
+        }
 
-                if (adapter.isDiscovering()) {
-                    adapter.cancelDiscovery();
+        private void sync(ChatSession session, HistorySync sync) {
+            String peer = session.getAddress();
+            try {
+                // the journal is read whole, which is why this runs here and not on the reader thread
+                History history = History.read(journals.get(peer), sync.isInitiator());
+                HistorySync.Result result = sync.run(history, HistorySync.DEFAULT_TIMEOUT_MILLIS);
+                for (History.Item item : result.getReceived()) {
+                    if (!journals.put(peer, item.getTimeMillis(), item.isOutgoing(), item.getPayload())) {
+                        break;
+                    }
                 }
+                Log.i(TAG, String.format("%s history %s", peer, result));
+            } catch (IOException e) {
+                Log.w(TAG, String.format("History sync with %s failed", peer), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                syncs.remove(session, sync);
+            }
+        }
 
-                if (bs != null) {
-                    message = Message.obtain();
-                    message.what = STATE_CONNECTED;
-                    handler.sendMessage(message);
-
-                    handler.obtainMessage(2000).sendToTarget();
-                    chat = new BluetoothChat(bs, handler);
-                    chat.start();
-
-                    break;
+        @Override
+        public void onFrame(ChatSession session, PooledBuffer frame) throws IOException {
+            if (transfers.onFrame(session, frame)) {
+                return;
+            }
+            if (frame.type() == Frames.TYPE_SYNC) {
+                HistorySync sync = syncs.get(session);
+                if (sync == null) {
+                    sync = startSync(session, false);
+                }
+                if (sync == null || !sync.onFrame(frame)) {
+                    frame.release();
                 }
+                return;
             }
+
+            decode(session, session.getAddress(), frame);
         }
-    }
 
-    private static class BluetoothClient extends Thread {
+        @Override
+        public void onFrame(ResumableSession session, PooledBuffer frame) {
+            decode(session, peerOf(session), frame);
+        }
 
-        private final BluetoothAdapter adapter;
-        private final BluetoothSocket bs;
-        private final Handler handler;
-        private BluetoothChat chat;
+        @Override
+        public void onResumed(ResumableSession session, int replayed) {
+            Log.i(TAG, String.format("%s resumed, %d messages sent again", session, replayed));
+        }
 
-        public BluetoothClient(BluetoothAdapter adapter, BluetoothDevice device, Handler handler) throws IOException {
-            super();
-            this.adapter = adapter;
-            this.handler = handler;
-            this.bs = device.createRfcommSocketToServiceRecord(BLUETOOTH_APP_UUID);
+        @Override
+        public void onSuspended(ResumableSession session) {
+            Log.i(TAG, String.format("%s lost its connection", session));
         }
 
-        public BluetoothChat getBluetoothChat() {
-            return this.chat;
+        @Override
+        public void onClosed(ResumableSession session) {
+            decoders.remove(session);
+            records.remove(session);
         }
 
         @Override
-        public void run() {
-            Message message = null;
+        public void onClosed(ChatSession session) {
+            decoders.remove(session);
+            records.remove(session);
+            HistorySync sync = syncs.get(session);
+            if (sync != null) {
+                sync.onClosed();
+            }
+            transfers.onClosed(session);
+            handler.post(() -> devices.setConnected(session.getAddress(), false));
+            Log.i(TAG, String.format("%s disconnected", session.getAddress()));
+        }
 
+        private void decode(Object source, String peer, PooledBuffer frame) {
+            // decode on the reader thread so the buffer goes back to the pool right away
             try {
-                bs.connect();
+                if (frame.type() == Frames.TYPE_DATA) {
+                    // only copied here, the file is written by the journal's thread
+                    journals.offer(peer, false, frame.array(), 0, frame.length());
+                    Utf8StreamDecoder decoder = decoders.get(source);
+                    if (decoder == null) {
+                        decoder = new Utf8StreamDecoder();
+                        decoders.put(source, decoder);
+                    }
+                    decoder.decode(frame.array(), 0, frame.length());
+                    if (decoder.text().length() > 0) {
+                        batcher.offer(decoder.take(), frame.receivedNanos());
+                    }
+                }
+                else if (frame.type() == Frames.TYPE_RECORD) {
+                    RecordDecoder decoder = records.get(source);
+                    if (decoder == null) {
+                        decoder = new RecordDecoder();
+                        records.put(source, decoder);
+                    }
+                    batcher.offer(decoder.decode(frame), frame.receivedNanos());
+                }
+            } catch (FrameException e) {
+                Log.w(TAG, String.format("Malformed record from %s", peer), e);
+            } finally {
+                frame.release();
+            }
+        }
+    }
 
-                message = Message.obtain();
-                message.what = STATE_CONNECTED;
-                handler.sendMessage(message);
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * Reads the records of one connection into the same instances every time, only the line shown is new.
+     */
+    private static final class RecordDecoder {
+        private final RecordReader reader;
+        private final SensorReading reading;
+        private final Command command;
+        private final Ack ack;
 
-                message = Message.obtain();
-                message.what = STATE_CONNECTION_FAILED;
-                handler.sendMessage(message);
-            }
+        RecordDecoder() {
+            super();
+            this.reader = new RecordReader();
+            this.reading = new SensorReading();
+            this.command = new Command();
+            this.ack = new Ack();
+        }
 
-            if (adapter.isDiscovering()) {
-                adapter.cancelDiscovery();
+        String decode(PooledBuffer frame) throws FrameException {
+            int type = reader.begin(frame.array(), 0, frame.length());
+            switch (type) {
+                case SensorReading.TYPE:
+                    return reader.read(reading).toString();
+                case Command.TYPE:
+                    return reader.read(command).toString();
+                case Ack.TYPE:
+                    return reader.read(ack).toString();
+                default:
+                    // a record type added after this version, shown but not understood
+                    return String.format("record of type %d, version %d", type, reader.getVersion());
             }
+        }
+    }
 
-            handler.obtainMessage(1000).sendToTarget();
+    /**
+     * Runs drains right before the next frame is drawn. Must be created on the main thread, can be used from any.
+     */
+    private static class ChoreographerScheduler implements FrameBatcher.Scheduler {
+        private final Choreographer choreographer;
 
-            chat = new BluetoothChat(bs, handler);
-            chat.start();
+        public ChoreographerScheduler() {
+            super();
+            this.choreographer = Choreographer.getInstance();
+        }
+
+        @Override
+        public void schedule(Runnable drain) {
+            choreographer.postFrameCallback((long frameTimeNanos) -> drain.run());
         }
     }
 
-    private static class BluetoothChat extends Thread {
+    private static class LogTransferListener implements TransferListener {
 
-        private static BluetoothChat instance;
+        @Override
+        public void onProgress(String name, long transferred, long size) {
+            Log.d(TAG, String.format("%s: %d of %d bytes", name, transferred, size));
+        }
 
-        private final BluetoothSocket bs;
-        private final Handler handler;
-        private final InputStream is;
-        private final OutputStream os;
+        @Override
+        public void onComplete(String name, File file, IOException error) {
+            if (error != null) {
+                Log.e(TAG, String.format("Transfer of %s failed", name), error);
+            }
+            else {
+                Log.i(TAG, String.format("Transfer of %s done: %s", name, file));
+            }
+        }
+    }
+
+    /**
+     * Records in the cache whether dialling a device worked, so the next start knows which peer to dial first.
+     */
+    private static class CachingConnectionListener implements ConnectionListener {
+        private final DeviceCache cache;
+        private final String address;
+        private final ConnectionListener delegate;
 
-        public BluetoothChat(BluetoothSocket socket, Handler handler) {
+        public CachingConnectionListener(DeviceCache cache, String address, ConnectionListener delegate) {
             super();
-            this.bs = socket;
-            this.handler = handler;
+            this.cache = cache;
+            this.address = address;
+            this.delegate = delegate;
+        }
 
-            InputStream is = null;
-            OutputStream os = null;
-            try {
-                is = socket.getInputStream();
-                os = socket.getOutputStream();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        @Override
+        public void onConnecting() {
+            delegate.onConnecting();
+        }
 
-            this.is = is;
-            this.os = os;
+        @Override
+        public void onConnected(ChatSession session) {
+            cache.onConnected(address, null);
+            delegate.onConnected(session);
+        }
 
-            BluetoothChat.instance = this;
+        @Override
+        public void onConnectionFailed(IOException error) {
+            cache.onConnectFailed(address);
+            delegate.onConnectionFailed(error);
+        }
+    }
+
+    /**
+     * Starts the history sync on the first connection of a dial loop. Later ones resume the same session and replay
+     * what the dropped link lost, syncing then would deliver those messages twice.
+     */
+    private static class SyncingConnectionListener implements ConnectionListener {
+        private final SessionListener sessions;
+        private final ConnectionListener delegate;
+        private boolean synced;
+
+        public SyncingConnectionListener(SessionListener sessions, ConnectionListener delegate) {
+            super();
+            this.sessions = sessions;
+            this.delegate = delegate;
         }
 
         @Override
-        public void run() {
-            byte[] buffer = new byte[1024];
-            int bytes = 0;
-
-            while (true) {
-                try {
-                    bytes = is.read(buffer);
-                    handler.obtainMessage(STATE_READ, bytes, -1, buffer).sendToTarget();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    break;
-                }
+        public void onConnecting() {
+            delegate.onConnecting();
+        }
+
+        @Override
+        public void onConnected(ChatSession session) {
+            if (!synced) {
+                synced = sessions.startSync(session, true) != null;
             }
+            delegate.onConnected(session);
         }
 
-        public static BluetoothChat getCurrentInstance() {
-            return BluetoothChat.instance;
+        @Override
+        public void onConnectionFailed(IOException error) {
+            delegate.onConnectionFailed(error);
         }
+    }
 
-        public void write(byte[] buffer) {
-            try {
-                os.write(buffer);
-                handler.obtainMessage(STATE_WRITE, -1, -1, buffer).sendToTarget();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    private static class HandlerConnectionListener implements ConnectionListener {
+        private final BluetoothAdapter adapter;
+        private final Handler handler;
+        private final DeviceList devices;
+        private final int connectedAs;
+
+        public HandlerConnectionListener(BluetoothAdapter adapter, Handler handler, DeviceList devices, int connectedAs) {
+            super();
+            this.adapter = adapter;
+            this.handler = handler;
+            this.devices = devices;
+            this.connectedAs = connectedAs;
         }
 
-        public void cancel() {
-            try {
-                bs.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+        @Override
+        public void onConnecting() {
+            Message message = Message.obtain();
+            message.what = STATE_CONNECTING;
+            handler.sendMessage(message);
+        }
+
+        @Override
+        public void onConnected(ChatSession session) {
+            if (adapter.isDiscovering()) {
+                adapter.cancelDiscovery();
             }
+
+            Message message = Message.obtain();
+            message.what = STATE_CONNECTED;
+            handler.sendMessage(message);
+
+            handler.obtainMessage(connectedAs).sendToTarget();
+            handler.post(() -> devices.setConnected(session.getAddress(), true));
+        }
+
+        @Override
+        public void onConnectionFailed(IOException error) {
+            error.printStackTrace();
+
+            Message message = Message.obtain();
+            message.what = STATE_CONNECTION_FAILED;
+            handler.sendMessage(message);
         }
     }
 }
@@ -0,0 +1,67 @@
+package br.com.dotofcodex.bluetooth_sample;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import br.com.dotofcodex.bluetooth_sample.delivery.MessageHistory;
+
+import java.util.List;
+
+/**
+ * Shows the capped message history. Batches are applied as range notifications, so the cost of a frame depends
+ * on the batch size and never on how many messages were received before.
+ */
+public class MessageAdapter extends RecyclerView.Adapter<MessageAdapter.ViewHolder> {
+
+    private final MessageHistory<String> history;
+
+    public MessageAdapter(int capacity) {
+        super();
+        this.history = new MessageHistory<>(capacity);
+    }
+
+    public void append(List<String> batch) {
+        int before = history.size();
+        int evicted = history.addAll(batch);
+
+        if (evicted >= before && before > 0) {
+            notifyDataSetChanged();
+            return;
+        }
+        if (evicted > 0) {
+            notifyItemRangeRemoved(0, evicted);
+        }
+        notifyItemRangeInserted(before - evicted, history.size() - (before - evicted));
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_message, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        holder.message.setText(history.get(position));
+    }
+
+    @Override
+    public int getItemCount() {
+        return history.size();
+    }
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        private final TextView message;
+
+        ViewHolder(@NonNull View itemView) {
+            super(itemView);
+            this.message = (TextView) itemView;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package br.com.dotofcodex.bluetooth_sample.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import br.com.dotofcodex.bluetooth_sample.transport.Connector;
+import br.com.dotofcodex.bluetooth_sample.transport.Transport;
+
+import java.io.IOException;
+import java.util.UUID;
+
+public class RfcommConnector implements Connector {
+
+    private final BluetoothDevice device;
+    private final UUID uuid;
+    private volatile BluetoothSocket socket;
+
+    public RfcommConnector(BluetoothDevice device, UUID uuid) {
+        super();
+        this.device = device;
+        this.uuid = uuid;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return device.getAddress();
+    }
+
+    @Override
+    public Transport connect() throws IOException {
+        BluetoothSocket bs = device.createRfcommSocketToServiceRecord(uuid);
+        this.socket = bs;
+        try {
+            bs.connect();
+        } catch (IOException e) {
+            try {
+                bs.close();
+            } catch (IOException ignored) {  }
+            throw e;
+        }
+        return new RfcommTransport(bs);
+    }
+
+    @Override
+    public void cancel() {
+        // closing the socket is the only way to abort a blocked connect
+        BluetoothSocket bs = this.socket;
+        if (bs != null) {
+            try {
+                bs.close();
+            } catch (IOException ignored) {  }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package br.com.dotofcodex.bluetooth_sample.bluetooth;
+
+import android.bluetooth.BluetoothSocket;
+
+import br.com.dotofcodex.bluetooth_sample.transport.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class RfcommTransport implements Transport {
+
+    private final BluetoothSocket socket;
+
+    public RfcommTransport(BluetoothSocket socket) {
+        super();
+        this.socket = socket;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return socket.getRemoteDevice().getAddress();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return socket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
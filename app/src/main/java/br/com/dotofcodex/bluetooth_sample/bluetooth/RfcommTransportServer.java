@@ -0,0 +1,30 @@
+package br.com.dotofcodex.bluetooth_sample.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothServerSocket;
+
+import br.com.dotofcodex.bluetooth_sample.transport.Transport;
+import br.com.dotofcodex.bluetooth_sample.transport.TransportServer;
+
+import java.io.IOException;
+import java.util.UUID;
+
+public class RfcommTransportServer implements TransportServer {
+
+    private final BluetoothServerSocket bss;
+
+    public RfcommTransportServer(BluetoothAdapter adapter, String name, UUID uuid) throws IOException {
+        super();
+        this.bss = adapter.listenUsingRfcommWithServiceRecord(name, uuid);
+    }
+
+    @Override
+    public Transport accept() throws IOException {
+        return new RfcommTransport(bss.accept());
+    }
+
+    @Override
+    public void close() throws IOException {
+        bss.close();
+    }
+}
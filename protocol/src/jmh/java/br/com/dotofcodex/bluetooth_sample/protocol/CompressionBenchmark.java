@@ -0,0 +1,215 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import br.com.dotofcodex.bluetooth_sample.transport.InMemoryTransport;
+import br.com.dotofcodex.bluetooth_sample.transport.LinkProfile;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compression on the in-JVM loopback. {@code loopback} sends batches of corpus messages between two sessions and
+ * reports messages per second plus payload and wire bytes per second, over an unshaped link and an emulated RFCOMM
+ * one. {@code codec} is the CPU cost of deflating and inflating one message on the calling thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BATCH = 64;
+    private static final int CORPUS = 1024;
+
+    private static final String[] PHRASES = {
+            "Bom dia, tudo bem com você?", "Estou chegando em %d minutos", "Obrigado! Até amanhã então.",
+            "Não esquece de trazer o carregador", "Onde você está agora?", "A bateria está em %d%%",
+            "Pode me ligar quando estiver livre?", "Tudo certo por aqui, e aí?", "Vamos almoçar às %d horas"
+    };
+
+    @Param({ "chat", "telemetry" })
+    public String corpus;
+
+    @Param({ "false", "true" })
+    public boolean compression;
+
+    @Param({ "unlimited", "rfcomm" })
+    public String link;
+
+    private byte[][] messages;
+    private int next;
+    private ChatSession sender;
+    private ChatSession receiver;
+    private CountingStream wire;
+    private Semaphore received;
+    private PayloadCompressor compressor;
+    private PayloadDecompressor decompressor;
+    private PooledBuffer frame;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long payloadBytes;
+        public long wireBytes;
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        messages = corpus(corpus, new Random(7));
+
+        InMemoryTransport[] ends = InMemoryTransport.pair("sender", "receiver",
+                "rfcomm".equals(link) ? LinkProfile.rfcomm() : LinkProfile.UNLIMITED);
+        wire = new CountingStream(ends[0].getOutputStream());
+        received = new Semaphore(0);
+
+        sender = new ChatSession("receiver", ends[0].getInputStream(), wire, ends[0], new Discard(null));
+        receiver = new ChatSession(ends[1], new Discard(received));
+        if (!compression) {
+            sender.setCompression(null);
+            receiver.setCompression(null);
+        }
+        receiver.start();
+        sender.start();
+        while (compression && !sender.isCompressing()) {
+            Thread.sleep(1);
+        }
+
+        compressor = Compression.DEFAULT.newCompressor(Frames.DEFAULT_MAX_PAYLOAD_LENGTH);
+        decompressor = Compression.DEFAULT.newDecompressor(Frames.DEFAULT_MAX_PAYLOAD_LENGTH);
+        frame = new BufferPool(1, Frames.DEFAULT_MAX_PAYLOAD_LENGTH).acquire();
+    }
+
+    @TearDown
+    public void tearDown() {
+        sender.close();
+        receiver.close();
+        compressor.end();
+        decompressor.end();
+    }
+
+    @Setup(Level.Iteration)
+    public void resetWire() {
+        wire.bytes.set(0);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void loopback(Bytes bytes) throws InterruptedException {
+        long before = wire.bytes.get();
+        for (int i = 0; i < BATCH; i++) {
+            byte[] message = messages[next++ & (CORPUS - 1)];
+            while (!sender.send(Frames.TYPE_DATA, message, null)) {
+                Thread.sleep(1);
+            }
+            bytes.payloadBytes += message.length;
+        }
+        received.acquire(BATCH);
+        bytes.wireBytes += wire.bytes.get() - before;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int codec() throws IOException {
+        byte[] message = messages[next++ & (CORPUS - 1)];
+        if (!compression) {
+            frame.fill(Frames.TYPE_DATA, message, 0, message.length);
+            return frame.length();
+        }
+        int compressed = compressor.compress(message, 0, message.length);
+        if (compressed < 0) {
+            frame.fill(Frames.TYPE_DATA, message, 0, message.length);
+            return frame.length();
+        }
+        frame.fill(Frames.TYPE_DATA, compressor.output(), 0, compressed);
+        decompressor.decompress(frame, Frames.TYPE_DATA);
+        return frame.length();
+    }
+
+    static byte[][] corpus(String kind, Random random) {
+        byte[][] corpus = new byte[CORPUS][];
+        for (int i = 0; i < CORPUS; i++) {
+            String message;
+            if ("telemetry".equals(kind)) {
+                message = String.format("{\"device\":\"sensor-%02d\",\"timestamp\":%d,\"sequence\":%d,\"rssi\":-%d,"
+                                + "\"battery\":%d,\"temperature\":%.1f,\"humidity\":%d,\"status\":\"ok\"}",
+                        random.nextInt(8), 1589212800L + i * 5, i, 40 + random.nextInt(50), random.nextInt(101),
+                        15 + random.nextDouble() * 20, 20 + random.nextInt(70));
+            }
+            else {
+                StringBuilder text = new StringBuilder();
+                int phrases = 1 + random.nextInt(3);
+                for (int p = 0; p < phrases; p++) {
+                    text.append(String.format(PHRASES[random.nextInt(PHRASES.length)], 1 + random.nextInt(59))).append(' ');
+                }
+                message = text.toString();
+            }
+            corpus[i] = message.getBytes(UTF_8);
+        }
+        return corpus;
+    }
+
+    private static final class Discard implements ChatSession.Listener {
+        private final Semaphore received;
+
+        Discard(Semaphore received) {
+            this.received = received;
+        }
+
+        @Override
+        public void onFrame(ChatSession session, PooledBuffer frame) {
+            frame.release();
+            if (received != null) {
+                received.release();
+            }
+        }
+
+        @Override
+        public void onClosed(ChatSession session) {
+        }
+    }
+
+    private static final class CountingStream extends FilterOutputStream {
+        final AtomicLong bytes = new AtomicLong();
+
+        CountingStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            bytes.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytes.addAndGet(len);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frame encode and decode throughput in messages per second; run with {@code -prof gc} for bytes allocated per
+ * message. {@code readLoop} is the whole receive path short of the socket: reads, decoding and pooled buffers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCodecBenchmark {
+
+    private static final int FRAMES = 64;
+
+    @Param({ "16", "256", "4096", "65536" })
+    public int size;
+
+    @Param({ "false", "true" })
+    public boolean checksum;
+
+    private FrameEncoder encoder;
+    private FrameDecoder decoder;
+    private FrameReader reader;
+    private ByteArrayInputStream in;
+    private byte[] payload;
+    private byte[] out;
+    private byte[] stream;
+    private long received;
+
+    @Setup
+    public void setup() throws IOException {
+        payload = new byte[size];
+        new Random(size).nextBytes(payload);
+        encoder = new FrameEncoder(checksum);
+        out = new byte[encoder.encodedLength(size)];
+
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        for (int i = 0; i < FRAMES; i++) {
+            encoder.write(frames, Frames.TYPE_DATA, payload, 0, size);
+        }
+        stream = frames.toByteArray();
+
+        decoder = new FrameDecoder(Frames.DEFAULT_MAX_PAYLOAD_LENGTH, (int type, byte[] buffer, int offset, int length) -> received += length);
+
+        in = new ByteArrayInputStream(stream);
+        reader = new FrameReader(in, new BufferPool(2, Frames.DEFAULT_MAX_PAYLOAD_LENGTH), (PooledBuffer frame) -> {
+            received += frame.length();
+            frame.release();
+        });
+    }
+
+    @Benchmark
+    public int encode() {
+        return encoder.encode(Frames.TYPE_DATA, payload, 0, size, out, 0);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long decode() throws IOException {
+        // fed in socket sized reads, so large frames go through reassembly and small ones are decoded in place
+        for (int offset = 0; offset < stream.length; offset += FrameReader.READ_BUFFER_SIZE) {
+            decoder.decode(stream, offset, Math.min(FrameReader.READ_BUFFER_SIZE, stream.length - offset));
+        }
+        return received;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long readLoop() throws IOException {
+        in.reset();
+        reader.run();
+        return received;
+    }
+}
@@ -0,0 +1,273 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import br.com.dotofcodex.bluetooth_sample.sync.History;
+import br.com.dotofcodex.bluetooth_sample.sync.HistorySync;
+import br.com.dotofcodex.bluetooth_sample.transport.InMemoryTransport;
+import br.com.dotofcodex.bluetooth_sample.transport.LinkProfile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Catching up two chat histories over the in-JVM loopback after each side wrote {@code divergence} messages the
+ * other never saw. {@code sync} is {@link HistorySync}; {@code resend} is what reconnecting did before it, both
+ * sides sending their whole history. The time is the whole exchange; the bytes that crossed the link in both
+ * directions are printed at the end of each run. Over RFCOMM, some 80 KB/s, those bytes rather than the time on an
+ * unshaped link are what the user waits for.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xmx3g" })
+public class HistorySyncBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Param({ "10000", "100000", "1000000" })
+    public int messages;
+
+    @Param({ "10", "100" })
+    public int divergence;
+
+    private History client;
+    private History server;
+    private List<byte[]> clientLog;
+    private List<byte[]> serverLog;
+    private ChatSession near;
+    private ChatSession far;
+    private CountingStream nearWire;
+    private CountingStream farWire;
+    private volatile HistorySync nearSync;
+    private volatile HistorySync farSync;
+    private Resend nearResend;
+    private Resend farResend;
+    private long wireBytes;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        byte[][] corpus = CompressionBenchmark.corpus("chat", new Random(11));
+        Random random = new Random(5);
+        client = new History(true);
+        server = new History(false);
+        clientLog = new ArrayList<>(messages);
+        serverLog = new ArrayList<>(messages);
+        // the last divergence of each side's messages only that side holds
+        for (int i = 0; i < messages - divergence; i++) {
+            byte[] message = message(corpus, random, i);
+            boolean fromClient = random.nextBoolean();
+            client.add(i, fromClient, message);
+            server.add(i, !fromClient, message);
+            clientLog.add(message);
+            serverLog.add(message);
+        }
+        for (int i = 0; i < divergence; i++) {
+            byte[] written = message(corpus, random, messages + i);
+            client.add(messages + i, true, written);
+            clientLog.add(written);
+            byte[] answered = message(corpus, random, 2 * messages + i);
+            server.add(messages + i, true, answered);
+            serverLog.add(answered);
+        }
+
+        InMemoryTransport[] ends = InMemoryTransport.pair("client", "server", LinkProfile.UNLIMITED);
+        nearWire = new CountingStream(ends[0].getOutputStream());
+        farWire = new CountingStream(ends[1].getOutputStream());
+        nearResend = new Resend();
+        farResend = new Resend();
+        near = new ChatSession("server", ends[0].getInputStream(), nearWire, ends[0], new Route(true));
+        far = new ChatSession("client", ends[1].getInputStream(), farWire, ends[1], new Route(false));
+        near.setCompression(null);
+        far.setCompression(null);
+        near.start();
+        far.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        // single shot mode has no secondary results, the bytes go to the output
+        System.out.printf("%nwire bytes per exchange: %d%n", wireBytes);
+        near.close();
+        far.close();
+    }
+
+    @Benchmark
+    public int sync() throws Exception {
+        long before = nearWire.bytes.get() + farWire.bytes.get();
+        nearSync = new HistorySync(near, true);
+        farSync = new HistorySync(far, false);
+        FutureTask<HistorySync.Result> responder = new FutureTask<>(() -> farSync.run(server, HistorySync.DEFAULT_TIMEOUT_MILLIS));
+        new Thread(responder, "Responder").start();
+        HistorySync.Result result = nearSync.run(client, HistorySync.DEFAULT_TIMEOUT_MILLIS);
+        int received = result.getReceived().size() + responder.get().getReceived().size();
+        if (received != 2 * divergence) {
+            throw new IllegalStateException(received + " messages synced, " + 2 * divergence + " missing");
+        }
+        wireBytes = nearWire.bytes.get() + farWire.bytes.get() - before;
+        return received;
+    }
+
+    @Benchmark
+    public long resend() throws Exception {
+        long before = nearWire.bytes.get() + farWire.bytes.get();
+        nearResend.expect(serverLog.size());
+        farResend.expect(clientLog.size());
+        FutureTask<Void> responder = new FutureTask<>(() -> {
+            send(far, serverLog);
+            return null;
+        });
+        new Thread(responder, "Responder").start();
+        send(near, clientLog);
+        responder.get();
+        long received = nearResend.await() + farResend.await();
+        wireBytes = nearWire.bytes.get() + farWire.bytes.get() - before;
+        return received;
+    }
+
+    /**
+     * Every message with its time and author, packed into full frames, at most a few frames queued at a time.
+     */
+    private static void send(ChatSession session, List<byte[]> log) throws Exception {
+        BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(8);
+        for (int i = 0; i < 8; i++) {
+            free.add(new byte[Frames.DEFAULT_MAX_PAYLOAD_LENGTH]);
+        }
+        byte[] frame = free.take();
+        int length = 0;
+        for (int i = 0; i < log.size(); i++) {
+            byte[] message = log.get(i);
+            if (length + 9 + Frames.MAX_VARINT_LENGTH + message.length > frame.length) {
+                queue(session, free, frame, length);
+                frame = free.take();
+                length = 0;
+            }
+            Frames.writeLong(i, frame, length);
+            frame[length + 8] = 1;
+            length = Frames.writeVarint(message.length, frame, length + 9);
+            System.arraycopy(message, 0, frame, length, message.length);
+            length += message.length;
+        }
+        queue(session, free, frame, length);
+    }
+
+    private static void queue(ChatSession session, BlockingQueue<byte[]> free, byte[] frame, int length) {
+        if (!session.send(Frames.TYPE_DATA, frame, 0, length, (IOException error) -> free.add(frame))) {
+            throw new IllegalStateException("Frame not queued");
+        }
+    }
+
+    private static byte[] message(byte[][] corpus, Random random, int i) {
+        return (new String(corpus[random.nextInt(corpus.length)], UTF_8) + "#" + i).getBytes(UTF_8);
+    }
+
+    /**
+     * Hands sync frames to the running sync and counts the messages of a resend.
+     */
+    private final class Route implements ChatSession.Listener {
+        private final boolean initiator;
+
+        Route(boolean initiator) {
+            this.initiator = initiator;
+        }
+
+        @Override
+        public void onFrame(ChatSession session, PooledBuffer frame) {
+            if (frame.type() == Frames.TYPE_DATA) {
+                (initiator ? nearResend : farResend).onFrame(frame);
+                return;
+            }
+            HistorySync sync = initiator ? nearSync : farSync;
+            if (sync == null || !sync.onFrame(frame)) {
+                frame.release();
+            }
+        }
+
+        @Override
+        public void onClosed(ChatSession session) {
+        }
+    }
+
+    private static final class Resend {
+        private final Semaphore done = new Semaphore(0);
+        private long expected;
+        private long received;
+
+        void expect(long messages) {
+            this.expected = messages;
+            this.received = 0;
+        }
+
+        void onFrame(PooledBuffer frame) {
+            byte[] in = frame.array();
+            int position = 0;
+            while (position < frame.length()) {
+                position += 9;
+                int length = 0;
+                for (int shift = 0; ; shift += 7) {
+                    int b = in[position++] & 0xFF;
+                    length |= (b & 0x7F) << shift;
+                    if ((b & 0x80) == 0) {
+                        break;
+                    }
+                }
+                position += length;
+                received++;
+            }
+            frame.release();
+            if (received == expected) {
+                done.release();
+            }
+        }
+
+        long await() throws InterruptedException {
+            done.acquire();
+            return received;
+        }
+    }
+
+    private static final class CountingStream extends FilterOutputStream {
+        final AtomicLong bytes = new AtomicLong();
+
+        CountingStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            bytes.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytes.addAndGet(len);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import br.com.dotofcodex.bluetooth_sample.journal.Journal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Journal} on the local file system: appends per second, and the latency of reading one message from a
+ * random point of a journal of half a million. The seek is run once with the default index and once with an index
+ * interval larger than a segment, which leaves a single entry per segment and turns every lookup into a scan.
+ */
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JournalBenchmark {
+
+    private static final int MESSAGES = 500000;
+
+    @State(Scope.Thread)
+    public static class Appending {
+        @Param({ "64", "1024" })
+        public int size;
+
+        private File directory;
+        private Journal journal;
+        private byte[] payload;
+
+        @Setup(Level.Iteration)
+        public void setup() throws IOException {
+            payload = new byte[size];
+            new Random(1).nextBytes(payload);
+            directory = directory("append");
+            // 64 MB, the oldest segments go as the iteration runs
+            journal = new Journal(directory, Journal.DEFAULT_SEGMENT_BYTES, Journal.DEFAULT_INDEX_INTERVAL, 16);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            journal.close();
+            delete(directory);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Seeking {
+        @Param({ "4096", "1073741824" })
+        public int indexInterval;
+
+        private File directory;
+        private Journal journal;
+        private Random random;
+        private List<Journal.Entry> entries;
+
+        @Setup
+        public void setup() throws IOException {
+            directory = directory("seek");
+            journal = new Journal(directory, Journal.DEFAULT_SEGMENT_BYTES, indexInterval, 64);
+            Random sizes = new Random(2);
+            byte[] payload = new byte[256];
+            for (int i = 0; i < MESSAGES; i++) {
+                // chat sized messages, 16 to 144 bytes
+                journal.append(i, 0, payload, 0, 16 + sizes.nextInt(128));
+            }
+            random = new Random(3);
+            entries = new ArrayList<>(1);
+        }
+
+        @TearDown
+        public void tearDown() {
+            journal.close();
+            delete(directory);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long append(Appending state) throws IOException {
+        return state.journal.append(0, 0, state.payload, 0, state.payload.length);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Journal.Entry seek(Seeking state) {
+        state.entries.clear();
+        state.journal.read(state.random.nextInt(MESSAGES), 1, state.entries);
+        return state.entries.get(0);
+    }
+
+    private static File directory(String name) throws IOException {
+        File directory = File.createTempFile("journal-" + name, "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create " + directory);
+        }
+        return directory;
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
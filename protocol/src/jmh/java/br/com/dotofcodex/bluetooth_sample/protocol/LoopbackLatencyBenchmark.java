@@ -0,0 +1,109 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import br.com.dotofcodex.bluetooth_sample.transport.InMemoryTransport;
+import br.com.dotofcodex.bluetooth_sample.transport.LinkProfile;
+import br.com.dotofcodex.bluetooth_sample.transport.TcpConnector;
+import br.com.dotofcodex.bluetooth_sample.transport.TcpTransportServer;
+import br.com.dotofcodex.bluetooth_sample.transport.Transport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip of one message through two real {@link ChatSession}s and an echoing peer. Sample time mode reports
+ * the latency percentiles.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackLatencyBenchmark {
+
+    @Param({ "16", "256", "4096", "65536" })
+    public int size;
+
+    @Param({ "memory", "tcp" })
+    public String transport;
+
+    private final BlockingQueue<PooledBuffer> replies = new ArrayBlockingQueue<>(ChatSession.RECEIVE_BUFFERS);
+    private ChatSession client;
+    private ChatSession echo;
+    private TcpTransportServer server;
+    private byte[] payload;
+
+    @Setup
+    public void setup() throws IOException {
+        payload = new byte[size];
+
+        Transport near;
+        Transport far;
+        if ("tcp".equals(transport)) {
+            server = new TcpTransportServer(0);
+            near = new TcpConnector(server.getPort(), 1000).connect();
+            far = server.accept();
+        }
+        else {
+            InMemoryTransport[] ends = InMemoryTransport.pair("client", "echo", LinkProfile.UNLIMITED);
+            near = ends[0];
+            far = ends[1];
+        }
+
+        echo = new ChatSession(far, new ChatSession.Listener() {
+            @Override
+            public void onFrame(ChatSession session, PooledBuffer frame) {
+                session.send(frame.type(), frame.array(), 0, frame.length(), (IOException error) -> frame.release());
+            }
+
+            @Override
+            public void onClosed(ChatSession session) {
+            }
+        });
+        client = new ChatSession(near, new ChatSession.Listener() {
+            @Override
+            public void onFrame(ChatSession session, PooledBuffer frame) {
+                replies.add(frame);
+            }
+
+            @Override
+            public void onClosed(ChatSession session) {
+            }
+        });
+        echo.start();
+        client.start();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+        echo.close();
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Benchmark
+    public int roundTrip() throws InterruptedException {
+        client.send(Frames.TYPE_DATA, payload, null);
+        PooledBuffer reply = replies.take();
+        int length = reply.length();
+        reply.release();
+        return length;
+    }
+}
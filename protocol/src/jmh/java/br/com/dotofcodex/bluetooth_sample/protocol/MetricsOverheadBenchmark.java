@@ -0,0 +1,103 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import br.com.dotofcodex.bluetooth_sample.metrics.Metrics;
+import br.com.dotofcodex.bluetooth_sample.transport.InMemoryTransport;
+import br.com.dotofcodex.bluetooth_sample.transport.LinkProfile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One-way throughput of small messages between two {@link ChatSession}s over an unlimited in-memory link, with and
+ * without {@link Metrics}. The difference is what the instrumentation costs on the hot path: a couple of clock reads
+ * and single-writer counter updates per frame, histogram updates per read and per write. Forks differ by several
+ * percent on their own, so it takes a few of them to see a difference that small.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 8, time = 1)
+@Fork(4)
+public class MetricsOverheadBenchmark {
+
+    private static final int MESSAGES = 1000;
+
+    @Param({ "false", "true" })
+    public boolean metrics;
+
+    @Param({ "64", "1024" })
+    public int size;
+
+    private final Semaphore received = new Semaphore(0);
+    private ChatSession sender;
+    private ChatSession receiver;
+    private byte[] payload;
+
+    @Setup
+    public void setup() throws IOException {
+        payload = new byte[size];
+        SessionRegistry registry = metrics ? new SessionRegistry(new Metrics()) : new SessionRegistry();
+
+        InMemoryTransport[] ends = InMemoryTransport.pair("sender", "receiver", LinkProfile.UNLIMITED);
+        ChatSession.Listener listener = new ChatSession.Listener() {
+            @Override
+            public void onFrame(ChatSession session, PooledBuffer frame) {
+                frame.release();
+                received.release();
+            }
+
+            @Override
+            public void onClosed(ChatSession session) {
+            }
+        };
+        sender = new ChatSession(ends[0], listener);
+        receiver = new ChatSession(ends[1], listener);
+        // compression would dominate, it is measured on its own
+        sender.setCompression(null);
+        receiver.setCompression(null);
+        registry.register(sender);
+        registry.register(receiver);
+        receiver.start();
+        sender.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        sender.close();
+        receiver.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void throughput() throws InterruptedException {
+        int sent = 0;
+        while (sent < MESSAGES) {
+            if (sender.send(Frames.TYPE_DATA, payload, null)) {
+                sent++;
+            }
+            else {
+                // the writer queue is full, wait for the receiver to catch up
+                received.acquire(1);
+                received.release(1);
+                Thread.yield();
+            }
+        }
+        received.acquire(MESSAGES);
+    }
+}
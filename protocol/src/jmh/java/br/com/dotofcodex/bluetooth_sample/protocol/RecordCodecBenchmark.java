@@ -0,0 +1,134 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import br.com.dotofcodex.bluetooth_sample.message.Ack;
+import br.com.dotofcodex.bluetooth_sample.message.Command;
+import br.com.dotofcodex.bluetooth_sample.message.Record;
+import br.com.dotofcodex.bluetooth_sample.message.RecordReader;
+import br.com.dotofcodex.bluetooth_sample.message.RecordWriter;
+import br.com.dotofcodex.bluetooth_sample.message.SensorReading;
+
+import com.google.gson.Gson;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A mix of sensor readings, commands and acks as {@link Record}s and as the JSON text Gson makes of the same
+ * objects, in nanoseconds per record; run with {@code -prof gc} for garbage. The encoded sizes are printed when
+ * the trial starts. The JSON gets the record type for free from the benchmark, a real peer would need a field
+ * for it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordCodecBenchmark {
+
+    private static final int RECORDS = 1024;
+
+    private static final String[] UNITS = { "m/s²", "rad/s", "µT", "lux", "hPa", "°C" };
+    private static final String[] COMMANDS = { "ligar", "desligar", "calibrar", "amostrar", "reiniciar" };
+
+    private Record[] records;
+    private byte[][] binary;
+    private byte[][] json;
+    // one reused instance per record type
+    private Record[] targets;
+    private RecordWriter writer;
+    private RecordReader reader;
+    private Gson gson;
+    private int next;
+
+    @Setup
+    public void setup() throws FrameException {
+        Random random = new Random(1);
+        records = new Record[RECORDS];
+        for (int i = 0; i < RECORDS; i++) {
+            int kind = random.nextInt(10);
+            if (kind < 7) {
+                SensorReading reading = new SensorReading();
+                reading.setSensor(1 + random.nextInt(12));
+                reading.setTimeMillis(1600000000000L + i * 20);
+                reading.setAccuracy(random.nextInt(4));
+                reading.setValues((float) random.nextGaussian(), (float) random.nextGaussian(), 9.81f + (float) random.nextGaussian());
+                reading.setUnit(UNITS[random.nextInt(UNITS.length)]);
+                records[i] = reading;
+            }
+            else if (kind < 9) {
+                Command command = new Command();
+                command.setId(i);
+                command.setName(COMMANDS[random.nextInt(COMMANDS.length)]);
+                command.setArgument(random.nextInt(1000) - 500);
+                records[i] = command;
+            }
+            else {
+                Ack ack = new Ack();
+                ack.setId(i);
+                ack.setStatus(random.nextInt(8) == 0 ? Ack.STATUS_FAILED : Ack.STATUS_OK);
+                if (ack.getStatus() != Ack.STATUS_OK) {
+                    ack.setMessage("sensor ocupado");
+                }
+                records[i] = ack;
+            }
+        }
+
+        writer = new RecordWriter();
+        reader = new RecordReader();
+        gson = new Gson();
+        targets = new Record[] { null, new SensorReading(), new Command(), new Ack() };
+        binary = new byte[RECORDS][];
+        json = new byte[RECORDS][];
+        long binaryBytes = 0;
+        long jsonBytes = 0;
+        for (int i = 0; i < RECORDS; i++) {
+            int length = writer.write(records[i]);
+            binary[i] = new byte[length];
+            System.arraycopy(writer.array(), 0, binary[i], 0, length);
+            json[i] = gson.toJson(records[i]).getBytes(Utf8StreamDecoder.UTF_8);
+            binaryBytes += length;
+            jsonBytes += json[i].length;
+        }
+        System.out.println(String.format("%n%d records: %d bytes as records, %d as JSON (%.1f%%)", RECORDS, binaryBytes,
+                jsonBytes, 100.0 * binaryBytes / jsonBytes));
+    }
+
+    @Benchmark
+    public int encodeRecord() {
+        return writer.write(records[next()]);
+    }
+
+    @Benchmark
+    public Record decodeRecord() throws FrameException {
+        byte[] bytes = binary[next()];
+        return reader.read(targets[reader.begin(bytes, 0, bytes.length)]);
+    }
+
+    @Benchmark
+    public byte[] encodeJson() {
+        return gson.toJson(records[next()]).getBytes(Utf8StreamDecoder.UTF_8);
+    }
+
+    @Benchmark
+    public Object decodeJson() {
+        int i = next();
+        return gson.fromJson(new String(json[i], Utf8StreamDecoder.UTF_8), records[i].getClass());
+    }
+
+    private int next() {
+        next = (next + 1) & (RECORDS - 1);
+        return next;
+    }
+}
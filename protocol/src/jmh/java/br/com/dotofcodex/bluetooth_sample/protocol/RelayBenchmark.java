@@ -0,0 +1,136 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import br.com.dotofcodex.bluetooth_sample.relay.RelayNode;
+import br.com.dotofcodex.bluetooth_sample.transport.InMemoryTransport;
+import br.com.dotofcodex.bluetooth_sample.transport.LinkProfile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Messages between the two ends of a chain of {@link RelayNode}s joined by in-JVM loopback links; {@code hops} 1 is
+ * the two ends linked directly, every hop more puts one relay between them. {@code roundTrip} is the latency of a
+ * message echoed by the far end, {@code throughput} the time per message when a batch of {@link #BATCH} is in
+ * flight at once. What a relay adds is the difference between rows; over RFCOMM the link itself dominates both.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RelayBenchmark {
+
+    private static final int BATCH = 64;
+
+    @Param({ "1", "2", "3", "4", "5" })
+    public int hops;
+
+    @Param({ "64", "1024" })
+    public int size;
+
+    private final List<ChatSession> sessions = new ArrayList<>();
+    private final Semaphore arrived = new Semaphore(0);
+    private RelayNode first;
+    private long last;
+    private byte[] message;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        message = new byte[size];
+        RelayNode[] nodes = new RelayNode[hops + 1];
+        for (int i = 0; i <= hops; i++) {
+            nodes[i] = new RelayNode(i + 1, new Receiver(i == hops), null, RelayNode.DEFAULT_PARK_CAPACITY);
+        }
+        for (int i = 0; i < hops; i++) {
+            link(nodes[i], nodes[i + 1]);
+        }
+        first = nodes[0];
+        last = nodes[hops].getId();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (first.getHops(last) != hops || nodes[hops].getHops(first.getId()) != hops) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Routes did not converge");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (ChatSession session : sessions) {
+            session.close();
+        }
+    }
+
+    @Benchmark
+    public void roundTrip() throws InterruptedException {
+        first.send(last, message, 0, message.length);
+        arrived.acquire();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void throughput() throws InterruptedException {
+        for (int i = 0; i < BATCH; i++) {
+            // each one there and back, as in roundTrip
+            first.send(last, message, 0, message.length);
+        }
+        arrived.acquire(BATCH);
+    }
+
+    private void link(RelayNode near, RelayNode far) throws IOException {
+        InMemoryTransport[] ends = InMemoryTransport.pair("node-" + far.getId(), "node-" + near.getId(),
+                LinkProfile.UNLIMITED);
+        ChatSession one = new ChatSession(ends[0], near);
+        ChatSession other = new ChatSession(ends[1], far);
+        one.setCompression(null);
+        other.setCompression(null);
+        sessions.add(one);
+        sessions.add(other);
+        one.start();
+        other.start();
+        near.attach(one);
+        far.attach(other);
+    }
+
+    /**
+     * The far end echoes what arrives, the near end counts the echoes.
+     */
+    private final class Receiver implements RelayNode.Listener {
+        private final boolean echo;
+
+        Receiver(boolean echo) {
+            this.echo = echo;
+        }
+
+        @Override
+        public void onMessage(RelayNode node, long source, PooledBuffer frame, int offset, int length) {
+            if (echo) {
+                node.send(source, frame.array(), offset, length);
+            }
+            else {
+                arrived.release();
+            }
+            frame.release();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding 64 KB of text read in pieces, in bytes per second; run with {@code -prof gc} for garbage.
+ * {@code stringPerRead} is the old receive path, a String per read that also garbles characters split between
+ * reads, {@code streamDecoder} decodes into the reusable text buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Utf8DecodeBenchmark {
+
+    private static final int TEXT_LENGTH = 64 * 1024;
+
+    private static final String[] PORTUGUESE = { "olá", "coração", "informação", "não", "açúcar", "você", "maçã", "e" };
+    private static final String[] ASCII = { "hello", "bluetooth", "chat", "message", "sample", "a" };
+
+    @Param({ "64", "1024" })
+    public int read;
+
+    @Param({ "ascii", "portuguese" })
+    public String text;
+
+    private byte[] bytes;
+    private Utf8StreamDecoder decoder;
+
+    @Setup
+    public void setup() {
+        String[] words = "ascii".equals(text) ? ASCII : PORTUGUESE;
+        Random random = new Random(read);
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < TEXT_LENGTH) {
+            builder.append(words[random.nextInt(words.length)]).append(' ');
+        }
+        bytes = builder.toString().getBytes(Utf8StreamDecoder.UTF_8);
+        decoder = new Utf8StreamDecoder();
+    }
+
+    @Benchmark
+    public void stringPerRead(Blackhole hole) {
+        for (int offset = 0; offset < bytes.length; offset += read) {
+            hole.consume(new String(bytes, offset, Math.min(read, bytes.length - offset), Utf8StreamDecoder.UTF_8));
+        }
+    }
+
+    @Benchmark
+    public int streamDecoder() {
+        for (int offset = 0; offset < bytes.length; offset += read) {
+            decoder.decode(bytes, offset, Math.min(read, bytes.length - offset));
+        }
+        int length = decoder.text().length();
+        decoder.clear();
+        return length;
+    }
+}
@@ -0,0 +1,123 @@
+package br.com.dotofcodex.bluetooth_sample.delivery;
+
+import br.com.dotofcodex.bluetooth_sample.metrics.Histogram;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects items from any number of reader threads and hands them to the UI in one batch per display frame.
+ * At most one drain is scheduled at a time no matter how fast items arrive, and a batch never holds more than
+ * {@code capacity} items: when the UI falls behind the oldest pending items are dropped, since they would scroll
+ * out of a capped history anyway. The UI therefore does a bounded amount of work per frame.
+ */
+public final class FrameBatcher<T> {
+
+    public interface Scheduler {
+        /**
+         * Runs {@code drain} on the UI thread before the next frame is drawn.
+         */
+        void schedule(Runnable drain);
+    }
+
+    public interface Consumer<T> {
+        /**
+         * Runs on the UI thread. The list is reused after the call returns.
+         */
+        void onBatch(List<T> batch, int dropped);
+    }
+
+    private final int capacity;
+    private final Scheduler scheduler;
+    private final Consumer<T> consumer;
+    private final ArrayDeque<T> pending;
+    private final ArrayList<T> batch;
+    private final Runnable drain;
+    private final Histogram latency;
+    // when each pending item was received, a ring kept in step with pending; only with a latency histogram
+    private final long[] received;
+    private int receivedHead;
+    private boolean scheduled;
+    private int dropped;
+
+    public FrameBatcher(int capacity, Scheduler scheduler, Consumer<T> consumer) {
+        this(capacity, scheduler, consumer, null);
+    }
+
+    /**
+     * @param latency gets, for every item handed to the consumer, the time since it was received; may be {@code null}
+     */
+    public FrameBatcher(int capacity, Scheduler scheduler, Consumer<T> consumer, Histogram latency) {
+        super();
+        this.capacity = capacity;
+        this.scheduler = scheduler;
+        this.consumer = consumer;
+        this.pending = new ArrayDeque<>(capacity);
+        this.batch = new ArrayList<>(capacity);
+        this.drain = this::drain;
+        this.latency = latency;
+        this.received = latency != null ? new long[capacity] : null;
+    }
+
+    public void offer(T item) {
+        offer(item, 0);
+    }
+
+    /**
+     * @param receivedNanos {@link System#nanoTime()} when the item came off the socket, 0 for now
+     */
+    public void offer(T item, long receivedNanos) {
+        if (received != null && receivedNanos == 0) {
+            receivedNanos = System.nanoTime();
+        }
+        synchronized (pending) {
+            if (pending.size() == capacity) {
+                pending.pollFirst();
+                dropped++;
+                if (received != null) {
+                    receivedHead = (receivedHead + 1) % capacity;
+                }
+            }
+            if (received != null) {
+                received[(receivedHead + pending.size()) % capacity] = receivedNanos;
+            }
+            pending.addLast(item);
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        scheduler.schedule(drain);
+    }
+
+    public int pending() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    private void drain() {
+        int lost;
+        synchronized (pending) {
+            if (received != null) {
+                long now = System.nanoTime();
+                for (int i = 0; i < pending.size(); i++) {
+                    latency.record(now - received[(receivedHead + i) % capacity]);
+                }
+                receivedHead = 0;
+            }
+            batch.addAll(pending);
+            pending.clear();
+            lost = dropped;
+            dropped = 0;
+            scheduled = false;
+        }
+
+        try {
+            consumer.onBatch(batch, lost);
+        } finally {
+            batch.clear();
+        }
+    }
+}
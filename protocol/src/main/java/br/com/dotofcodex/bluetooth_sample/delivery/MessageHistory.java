@@ -0,0 +1,67 @@
+package br.com.dotofcodex.bluetooth_sample.delivery;
+
+import java.util.List;
+
+/**
+ * Fixed size ring of the most recent messages, indexed oldest first. Not thread safe, meant for the UI thread.
+ * {@link #addAll(List)} reports how many old entries it pushed out so a list view can update incrementally.
+ */
+public final class MessageHistory<T> {
+
+    private final Object[] items;
+    private int head;
+    private int size;
+    private int evicted;
+
+    public MessageHistory(int capacity) {
+        super();
+        this.items = new Object[capacity];
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        return (T) items[(head + index) % items.length];
+    }
+
+    public void add(T item) {
+        if (size < items.length) {
+            items[(head + size) % items.length] = item;
+            size++;
+            return;
+        }
+        items[head] = item;
+        head = (head + 1) % items.length;
+        evicted++;
+    }
+
+    /**
+     * Appends the batch and returns the number of entries evicted from the front to make room.
+     */
+    public int addAll(List<T> batch) {
+        evicted = 0;
+        // only the tail of a batch larger than the history can survive
+        for (int i = Math.max(0, batch.size() - items.length); i < batch.size(); i++) {
+            add(batch.get(i));
+        }
+        return Math.min(evicted, items.length);
+    }
+
+    public void clear() {
+        for (int i = 0; i < items.length; i++) {
+            items[i] = null;
+        }
+        head = 0;
+        size = 0;
+    }
+}
@@ -0,0 +1,391 @@
+package br.com.dotofcodex.bluetooth_sample.discovery;
+
+import br.com.dotofcodex.bluetooth_sample.protocol.ConnectionExecutor;
+import br.com.dotofcodex.bluetooth_sample.transport.Connector;
+import br.com.dotofcodex.bluetooth_sample.transport.Transport;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Races connection attempts to the peers discovery turns up and keeps the first one that answers. Candidates are
+ * ranked by {@link Rule}s, at most {@code parallelism} attempts run at a time, best ranked first, and each is
+ * cancelled after {@code attemptTimeoutMillis}. The first transport connected wins: the listener gets it, queued
+ * candidates are dropped and the attempts still running are cancelled, their transports closed if they connect
+ * anyway. Given a {@link ConnectionExecutor} the attempts and their deadlines run on its threads, otherwise each
+ * attempt starts a thread and every race its own timer.
+ */
+public final class ConnectOrchestrator {
+
+    public interface Rule {
+        /**
+         * How much the device is wanted, higher is dialled first; {@link #REJECT} when it is not wanted at all.
+         */
+        int rank(String address, String name, int rssi);
+    }
+
+    public interface Listener {
+        /**
+         * Called once, on the winning attempt's thread. The listener owns the transport.
+         */
+        void onConnected(ConnectOrchestrator orchestrator, Connector winner, Transport transport);
+
+        /**
+         * Called once when {@link #finish()} was called and every candidate failed, with the last error, which is
+         * {@code null} if there was no candidate.
+         */
+        void onFailed(ConnectOrchestrator orchestrator, IOException error);
+    }
+
+    public static final int REJECT = -1;
+    // controllers page one device at a time, more attempts only queue up in the radio
+    public static final int DEFAULT_PARALLELISM = 2;
+    public static final long DEFAULT_ATTEMPT_TIMEOUT_MILLIS = 8000;
+
+    private static final Comparator<Candidate> BEST_FIRST = (Candidate a, Candidate b) -> {
+        if (a.rank != b.rank) {
+            return a.rank > b.rank ? -1 : 1;
+        }
+        if (a.rssi != b.rssi) {
+            return a.rssi > b.rssi ? -1 : 1;
+        }
+        return Long.compare(a.order, b.order);
+    };
+
+    private final List<Rule> rules;
+    private final int parallelism;
+    private final long attemptTimeoutMillis;
+    private final Listener listener;
+    // null for a thread per attempt
+    private final ConnectionExecutor executor;
+    private final ScheduledExecutorService deadlines;
+
+    // guarded by this
+    private final PriorityQueue<Candidate> queue;
+    private final List<Attempt> running;
+    private final Set<String> offered;
+    private long order;
+    private long startNanos;
+    private long elapsedNanos;
+    private int attempts;
+    private boolean finished;
+    private boolean done;
+    private IOException lastError;
+    private Connector winner;
+
+    public ConnectOrchestrator(List<Rule> rules, Listener listener) {
+        this(rules, DEFAULT_PARALLELISM, DEFAULT_ATTEMPT_TIMEOUT_MILLIS, listener);
+    }
+
+    public ConnectOrchestrator(List<Rule> rules, int parallelism, long attemptTimeoutMillis, Listener listener) {
+        this(rules, parallelism, attemptTimeoutMillis, null, listener);
+    }
+
+    public ConnectOrchestrator(List<Rule> rules, int parallelism, long attemptTimeoutMillis, ConnectionExecutor executor, Listener listener) {
+        super();
+        if (parallelism <= 0 || attemptTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("Invalid race: " + parallelism + " attempts, " + attemptTimeoutMillis + " ms");
+        }
+        this.rules = new ArrayList<>(rules);
+        this.parallelism = parallelism;
+        this.attemptTimeoutMillis = attemptTimeoutMillis;
+        this.listener = listener;
+        this.executor = executor;
+        this.deadlines = executor != null ? executor.getTimer() : Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ConnectDeadlines");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.queue = new PriorityQueue<>(16, BEST_FIRST);
+        this.running = new ArrayList<>();
+        this.offered = new HashSet<>();
+    }
+
+    /**
+     * Wants devices whose name contains {@code part}, ignoring case.
+     */
+    public static Rule nameContains(String part, final int rank) {
+        final String lower = part.toLowerCase(Locale.ROOT);
+        return (String address, String name, int rssi) ->
+                name != null && name.toLowerCase(Locale.ROOT).contains(lower) ? rank : REJECT;
+    }
+
+    /**
+     * Wants devices the cache remembers connecting to, whatever their name.
+     */
+    public static Rule connectedBefore(final DeviceCache cache, final int rank) {
+        return (String address, String name, int rssi) -> {
+            DeviceCache.Entry entry = cache.get(address);
+            return entry != null && entry.getOutcome() == DeviceCache.OUTCOME_CONNECTED ? rank : REJECT;
+        };
+    }
+
+    /**
+     * The highest rank any rule gives the device, {@link #REJECT} if none wants it.
+     */
+    public int rank(String address, String name, int rssi) {
+        int best = REJECT;
+        for (Rule rule : rules) {
+            best = Math.max(best, rule.rank(address, name, rssi));
+        }
+        return best;
+    }
+
+    /**
+     * Adds a candidate unless no rule wants it, it was offered before or the race is over. It is dialled right away
+     * if an attempt is free, otherwise when its rank comes up.
+     */
+    public boolean offer(Connector connector, String name, int rssi) {
+        int rank = rank(connector.getRemoteAddress(), name, rssi);
+        if (rank < 0) {
+            return false;
+        }
+        synchronized (this) {
+            if (done || !offered.add(connector.getRemoteAddress())) {
+                return false;
+            }
+            if (startNanos == 0) {
+                startNanos = System.nanoTime();
+            }
+            queue.add(new Candidate(connector, rank, rssi, order++));
+            launch();
+        }
+        return true;
+    }
+
+    /**
+     * No more candidates are coming, such as when discovery finished; once the last attempt fails the listener
+     * hears about it.
+     */
+    public void finish() {
+        IOException error;
+        synchronized (this) {
+            finished = true;
+            if (done || !running.isEmpty() || !queue.isEmpty()) {
+                return;
+            }
+            done = true;
+            error = lastError;
+        }
+        stopDeadlines(null);
+        listener.onFailed(this, error);
+    }
+
+    /**
+     * Gives up the race without telling the listener; running attempts are cancelled.
+     */
+    public void cancel() {
+        List<Attempt> cancelled;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            queue.clear();
+            cancelled = new ArrayList<>(running);
+        }
+        stopDeadlines(cancelled);
+        for (Attempt attempt : cancelled) {
+            attempt.candidate.connector.cancel();
+        }
+    }
+
+    public synchronized boolean isDone() {
+        return this.done;
+    }
+
+    /**
+     * The connector that won, {@code null} while the race is on or if it was lost.
+     */
+    public synchronized Connector getWinner() {
+        return this.winner;
+    }
+
+    /**
+     * From the first candidate offered to the winner connecting, in nanoseconds.
+     */
+    public synchronized long getElapsedNanos() {
+        return this.elapsedNanos;
+    }
+
+    /**
+     * Attempts started so far, including the winner.
+     */
+    public synchronized int getAttempts() {
+        return this.attempts;
+    }
+
+    /**
+     * Starts the best queued candidates while attempts are free. Called with the lock held.
+     */
+    private void launch() {
+        while (!done && running.size() < parallelism && !queue.isEmpty()) {
+            Attempt attempt = new Attempt(queue.poll());
+            running.add(attempt);
+            attempts++;
+            try {
+                attempt.deadline = deadlines.schedule(attempt::expire, attemptTimeoutMillis, TimeUnit.MILLISECONDS);
+                if (executor == null) {
+                    new Thread(attempt, attempt.name).start();
+                }
+                else {
+                    executor.execute(attempt.name, attempt);
+                }
+            } catch (RejectedExecutionException e) {
+                // every thread is busy or the executor closed, the candidate fails like one that did not answer
+                running.remove(attempt);
+                if (attempt.deadline != null) {
+                    attempt.deadline.cancel(false);
+                }
+                lastError = new IOException("No thread to dial " + attempt.candidate.connector.getRemoteAddress(), e);
+            }
+        }
+    }
+
+    /**
+     * Our own timer goes with the race, a shared one only loses the deadlines of these attempts.
+     */
+    private void stopDeadlines(List<Attempt> attempts) {
+        if (executor == null) {
+            deadlines.shutdownNow();
+            return;
+        }
+        if (attempts != null) {
+            for (Attempt attempt : attempts) {
+                ScheduledFuture<?> deadline = attempt.deadline;
+                if (deadline != null) {
+                    deadline.cancel(false);
+                }
+            }
+        }
+    }
+
+    private void onAttemptDone(Attempt attempt, Transport transport, IOException error) {
+        List<Attempt> losers = null;
+        boolean failed = false;
+        IOException last = null;
+        synchronized (this) {
+            running.remove(attempt);
+            if (attempt.deadline != null) {
+                attempt.deadline.cancel(false);
+            }
+            if (transport != null && !done) {
+                done = true;
+                winner = attempt.candidate.connector;
+                elapsedNanos = System.nanoTime() - startNanos;
+                queue.clear();
+                losers = new ArrayList<>(running);
+            }
+            else if (transport == null && !done) {
+                lastError = attempt.expired
+                        ? new SocketTimeoutException("Connect to " + attempt.candidate.connector.getRemoteAddress() + " timed out after " + attemptTimeoutMillis + " ms")
+                        : error;
+                launch();
+                if (finished && running.isEmpty() && queue.isEmpty()) {
+                    done = true;
+                    failed = true;
+                    last = lastError;
+                }
+            }
+        }
+
+        if (losers != null) {
+            stopDeadlines(losers);
+            for (Attempt loser : losers) {
+                loser.candidate.connector.cancel();
+            }
+            listener.onConnected(this, attempt.candidate.connector, transport);
+        }
+        else if (transport != null) {
+            // connected after another attempt won or the race was cancelled
+            try {
+                transport.close();
+            } catch (IOException ignored) {  }
+        }
+        else if (failed) {
+            stopDeadlines(null);
+            listener.onFailed(this, last);
+        }
+    }
+
+    private static final class Candidate {
+        final Connector connector;
+        final int rank;
+        final int rssi;
+        final long order;
+
+        Candidate(Connector connector, int rank, int rssi, long order) {
+            this.connector = connector;
+            this.rank = rank;
+            this.rssi = rssi;
+            this.order = order;
+        }
+    }
+
+    /**
+     * One connection attempt, on a thread of its own while it runs since connecting blocks.
+     */
+    private final class Attempt implements Runnable {
+        final Candidate candidate;
+        final String name;
+        volatile ScheduledFuture<?> deadline;
+        // guarded by the orchestrator, whichever of the two is set first decides the attempt
+        boolean completed;
+        boolean expired;
+
+        Attempt(Candidate candidate) {
+            this.candidate = candidate;
+            this.name = "ConnectAttempt-" + candidate.connector.getRemoteAddress();
+        }
+
+        @Override
+        public void run() {
+            Transport transport = null;
+            IOException error = null;
+            try {
+                transport = candidate.connector.connect();
+            } catch (IOException e) {
+                error = e;
+            }
+            boolean late;
+            synchronized (ConnectOrchestrator.this) {
+                completed = true;
+                late = expired;
+            }
+            if (late && transport != null) {
+                // the deadline cancelled the connector just as it connected, the link may already be closed
+                try {
+                    transport.close();
+                } catch (IOException ignored) {  }
+                transport = null;
+            }
+            onAttemptDone(this, transport, error);
+        }
+
+        void expire() {
+            synchronized (ConnectOrchestrator.this) {
+                if (completed) {
+                    return;
+                }
+                expired = true;
+            }
+            candidate.connector.cancel();
+        }
+    }
+}
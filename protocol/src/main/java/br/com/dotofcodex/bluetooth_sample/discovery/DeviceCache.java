@@ -0,0 +1,286 @@
+package br.com.dotofcodex.bluetooth_sample.discovery;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Devices seen during discovery or dialled directly, keyed by address, with the outcome of the last connection.
+ * Entries expire {@code ttlMillis} after they were last seen or connected, and past {@code capacity} the least
+ * recently used one is dropped, so every lookup and update is a single hash map operation. The cache is saved to
+ * a file and loaded back on the next start, so a known peer can be dialled without an inquiry scan.
+ */
+public final class DeviceCache {
+
+    public interface Clock {
+        long millis();
+    }
+
+    public static final long DEFAULT_TTL_MILLIS = 24 * 60 * 60 * 1000L;
+    public static final int DEFAULT_CAPACITY = 256;
+    // what android reports when a scan did not carry the signal strength
+    public static final int UNKNOWN_RSSI = Short.MIN_VALUE;
+
+    public static final int OUTCOME_UNKNOWN = 0;
+    public static final int OUTCOME_CONNECTED = 1;
+    public static final int OUTCOME_FAILED = 2;
+
+    private static final int MAGIC = 0x44564331;
+    private static final int VERSION = 1;
+
+    /**
+     * What is known about one device, immutable; updates replace the entry.
+     */
+    public static final class Entry {
+        private final String address;
+        private final String name;
+        private final int rssi;
+        private final long lastSeenMillis;
+        private final int outcome;
+        private final long lastConnectMillis;
+
+        Entry(String address, String name, int rssi, long lastSeenMillis, int outcome, long lastConnectMillis) {
+            this.address = address;
+            this.name = name;
+            this.rssi = rssi;
+            this.lastSeenMillis = lastSeenMillis;
+            this.outcome = outcome;
+            this.lastConnectMillis = lastConnectMillis;
+        }
+
+        public String getAddress() {
+            return this.address;
+        }
+
+        /**
+         * May be {@code null}, not every inquiry response carries a name.
+         */
+        public String getName() {
+            return this.name;
+        }
+
+        public int getRssi() {
+            return this.rssi;
+        }
+
+        public long getLastSeenMillis() {
+            return this.lastSeenMillis;
+        }
+
+        public int getOutcome() {
+            return this.outcome;
+        }
+
+        public long getLastConnectMillis() {
+            return this.lastConnectMillis;
+        }
+
+        long getLastActiveMillis() {
+            return Math.max(lastSeenMillis, lastConnectMillis);
+        }
+
+        @Override
+        public String toString() {
+            return address + " " + name + " rssi " + rssi + " outcome " + outcome;
+        }
+    }
+
+    private final File file;
+    private final long ttlMillis;
+    private final Clock clock;
+    private final LinkedHashMap<String, Entry> entries;
+    private String lastConnected;
+
+    public DeviceCache(File file) {
+        this(file, DEFAULT_TTL_MILLIS, DEFAULT_CAPACITY, System::currentTimeMillis);
+    }
+
+    /**
+     * @param file where {@link #save()} and {@link #load()} keep the entries, {@code null} for a cache in memory only
+     */
+    public DeviceCache(File file, long ttlMillis, final int capacity, Clock clock) {
+        super();
+        this.file = file;
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+        // access order, the eldest entry is the least recently used
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DeviceCache.Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * The device if it has been active within the TTL, {@code null} otherwise.
+     */
+    public synchronized Entry get(String address) {
+        Entry entry = entries.get(address);
+        if (entry != null && isExpired(entry, clock.millis())) {
+            entries.remove(address);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Records an inquiry response and returns what was known before, {@code null} for a device new to the cache.
+     * A missing name keeps the one seen earlier.
+     */
+    public synchronized Entry onFound(String address, String name, int rssi) {
+        long now = clock.millis();
+        Entry previous = entries.get(address);
+        if (previous != null && isExpired(previous, now)) {
+            previous = null;
+        }
+        if (previous == null) {
+            entries.put(address, new Entry(address, name, rssi, now, OUTCOME_UNKNOWN, 0));
+        }
+        else {
+            entries.put(address, new Entry(address, name != null ? name : previous.name, rssi, now, previous.outcome, previous.lastConnectMillis));
+        }
+        return previous;
+    }
+
+    public void onConnected(String address, String name) {
+        onOutcome(address, name, OUTCOME_CONNECTED);
+    }
+
+    public void onConnectFailed(String address) {
+        onOutcome(address, null, OUTCOME_FAILED);
+    }
+
+    /**
+     * The device connected to last, if that was within the TTL and no attempt on it failed since; the one worth
+     * dialling without a scan. {@code null} otherwise.
+     */
+    public synchronized Entry getLastConnected() {
+        if (lastConnected == null) {
+            return null;
+        }
+        Entry entry = get(lastConnected);
+        return entry != null && entry.outcome == OUTCOME_CONNECTED ? entry : null;
+    }
+
+    /**
+     * Every entry still within the TTL, least recently used first.
+     */
+    public synchronized List<Entry> getEntries() {
+        purge();
+        return new ArrayList<>(entries.values());
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Replaces the cache with the saved entries that have not expired. A missing file leaves the cache empty and
+     * a truncated one keeps what could be read; the cache only saves scan time, nothing is lost by starting over.
+     */
+    public synchronized void load() throws IOException {
+        entries.clear();
+        lastConnected = null;
+        if (file == null) {
+            return;
+        }
+
+        long now = clock.millis();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String address = in.readUTF();
+                String name = in.readBoolean() ? in.readUTF() : null;
+                Entry entry = new Entry(address, name, in.readShort(), in.readLong(), in.readByte(), in.readLong());
+                if (!isExpired(entry, now)) {
+                    entries.put(address, entry);
+                    if (entry.outcome == OUTCOME_CONNECTED && (lastConnected == null
+                            || entry.lastConnectMillis > entries.get(lastConnected).lastConnectMillis)) {
+                        lastConnected = address;
+                    }
+                }
+            }
+        } catch (FileNotFoundException | EOFException e) {
+            // never saved, or written by something other than save()
+        }
+    }
+
+    /**
+     * Writes the live entries to a temporary file and renames it over the old one, so a crash never leaves half a
+     * cache behind.
+     */
+    public synchronized void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+        purge();
+
+        File temporary = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : entries.values()) {
+                out.writeUTF(entry.address);
+                out.writeBoolean(entry.name != null);
+                if (entry.name != null) {
+                    out.writeUTF(entry.name);
+                }
+                out.writeShort(entry.rssi);
+                out.writeLong(entry.lastSeenMillis);
+                out.writeByte(entry.outcome);
+                out.writeLong(entry.lastConnectMillis);
+            }
+        }
+        if (!temporary.renameTo(file)) {
+            // some platforms will not rename over an existing file
+            if (!file.delete() || !temporary.renameTo(file)) {
+                throw new IOException("Cannot replace " + file);
+            }
+        }
+    }
+
+    private synchronized void onOutcome(String address, String name, int outcome) {
+        long now = clock.millis();
+        Entry previous = entries.get(address);
+        if (previous == null || isExpired(previous, now)) {
+            entries.put(address, new Entry(address, name, UNKNOWN_RSSI, 0, outcome, now));
+        }
+        else {
+            entries.put(address, new Entry(address, name != null ? name : previous.name, previous.rssi, previous.lastSeenMillis, outcome, now));
+        }
+        if (outcome == OUTCOME_CONNECTED) {
+            lastConnected = address;
+        }
+    }
+
+    private void purge() {
+        long now = clock.millis();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (isExpired(iterator.next(), now)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return now - entry.getLastActiveMillis() > ttlMillis;
+    }
+}
@@ -0,0 +1,178 @@
+package br.com.dotofcodex.bluetooth_sample.discovery;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The devices shown to the user, bonded and discovered alike, one row per address in the order they were first
+ * seen. Rows never move, so every update is a map lookup and at most one {@link Listener} call, whatever the number
+ * of devices: new devices are inserted at the end and a row is only reported changed when something shown on it
+ * did. Not thread safe, meant for the UI thread and the list view it feeds.
+ */
+public final class DeviceList {
+
+    public interface Listener {
+        void onInserted(int position);
+
+        void onChanged(int position);
+    }
+
+    public static final int UNKNOWN_RSSI = DeviceCache.UNKNOWN_RSSI;
+
+    /**
+     * One row, immutable; updates replace it.
+     */
+    public static final class Device {
+        private final String address;
+        private final String name;
+        private final int rssi;
+        private final boolean bonded;
+        private final boolean connected;
+
+        Device(String address, String name, int rssi, boolean bonded, boolean connected) {
+            this.address = address;
+            this.name = name;
+            this.rssi = rssi;
+            this.bonded = bonded;
+            this.connected = connected;
+        }
+
+        public String getAddress() {
+            return this.address;
+        }
+
+        /**
+         * May be {@code null} until some response carries a name.
+         */
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * Signal of the last inquiry response, {@link #UNKNOWN_RSSI} for a device only known as bonded.
+         */
+        public int getRssi() {
+            return this.rssi;
+        }
+
+        public boolean isBonded() {
+            return this.bonded;
+        }
+
+        public boolean isConnected() {
+            return this.connected;
+        }
+
+        boolean sameAs(String name, int rssi, boolean bonded, boolean connected) {
+            return (this.name == null ? name == null : this.name.equals(name)) && this.rssi == rssi
+                    && this.bonded == bonded && this.connected == connected;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(64);
+            text.append(name != null ? name : "?").append("  ").append(address);
+            if (rssi != UNKNOWN_RSSI) {
+                text.append("  ").append(rssi).append(" dBm");
+            }
+            if (connected) {
+                text.append("  connected");
+            }
+            else if (bonded) {
+                text.append("  bonded");
+            }
+            return text.toString();
+        }
+    }
+
+    private final Listener listener;
+    private final List<Device> devices;
+    private final Map<String, Integer> positions;
+
+    public DeviceList(Listener listener) {
+        super();
+        this.listener = listener;
+        this.devices = new ArrayList<>();
+        this.positions = new HashMap<>();
+    }
+
+    public int size() {
+        return devices.size();
+    }
+
+    public Device get(int position) {
+        return devices.get(position);
+    }
+
+    /**
+     * Row of the device, -1 if it is not listed.
+     */
+    public int indexOf(String address) {
+        Integer position = positions.get(address);
+        return position != null ? position : -1;
+    }
+
+    /**
+     * A device paired with this one; its signal is kept if a scan already reported it.
+     */
+    public void onBonded(String address, String name) {
+        Device known = find(address);
+        if (known == null) {
+            insert(new Device(address, name, UNKNOWN_RSSI, true, false));
+        }
+        else {
+            update(known, name != null ? name : known.name, known.rssi, true, known.connected);
+        }
+    }
+
+    /**
+     * An inquiry response. A missing name keeps the one seen earlier.
+     */
+    public void onFound(String address, String name, int rssi) {
+        Device known = find(address);
+        if (known == null) {
+            insert(new Device(address, name, rssi, false, false));
+        }
+        else {
+            update(known, name != null ? name : known.name, rssi, known.bonded, known.connected);
+        }
+    }
+
+    /**
+     * A session with the device opened or closed; a device not listed yet is added.
+     */
+    public void setConnected(String address, boolean connected) {
+        Device known = find(address);
+        if (known == null) {
+            if (connected) {
+                insert(new Device(address, null, UNKNOWN_RSSI, false, true));
+            }
+        }
+        else {
+            update(known, known.name, known.rssi, known.bonded, connected);
+        }
+    }
+
+    private Device find(String address) {
+        Integer position = positions.get(address);
+        return position != null ? devices.get(position) : null;
+    }
+
+    private void insert(Device device) {
+        int position = devices.size();
+        devices.add(device);
+        positions.put(device.address, position);
+        listener.onInserted(position);
+    }
+
+    private void update(Device known, String name, int rssi, boolean bonded, boolean connected) {
+        if (known.sameAs(name, rssi, bonded, connected)) {
+            return;
+        }
+        int position = positions.get(known.address);
+        devices.set(position, new Device(known.address, name, rssi, bonded, connected));
+        listener.onChanged(position);
+    }
+}
@@ -0,0 +1,263 @@
+package br.com.dotofcodex.bluetooth_sample.journal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Append-only log of the messages exchanged with one peer, numbered from 0 in the order they were written. Records
+ * go into memory-mapped segment files of {@code segmentBytes}; a full segment is left as it is and the next one
+ * starts at the following sequence number. Past {@code maxSegments} the oldest segment is deleted, so the journal
+ * never takes more than {@code segmentBytes * maxSegments} of storage and scrollback simply ends earlier.
+ *
+ * <p>Reading from any sequence number costs a binary search over the segments, one over the segment's sparse
+ * index and a scan of at most {@code indexInterval} bytes, and the kernel only pages in what those touch. A journal
+ * of hundreds of thousands of messages therefore scrolls back as fast as an empty one.
+ *
+ * <p>One thread appends, usually the writer of {@link Journals}; any number of threads may read meanwhile. Records
+ * are in the page cache as soon as {@link #append} returns and survive the app being killed; {@link #force()} also
+ * makes them survive the device losing power.
+ */
+public final class Journal implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+    // one page, so a lookup reads the page the index points at and maybe the next
+    public static final int DEFAULT_INDEX_INTERVAL = 4096;
+    public static final int DEFAULT_MAX_SEGMENTS = 8;
+
+    public static final int FLAG_OUTGOING = 0x01;
+
+    /**
+     * One message read back from the journal.
+     */
+    public static final class Entry {
+        private final long sequence;
+        private final long timeMillis;
+        private final int flags;
+        private final byte[] payload;
+
+        Entry(long sequence, long timeMillis, int flags, byte[] payload) {
+            this.sequence = sequence;
+            this.timeMillis = timeMillis;
+            this.flags = flags;
+            this.payload = payload;
+        }
+
+        public long getSequence() {
+            return this.sequence;
+        }
+
+        public long getTimeMillis() {
+            return this.timeMillis;
+        }
+
+        public boolean isOutgoing() {
+            return (flags & FLAG_OUTGOING) != 0;
+        }
+
+        public byte[] getPayload() {
+            return this.payload;
+        }
+    }
+
+    private final File directory;
+    private final int segmentBytes;
+    private final int indexInterval;
+    private final int maxSegments;
+    // replaced, never changed, by the appending thread; oldest first
+    private volatile Segment[] segments;
+    private volatile boolean closed;
+
+    public Journal(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_INDEX_INTERVAL, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * Opens the journal in {@code directory}, creating it when missing, and recovers whatever was appended before.
+     */
+    public Journal(File directory, int segmentBytes, int indexInterval, int maxSegments) throws IOException {
+        super();
+        if (segmentBytes <= Segment.HEADER_LENGTH || indexInterval <= 0 || maxSegments < 1) {
+            throw new IllegalArgumentException("Segment of " + segmentBytes + " bytes, index every " + indexInterval
+                    + " bytes, " + maxSegments + " segments");
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.indexInterval = indexInterval;
+        this.maxSegments = maxSegments;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        this.segments = load();
+    }
+
+    private Segment[] load() throws IOException {
+        String[] names = directory.list();
+        List<Long> bases = new ArrayList<>();
+        if (names != null) {
+            for (String name : names) {
+                if (name.length() == 24 && name.endsWith(".log")) {
+                    try {
+                        bases.add(Long.parseLong(name.substring(0, 20)));
+                    } catch (NumberFormatException ignored) {  }
+                }
+            }
+        }
+        Long[] sorted = bases.toArray(new Long[0]);
+        Arrays.sort(sorted);
+
+        List<Segment> loaded = new ArrayList<>();
+        for (Long base : sorted) {
+            Segment segment = Segment.open(directory, base, segmentBytes, indexInterval);
+            // a segment that does not follow on from the previous one means the files were tampered with, what
+            // comes before the gap cannot be numbered consistently any more
+            if (!loaded.isEmpty() && loaded.get(loaded.size() - 1).getNextSequence() != base) {
+                for (Segment stale : loaded) {
+                    stale.delete();
+                }
+                loaded.clear();
+            }
+            loaded.add(segment);
+        }
+        if (loaded.isEmpty()) {
+            loaded.add(Segment.open(directory, 0, segmentBytes, indexInterval));
+        }
+        return loaded.toArray(new Segment[0]);
+    }
+
+    public File getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * Sequence number of the oldest message still kept.
+     */
+    public long getFirstSequence() {
+        return segments[0].getBaseSequence();
+    }
+
+    /**
+     * Sequence number the next message will get, so also the count of messages ever appended.
+     */
+    public long getNextSequence() {
+        Segment[] current = segments;
+        return current[current.length - 1].getNextSequence();
+    }
+
+    /**
+     * Storage taken by the segment files.
+     */
+    public long getSizeBytes() {
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.getCapacity();
+        }
+        return total;
+    }
+
+    public long append(long timeMillis, boolean outgoing, byte[] payload) throws IOException {
+        return append(timeMillis, outgoing ? FLAG_OUTGOING : 0, payload, 0, payload.length);
+    }
+
+    /**
+     * Writes the record and returns its sequence number. Only ever called from one thread at a time.
+     */
+    public long append(long timeMillis, int flags, byte[] payload, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Journal closed");
+        }
+        if (Segment.HEADER_LENGTH + length > segmentBytes) {
+            throw new IOException("Record of " + length + " bytes does not fit a segment of " + segmentBytes);
+        }
+        Segment[] current = segments;
+        Segment last = current[current.length - 1];
+        if (!last.hasRoom(length)) {
+            last = roll(current);
+        }
+        long sequence = last.getNextSequence();
+        last.append(timeMillis, flags, payload, offset, length);
+        return sequence;
+    }
+
+    private Segment roll(Segment[] current) throws IOException {
+        Segment next = Segment.open(directory, current[current.length - 1].getNextSequence(), segmentBytes, indexInterval);
+        int dropped = Math.max(0, current.length + 1 - maxSegments);
+        Segment[] rolled = new Segment[current.length + 1 - dropped];
+        System.arraycopy(current, dropped, rolled, 0, current.length - dropped);
+        rolled[rolled.length - 1] = next;
+        segments = rolled;
+        for (int i = 0; i < dropped; i++) {
+            current[i].delete();
+        }
+        return next;
+    }
+
+    /**
+     * Adds up to {@code max} messages from {@code sequence} on, oldest first, and returns how many. Reading from
+     * before {@link #getFirstSequence()} starts at the oldest message kept.
+     */
+    public int read(long sequence, int max, List<Entry> into) {
+        Segment[] current = segments;
+        long from = Math.max(sequence, current[0].getBaseSequence());
+
+        // the last segment starting at or before the sequence
+        int low = 0;
+        int high = current.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (current[middle].getBaseSequence() <= from) {
+                low = middle;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+
+        int read = 0;
+        for (int i = low; i < current.length && read < max; i++) {
+            int n = current[i].read(from, max - read, into);
+            read += n;
+            from += n;
+        }
+        return read;
+    }
+
+    /**
+     * Adds up to {@code max} messages that came right before {@code sequence}, oldest first, for scrolling back from
+     * the oldest one on screen; returns how many.
+     */
+    public int readBefore(long sequence, int max, List<Entry> into) {
+        long from = Math.max(getFirstSequence(), sequence - max);
+        return read(from, (int) Math.max(0, sequence - from), into);
+    }
+
+    /**
+     * Writes dirty pages to the storage; blocks for as long as that takes.
+     */
+    public void force() {
+        for (Segment segment : segments) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Forces what was appended and refuses further appends. The mappings are released by the garbage collector,
+     * there is no way to unmap them on java 8 and android.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        force();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Journal[%s, %d..%d]", directory.getName(), getFirstSequence(), getNextSequence());
+    }
+}
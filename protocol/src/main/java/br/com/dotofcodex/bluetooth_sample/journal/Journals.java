@@ -0,0 +1,227 @@
+package br.com.dotofcodex.bluetooth_sample.journal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The journals of every peer, one directory each under {@code root}, and the single thread that appends to them.
+ * Readers of the socket only queue a copy of the message and never touch a file: the writer drains whatever
+ * queued up while it was busy in one go, so opening a journal or rolling a segment over delays a batch instead
+ * of a read loop. When the queue is full the message is not journaled and {@link #offer} returns {@code false}.
+ */
+public final class Journals implements Closeable {
+
+    public interface Listener {
+        /**
+         * Runs on the writer thread when a message could not be journaled.
+         */
+        void onError(String peer, IOException error);
+    }
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private static final Pending STOP = new Pending(null, 0, 0, null);
+
+    private final File root;
+    private final int segmentBytes;
+    private final int indexInterval;
+    private final int maxSegments;
+    private final Listener listener;
+    private final ConcurrentMap<String, Journal> journals;
+    private final BlockingQueue<Pending> queue;
+    private final List<Pending> batch;
+    private final Thread thread;
+    private volatile boolean closed;
+    private long dropped;
+    private long written;
+
+    public Journals(File root, Listener listener) {
+        this(root, Journal.DEFAULT_SEGMENT_BYTES, Journal.DEFAULT_INDEX_INTERVAL, Journal.DEFAULT_MAX_SEGMENTS,
+                DEFAULT_QUEUE_CAPACITY, listener);
+    }
+
+    public Journals(File root, int segmentBytes, int indexInterval, int maxSegments, int queueCapacity, Listener listener) {
+        super();
+        this.root = root;
+        this.segmentBytes = segmentBytes;
+        this.indexInterval = indexInterval;
+        this.maxSegments = maxSegments;
+        this.listener = listener;
+        this.journals = new ConcurrentHashMap<>();
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.batch = new ArrayList<>(queueCapacity);
+        this.thread = new Thread(this::run, "Journals");
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * The peer's journal, opened on first use. Does file io the first time, keep it off the main thread.
+     */
+    public Journal get(String peer) throws IOException {
+        Journal journal = journals.get(peer);
+        if (journal != null) {
+            return journal;
+        }
+        synchronized (journals) {
+            journal = journals.get(peer);
+            if (journal == null) {
+                journal = new Journal(new File(root, directoryName(peer)), segmentBytes, indexInterval, maxSegments);
+                journals.put(peer, journal);
+            }
+            return journal;
+        }
+    }
+
+    /**
+     * Queues a copy of the message without blocking; {@code false} when the queue is full or the writer stopped.
+     */
+    public boolean offer(String peer, boolean outgoing, byte[] payload, int offset, int length) {
+        if (closed) {
+            return false;
+        }
+        byte[] copy = new byte[length];
+        System.arraycopy(payload, offset, copy, 0, length);
+        if (queue.offer(new Pending(peer, System.currentTimeMillis(), outgoing ? Journal.FLAG_OUTGOING : 0, copy))) {
+            return true;
+        }
+        synchronized (this) {
+            dropped++;
+        }
+        return false;
+    }
+
+    /**
+     * Queues the message with the time it was first written, waiting for room as long as the writer runs; for bulk
+     * writers like a history sync, never for a read loop. The payload is not copied. {@code false} once closed.
+     */
+    public boolean put(String peer, long timeMillis, boolean outgoing, byte[] payload) throws InterruptedException {
+        Pending pending = new Pending(peer, timeMillis, outgoing ? Journal.FLAG_OUTGOING : 0, payload);
+        while (!closed) {
+            if (queue.offer(pending, 100, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Messages that did not fit the queue or failed to be written.
+     */
+    public synchronized long getDropped() {
+        return this.dropped;
+    }
+
+    public synchronized long getWritten() {
+        return this.written;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Writes what is queued, stops the writer and closes every journal, forcing them to the storage. Blocks until
+     * the writer is done.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // only the writer takes from the queue, so the marker gets in once it made room; an interrupt, as when the
+        // executor running this shuts down, must not lose what is still queued
+        boolean interrupted = false;
+        boolean stopping = false;
+        while (thread.isAlive()) {
+            try {
+                if (!stopping) {
+                    queue.put(STOP);
+                    stopping = true;
+                }
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (journals) {
+            for (Journal journal : journals.values()) {
+                journal.close();
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                int ok = 0;
+                int failed = 0;
+                boolean stop = false;
+                for (int i = 0; i < batch.size(); i++) {
+                    Pending pending = batch.get(i);
+                    if (pending == STOP) {
+                        stop = true;
+                        break;
+                    }
+                    try {
+                        get(pending.peer).append(pending.timeMillis, pending.flags, pending.payload, 0, pending.payload.length);
+                        ok++;
+                    } catch (IOException e) {
+                        failed++;
+                        listener.onError(pending.peer, e);
+                    }
+                }
+                batch.clear();
+                synchronized (this) {
+                    written += ok;
+                    dropped += failed;
+                }
+                if (stop) {
+                    return;
+                }
+            }
+        } catch (InterruptedException ignored) {  }
+    }
+
+    /**
+     * Bluetooth addresses have colons, which some file systems do not like.
+     */
+    static String directoryName(String peer) {
+        StringBuilder name = new StringBuilder(peer.length());
+        for (int i = 0; i < peer.length(); i++) {
+            char c = peer.charAt(i);
+            name.append(Character.isLetterOrDigit(c) || c == '-' || c == '.' ? c : '_');
+        }
+        return name.toString();
+    }
+
+    private static final class Pending {
+        private final String peer;
+        private final long timeMillis;
+        private final int flags;
+        private final byte[] payload;
+
+        Pending(String peer, long timeMillis, int flags, byte[] payload) {
+            this.peer = peer;
+            this.timeMillis = timeMillis;
+            this.flags = flags;
+            this.payload = payload;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package br.com.dotofcodex.bluetooth_sample.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * One file of a {@link Journal}: records holding consecutive sequence numbers from {@code baseSequence}, mapped
+ * into memory at their full size up front, plus a mapped sparse index of {@code [record, position]} pairs taken
+ * every {@code indexInterval} bytes. A lookup binary searches the index and scans at most one interval of records,
+ * so it touches one or two pages of the file however large it grew.
+ *
+ * <pre>
+ * | length of the whole record (int) | crc32 of what follows (int) | time millis (long) | flags (byte) | payload |
+ * </pre>
+ *
+ * The length goes in last, so a record that was cut short by the process dying reads as the end of the segment.
+ * Only the journal's writer thread appends; the counts of records and index entries are published after the bytes,
+ * so readers on other threads only ever see whole records.
+ */
+final class Segment {
+
+    static final int HEADER_LENGTH = 17;
+    static final int INDEX_ENTRY_LENGTH = 8;
+
+    private final long baseSequence;
+    private final File log;
+    private final File index;
+    private final MappedByteBuffer data;
+    private final MappedByteBuffer offsets;
+    private final int indexInterval;
+    private final CRC32 crc;
+    // writer thread only
+    private final ByteBuffer writeView;
+    private final byte[] scratch;
+    private int lastIndexed;
+
+    private volatile int size;
+    private volatile int records;
+    private volatile int indexEntries;
+
+    private Segment(long baseSequence, File log, File index, MappedByteBuffer data, MappedByteBuffer offsets, int indexInterval) {
+        super();
+        this.baseSequence = baseSequence;
+        this.log = log;
+        this.index = index;
+        this.data = data;
+        this.offsets = offsets;
+        this.indexInterval = indexInterval;
+        this.crc = new CRC32();
+        this.writeView = data.duplicate();
+        this.scratch = new byte[4096];
+    }
+
+    static String name(long baseSequence, String extension) {
+        return String.format("%020d.%s", baseSequence, extension);
+    }
+
+    /**
+     * Maps the segment's files, creating them at {@code capacity} bytes when missing, and finds where the records
+     * end by checking every one after the last indexed position.
+     */
+    static Segment open(File directory, long baseSequence, int capacity, int indexInterval) throws IOException {
+        File log = new File(directory, name(baseSequence, "log"));
+        File index = new File(directory, name(baseSequence, "idx"));
+        // a record can start in every interval, and one more for the first
+        int indexCapacity = (capacity / indexInterval + 1) * INDEX_ENTRY_LENGTH;
+        Segment segment = new Segment(baseSequence, log, index, map(log, capacity), map(index, indexCapacity), indexInterval);
+        segment.recover();
+        return segment;
+    }
+
+    private static MappedByteBuffer map(File file, int length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // a file of an older, smaller configuration keeps its size
+            long mapped = Math.max(raf.length(), length);
+            if (raf.length() < mapped) {
+                raf.setLength(mapped);
+            }
+            // the mapping outlives the file descriptor
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mapped);
+        } finally {
+            try {
+                raf.close();
+            } catch (IOException ignored) {  }
+        }
+    }
+
+    private void recover() {
+        int entries = 0;
+        int position = 0;
+        int count = 0;
+        while ((entries + 1) * INDEX_ENTRY_LENGTH <= offsets.capacity()) {
+            int record = offsets.getInt(entries * INDEX_ENTRY_LENGTH);
+            int at = offsets.getInt(entries * INDEX_ENTRY_LENGTH + 4);
+            // the first entry is always [0, 0], a later one never is
+            if (entries > 0 && at == 0) {
+                break;
+            }
+            position = at;
+            count = record;
+            entries++;
+        }
+        lastIndexed = position;
+
+        while (true) {
+            int length = valid(position);
+            if (length == 0) {
+                break;
+            }
+            position += length;
+            count++;
+        }
+        if (count == 0) {
+            // nothing made it, not even the index entry of the first record
+            entries = 0;
+        }
+        indexEntries = entries;
+        // whatever a torn write left after the last record must not look like a successor later on
+        if (position + 4 <= data.capacity()) {
+            data.putInt(position, 0);
+        }
+        size = position;
+        records = count;
+    }
+
+    /**
+     * Length of the record at {@code position} if it is complete and intact, 0 otherwise.
+     */
+    private int valid(int position) {
+        if (position + HEADER_LENGTH > data.capacity()) {
+            return 0;
+        }
+        int length = data.getInt(position);
+        if (length < HEADER_LENGTH || position + length > data.capacity()) {
+            return 0;
+        }
+        writeView.limit(position + length).position(position + 8);
+        crc.reset();
+        while (writeView.hasRemaining()) {
+            int n = Math.min(scratch.length, writeView.remaining());
+            writeView.get(scratch, 0, n);
+            crc.update(scratch, 0, n);
+        }
+        writeView.clear();
+        return (int) crc.getValue() == data.getInt(position + 4) ? length : 0;
+    }
+
+    long getBaseSequence() {
+        return this.baseSequence;
+    }
+
+    long getNextSequence() {
+        return baseSequence + records;
+    }
+
+    int getRecords() {
+        return this.records;
+    }
+
+    int getSize() {
+        return this.size;
+    }
+
+    int getCapacity() {
+        return data.capacity();
+    }
+
+    /**
+     * Whether a record of {@code length} payload bytes still fits, along with its index entry.
+     */
+    boolean hasRoom(int length) {
+        long needed = (long) size + HEADER_LENGTH + length;
+        return needed <= data.capacity() && (!indexes() || (indexEntries + 1) * INDEX_ENTRY_LENGTH <= offsets.capacity());
+    }
+
+    /**
+     * Whether the next record gets an index entry.
+     */
+    private boolean indexes() {
+        return records == 0 || size - lastIndexed >= indexInterval;
+    }
+
+    /**
+     * Writer thread only, after {@link #hasRoom(int)}.
+     */
+    void append(long timeMillis, int flags, byte[] payload, int offset, int length) {
+        int position = size;
+        int next = position + HEADER_LENGTH + length;
+        if (next + 4 <= data.capacity()) {
+            data.putInt(next, 0);
+        }
+
+        writeView.position(position + 8);
+        writeView.putLong(timeMillis);
+        writeView.put((byte) flags);
+        writeView.put(payload, offset, length);
+        writeView.clear();
+        crc.reset();
+        for (int i = 0; i < 8; i++) {
+            scratch[i] = (byte) (timeMillis >>> (56 - 8 * i));
+        }
+        scratch[8] = (byte) flags;
+        crc.update(scratch, 0, 9);
+        crc.update(payload, offset, length);
+        data.putInt(position + 4, (int) crc.getValue());
+        data.putInt(position, HEADER_LENGTH + length);
+
+        if (indexes()) {
+            offsets.putInt(indexEntries * INDEX_ENTRY_LENGTH, records);
+            offsets.putInt(indexEntries * INDEX_ENTRY_LENGTH + 4, position);
+            indexEntries = indexEntries + 1;
+            lastIndexed = position;
+        }
+        size = next;
+        records = records + 1;
+    }
+
+    /**
+     * Adds up to {@code max} entries from {@code sequence} on and returns how many; any thread.
+     */
+    int read(long sequence, int max, List<Journal.Entry> into) {
+        int end = records;
+        // may include entries of records appended since, those are past the one looked for
+        int entries = indexEntries;
+        int first = (int) (sequence - baseSequence);
+        if (first < 0 || first >= end || max <= 0) {
+            return 0;
+        }
+
+        // the last index entry at or before the record, entries are in record order
+        int low = 0;
+        int high = entries - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (offsets.getInt(middle * INDEX_ENTRY_LENGTH) <= first) {
+                low = middle;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        int record = offsets.getInt(low * INDEX_ENTRY_LENGTH);
+        int position = offsets.getInt(low * INDEX_ENTRY_LENGTH + 4);
+        while (record < first) {
+            position += data.getInt(position);
+            record++;
+        }
+
+        ByteBuffer view = data.duplicate();
+        int read = 0;
+        while (record < end && read < max) {
+            int length = data.getInt(position);
+            view.position(position + 8);
+            long timeMillis = view.getLong();
+            int flags = view.get();
+            byte[] payload = new byte[length - HEADER_LENGTH];
+            view.get(payload);
+            into.add(new Journal.Entry(baseSequence + record, timeMillis, flags, payload));
+            position += length;
+            record++;
+            read++;
+        }
+        return read;
+    }
+
+    /**
+     * Flushes the mapped pages to the storage, after which the records survive the device losing power too.
+     */
+    void force() {
+        data.force();
+        offsets.force();
+    }
+
+    /**
+     * Deletes the files. Readers holding the mapping can still finish, the pages go away with the last of them.
+     */
+    void delete() {
+        log.delete();
+        index.delete();
+    }
+}
@@ -0,0 +1,104 @@
+package br.com.dotofcodex.bluetooth_sample.message;
+
+import br.com.dotofcodex.bluetooth_sample.protocol.FrameException;
+
+/**
+ * Answers the {@link Command} with the same id.
+ */
+public final class Ack implements Record {
+
+    public static final int TYPE = 3;
+    public static final int VERSION = 1;
+
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_UNKNOWN_COMMAND = 1;
+    public static final int STATUS_FAILED = 2;
+
+    private static final int FIELD_ID = 1;
+    private static final int FIELD_STATUS = 2;
+    private static final int FIELD_MESSAGE = 3;
+
+    private int id;
+    private int status;
+    private final StringBuilder message;
+
+    public Ack() {
+        super();
+        this.message = new StringBuilder();
+    }
+
+    @Override
+    public int getType() {
+        return TYPE;
+    }
+
+    @Override
+    public int getVersion() {
+        return VERSION;
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    public int getStatus() {
+        return this.status;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    /**
+     * Why the command failed, empty when it did not. Reused by the next ack, copy it to keep it.
+     */
+    public CharSequence getMessage() {
+        return this.message;
+    }
+
+    public void setMessage(CharSequence message) {
+        this.message.setLength(0);
+        this.message.append(message);
+    }
+
+    @Override
+    public void writeFields(RecordWriter out) {
+        out.writeInt(FIELD_ID, id);
+        out.writeInt(FIELD_STATUS, status);
+        out.writeString(FIELD_MESSAGE, message);
+    }
+
+    @Override
+    public void clear() {
+        id = 0;
+        status = STATUS_OK;
+        message.setLength(0);
+    }
+
+    @Override
+    public boolean readField(RecordReader in, int field) throws FrameException {
+        switch (field) {
+            case FIELD_ID:
+                id = in.readInt();
+                return true;
+            case FIELD_STATUS:
+                status = in.readInt();
+                return true;
+            case FIELD_MESSAGE:
+                in.readString(message);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return message.length() == 0 ? String.format("ack %d: %d", id, status)
+                : String.format("ack %d: %d %s", id, status, message);
+    }
+}
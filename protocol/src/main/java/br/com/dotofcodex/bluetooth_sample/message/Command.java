@@ -0,0 +1,99 @@
+package br.com.dotofcodex.bluetooth_sample.message;
+
+import br.com.dotofcodex.bluetooth_sample.protocol.FrameException;
+
+/**
+ * Asks the peer to do something; it answers with an {@link Ack} carrying the same id.
+ */
+public final class Command implements Record {
+
+    public static final int TYPE = 2;
+    public static final int VERSION = 1;
+
+    private static final int FIELD_ID = 1;
+    private static final int FIELD_NAME = 2;
+    private static final int FIELD_ARGUMENT = 3;
+
+    private int id;
+    private final StringBuilder name;
+    private long argument;
+
+    public Command() {
+        super();
+        this.name = new StringBuilder();
+    }
+
+    @Override
+    public int getType() {
+        return TYPE;
+    }
+
+    @Override
+    public int getVersion() {
+        return VERSION;
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    /**
+     * Reused by the next command, copy it to keep it.
+     */
+    public CharSequence getName() {
+        return this.name;
+    }
+
+    public void setName(CharSequence name) {
+        this.name.setLength(0);
+        this.name.append(name);
+    }
+
+    public long getArgument() {
+        return this.argument;
+    }
+
+    public void setArgument(long argument) {
+        this.argument = argument;
+    }
+
+    @Override
+    public void writeFields(RecordWriter out) {
+        out.writeInt(FIELD_ID, id);
+        out.writeString(FIELD_NAME, name);
+        out.writeLong(FIELD_ARGUMENT, argument);
+    }
+
+    @Override
+    public void clear() {
+        id = 0;
+        name.setLength(0);
+        argument = 0;
+    }
+
+    @Override
+    public boolean readField(RecordReader in, int field) throws FrameException {
+        switch (field) {
+            case FIELD_ID:
+                id = in.readInt();
+                return true;
+            case FIELD_NAME:
+                in.readString(name);
+                return true;
+            case FIELD_ARGUMENT:
+                argument = in.readLong();
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("command %d: %s(%d)", id, name, argument);
+    }
+}
@@ -0,0 +1,30 @@
+package br.com.dotofcodex.bluetooth_sample.message;
+
+import br.com.dotofcodex.bluetooth_sample.protocol.FrameException;
+
+/**
+ * A structured message with a fixed type number, written by {@link RecordWriter} and read by {@link RecordReader}
+ * into an instance that is reused from one message to the next. Field numbers are never reused for another
+ * meaning, see {@link Records}.
+ */
+public interface Record {
+
+    int getType();
+
+    /**
+     * Version of the fields this class writes, sent along with them.
+     */
+    int getVersion();
+
+    void writeFields(RecordWriter out);
+
+    /**
+     * Back to the defaults, before the fields of the next message are read in.
+     */
+    void clear();
+
+    /**
+     * Reads the value of {@code field}; {@code false} for a field this class does not know, which is then skipped.
+     */
+    boolean readField(RecordReader in, int field) throws FrameException;
+}
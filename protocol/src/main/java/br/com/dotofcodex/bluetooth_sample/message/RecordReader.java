@@ -0,0 +1,234 @@
+package br.com.dotofcodex.bluetooth_sample.message;
+
+import br.com.dotofcodex.bluetooth_sample.protocol.FrameException;
+import br.com.dotofcodex.bluetooth_sample.protocol.Frames;
+import br.com.dotofcodex.bluetooth_sample.protocol.Utf8StreamDecoder;
+
+/**
+ * Decodes {@link Record}s straight from the bytes of a frame into reused instances; strings are appended to the
+ * record's own builders, so reading allocates nothing once they have grown. One instance per reading thread, not
+ * thread safe.
+ *
+ * <pre>
+ * int type = reader.begin(frame.array(), 0, frame.length());
+ * if (type == SensorReading.TYPE) {
+ *     reader.read(reading);
+ * }
+ * </pre>
+ */
+public final class RecordReader {
+
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private byte[] data;
+    private int position;
+    private int limit;
+    private int type;
+    private int version;
+    private int field;
+    private int wireType;
+
+    public RecordReader() {
+        super();
+    }
+
+    /**
+     * Starts reading the record in {@code data[offset, offset + length)} and returns its type.
+     */
+    public int begin(byte[] data, int offset, int length) throws FrameException {
+        this.data = data;
+        this.position = offset;
+        this.limit = offset + length;
+        this.type = 0;
+        this.type = (int) readVarint();
+        this.version = (int) readVarint();
+        return type;
+    }
+
+    public int getType() {
+        return this.type;
+    }
+
+    /**
+     * Version the writer gave the record.
+     */
+    public int getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Clears the record and reads the remaining fields into it, skipping those it does not know.
+     */
+    public <R extends Record> R read(R record) throws FrameException {
+        if (record.getType() != type) {
+            throw new FrameException("Record of type " + type + " read as type " + record.getType());
+        }
+        record.clear();
+        while (position < limit) {
+            long tag = readVarint();
+            field = (int) (tag >>> 3);
+            wireType = (int) (tag & 0x07);
+            if (field <= 0 || field > Records.MAX_FIELD) {
+                throw new FrameException("Invalid field number in record of type " + type + ": " + (tag >>> 3));
+            }
+            if (!record.readField(this, field)) {
+                skip();
+            }
+        }
+        return record;
+    }
+
+    public int readInt() throws FrameException {
+        return (int) readLong();
+    }
+
+    public long readLong() throws FrameException {
+        expect(Records.WIRE_VARINT);
+        return Records.unzigzag(readVarint());
+    }
+
+    public boolean readBoolean() throws FrameException {
+        expect(Records.WIRE_VARINT);
+        return readVarint() != 0;
+    }
+
+    public float readFloat() throws FrameException {
+        expect(Records.WIRE_FIXED32);
+        require(4);
+        float value = Float.intBitsToFloat(Frames.readInt(data, position));
+        position += 4;
+        return value;
+    }
+
+    public double readDouble() throws FrameException {
+        expect(Records.WIRE_FIXED64);
+        require(8);
+        double value = Double.longBitsToDouble(Frames.readLong(data, position));
+        position += 8;
+        return value;
+    }
+
+    /**
+     * Appends the string to {@code into}; malformed UTF-8 becomes U+FFFD.
+     */
+    public void readString(StringBuilder into) throws FrameException {
+        int length = readLength();
+        int end = position + length;
+        while (position < end) {
+            int b = data[position] & 0xFF;
+            if (b < 0x80) {
+                into.append((char) b);
+                position++;
+            }
+            else if (b >= 0xC2 && b < 0xE0 && continues(end, 1)) {
+                into.append((char) (((b & 0x1F) << 6) | (data[position + 1] & 0x3F)));
+                position += 2;
+            }
+            else if (b >= 0xE0 && b < 0xF0 && continues(end, 2)) {
+                int c = ((b & 0x0F) << 12) | ((data[position + 1] & 0x3F) << 6) | (data[position + 2] & 0x3F);
+                // overlong forms and surrogates are not valid utf-8
+                into.append(c < 0x800 || Character.isSurrogate((char) c) ? REPLACEMENT : (char) c);
+                position += 3;
+            }
+            else if (b >= 0xF0 && b < 0xF5 && continues(end, 3)) {
+                int code = ((b & 0x07) << 18) | ((data[position + 1] & 0x3F) << 12)
+                        | ((data[position + 2] & 0x3F) << 6) | (data[position + 3] & 0x3F);
+                if (code < 0x10000 || code > Character.MAX_CODE_POINT) {
+                    into.append(REPLACEMENT);
+                }
+                else {
+                    into.append(Character.highSurrogate(code)).append(Character.lowSurrogate(code));
+                }
+                position += 4;
+            }
+            else {
+                into.append(REPLACEMENT);
+                position++;
+            }
+        }
+    }
+
+    /**
+     * The string as a new {@link String}, for callers that keep it.
+     */
+    public String readString() throws FrameException {
+        int length = readLength();
+        String value = new String(data, position, length, Utf8StreamDecoder.UTF_8);
+        position += length;
+        return value;
+    }
+
+    /**
+     * Skips the value of the current field.
+     */
+    public void skip() throws FrameException {
+        switch (wireType) {
+            case Records.WIRE_VARINT:
+                readVarint();
+                break;
+            case Records.WIRE_FIXED64:
+                require(8);
+                position += 8;
+                break;
+            case Records.WIRE_LENGTH:
+                int length = readLength();
+                position += length;
+                break;
+            case Records.WIRE_FIXED32:
+                require(4);
+                position += 4;
+                break;
+            default:
+                throw new FrameException("Unknown wire type " + wireType + " of field " + field + " in record of type " + type);
+        }
+    }
+
+    private int readLength() throws FrameException {
+        expect(Records.WIRE_LENGTH);
+        long length = readVarint();
+        if (length > limit - position) {
+            throw new FrameException("Field " + field + " of " + length + " bytes past the end of record of type " + type);
+        }
+        return (int) length;
+    }
+
+    private boolean continues(int end, int bytes) {
+        if (position + bytes >= end) {
+            return false;
+        }
+        for (int i = 1; i <= bytes; i++) {
+            if ((data[position + i] & 0xC0) != 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void expect(int wireType) throws FrameException {
+        if (this.wireType != wireType) {
+            throw new FrameException("Field " + field + " of record of type " + type + " has wire type "
+                    + this.wireType + ", expected " + wireType);
+        }
+    }
+
+    private void require(int bytes) throws FrameException {
+        if (limit - position < bytes) {
+            throw new FrameException("Truncated record of type " + type);
+        }
+    }
+
+    private long readVarint() throws FrameException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position >= limit) {
+                throw new FrameException("Truncated record of type " + type);
+            }
+            byte b = data[position++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new FrameException("Varint longer than " + Records.MAX_VARINT_LENGTH + " bytes in record of type " + type);
+    }
+}
@@ -0,0 +1,155 @@
+package br.com.dotofcodex.bluetooth_sample.message;
+
+import br.com.dotofcodex.bluetooth_sample.protocol.Frames;
+
+import java.util.Arrays;
+
+/**
+ * Encodes {@link Record}s into a reusable buffer, which only grows when a record does not fit; once it is large
+ * enough encoding allocates nothing, strings included. One instance per sending thread, not thread safe.
+ */
+public final class RecordWriter {
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private byte[] buffer;
+    private int position;
+
+    public RecordWriter() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public RecordWriter(int capacity) {
+        super();
+        this.buffer = new byte[capacity];
+    }
+
+    /**
+     * Encodes the record at the start of the buffer, replacing the previous one, and returns its length.
+     */
+    public int write(Record record) {
+        position = 0;
+        writeVarint(record.getType());
+        writeVarint(record.getVersion());
+        record.writeFields(this);
+        return position;
+    }
+
+    /**
+     * The encoded record is {@code array()[0, length())}, valid until the next {@link #write}.
+     */
+    public byte[] array() {
+        return this.buffer;
+    }
+
+    public int length() {
+        return this.position;
+    }
+
+    public void writeInt(int field, int value) {
+        writeLong(field, value);
+    }
+
+    /**
+     * Ints and longs share the encoding, a field can be widened from one to the other.
+     */
+    public void writeLong(int field, long value) {
+        if (value != 0) {
+            writeTag(field, Records.WIRE_VARINT);
+            writeVarint(Records.zigzag(value));
+        }
+    }
+
+    public void writeBoolean(int field, boolean value) {
+        if (value) {
+            writeTag(field, Records.WIRE_VARINT);
+            writeVarint(1);
+        }
+    }
+
+    public void writeFloat(int field, float value) {
+        int bits = Float.floatToIntBits(value);
+        // -0.0 is written, it is not the default
+        if (bits != 0) {
+            writeTag(field, Records.WIRE_FIXED32);
+            ensure(4);
+            Frames.writeInt(bits, buffer, position);
+            position += 4;
+        }
+    }
+
+    public void writeDouble(int field, double value) {
+        long bits = Double.doubleToLongBits(value);
+        if (bits != 0) {
+            writeTag(field, Records.WIRE_FIXED64);
+            ensure(8);
+            Frames.writeLong(bits, buffer, position);
+            position += 8;
+        }
+    }
+
+    /**
+     * Writes {@code value} in UTF-8, an unpaired surrogate as {@code '?'} like {@link String#getBytes} does.
+     */
+    public void writeString(int field, CharSequence value) {
+        if (value == null || value.length() == 0) {
+            return;
+        }
+        int bytes = Records.utf8Length(value);
+        writeTag(field, Records.WIRE_LENGTH);
+        writeVarint(bytes);
+        ensure(bytes);
+
+        byte[] out = buffer;
+        int p = position;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                out[p++] = (byte) c;
+            }
+            else if (c < 0x800) {
+                out[p++] = (byte) (0xC0 | (c >> 6));
+                out[p++] = (byte) (0x80 | (c & 0x3F));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int code = Character.toCodePoint(c, value.charAt(++i));
+                out[p++] = (byte) (0xF0 | (code >> 18));
+                out[p++] = (byte) (0x80 | ((code >> 12) & 0x3F));
+                out[p++] = (byte) (0x80 | ((code >> 6) & 0x3F));
+                out[p++] = (byte) (0x80 | (code & 0x3F));
+            }
+            else if (Character.isSurrogate(c)) {
+                out[p++] = '?';
+            }
+            else {
+                out[p++] = (byte) (0xE0 | (c >> 12));
+                out[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[p++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        position = p;
+    }
+
+    private void writeTag(int field, int wireType) {
+        if (field <= 0 || field > Records.MAX_FIELD) {
+            throw new IllegalArgumentException("Invalid field number: " + field);
+        }
+        writeVarint(Records.tag(field, wireType));
+    }
+
+    private void writeVarint(long value) {
+        ensure(Records.MAX_VARINT_LENGTH);
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    private void ensure(int bytes) {
+        if (position + bytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package br.com.dotofcodex.bluetooth_sample.message;
+
+/**
+ * Wire format of the {@link Record}s sent in {@link br.com.dotofcodex.bluetooth_sample.protocol.Frames#TYPE_RECORD}
+ * frames, a small subset of protocol buffers.
+ *
+ * <pre>
+ * +----------------------+------------------+-------+-------+-----+
+ * | record type (varint) | version (varint) | field | field | ... |
+ * +----------------------+------------------+-------+-------+-----+
+ * field: | number &lt;&lt; 3 | wire type (varint) | value |
+ * </pre>
+ *
+ * Integers are zigzag varints, so small negative numbers stay short; floats and doubles are fixed width and
+ * big-endian like the rest of the protocol; strings are a varint length and their UTF-8 bytes. Fields holding
+ * their default (zero, false, empty) are left out. A reader skips the fields it does not know by their wire type
+ * and the fields it misses keep their defaults, so a record can gain fields without breaking older peers; the
+ * version tells the reader which meaning the writer gave the fields they share.
+ */
+public final class Records {
+
+    public static final int WIRE_VARINT = 0;
+    public static final int WIRE_FIXED64 = 1;
+    public static final int WIRE_LENGTH = 2;
+    public static final int WIRE_FIXED32 = 5;
+
+    // the tag of the highest field still fits an int
+    public static final int MAX_FIELD = (1 << 28) - 1;
+    public static final int MAX_VARINT_LENGTH = 10;
+
+    private Records() {
+        super();
+    }
+
+    public static long tag(int field, int wireType) {
+        return ((long) field << 3) | wireType;
+    }
+
+    /**
+     * Maps signed to unsigned so that numbers close to zero have short varints: 0, -1, 1, -2 become 0, 1, 2, 3.
+     */
+    public static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static int varintLength(long value) {
+        int length = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Bytes {@code text} takes in UTF-8, an unpaired surrogate counting as the {@code '?'} it is written as.
+     */
+    public static int utf8Length(CharSequence text) {
+        int length = text.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    bytes++;
+                }
+                else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    // four bytes for the two chars of the pair
+                    bytes += 2;
+                    i++;
+                }
+                else if (!Character.isSurrogate(c)) {
+                    bytes += 2;
+                }
+            }
+        }
+        return bytes;
+    }
+}
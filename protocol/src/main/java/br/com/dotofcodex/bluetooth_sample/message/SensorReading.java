@@ -0,0 +1,153 @@
+package br.com.dotofcodex.bluetooth_sample.message;
+
+import br.com.dotofcodex.bluetooth_sample.protocol.FrameException;
+
+/**
+ * One sample of a peer's sensor, up to three axes like the values of an Android {@code SensorEvent}.
+ */
+public final class SensorReading implements Record {
+
+    public static final int TYPE = 1;
+    public static final int VERSION = 1;
+
+    private static final int FIELD_SENSOR = 1;
+    private static final int FIELD_TIME = 2;
+    private static final int FIELD_ACCURACY = 3;
+    private static final int FIELD_X = 4;
+    private static final int FIELD_Y = 5;
+    private static final int FIELD_Z = 6;
+    private static final int FIELD_UNIT = 7;
+
+    private int sensor;
+    private long timeMillis;
+    private int accuracy;
+    private float x;
+    private float y;
+    private float z;
+    private final StringBuilder unit;
+
+    public SensorReading() {
+        super();
+        this.unit = new StringBuilder();
+    }
+
+    @Override
+    public int getType() {
+        return TYPE;
+    }
+
+    @Override
+    public int getVersion() {
+        return VERSION;
+    }
+
+    public int getSensor() {
+        return this.sensor;
+    }
+
+    public void setSensor(int sensor) {
+        this.sensor = sensor;
+    }
+
+    public long getTimeMillis() {
+        return this.timeMillis;
+    }
+
+    public void setTimeMillis(long timeMillis) {
+        this.timeMillis = timeMillis;
+    }
+
+    public int getAccuracy() {
+        return this.accuracy;
+    }
+
+    public void setAccuracy(int accuracy) {
+        this.accuracy = accuracy;
+    }
+
+    public float getX() {
+        return this.x;
+    }
+
+    public float getY() {
+        return this.y;
+    }
+
+    public float getZ() {
+        return this.z;
+    }
+
+    public void setValues(float x, float y, float z) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+    }
+
+    /**
+     * Reused by the next reading, copy it to keep it.
+     */
+    public CharSequence getUnit() {
+        return this.unit;
+    }
+
+    public void setUnit(CharSequence unit) {
+        this.unit.setLength(0);
+        this.unit.append(unit);
+    }
+
+    @Override
+    public void writeFields(RecordWriter out) {
+        out.writeInt(FIELD_SENSOR, sensor);
+        out.writeLong(FIELD_TIME, timeMillis);
+        out.writeInt(FIELD_ACCURACY, accuracy);
+        out.writeFloat(FIELD_X, x);
+        out.writeFloat(FIELD_Y, y);
+        out.writeFloat(FIELD_Z, z);
+        out.writeString(FIELD_UNIT, unit);
+    }
+
+    @Override
+    public void clear() {
+        sensor = 0;
+        timeMillis = 0;
+        accuracy = 0;
+        x = 0;
+        y = 0;
+        z = 0;
+        unit.setLength(0);
+    }
+
+    @Override
+    public boolean readField(RecordReader in, int field) throws FrameException {
+        switch (field) {
+            case FIELD_SENSOR:
+                sensor = in.readInt();
+                return true;
+            case FIELD_TIME:
+                timeMillis = in.readLong();
+                return true;
+            case FIELD_ACCURACY:
+                accuracy = in.readInt();
+                return true;
+            case FIELD_X:
+                x = in.readFloat();
+                return true;
+            case FIELD_Y:
+                y = in.readFloat();
+                return true;
+            case FIELD_Z:
+                z = in.readFloat();
+                return true;
+            case FIELD_UNIT:
+                in.readString(unit);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("sensor %d at %d: %.3f %.3f %.3f %s (accuracy %d)", sensor, timeMillis, x, y, z, unit, accuracy);
+    }
+}
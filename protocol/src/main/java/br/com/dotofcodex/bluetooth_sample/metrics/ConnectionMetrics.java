@@ -0,0 +1,175 @@
+package br.com.dotofcodex.bluetooth_sample.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of one connection. Each counter has a single writer, the session's reader or writer thread, so it is
+ * updated with an ordered store instead of an atomic add or a volatile write, neither of which the hot path needs to
+ * pay for; histograms take any thread. Recording methods are meant for
+ * {@link br.com.dotofcodex.bluetooth_sample.protocol.ChatSession} and its reader and writer.
+ */
+public final class ConnectionMetrics {
+
+    private final String address;
+    private final Metrics parent;
+    private final long openedMillis;
+    private final Histogram readSizes;
+    private final Histogram writeLatency;
+    private final Histogram queueDepth;
+
+    // reader thread
+    private final AtomicLong bytesIn;
+    private final AtomicLong framesIn;
+    // writer thread
+    private final AtomicLong bytesOut;
+    private final AtomicLong framesOut;
+    private volatile boolean closed;
+
+    ConnectionMetrics(String address, Metrics parent) {
+        super();
+        this.address = address;
+        this.parent = parent;
+        this.openedMillis = System.currentTimeMillis();
+        this.readSizes = new Histogram();
+        this.writeLatency = new Histogram();
+        this.queueDepth = new Histogram();
+        this.bytesIn = new AtomicLong();
+        this.framesIn = new AtomicLong();
+        this.bytesOut = new AtomicLong();
+        this.framesOut = new AtomicLong();
+    }
+
+    public String getAddress() {
+        return this.address;
+    }
+
+    /**
+     * One read from the socket returned {@code bytes}.
+     */
+    public void onRead(int bytes) {
+        bytesIn.lazySet(bytesIn.get() + bytes);
+        readSizes.record(bytes);
+    }
+
+    public void onFrameIn() {
+        framesIn.lazySet(framesIn.get() + 1);
+    }
+
+    /**
+     * A batch of {@code frames} frames encoded into {@code bytes} reached the socket.
+     */
+    public void onWritten(int frames, int bytes) {
+        framesOut.lazySet(framesOut.get() + frames);
+        bytesOut.lazySet(bytesOut.get() + bytes);
+    }
+
+    /**
+     * From a frame being queued for sending to the write that carried it returning.
+     */
+    public void onWriteLatency(long nanos) {
+        writeLatency.record(nanos);
+    }
+
+    /**
+     * Frames waiting in the writer's queue when it picked up a batch.
+     */
+    public void onQueueDepth(int frames) {
+        queueDepth.record(frames);
+    }
+
+    /**
+     * The connection is gone; its totals move into the parent's.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (parent != null) {
+            parent.retire(this);
+        }
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    Histogram getReadSizes() {
+        return this.readSizes;
+    }
+
+    Histogram getWriteLatency() {
+        return this.writeLatency;
+    }
+
+    Histogram getQueueDepth() {
+        return this.queueDepth;
+    }
+
+    public static final class Snapshot {
+        private final String address;
+        private final long openedMillis;
+        private final long bytesIn;
+        private final long framesIn;
+        private final long bytesOut;
+        private final long framesOut;
+        private final Histogram.Snapshot readSizes;
+        private final Histogram.Snapshot writeLatency;
+        private final Histogram.Snapshot queueDepth;
+
+        Snapshot(ConnectionMetrics metrics) {
+            this.address = metrics.address;
+            this.openedMillis = metrics.openedMillis;
+            this.bytesIn = metrics.bytesIn.get();
+            this.framesIn = metrics.framesIn.get();
+            this.bytesOut = metrics.bytesOut.get();
+            this.framesOut = metrics.framesOut.get();
+            this.readSizes = metrics.readSizes.snapshot();
+            this.writeLatency = metrics.writeLatency.snapshot();
+            this.queueDepth = metrics.queueDepth.snapshot();
+        }
+
+        public String getAddress() {
+            return this.address;
+        }
+
+        public long getOpenedMillis() {
+            return this.openedMillis;
+        }
+
+        public long getBytesIn() {
+            return this.bytesIn;
+        }
+
+        public long getFramesIn() {
+            return this.framesIn;
+        }
+
+        public long getBytesOut() {
+            return this.bytesOut;
+        }
+
+        public long getFramesOut() {
+            return this.framesOut;
+        }
+
+        public Histogram.Snapshot getReadSizes() {
+            return this.readSizes;
+        }
+
+        public Histogram.Snapshot getWriteLatency() {
+            return this.writeLatency;
+        }
+
+        public Histogram.Snapshot getQueueDepth() {
+            return this.queueDepth;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s in %d B/%d frames, out %d B/%d frames, reads [%s] B, write [%s] ms, queue [%s]",
+                    address, bytesIn, framesIn, bytesOut, framesOut, readSizes.format(1), writeLatency.format(1e6),
+                    queueDepth.format(1));
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package br.com.dotofcodex.bluetooth_sample.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide instrumentation: connect time, read to UI delivery latency and reconnects, plus a
+ * {@link ConnectionMetrics} for every connection opened through {@link #open(String)}. When a connection closes its
+ * counters are folded into the totals, so a {@link Snapshot} covers every connection since start.
+ */
+public final class Metrics {
+
+    private final Histogram connectTime;
+    private final Histogram deliveryLatency;
+    private final AtomicLong connections;
+    private final AtomicLong reconnects;
+    private final Set<ConnectionMetrics> live;
+
+    // totals of closed connections
+    private final AtomicLong bytesIn;
+    private final AtomicLong framesIn;
+    private final AtomicLong bytesOut;
+    private final AtomicLong framesOut;
+    private final Histogram readSizes;
+    private final Histogram writeLatency;
+    private final Histogram queueDepth;
+
+    public Metrics() {
+        super();
+        this.connectTime = new Histogram();
+        this.deliveryLatency = new Histogram();
+        this.connections = new AtomicLong();
+        this.reconnects = new AtomicLong();
+        this.live = Collections.newSetFromMap(new ConcurrentHashMap<ConnectionMetrics, Boolean>());
+        this.bytesIn = new AtomicLong();
+        this.framesIn = new AtomicLong();
+        this.bytesOut = new AtomicLong();
+        this.framesOut = new AtomicLong();
+        this.readSizes = new Histogram();
+        this.writeLatency = new Histogram();
+        this.queueDepth = new Histogram();
+    }
+
+    /**
+     * Starts counting a new connection; {@link ConnectionMetrics#close()} ends it.
+     */
+    public ConnectionMetrics open(String address) {
+        ConnectionMetrics metrics = new ConnectionMetrics(address, this);
+        connections.getAndIncrement();
+        live.add(metrics);
+        return metrics;
+    }
+
+    /**
+     * Time a dial took until the transport was connected.
+     */
+    public void onConnect(long nanos) {
+        connectTime.record(nanos);
+    }
+
+    public void onReconnect() {
+        reconnects.getAndIncrement();
+    }
+
+    /**
+     * Histogram of the time from a frame being read off the socket to its message reaching the UI, in nanoseconds.
+     */
+    public Histogram getDeliveryLatency() {
+        return this.deliveryLatency;
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    void retire(ConnectionMetrics metrics) {
+        if (!live.remove(metrics)) {
+            return;
+        }
+        ConnectionMetrics.Snapshot last = metrics.snapshot();
+        bytesIn.getAndAdd(last.getBytesIn());
+        framesIn.getAndAdd(last.getFramesIn());
+        bytesOut.getAndAdd(last.getBytesOut());
+        framesOut.getAndAdd(last.getFramesOut());
+        readSizes.add(metrics.getReadSizes());
+        writeLatency.add(metrics.getWriteLatency());
+        queueDepth.add(metrics.getQueueDepth());
+    }
+
+    /**
+     * Totals over every connection so far, and the connections still open one by one.
+     */
+    public static final class Snapshot {
+        private final long connections;
+        private final long reconnects;
+        private final long bytesIn;
+        private final long framesIn;
+        private final long bytesOut;
+        private final long framesOut;
+        private final Histogram.Snapshot connectTime;
+        private final Histogram.Snapshot deliveryLatency;
+        private final Histogram.Snapshot readSizes;
+        private final Histogram.Snapshot writeLatency;
+        private final Histogram.Snapshot queueDepth;
+        private final List<ConnectionMetrics.Snapshot> open;
+
+        Snapshot(Metrics metrics) {
+            Histogram readSizes = new Histogram();
+            Histogram writeLatency = new Histogram();
+            Histogram queueDepth = new Histogram();
+            readSizes.add(metrics.readSizes);
+            writeLatency.add(metrics.writeLatency);
+            queueDepth.add(metrics.queueDepth);
+            long bytesIn = metrics.bytesIn.get();
+            long framesIn = metrics.framesIn.get();
+            long bytesOut = metrics.bytesOut.get();
+            long framesOut = metrics.framesOut.get();
+
+            List<ConnectionMetrics.Snapshot> open = new ArrayList<>();
+            for (ConnectionMetrics connection : metrics.live) {
+                ConnectionMetrics.Snapshot snapshot = connection.snapshot();
+                open.add(snapshot);
+                bytesIn += snapshot.getBytesIn();
+                framesIn += snapshot.getFramesIn();
+                bytesOut += snapshot.getBytesOut();
+                framesOut += snapshot.getFramesOut();
+                readSizes.add(connection.getReadSizes());
+                writeLatency.add(connection.getWriteLatency());
+                queueDepth.add(connection.getQueueDepth());
+            }
+
+            this.connections = metrics.connections.get();
+            this.reconnects = metrics.reconnects.get();
+            this.bytesIn = bytesIn;
+            this.framesIn = framesIn;
+            this.bytesOut = bytesOut;
+            this.framesOut = framesOut;
+            this.connectTime = metrics.connectTime.snapshot();
+            this.deliveryLatency = metrics.deliveryLatency.snapshot();
+            this.readSizes = readSizes.snapshot();
+            this.writeLatency = writeLatency.snapshot();
+            this.queueDepth = queueDepth.snapshot();
+            this.open = Collections.unmodifiableList(open);
+        }
+
+        public long getConnections() {
+            return this.connections;
+        }
+
+        public long getReconnects() {
+            return this.reconnects;
+        }
+
+        public long getBytesIn() {
+            return this.bytesIn;
+        }
+
+        public long getFramesIn() {
+            return this.framesIn;
+        }
+
+        public long getBytesOut() {
+            return this.bytesOut;
+        }
+
+        public long getFramesOut() {
+            return this.framesOut;
+        }
+
+        public Histogram.Snapshot getConnectTime() {
+            return this.connectTime;
+        }
+
+        public Histogram.Snapshot getDeliveryLatency() {
+            return this.deliveryLatency;
+        }
+
+        public Histogram.Snapshot getReadSizes() {
+            return this.readSizes;
+        }
+
+        public Histogram.Snapshot getWriteLatency() {
+            return this.writeLatency;
+        }
+
+        public Histogram.Snapshot getQueueDepth() {
+            return this.queueDepth;
+        }
+
+        public List<ConnectionMetrics.Snapshot> getOpen() {
+            return this.open;
+        }
+
+        /**
+         * Several lines meant for a log dump.
+         */
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            text.append(String.format("%d connections (%d open, %d reconnects), in %d B/%d frames, out %d B/%d frames%n",
+                    connections, open.size(), reconnects, bytesIn, framesIn, bytesOut, framesOut));
+            text.append("connect ms: ").append(connectTime.format(1e6)).append('\n');
+            text.append("write ms: ").append(writeLatency.format(1e6)).append('\n');
+            text.append("delivery ms: ").append(deliveryLatency.format(1e6)).append('\n');
+            text.append("read B: ").append(readSizes.format(1)).append('\n');
+            text.append("queue: ").append(queueDepth.format(1));
+            for (ConnectionMetrics.Snapshot connection : open) {
+                text.append('\n').append(connection);
+            }
+            return text.toString();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package br.com.dotofcodex.bluetooth_sample.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Named moments of a start, in milliseconds since the start began, so time to first frame and time until bluetooth
+ * is usable are tracked as numbers of their own. Each marker keeps the first time it was reached; any thread may
+ * mark.
+ */
+public final class StartupTrace {
+
+    public interface Clock {
+        long nanos();
+    }
+
+    public static final String FIRST_FRAME = "first_frame";
+    public static final String BLUETOOTH_READY = "bluetooth_ready";
+
+    private static final Clock SYSTEM = System::nanoTime;
+
+    private final Clock clock;
+    private final long originNanos;
+    private final Map<String, Long> markers;
+
+    /**
+     * Counts from now.
+     */
+    public StartupTrace() {
+        this(SYSTEM);
+    }
+
+    public StartupTrace(Clock clock) {
+        super();
+        this.clock = clock;
+        this.originNanos = clock.nanos();
+        this.markers = new LinkedHashMap<>();
+    }
+
+    /**
+     * Records the marker unless it was reached before; {@code true} the first time.
+     */
+    public synchronized boolean mark(String name) {
+        if (markers.containsKey(name)) {
+            return false;
+        }
+        markers.put(name, clock.nanos() - originNanos);
+        return true;
+    }
+
+    public synchronized boolean isMarked(String name) {
+        return markers.containsKey(name);
+    }
+
+    /**
+     * Milliseconds from the start to the marker, -1 while it has not been reached.
+     */
+    public synchronized long getMillis(String name) {
+        Long nanos = markers.get(name);
+        return nanos != null ? nanos / 1000000 : -1;
+    }
+
+    /**
+     * The markers in the order they were reached, one line meant for a log.
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder text = new StringBuilder("startup:");
+        for (Map.Entry<String, Long> marker : markers.entrySet()) {
+            text.append(' ').append(marker.getKey()).append('=').append(marker.getValue() / 1000000).append("ms");
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,89 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of equally sized receive buffers. Buffers are created lazily up to the configured count and then
+ * recycled forever, so a reader allocates nothing once the pool is warm. When every buffer is leased
+ * {@link #acquire()} blocks, which stops the reader and pushes back on the peer through the socket.
+ */
+public final class BufferPool {
+
+    private final int capacity;
+    private final int bufferSize;
+    // free buffers form a stack guarded by this pool's monitor; waiting on a monitor allocates nothing
+    private final PooledBuffer[] free;
+    private int freeCount;
+    private int created;
+
+    public BufferPool(int capacity, int bufferSize) {
+        super();
+        if (capacity <= 0 || bufferSize <= 0) {
+            throw new IllegalArgumentException("Pool capacity and buffer size must be positive");
+        }
+        this.capacity = capacity;
+        this.bufferSize = bufferSize;
+        this.free = new PooledBuffer[capacity];
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    public int getBufferSize() {
+        return this.bufferSize;
+    }
+
+    /**
+     * Number of buffers that can be leased right now without blocking.
+     */
+    public synchronized int available() {
+        return freeCount + capacity - created;
+    }
+
+    public synchronized PooledBuffer acquire() throws InterruptedException {
+        PooledBuffer buffer;
+        while ((buffer = poll()) == null) {
+            wait();
+        }
+        buffer.lease();
+        return buffer;
+    }
+
+    /**
+     * Returns {@code null} when no buffer was released within the timeout.
+     */
+    public synchronized PooledBuffer tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        PooledBuffer buffer;
+        while ((buffer = poll()) == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        buffer.lease();
+        return buffer;
+    }
+
+    synchronized void release(PooledBuffer buffer) {
+        free[freeCount++] = buffer;
+        if (freeCount == 1) {
+            notifyAll();
+        }
+    }
+
+    private PooledBuffer poll() {
+        if (freeCount > 0) {
+            PooledBuffer buffer = free[--freeCount];
+            free[freeCount] = null;
+            return buffer;
+        }
+        if (created < capacity) {
+            created++;
+            return new PooledBuffer(this, bufferSize);
+        }
+        return null;
+    }
+}
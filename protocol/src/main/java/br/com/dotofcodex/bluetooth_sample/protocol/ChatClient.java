@@ -0,0 +1,52 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import br.com.dotofcodex.bluetooth_sample.transport.Connector;
+import br.com.dotofcodex.bluetooth_sample.transport.Transport;
+
+import java.io.IOException;
+
+/**
+ * Dials one peer and registers the resulting {@link ChatSession}.
+ */
+public class ChatClient extends ConnectionTask {
+
+    private final Connector connector;
+    private final SessionRegistry registry;
+    private final ChatSession.Listener sessionListener;
+    private final ConnectionListener listener;
+
+    public ChatClient(Connector connector, SessionRegistry registry, ChatSession.Listener sessionListener, ConnectionListener listener) {
+        super("ChatClient-" + connector.getRemoteAddress());
+        this.connector = connector;
+        this.registry = registry;
+        this.sessionListener = sessionListener;
+        this.listener = listener;
+    }
+
+    @Override
+    protected void work() {
+        listener.onConnecting();
+
+        Transport transport;
+        long start = System.nanoTime();
+        try {
+            transport = connector.connect();
+        } catch (IOException e) {
+            listener.onConnectionFailed(e);
+            return;
+        }
+        if (registry.getMetrics() != null) {
+            registry.getMetrics().onConnect(System.nanoTime() - start);
+        }
+
+        ChatSession session = ChatServer.open(transport, registry, sessionListener, listener);
+        if (session != null) {
+            session.start();
+        }
+    }
+
+    @Override
+    public void cancel() {
+        connector.cancel();
+    }
+}
@@ -0,0 +1,76 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import br.com.dotofcodex.bluetooth_sample.transport.Transport;
+import br.com.dotofcodex.bluetooth_sample.transport.TransportServer;
+
+import java.io.IOException;
+
+/**
+ * Accept loop: every incoming connection becomes a registered {@link ChatSession} until {@link #cancel()}, which
+ * closes the listening socket. Sessions run on the registry's executor when it has one.
+ */
+public class ChatServer extends ConnectionTask {
+
+    private final TransportServer server;
+    private final SessionRegistry registry;
+    private final ChatSession.Listener sessionListener;
+    private final ConnectionListener listener;
+    private volatile boolean closed;
+
+    public ChatServer(TransportServer server, SessionRegistry registry, ChatSession.Listener sessionListener, ConnectionListener listener) {
+        super("ChatServer");
+        this.server = server;
+        this.registry = registry;
+        this.sessionListener = sessionListener;
+        this.listener = listener;
+    }
+
+    @Override
+    protected void work() {
+        while (!closed) {
+            listener.onConnecting();
+
+            Transport transport;
+            try {
+                transport = server.accept();
+            } catch (IOException e) {
+                if (!closed) {
+                    listener.onConnectionFailed(e);
+                }
+                break;
+            }
+
+            ChatSession session = open(transport, registry, sessionListener, listener);
+            if (session != null) {
+                session.start();
+            }
+        }
+    }
+
+    @Override
+    public void cancel() {
+        closed = true;
+        try {
+            server.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    static ChatSession open(Transport transport, SessionRegistry registry, ChatSession.Listener sessionListener, ConnectionListener listener) {
+        ChatSession session;
+        try {
+            session = new ChatSession(transport, sessionListener);
+        } catch (IOException e) {
+            try {
+                transport.close();
+            } catch (IOException ignored) {  }
+            listener.onConnectionFailed(e);
+            return null;
+        }
+
+        registry.register(session);
+        listener.onConnected(session);
+        return session;
+    }
+}
@@ -0,0 +1,386 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import br.com.dotofcodex.bluetooth_sample.metrics.ConnectionMetrics;
+import br.com.dotofcodex.bluetooth_sample.transport.Transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One live connection to a peer: a reader thread that decodes incoming frames into pooled buffers and a
+ * {@link FrameWriter} for everything going out. Closing the session closes the socket it was built on, which ends
+ * both. Given a {@link ConnectionExecutor} they run on two of its threads, otherwise on threads of their own.
+ *
+ * <p>Both ends open with a HELLO frame offering their {@link Compression}; once the peer's HELLO shows the same
+ * dictionary, outgoing frames are deflated where it pays off. Peers that never send a HELLO get plain frames.
+ *
+ * <p>Every session answers PINGs; one given a probe interval also sends them and keeps a {@link LinkEstimator} of
+ * the link's round trip, jitter and throughput, once the peer's HELLO shows it answers too.
+ *
+ * <p>A session given an inbound window holds at most that many frames its listener has not released, and the peer's
+ * {@link FlowControl} keeps its sends within it.
+ *
+ * <p>Frames sent on the session go out in order. {@link #openStream(int, int)} adds logical channels whose frames are
+ * fragmented and interleaved by priority, so a file transfer does not hold back a chat message.
+ */
+public class ChatSession implements Closeable {
+
+    public interface Listener {
+        /**
+         * Runs on the reader thread. The listener owns the frame and must release it.
+         */
+        void onFrame(ChatSession session, PooledBuffer frame) throws IOException;
+
+        void onClosed(ChatSession session);
+    }
+
+    public static final int RECEIVE_BUFFERS = 16;
+
+    static final int HELLO_VERSION = 1;
+    static final int HELLO_DEFLATE = 0x01;
+    static final int HELLO_PING = 0x02;
+    static final int HELLO_CREDIT = 0x04;
+    static final int HELLO_LENGTH = 6;
+    // the receive window was appended to the first version
+    static final int HELLO_WINDOW_LENGTH = 10;
+
+    private final String address;
+    private final Closeable socket;
+    private final Listener listener;
+    private final BufferPool pool;
+    private final FrameReader reader;
+    private final FrameWriter writer;
+    private final StreamMux mux;
+    private final FlowControl flow;
+    private final LinkEstimator estimator;
+    private final LinkProbe probe;
+    private final AtomicBoolean closed;
+    private volatile Thread thread;
+    private Executor executor;
+    private volatile SessionRegistry registry;
+    private Compression compression;
+    private long probeIntervalMillis;
+    private PayloadDecompressor decompressor;
+    private volatile ConnectionMetrics metrics;
+
+    public ChatSession(Transport transport, Listener listener) throws IOException {
+        this(transport.getRemoteAddress(), transport.getInputStream(), transport.getOutputStream(), transport, listener);
+    }
+
+    public ChatSession(String address, InputStream is, OutputStream os, Closeable socket, Listener listener) {
+        super();
+        this.address = address;
+        this.socket = socket;
+        this.listener = listener;
+        this.pool = new BufferPool(RECEIVE_BUFFERS, Frames.DEFAULT_MAX_PAYLOAD_LENGTH);
+        this.reader = new FrameReader(is, pool, this::onFrame);
+        this.writer = new FrameWriter(os, new FrameEncoder(true));
+        this.mux = new StreamMux(this, writer, pool);
+        this.flow = new FlowControl(this, writer);
+        this.estimator = new LinkEstimator();
+        this.probe = new LinkProbe(writer, estimator, LinkProbe.DEFAULT_PADDING);
+        this.closed = new AtomicBoolean();
+        this.compression = Compression.DEFAULT;
+    }
+
+    public String getAddress() {
+        return this.address;
+    }
+
+    public boolean isOpen() {
+        return !closed.get();
+    }
+
+    public int getQueueDepth() {
+        return writer.getQueueDepth();
+    }
+
+    /**
+     * Compression offered to the peer, {@link Compression#DEFAULT} unless changed; {@code null} turns it off.
+     * Only takes effect before {@link #start()}.
+     */
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Counts traffic and write latency of this connection; {@link SessionRegistry} sets it when it has
+     * {@link br.com.dotofcodex.bluetooth_sample.metrics.Metrics}. Only takes effect before {@link #start()}.
+     */
+    public void setMetrics(ConnectionMetrics metrics) {
+        this.metrics = metrics;
+        reader.setMetrics(metrics);
+        writer.setMetrics(metrics);
+    }
+
+    /**
+     * {@code null} unless set before the session started.
+     */
+    public ConnectionMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Runs the reader and the writer on the executor's threads instead of starting two; {@link SessionRegistry}
+     * sets it when it has one. Only takes effect before {@link #start()}.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Probes the link every {@code millis} once the peer's HELLO arrived, 0 (the default) never does. Only takes
+     * effect before {@link #start()}.
+     */
+    public void setProbeInterval(long millis) {
+        this.probeIntervalMillis = millis;
+    }
+
+    /**
+     * What the probes found out about the link so far; empty unless a probe interval was set.
+     */
+    public LinkEstimator getLinkEstimator() {
+        return this.estimator;
+    }
+
+    /**
+     * Lets the peer have at most {@code frames} frames handed to the listener and not released yet, 0 (the default)
+     * for no limit. The listener may then keep frames and release them from another thread as it gets to them.
+     * Only takes effect before {@link #start()}.
+     */
+    public void setInboundWindow(int frames) {
+        flow.setWindow(frames);
+    }
+
+    /**
+     * What happens to frames sent while the peer's window is full, see {@link FlowControl}; by default the new
+     * frame is rejected once {@link FlowControl#DEFAULT_CAPACITY} are waiting.
+     */
+    public void setFlowPolicy(int policy, int capacity, long stallMillis) {
+        flow.setPolicy(policy, capacity, stallMillis);
+    }
+
+    public FlowControl getFlowControl() {
+        return this.flow;
+    }
+
+    /**
+     * Whether the peer agreed to compression and outgoing frames are being deflated.
+     */
+    public boolean isCompressing() {
+        return writer.isCompressing();
+    }
+
+    /**
+     * Starts reading and writing. A session the executor has no threads for is closed right away.
+     */
+    public void start() {
+        if (compression != null) {
+            decompressor = compression.newDecompressor(Frames.DEFAULT_MAX_PAYLOAD_LENGTH);
+        }
+        Executor executor = this.executor;
+        if (executor == null) {
+            writer.start();
+            writer.send(Frames.TYPE_HELLO, hello(compression, flow.getWindow()), null);
+            new Thread(this::run, "ChatSession-" + address).start();
+            return;
+        }
+        try {
+            writer.start(executor);
+            writer.send(Frames.TYPE_HELLO, hello(compression, flow.getWindow()), null);
+            if (executor instanceof ConnectionExecutor) {
+                ((ConnectionExecutor) executor).execute("ChatSession-" + address, this::run);
+            }
+            else {
+                executor.execute(this::run);
+            }
+        } catch (RejectedExecutionException e) {
+            if (decompressor != null) {
+                decompressor.end();
+            }
+            close();
+        }
+    }
+
+    public boolean send(int type, byte[] payload, FrameWriter.Callback callback) {
+        return flow.send(type, payload, 0, payload.length, callback);
+    }
+
+    public boolean send(int type, byte[] payload, int offset, int length, FrameWriter.Callback callback) {
+        return flow.send(type, payload, offset, length, callback);
+    }
+
+    public Stream openStream(int id, int priority) {
+        return openStream(id, priority, Stream.DEFAULT_WINDOW);
+    }
+
+    /**
+     * Opens stream {@code id} (0 to 255), or returns it as first opened. Higher priorities go first; the peer
+     * needs no setup, it delivers whatever arrives on any stream to its listener.
+     */
+    public Stream openStream(int id, int priority, int window) {
+        return mux.open(id, priority, window);
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        probe.stop();
+        writer.close();
+        flow.close(new IOException("Session closed"));
+        mux.close(new IOException("Session closed"));
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        SessionRegistry registry = this.registry;
+        if (registry != null) {
+            registry.unregister(this);
+        }
+        ConnectionMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.close();
+        }
+        listener.onClosed(this);
+    }
+
+    void setRegistry(SessionRegistry registry) {
+        this.registry = registry;
+    }
+
+    boolean isReaderThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    private void onFrame(PooledBuffer frame) throws IOException {
+        int type = frame.type();
+        if ((type & Frames.FLAG_COMPRESSED) != 0) {
+            if (decompressor == null) {
+                frame.release();
+                throw new FrameException("Compressed frame from " + address + " without negotiated compression");
+            }
+            try {
+                decompressor.decompress(frame, type & ~Frames.FLAG_COMPRESSED);
+            } catch (FrameException e) {
+                frame.release();
+                throw e;
+            }
+        }
+
+        if (frame.type() == Frames.TYPE_STREAM_DATA) {
+            mux.onData(frame);
+            return;
+        }
+        if (frame.type() == Frames.TYPE_STREAM_CREDIT) {
+            try {
+                mux.onCredit(frame.array(), frame.length());
+            } finally {
+                frame.release();
+            }
+            return;
+        }
+        if (frame.type() == Frames.TYPE_PING || frame.type() == Frames.TYPE_PONG) {
+            try {
+                if (frame.type() == Frames.TYPE_PING) {
+                    probe.onPing(frame.array(), frame.length());
+                }
+                else {
+                    probe.onPong(frame.array(), frame.length());
+                }
+            } finally {
+                frame.release();
+            }
+            return;
+        }
+        if (frame.type() == Frames.TYPE_CREDIT) {
+            try {
+                flow.onCredit(frame.array(), frame.length());
+            } finally {
+                frame.release();
+            }
+            return;
+        }
+        if (frame.type() == Frames.TYPE_HELLO) {
+            try {
+                onHello(frame.array(), frame.length());
+            } finally {
+                frame.release();
+            }
+            return;
+        }
+        flow.onDelivered(frame);
+        listener.onFrame(this, frame);
+    }
+
+    /**
+     * Hands a frame reassembled from a stream to the listener.
+     */
+    void deliver(PooledBuffer frame) throws IOException {
+        listener.onFrame(this, frame);
+    }
+
+    private void onHello(byte[] hello, int length) throws FrameException {
+        if (length < HELLO_LENGTH) {
+            throw new FrameException("Short HELLO from " + address + ": " + length + " bytes");
+        }
+
+        // newer versions may append fields, the ones known here keep their place
+        boolean deflate = (hello[1] & HELLO_DEFLATE) != 0;
+        if (deflate && compression != null && Frames.readInt(hello, 2) == compression.getDictionaryId() && !writer.isCompressing()) {
+            writer.setCompressor(compression.newCompressor(Frames.DEFAULT_MAX_PAYLOAD_LENGTH));
+        }
+        // older peers would hand PINGs to their listener
+        if ((hello[1] & HELLO_PING) != 0 && probeIntervalMillis > 0 && isOpen()) {
+            Executor executor = this.executor;
+            probe.start(probeIntervalMillis, executor instanceof ConnectionExecutor ? ((ConnectionExecutor) executor).getTimer() : null);
+        }
+        if ((hello[1] & HELLO_CREDIT) != 0 && length >= HELLO_WINDOW_LENGTH) {
+            flow.onPeerWindow(Frames.readInt(hello, 6));
+        }
+    }
+
+    static byte[] hello(Compression compression, int window) {
+        byte[] hello = new byte[HELLO_WINDOW_LENGTH];
+        hello[0] = HELLO_VERSION;
+        hello[1] = HELLO_PING | HELLO_CREDIT;
+        Frames.writeInt(window, hello, 6);
+        if (compression != null) {
+            hello[1] |= HELLO_DEFLATE;
+            Frames.writeInt(compression.getDictionaryId(), hello, 2);
+        }
+        return hello;
+    }
+
+    private void run() {
+        thread = Thread.currentThread();
+        try {
+            reader.run();
+        } catch (IOException e) {
+            if (isOpen()) {
+                e.printStackTrace();
+            }
+        } finally {
+            if (decompressor != null) {
+                decompressor.end();
+            }
+            mux.releasePartial();
+            thread = null;
+            close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ChatSession[" + address + "]";
+    }
+}
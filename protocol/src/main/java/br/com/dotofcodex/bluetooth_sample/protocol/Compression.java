@@ -0,0 +1,69 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import java.util.zip.CRC32;
+
+/**
+ * Payload compression settings a session offers in its HELLO. Each frame is deflated on its own against a preset
+ * dictionary, so short chat messages compress as well and every frame can be inflated without its predecessors.
+ * Both ends must ship the same dictionary; its CRC32 is sent along and a mismatch leaves compression off.
+ */
+public final class Compression {
+
+    // zlib looks back from the end of the dictionary, the most common strings go last; any change here changes the
+    // dictionary id, so older peers simply stop compressing with this one
+    private static final String CHAT_DICTIONARY =
+            "{\"device\":\"\",\"address\":\"\",\"timestamp\":,\"sequence\":,\"rssi\":-,\"battery\":,"
+            + "\"temperature\":,\"humidity\":,\"latitude\":-,\"longitude\":-,\"speed\":,\"status\":\"ok\"}"
+            + "http://https://www..com.br obrigado obrigada por favor desculpa tudo bem? tudo bom? bom dia boa tarde "
+            + "boa noite até logo até mais amanhã hoje agora aqui onde quando porque você vocês está estou "
+            + "estamos então também muito mais menos isso esse essa este esta para pra com sem uma um não sim "
+            + "que de do da dos das no na em os as o a e é "
+            + "thanks please sorry hello where when what how are you the and for with this that have ";
+
+    public static final Compression DEFAULT = new Compression(CHAT_DICTIONARY.getBytes(Utf8StreamDecoder.UTF_8), 6, 24);
+
+    private final byte[] dictionary;
+    private final int dictionaryId;
+    private final int level;
+    private final int minLength;
+
+    /**
+     * @param level deflate level, 1 to 9
+     * @param minLength payloads shorter than this are sent as they are, the saving would not cover the CPU spent
+     */
+    public Compression(byte[] dictionary, int level, int minLength) {
+        super();
+        if (level < 1 || level > 9) {
+            throw new IllegalArgumentException("Invalid deflate level: " + level);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(dictionary, 0, dictionary.length);
+        this.dictionary = dictionary.clone();
+        this.dictionaryId = (int) crc.getValue();
+        this.level = level;
+        this.minLength = minLength;
+    }
+
+    public int getDictionaryId() {
+        return this.dictionaryId;
+    }
+
+    public int getLevel() {
+        return this.level;
+    }
+
+    public int getMinLength() {
+        return this.minLength;
+    }
+
+    /**
+     * Deflate state for one connection's write side. Holds native memory, {@link PayloadCompressor#end()} it.
+     */
+    public PayloadCompressor newCompressor(int maxPayloadLength) {
+        return new PayloadCompressor(dictionary, level, minLength, maxPayloadLength);
+    }
+
+    public PayloadDecompressor newDecompressor(int maxPayloadLength) {
+        return new PayloadDecompressor(dictionary, maxPayloadLength);
+    }
+}
@@ -0,0 +1,155 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import java.io.Closeable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads all connection work runs on: accept loops, dial attempts and the reader and writer of every
+ * {@link ChatSession}. Reads and writes on Bluetooth sockets block, so each task keeps its thread while it runs;
+ * at most {@code maxThreads} run at once and a task beyond that is rejected rather than queued behind a loop that
+ * may never end. Idle threads wait {@code keepAliveMillis} for the next task, so connections that come and go reuse
+ * the same few threads instead of leaving new ones behind. A single timer thread runs the short scheduled tasks,
+ * such as connect deadlines.
+ *
+ * <p>{@link #close()} is the end of every connection: loops must be cancelled and sessions closed first, which
+ * closes their sockets and ends their tasks; close then interrupts whatever is left and waits for the threads to
+ * finish.
+ */
+public final class ConnectionExecutor implements Executor, Closeable {
+
+    public static final int DEFAULT_MAX_THREADS = 32;
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 60 * 1000;
+    public static final long DEFAULT_SHUTDOWN_MILLIS = 2000;
+
+    private final String name;
+    private final ThreadPoolExecutor pool;
+    private final ScheduledThreadPoolExecutor timer;
+
+    public ConnectionExecutor() {
+        this("Connection", DEFAULT_MAX_THREADS, DEFAULT_KEEP_ALIVE_MILLIS);
+    }
+
+    public ConnectionExecutor(String name, int maxThreads, long keepAliveMillis) {
+        super();
+        this.name = name;
+        this.pool = new ThreadPoolExecutor(0, maxThreads, keepAliveMillis, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<Runnable>(), new Factory(name), new ThreadPoolExecutor.AbortPolicy());
+        this.timer = new ScheduledThreadPoolExecutor(1, new Factory(name + "Timer"));
+        this.timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Runs the task on an idle thread, or a new one while there are fewer than the maximum.
+     *
+     * @throws RejectedExecutionException when every thread is busy or the executor is closed
+     */
+    @Override
+    public void execute(Runnable task) {
+        pool.execute(task);
+    }
+
+    /**
+     * Like {@link #execute(Runnable)}, naming the thread after the task while it runs so it can be told apart in
+     * thread dumps.
+     */
+    public void execute(final String taskName, final Runnable task) {
+        pool.execute(() -> {
+            Thread thread = Thread.currentThread();
+            String idle = thread.getName();
+            thread.setName(taskName);
+            try {
+                task.run();
+            } finally {
+                thread.setName(idle);
+            }
+        });
+    }
+
+    /**
+     * For short tasks at a later time; they all share one thread and must not block.
+     */
+    public ScheduledExecutorService getTimer() {
+        return this.timer;
+    }
+
+    /**
+     * Threads alive, busy or idle, the timer's included.
+     */
+    public int getThreadCount() {
+        return pool.getPoolSize() + timer.getPoolSize();
+    }
+
+    /**
+     * Tasks running right now.
+     */
+    public int getActiveCount() {
+        return pool.getActiveCount();
+    }
+
+    /**
+     * The most threads alive at one time.
+     */
+    public int getLargestThreadCount() {
+        return pool.getLargestPoolSize();
+    }
+
+    public boolean isClosed() {
+        return pool.isShutdown();
+    }
+
+    /**
+     * Closes with the default wait.
+     */
+    @Override
+    public void close() {
+        close(DEFAULT_SHUTDOWN_MILLIS);
+    }
+
+    /**
+     * Takes no more tasks, interrupts the running ones and waits up to {@code timeoutMillis} for every thread to end;
+     * {@code false} when some did not, a task blocked somewhere that ignores interrupts.
+     */
+    public boolean close(long timeoutMillis) {
+        pool.shutdownNow();
+        timer.shutdownNow();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            return pool.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)
+                    && timer.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%d threads, %d busy, at most %d]", name, getThreadCount(), getActiveCount(), getLargestThreadCount());
+    }
+
+    private static final class Factory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count;
+
+        Factory(String name) {
+            this.name = name;
+            this.count = new AtomicInteger();
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            // idle threads must not keep the process alive, close() ends the busy ones
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import java.io.IOException;
+
+/**
+ * Progress of {@link ChatServer} and {@link ChatClient}, reported from their threads.
+ */
+public interface ConnectionListener {
+
+    void onConnecting();
+
+    /**
+     * The session is registered; a plain connection is not started yet, so no frame has been read, a resumed one is
+     * already started with its RESUME queued.
+     */
+    void onConnected(ChatSession session);
+
+    void onConnectionFailed(IOException error);
+}
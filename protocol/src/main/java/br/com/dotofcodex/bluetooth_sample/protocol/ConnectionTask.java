@@ -0,0 +1,98 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Blocking connection work, an accept loop or a dial, that runs once on a {@link ConnectionExecutor} thread or on
+ * a thread of its own and ends when {@link #cancel()} closes what it blocks on.
+ */
+public abstract class ConnectionTask implements Runnable {
+
+    private final String name;
+    private final AtomicBoolean started;
+    private final CountDownLatch finished;
+
+    protected ConnectionTask(String name) {
+        super();
+        this.name = name;
+        this.started = new AtomicBoolean();
+        this.finished = new CountDownLatch(1);
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Runs the task on a new thread.
+     */
+    public void start() {
+        begin();
+        new Thread(this, name).start();
+    }
+
+    /**
+     * Runs the task on one of the executor's threads.
+     *
+     * @throws RejectedExecutionException when the executor has no thread for it; the task counts as finished
+     */
+    public void start(Executor executor) {
+        begin();
+        try {
+            if (executor instanceof ConnectionExecutor) {
+                ((ConnectionExecutor) executor).execute(name, this);
+            }
+            else {
+                executor.execute(this);
+            }
+        } catch (RejectedExecutionException e) {
+            finished.countDown();
+            throw e;
+        }
+    }
+
+    /**
+     * Stops the task; it finishes soon after, not necessarily before this returns.
+     */
+    public abstract void cancel();
+
+    /**
+     * Started and not finished yet.
+     */
+    public boolean isRunning() {
+        return started.get() && finished.getCount() > 0;
+    }
+
+    /**
+     * Waits up to {@code millis} for the task to finish; {@code true} once it has, or if it never started.
+     */
+    public boolean join(long millis) throws InterruptedException {
+        return !started.get() || finished.await(millis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public final void run() {
+        try {
+            work();
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    protected abstract void work();
+
+    private void begin() {
+        if (!started.compareAndSet(false, true)) {
+            throw new IllegalStateException(name + " already started");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.name;
+    }
+}
@@ -0,0 +1,344 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Credit based flow control of the frames a session hands to its listener. The receiver advertises a window of
+ * frames in its HELLO and grants a credit back, in a CREDIT frame, whenever the listener releases one of them, so
+ * it never holds more than {@code window} undelivered frames however slowly it consumes them and never has to stop
+ * reading the socket to push back.
+ *
+ * <pre>
+ * CREDIT | frames (int) |
+ * </pre>
+ *
+ * The sender counts every frame sent through {@link ChatSession#send} against the peer's window; streams have
+ * their own credit and the session's own frames (HELLO, PING, PONG, CREDIT) are free. Frames without credit wait
+ * in a queue of {@code capacity} frames. When that is full too the policy decides: {@link #POLICY_DROP_NEWEST}
+ * rejects the new frame, {@link #POLICY_DROP_OLDEST} fails the frame that waited longest to make room, and
+ * {@link #POLICY_STALL} blocks the caller until a credit frees a place, at most {@code stallMillis}. A stall on
+ * the session's reader thread would wait for credits only that thread can read, it drops the new frame instead.
+ *
+ * <p>Until the peer's HELLO arrives, and for peers that advertise no window or send no HELLO at all, frames go
+ * straight through; they still count, so the window holds once it is known. A peer that ignores the window is
+ * held back by the receive buffers, as before flow control: the reader stops on the socket when the listener keeps
+ * all of them.
+ */
+public final class FlowControl {
+
+    public static final int POLICY_DROP_NEWEST = 0;
+    public static final int POLICY_DROP_OLDEST = 1;
+    public static final int POLICY_STALL = 2;
+
+    public static final int DEFAULT_CAPACITY = FrameWriter.DEFAULT_QUEUE_CAPACITY;
+    public static final long DEFAULT_STALL_MILLIS = 5000;
+
+    static final int CREDIT_LENGTH = 4;
+
+    private final ChatSession session;
+    private final FrameWriter writer;
+    private int policy;
+    private int capacity;
+    private long stallMillis;
+
+    // send side, guarded by this
+    private final ArrayDeque<Pending> pending;
+    private final ArrayList<Pending> failed;
+    // -1 when the peer advertised none
+    private int peerWindow;
+    private long sent;
+    private long granted;
+    private long dropped;
+    private long stalls;
+    private IOException failure;
+
+    // receive side
+    private int window;
+    private final Object outstandingLock;
+    private int outstanding;
+    private int uncredited;
+    private final Runnable onRelease;
+
+    FlowControl(ChatSession session, FrameWriter writer) {
+        super();
+        this.session = session;
+        this.writer = writer;
+        this.policy = POLICY_DROP_NEWEST;
+        this.capacity = DEFAULT_CAPACITY;
+        this.stallMillis = DEFAULT_STALL_MILLIS;
+        this.pending = new ArrayDeque<>();
+        this.failed = new ArrayList<>();
+        this.peerWindow = -1;
+        this.outstandingLock = new Object();
+        this.onRelease = this::onRelease;
+    }
+
+    void setWindow(int window) {
+        if (window < 0) {
+            throw new IllegalArgumentException("Negative window: " + window);
+        }
+        this.window = window;
+    }
+
+    int getWindow() {
+        return this.window;
+    }
+
+    synchronized void setPolicy(int policy, int capacity, long stallMillis) {
+        if (policy < POLICY_DROP_NEWEST || policy > POLICY_STALL || capacity < 0) {
+            throw new IllegalArgumentException("Policy " + policy + " with capacity " + capacity);
+        }
+        this.policy = policy;
+        this.capacity = capacity;
+        this.stallMillis = stallMillis;
+    }
+
+    /**
+     * Frames waiting for the peer's credit.
+     */
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * Frames that can be sent right away, {@link Integer#MAX_VALUE} when the peer does not limit them.
+     */
+    public synchronized long getCredits() {
+        return peerWindow < 0 ? Integer.MAX_VALUE : Math.max(0, peerWindow + granted - sent);
+    }
+
+    /**
+     * Frames rejected or pushed out by the policy.
+     */
+    public synchronized long getDropped() {
+        return this.dropped;
+    }
+
+    /**
+     * Sends that had to wait for room in the queue.
+     */
+    public synchronized long getStalls() {
+        return this.stalls;
+    }
+
+    /**
+     * Frames handed to the listener and not released yet; at most the window once the peer knows it.
+     */
+    public int getOutstanding() {
+        synchronized (outstandingLock) {
+            return this.outstanding;
+        }
+    }
+
+    /**
+     * Callbacks never run under the lock: they may send again, and a resumable session sends while holding its own.
+     */
+    boolean send(int type, byte[] payload, int offset, int length, FrameWriter.Callback callback) {
+        IOException error;
+        List<Pending> failed;
+        synchronized (this) {
+            error = admit(type, payload, offset, length, callback);
+            failed = takeFailed();
+        }
+        complete(failed);
+        if (error != null) {
+            if (callback != null) {
+                callback.onComplete(error);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends or queues the frame, {@code null} when it was accepted. Called with the lock held.
+     */
+    private IOException admit(int type, byte[] payload, int offset, int length, FrameWriter.Callback callback) {
+        if (failure != null) {
+            return failure;
+        }
+        if (pending.isEmpty() && hasCredit()) {
+            IOException error = writer.offer(type, payload, offset, length, callback);
+            if (error == null) {
+                sent++;
+            }
+            return error;
+        }
+
+        if (pending.size() >= capacity) {
+            if (policy == POLICY_DROP_OLDEST && capacity > 0) {
+                Pending oldest = pending.pollFirst();
+                oldest.error = new IOException("Dropped for newer frames, no credit from " + session.getAddress());
+                failed.add(oldest);
+                dropped++;
+            }
+            else if (policy == POLICY_STALL && !session.isReaderThread()) {
+                stalls++;
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(stallMillis);
+                try {
+                    while (pending.size() >= capacity && !(pending.isEmpty() && hasCredit()) && failure == null) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            dropped++;
+                            return new IOException("No credit from " + session.getAddress() + " for " + stallMillis + " ms");
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return new IOException("Interrupted waiting for credit");
+                }
+                return admit(type, payload, offset, length, callback);
+            }
+            else {
+                dropped++;
+                return new IOException("No credit from " + session.getAddress() + " and " + capacity + " frames waiting");
+            }
+        }
+        pending.addLast(new Pending(type, payload, offset, length, callback));
+        return null;
+    }
+
+    /**
+     * The peer's HELLO advertised its window, 0 for none.
+     */
+    void onPeerWindow(int window) {
+        List<Pending> failed;
+        synchronized (this) {
+            peerWindow = window > 0 ? window : -1;
+            pump();
+            failed = takeFailed();
+        }
+        complete(failed);
+    }
+
+    void onCredit(byte[] data, int length) throws FrameException {
+        if (length < CREDIT_LENGTH) {
+            throw new FrameException("Short CREDIT from " + session.getAddress());
+        }
+        int frames = Frames.readInt(data, 0);
+        if (frames <= 0) {
+            throw new FrameException("Invalid CREDIT from " + session.getAddress() + ": " + frames);
+        }
+        List<Pending> failed;
+        synchronized (this) {
+            granted += frames;
+            pump();
+            failed = takeFailed();
+        }
+        complete(failed);
+    }
+
+    private boolean hasCredit() {
+        return peerWindow < 0 || sent - granted < peerWindow;
+    }
+
+    /**
+     * Moves waiting frames to the writer while there is credit. Called with the lock held.
+     */
+    private void pump() {
+        while (!pending.isEmpty() && hasCredit()) {
+            Pending next = pending.pollFirst();
+            next.error = writer.offer(next.type, next.payload, next.offset, next.length, next.callback);
+            if (next.error == null) {
+                sent++;
+            }
+            else {
+                failed.add(next);
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * A frame is about to go to the listener; its release gives the credit back. Reader thread only.
+     */
+    void onDelivered(PooledBuffer frame) {
+        if (window == 0) {
+            return;
+        }
+        synchronized (outstandingLock) {
+            outstanding++;
+        }
+        frame.setReleaseHook(onRelease);
+    }
+
+    private void onRelease() {
+        int grant = 0;
+        synchronized (outstandingLock) {
+            outstanding--;
+            uncredited++;
+            // a quarter of the window at a time, so the sender never runs dry while a CREDIT is on its way
+            if (uncredited >= Math.max(1, window / 4)) {
+                grant = uncredited;
+                uncredited = 0;
+            }
+        }
+        if (grant > 0) {
+            byte[] credit = new byte[CREDIT_LENGTH];
+            Frames.writeInt(grant, credit, 0);
+            writer.send(Frames.TYPE_CREDIT, credit, null);
+        }
+    }
+
+    /**
+     * Fails every waiting frame and wakes stalled senders.
+     */
+    void close(IOException error) {
+        List<Pending> failed;
+        synchronized (this) {
+            if (failure == null) {
+                failure = error;
+            }
+            for (Pending waiting : pending) {
+                waiting.error = failure;
+                this.failed.add(waiting);
+            }
+            pending.clear();
+            notifyAll();
+            failed = takeFailed();
+        }
+        complete(failed);
+    }
+
+    private List<Pending> takeFailed() {
+        if (failed.isEmpty()) {
+            return null;
+        }
+        List<Pending> taken = new ArrayList<>(failed);
+        failed.clear();
+        return taken;
+    }
+
+    private static void complete(List<Pending> failed) {
+        if (failed == null) {
+            return;
+        }
+        for (Pending pending : failed) {
+            if (pending.callback != null) {
+                pending.callback.onComplete(pending.error);
+            }
+        }
+    }
+
+    private static final class Pending {
+        private final int type;
+        private final byte[] payload;
+        private final int offset;
+        private final int length;
+        private final FrameWriter.Callback callback;
+        private IOException error;
+
+        Pending(int type, byte[] payload, int offset, int length, FrameWriter.Callback callback) {
+            this.type = type;
+            this.payload = payload;
+            this.offset = offset;
+            this.length = length;
+            this.callback = callback;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Incremental frame decoder. Feed it whatever a read returned; complete frames are reported to the listener as
+ * slices of the input array when they arrived in one piece, and only frames straddling reads are copied into an
+ * internal reassembly buffer. Slices are valid only for the duration of the callback. Not thread safe.
+ */
+public final class FrameDecoder {
+
+    public interface Listener {
+        void onFrame(int type, byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    private static final int STATE_LENGTH = 0;
+    private static final int STATE_TYPE = 1;
+    private static final int STATE_BODY = 2;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final int maxPayloadLength;
+    private final Listener listener;
+    private final CRC32 crc;
+
+    private byte[] body;
+    private int state;
+    private int varint;
+    private int shift;
+    private int typeByte;
+    private int payloadLength;
+    private int bodyLength;
+    private int bodyPosition;
+
+    public FrameDecoder(int maxPayloadLength, Listener listener) {
+        super();
+        this.maxPayloadLength = maxPayloadLength;
+        this.listener = listener;
+        this.crc = new CRC32();
+        this.body = EMPTY;
+        this.state = STATE_LENGTH;
+    }
+
+    public int getMaxPayloadLength() {
+        return this.maxPayloadLength;
+    }
+
+    public void decode(byte[] data, int offset, int length) throws IOException {
+        int end = offset + length;
+
+        while (offset < end) {
+            if (state == STATE_LENGTH && shift == 0) {
+                int consumed = decodeInPlace(data, offset, end);
+                if (consumed > 0) {
+                    offset += consumed;
+                    continue;
+                }
+            }
+
+            switch (state) {
+                case STATE_LENGTH: {
+                    int b = data[offset++] & 0xFF;
+                    varint |= (b & 0x7F) << shift;
+                    if ((b & 0x80) == 0) {
+                        payloadLength = checkLength(varint);
+                        varint = 0;
+                        shift = 0;
+                        state = STATE_TYPE;
+                    }
+                    else {
+                        shift += 7;
+                        if (shift >= 7 * Frames.MAX_VARINT_LENGTH) {
+                            throw new FrameException("Malformed frame length");
+                        }
+                    }
+                    break;
+                }
+                case STATE_TYPE: {
+                    typeByte = data[offset++] & 0xFF;
+                    bodyLength = payloadLength + bodyOverhead(typeByte);
+                    bodyPosition = 0;
+                    if (body.length < bodyLength) {
+                        body = new byte[Math.max(bodyLength, Math.min(body.length * 2, maxPayloadLength + Frames.CHECKSUM_LENGTH))];
+                    }
+                    state = STATE_BODY;
+                    if (bodyLength == 0) {
+                        state = STATE_LENGTH;
+                        deliver(typeByte, body, 0, payloadLength);
+                    }
+                    break;
+                }
+                case STATE_BODY: {
+                    int count = Math.min(bodyLength - bodyPosition, end - offset);
+                    System.arraycopy(data, offset, body, bodyPosition, count);
+                    offset += count;
+                    bodyPosition += count;
+                    if (bodyPosition == bodyLength) {
+                        state = STATE_LENGTH;
+                        deliver(typeByte, body, 0, payloadLength);
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops any partially received frame, e.g. after the underlying connection was replaced.
+     */
+    public void reset() {
+        state = STATE_LENGTH;
+        varint = 0;
+        shift = 0;
+    }
+
+    // decodes a whole frame straight out of the input when it is fully available; returns 0 otherwise
+    private int decodeInPlace(byte[] data, int offset, int end) throws IOException {
+        int position = offset;
+        int value = 0;
+        int bits = 0;
+
+        while (true) {
+            if (position == end) {
+                return 0;
+            }
+            int b = data[position++] & 0xFF;
+            value |= (b & 0x7F) << bits;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            bits += 7;
+            if (bits >= 7 * Frames.MAX_VARINT_LENGTH) {
+                throw new FrameException("Malformed frame length");
+            }
+        }
+
+        int length = checkLength(value);
+        if (position == end) {
+            return 0;
+        }
+
+        int type = data[position] & 0xFF;
+        int total = length + bodyOverhead(type);
+        if (end - position - 1 < total) {
+            return 0;
+        }
+
+        deliver(type, data, position + 1, length);
+        return position + 1 + total - offset;
+    }
+
+    private void deliver(int type, byte[] buffer, int offset, int length) throws IOException {
+        if ((type & Frames.FLAG_CHECKSUM) != 0) {
+            crc.reset();
+            crc.update(type);
+            crc.update(buffer, offset, length);
+            if ((int) crc.getValue() != Frames.readInt(buffer, offset + length)) {
+                throw new FrameException("Frame checksum mismatch");
+            }
+        }
+        listener.onFrame(type & Frames.TYPE_MASK, buffer, offset, length);
+    }
+
+    private int checkLength(int length) throws FrameException {
+        if (length < 0 || length > maxPayloadLength) {
+            throw new FrameException("Frame payload of " + (length & 0xFFFFFFFFL) + " bytes exceeds the limit of " + maxPayloadLength);
+        }
+        return length;
+    }
+
+    private static int bodyOverhead(int type) {
+        return (type & Frames.FLAG_CHECKSUM) != 0 ? Frames.CHECKSUM_LENGTH : 0;
+    }
+}
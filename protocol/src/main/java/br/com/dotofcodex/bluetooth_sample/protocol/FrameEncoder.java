@@ -0,0 +1,71 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Encodes frames into caller supplied arrays or straight onto a stream. Not thread safe, keep one per writer.
+ */
+public final class FrameEncoder {
+
+    private final boolean checksum;
+    private final CRC32 crc;
+    private byte[] scratch;
+
+    public FrameEncoder(boolean checksum) {
+        super();
+        this.checksum = checksum;
+        this.crc = new CRC32();
+        this.scratch = new byte[256];
+    }
+
+    public boolean isChecksumEnabled() {
+        return this.checksum;
+    }
+
+    public int encodedLength(int payloadLength) {
+        return Frames.encodedLength(payloadLength, checksum);
+    }
+
+    /**
+     * Encodes one frame into {@code out} and returns the number of bytes written.
+     */
+    public int encode(int type, byte[] payload, int offset, int length, byte[] out, int outOffset) {
+        if ((type & ~Frames.TYPE_MASK) != 0) {
+            throw new IllegalArgumentException("Invalid frame type: " + type);
+        }
+        if (out.length - outOffset < encodedLength(length)) {
+            throw new IllegalArgumentException("Output buffer too small for a payload of " + length + " bytes");
+        }
+
+        int position = Frames.writeVarint(length, out, outOffset);
+        int typeByte = checksum ? type | Frames.FLAG_CHECKSUM : type;
+        out[position++] = (byte) typeByte;
+        System.arraycopy(payload, offset, out, position, length);
+        position += length;
+
+        if (checksum) {
+            crc.reset();
+            crc.update(typeByte);
+            crc.update(payload, offset, length);
+            Frames.writeInt((int) crc.getValue(), out, position);
+            position += Frames.CHECKSUM_LENGTH;
+        }
+
+        return position - outOffset;
+    }
+
+    /**
+     * Encodes one frame and hands it to the stream with a single {@code write} call.
+     */
+    public void write(OutputStream os, int type, byte[] payload, int offset, int length) throws IOException {
+        int needed = encodedLength(length);
+        if (scratch.length < needed) {
+            scratch = new byte[Integer.highestOneBit(needed - 1) << 1];
+        }
+
+        int written = encode(type, payload, offset, length, scratch, 0);
+        os.write(scratch, 0, written);
+    }
+}
@@ -0,0 +1,13 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import java.io.IOException;
+
+/**
+ * Raised when the byte stream does not follow the {@link Frames} wire format. The connection is unusable afterwards.
+ */
+public class FrameException extends IOException {
+
+    public FrameException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,73 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import br.com.dotofcodex.bluetooth_sample.metrics.ConnectionMetrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Read loop of a connection: decodes the stream into frames and hands each one over in a buffer leased from the
+ * pool. The sink owns the buffer from then on and must release it, possibly on another thread, also when it throws.
+ */
+public final class FrameReader {
+
+    public interface Sink {
+        void onFrame(PooledBuffer frame) throws IOException;
+    }
+
+    public static final int READ_BUFFER_SIZE = 1024;
+
+    private final InputStream is;
+    private final BufferPool pool;
+    private final Sink sink;
+    private final FrameDecoder decoder;
+    private final byte[] buffer;
+    private ConnectionMetrics metrics;
+
+    public FrameReader(InputStream is, BufferPool pool, Sink sink) {
+        super();
+        this.is = is;
+        this.pool = pool;
+        this.sink = sink;
+        this.decoder = new FrameDecoder(pool.getBufferSize(), this::onFrame);
+        this.buffer = new byte[READ_BUFFER_SIZE];
+    }
+
+    /**
+     * Counts reads and frames, and stamps each frame with the time it was read. Only before {@link #run()}.
+     */
+    void setMetrics(ConnectionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Reads until the stream ends. Blocks whenever every pooled buffer is still held by the consumer.
+     */
+    public void run() throws IOException {
+        int bytes;
+        while ((bytes = is.read(buffer)) >= 0) {
+            if (metrics != null) {
+                metrics.onRead(bytes);
+            }
+            decoder.decode(buffer, 0, bytes);
+        }
+    }
+
+    private void onFrame(int type, byte[] data, int offset, int length) throws IOException {
+        PooledBuffer frame;
+        try {
+            frame = pool.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a receive buffer");
+        }
+
+        frame.fill(type, data, offset, length);
+        if (metrics != null) {
+            frame.setReceivedNanos(System.nanoTime());
+            metrics.onFrameIn();
+        }
+        sink.onFrame(frame);
+    }
+}
@@ -0,0 +1,340 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import br.com.dotofcodex.bluetooth_sample.metrics.ConnectionMetrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write side of a connection. Callers enqueue frames without touching the socket; a dedicated thread encodes them
+ * and coalesces small frames into one socket write until either {@code flushBytes} are buffered or the oldest frame
+ * has waited {@code maxDelayMillis}. A delay of zero only batches frames that are already queued.
+ *
+ * <p>Payload arrays are referenced, not copied, until the frame's callback has run.
+ */
+public final class FrameWriter implements Closeable {
+
+    public interface Callback {
+        /**
+         * Runs on the writer thread; {@code error} is {@code null} once the frame reached the stream.
+         */
+        void onComplete(IOException error);
+    }
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+    public static final int DEFAULT_FLUSH_BYTES = 4096;
+    // frames queued while the previous batch was being written are coalesced anyway, waiting on top of that only
+    // pays off for bulk senders and costs every interactive message the full delay
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 0;
+
+    private static final Callback NO_CALLBACK = (IOException error) -> { };
+
+    private final OutputStream os;
+    private final FrameEncoder encoder;
+    private final BlockingQueue<Pending> queue;
+    private final long maxDelayNanos;
+    private final byte[] batch;
+    private final List<Pending> batched;
+    // the thread running the writer, a pooled thread must not be interrupted once it moved on
+    private final Object threadLock;
+    private Thread thread;
+    private boolean stopped;
+    private int batchLength;
+    private volatile IOException failure;
+    private volatile PayloadCompressor compressor;
+    private volatile ConnectionMetrics metrics;
+
+    public FrameWriter(OutputStream os, FrameEncoder encoder) {
+        this(os, encoder, DEFAULT_QUEUE_CAPACITY, DEFAULT_FLUSH_BYTES, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    public FrameWriter(OutputStream os, FrameEncoder encoder, int queueCapacity, int flushBytes, long maxDelayMillis) {
+        super();
+        this.os = os;
+        this.encoder = encoder;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.batch = new byte[flushBytes];
+        this.batched = new ArrayList<>();
+        this.threadLock = new Object();
+    }
+
+    public void start() {
+        new Thread(this::run, "FrameWriter").start();
+    }
+
+    /**
+     * Runs the writer on one of the executor's threads.
+     *
+     * @throws RejectedExecutionException when the executor has no thread for it; the writer has failed then
+     */
+    public void start(Executor executor) {
+        try {
+            executor.execute(this::run);
+        } catch (RejectedExecutionException e) {
+            fail(new IOException("No thread for the writer"));
+            throw e;
+        }
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public boolean send(int type, byte[] payload, Callback callback) {
+        return send(type, payload, 0, payload.length, callback);
+    }
+
+    /**
+     * Queues a frame without blocking. When the queue is full or the writer has failed the callback is completed
+     * right away with the error and {@code false} is returned.
+     */
+    public boolean send(int type, byte[] payload, int offset, int length, Callback callback) {
+        IOException error = offer(type, payload, offset, length, callback);
+        if (error == null) {
+            return true;
+        }
+        if (callback != null) {
+            callback.onComplete(error);
+        }
+        return false;
+    }
+
+    /**
+     * Like {@link #send(int, byte[], int, int, Callback)}, but a frame that is not queued is left to the caller:
+     * its callback is not run and the error is returned instead, {@code null} once queued.
+     */
+    IOException offer(int type, byte[] payload, int offset, int length, Callback callback) {
+        Callback target = callback == null ? NO_CALLBACK : callback;
+        IOException error = failure;
+        if (error == null) {
+            Pending pending = new Pending(type, payload, offset, length, target, metrics != null ? System.nanoTime() : 0);
+            if (queue.offer(pending)) {
+                // a concurrent close may already have drained the queue
+                if (failure == null || !queue.remove(pending)) {
+                    return null;
+                }
+                error = failure;
+            }
+            else {
+                error = new IOException("Outbound queue full");
+            }
+        }
+        return error;
+    }
+
+    /**
+     * Deflates every frame written from now on where it pays off. The writer thread owns the compressor and ends it
+     * when it stops.
+     */
+    void setCompressor(PayloadCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    boolean isCompressing() {
+        return compressor != null;
+    }
+
+    /**
+     * Counts what reaches the stream, the queue depth per batch and how long each frame waited for its write.
+     */
+    void setMetrics(ConnectionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Stops the writer thread; frames that were not written yet fail. The stream itself is left open.
+     */
+    @Override
+    public void close() {
+        fail(new IOException("Writer closed"));
+        synchronized (threadLock) {
+            stopped = true;
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    private void run() {
+        synchronized (threadLock) {
+            if (stopped) {
+                return;
+            }
+            thread = Thread.currentThread();
+        }
+        try {
+            write();
+        } finally {
+            synchronized (threadLock) {
+                thread = null;
+                // an interrupt meant for this writer stays with it
+                Thread.interrupted();
+            }
+        }
+    }
+
+    private void write() {
+        IOException error = null;
+        try {
+            while (failure == null) {
+                Pending first = queue.take();
+                ConnectionMetrics metrics = this.metrics;
+                if (metrics != null) {
+                    metrics.onQueueDepth(queue.size() + 1);
+                }
+                append(first);
+
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batchLength < batch.length) {
+                    long remaining = deadline - System.nanoTime();
+                    Pending next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    append(next);
+                }
+
+                flush();
+            }
+        } catch (InterruptedException e) {
+            error = new IOException("Writer interrupted");
+        } catch (IOException e) {
+            error = e;
+        }
+
+        fail(error != null ? error : failure);
+        for (int i = 0; i < batched.size(); i++) {
+            batched.get(i).callback.onComplete(failure);
+        }
+        batched.clear();
+
+        PayloadCompressor compressor = this.compressor;
+        if (compressor != null) {
+            compressor.end();
+        }
+    }
+
+    private void append(Pending pending) throws IOException {
+        int type = pending.type;
+        byte[] payload = pending.payload;
+        int offset = pending.offset;
+        int length = pending.length;
+
+        PayloadCompressor compressor = this.compressor;
+        if (compressor != null) {
+            int compressed = compressor.compress(payload, offset, length);
+            if (compressed >= 0) {
+                // encoded straight away below, so the compressor's buffer can be reused for the next frame
+                type |= Frames.FLAG_COMPRESSED;
+                payload = compressor.output();
+                offset = 0;
+                length = compressed;
+            }
+        }
+
+        int needed = encoder.encodedLength(length);
+        if (batchLength + needed > batch.length) {
+            flush();
+        }
+
+        if (needed > batch.length) {
+            // too large to coalesce, goes to the stream on its own
+            try {
+                encoder.write(os, type, payload, offset, length);
+                os.flush();
+            } catch (IOException e) {
+                pending.callback.onComplete(e);
+                throw e;
+            }
+            ConnectionMetrics metrics = this.metrics;
+            if (metrics != null) {
+                metrics.onWritten(1, needed);
+                if (pending.queuedNanos != 0) {
+                    metrics.onWriteLatency(System.nanoTime() - pending.queuedNanos);
+                }
+            }
+            pending.callback.onComplete(null);
+            return;
+        }
+
+        batchLength += encoder.encode(type, payload, offset, length, batch, batchLength);
+        batched.add(pending);
+    }
+
+    private void flush() throws IOException {
+        if (batched.isEmpty()) {
+            return;
+        }
+
+        IOException error = null;
+        try {
+            os.write(batch, 0, batchLength);
+            os.flush();
+        } catch (IOException e) {
+            error = e;
+        }
+
+        ConnectionMetrics metrics = this.metrics;
+        if (metrics != null && error == null) {
+            long now = System.nanoTime();
+            for (int i = 0; i < batched.size(); i++) {
+                long queued = batched.get(i).queuedNanos;
+                if (queued != 0) {
+                    metrics.onWriteLatency(now - queued);
+                }
+            }
+            metrics.onWritten(batched.size(), batchLength);
+        }
+
+        for (int i = 0; i < batched.size(); i++) {
+            batched.get(i).callback.onComplete(error);
+        }
+        batched.clear();
+        batchLength = 0;
+
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void fail(IOException error) {
+        synchronized (queue) {
+            if (failure == null) {
+                failure = error;
+            }
+        }
+
+        Pending pending;
+        while ((pending = queue.poll()) != null) {
+            pending.callback.onComplete(failure);
+        }
+    }
+
+    private static final class Pending {
+        final int type;
+        final byte[] payload;
+        final int offset;
+        final int length;
+        final Callback callback;
+        // when it was queued, 0 without metrics
+        final long queuedNanos;
+
+        Pending(int type, byte[] payload, int offset, int length, Callback callback, long queuedNanos) {
+            this.type = type;
+            this.payload = payload;
+            this.offset = offset;
+            this.length = length;
+            this.callback = callback;
+            this.queuedNanos = queuedNanos;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+/**
+ * Wire format shared by {@link FrameEncoder} and {@link FrameDecoder}.
+ *
+ * <pre>
+ * +------------------+------+-------------------+-----------------+
+ * | length (varint)  | type | payload (length)  | crc32, optional |
+ * +------------------+------+-------------------+-----------------+
+ * </pre>
+ *
+ * The high bit of the type byte flags the trailing big-endian CRC32, which covers the type byte and the payload.
+ * The next bit marks a deflated payload, sent only after both ends offered the same {@link Compression} in their
+ * HELLO frames; the remaining six bits are the frame type.
+ */
+public final class Frames {
+
+    public static final int TYPE_DATA = 1;
+    // first frame each end sends: version, feature flags and the compression dictionary id
+    public static final int TYPE_HELLO = 2;
+    // bulk file transfer, see the transfer package
+    public static final int TYPE_FILE_OFFER = 3;
+    public static final int TYPE_FILE_ACCEPT = 4;
+    public static final int TYPE_FILE_CHUNK = 5;
+    public static final int TYPE_FILE_ACK = 6;
+    public static final int TYPE_FILE_COMPLETE = 7;
+    // a fragment of a frame sent on a multiplexed stream, and the credit granted back for it, see StreamMux
+    public static final int TYPE_STREAM_DATA = 8;
+    public static final int TYPE_STREAM_CREDIT = 9;
+    // sessions that outlive their connection, see the resume package
+    public static final int TYPE_RESUME = 10;
+    public static final int TYPE_SEQUENCED = 11;
+    public static final int TYPE_SEQUENCE_ACK = 12;
+    // round trip and bandwidth probes, see LinkProbe
+    public static final int TYPE_PING = 13;
+    public static final int TYPE_PONG = 14;
+    // frames the receiver is ready for, see FlowControl
+    public static final int TYPE_CREDIT = 15;
+    // a structured record, see the message package
+    public static final int TYPE_RECORD = 16;
+    // one part of a turn of the history sync, see the sync package
+    public static final int TYPE_SYNC = 17;
+    // routes a node advertises to its neighbours, and a frame on its way to another node, see the relay package
+    public static final int TYPE_ROUTE = 18;
+    public static final int TYPE_RELAY = 19;
+
+    public static final int FLAG_CHECKSUM = 0x80;
+    public static final int TYPE_MASK = 0x7F;
+    public static final int FLAG_COMPRESSED = 0x40;
+
+    public static final int MAX_VARINT_LENGTH = 5;
+    public static final int CHECKSUM_LENGTH = 4;
+    public static final int DEFAULT_MAX_PAYLOAD_LENGTH = 64 * 1024;
+
+    private Frames() {
+        super();
+    }
+
+    public static int varintLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Writes {@code value} as an unsigned LEB128 varint and returns the offset just past it.
+     */
+    public static int writeVarint(int value, byte[] out, int offset) {
+        while ((value & ~0x7F) != 0) {
+            out[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[offset++] = (byte) value;
+        return offset;
+    }
+
+    public static int encodedLength(int payloadLength, boolean checksum) {
+        return varintLength(payloadLength) + 1 + payloadLength + (checksum ? CHECKSUM_LENGTH : 0);
+    }
+
+    public static void writeInt(int value, byte[] out, int offset) {
+        out[offset] = (byte) (value >>> 24);
+        out[offset + 1] = (byte) (value >>> 16);
+        out[offset + 2] = (byte) (value >>> 8);
+        out[offset + 3] = (byte) value;
+    }
+
+    public static int readInt(byte[] in, int offset) {
+        return ((in[offset] & 0xFF) << 24)
+                | ((in[offset + 1] & 0xFF) << 16)
+                | ((in[offset + 2] & 0xFF) << 8)
+                | (in[offset + 3] & 0xFF);
+    }
+
+    public static void writeLong(long value, byte[] out, int offset) {
+        writeInt((int) (value >>> 32), out, offset);
+        writeInt((int) value, out, offset + 4);
+    }
+
+    public static long readLong(byte[] in, int offset) {
+        return ((long) readInt(in, offset) << 32) | (readInt(in, offset + 4) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,111 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+/**
+ * Smoothed view of a link built from PING/PONG probes. Round trip time and its variation follow RFC 6298
+ * ({@code SRTT} with gain 1/8, {@code RTTVAR} with gain 1/4), jitter is the RFC 3550 estimate over consecutive
+ * samples (gain 1/16), and throughput comes from packet pairs: a small and a padded ping sent back to back reach the
+ * peer {@code padding / bandwidth} apart, and so do their pongs.
+ *
+ * <p>Updated by the session's reader thread; everything here may be read from any thread.
+ */
+public final class LinkEstimator {
+
+    private long smoothedRttNanos;
+    private long rttVariationNanos;
+    private long minRttNanos;
+    private long lastRttNanos;
+    private long jitterNanos;
+    private long samples;
+    private double bytesPerSecond;
+    private long throughputSamples;
+
+    public LinkEstimator() {
+        super();
+    }
+
+    /**
+     * Feeds a round trip of a small probe.
+     */
+    public synchronized void onRtt(long rttNanos) {
+        if (samples == 0) {
+            smoothedRttNanos = rttNanos;
+            rttVariationNanos = rttNanos / 2;
+            minRttNanos = rttNanos;
+        }
+        else {
+            rttVariationNanos += (Math.abs(smoothedRttNanos - rttNanos) - rttVariationNanos) / 4;
+            smoothedRttNanos += (rttNanos - smoothedRttNanos) / 8;
+            minRttNanos = Math.min(minRttNanos, rttNanos);
+            jitterNanos += (Math.abs(rttNanos - lastRttNanos) - jitterNanos) / 16;
+        }
+        lastRttNanos = rttNanos;
+        samples++;
+    }
+
+    /**
+     * Feeds a packet pair: the padded probe came back {@code spreadNanos} after the small one and carried
+     * {@code bytes} more. Pairs that did not spread, because something else held up the small probe, say nothing
+     * about the bandwidth and are ignored.
+     */
+    public synchronized void onPair(long spreadNanos, int bytes) {
+        if (spreadNanos <= 0 || bytes <= 0) {
+            return;
+        }
+        double sample = bytes * 1e9 / spreadNanos;
+        bytesPerSecond = throughputSamples == 0 ? sample : bytesPerSecond + (sample - bytesPerSecond) / 8;
+        throughputSamples++;
+    }
+
+    public synchronized long getSamples() {
+        return this.samples;
+    }
+
+    public synchronized long getSmoothedRttNanos() {
+        return this.smoothedRttNanos;
+    }
+
+    public synchronized long getRttVariationNanos() {
+        return this.rttVariationNanos;
+    }
+
+    public synchronized long getMinRttNanos() {
+        return this.minRttNanos;
+    }
+
+    public synchronized long getJitterNanos() {
+        return this.jitterNanos;
+    }
+
+    /**
+     * Bytes per second the link carried the padded probes at, 0 until a packet pair came back.
+     */
+    public synchronized long getThroughput() {
+        return (long) this.bytesPerSecond;
+    }
+
+    /**
+     * How long to wait for a reply before assuming it is lost, {@code SRTT + 4 * RTTVAR}; {@code fallbackNanos}
+     * until the first probe returned.
+     */
+    public synchronized long getTimeoutNanos(long fallbackNanos) {
+        return samples == 0 ? fallbackNanos : smoothedRttNanos + 4 * rttVariationNanos;
+    }
+
+    /**
+     * Bytes the link holds in flight at its measured throughput and smoothed round trip, the most worth keeping
+     * unacknowledged; {@code fallback} until both are known.
+     */
+    public synchronized int getBandwidthDelayBytes(int fallback) {
+        if (samples == 0 || throughputSamples == 0) {
+            return fallback;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, (long) (bytesPerSecond * smoothedRttNanos / 1e9));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("rtt %.1f ms (min %.1f, var %.1f), jitter %.1f ms, %d B/s over %d probes",
+                smoothedRttNanos / 1e6, minRttNanos / 1e6, rttVariationNanos / 1e6, jitterNanos / 1e6,
+                (long) bytesPerSecond, samples);
+    }
+}
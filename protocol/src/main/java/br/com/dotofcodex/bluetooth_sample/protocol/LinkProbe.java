@@ -0,0 +1,136 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a packet pair of PINGs every interval and feeds the PONGs to a {@link LinkEstimator}.
+ *
+ * <pre>
+ * PING | sequence (int) | sent at, sender's nanoTime (long) | padded (byte) | padding, only when padded |
+ * PONG | the PING without its padding                                                                  |
+ * </pre>
+ *
+ * The padding is random so compression cannot shrink it. A probe only queues two frames on the writer, so it runs on
+ * the {@link ConnectionExecutor}'s timer; sessions without one share a timer thread of their own.
+ */
+final class LinkProbe {
+
+    static final int HEADER_LENGTH = 13;
+    static final int DEFAULT_PADDING = 4096;
+
+    // only for sessions without a ConnectionExecutor, its thread starts with the first probe
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "LinkProbe");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final FrameWriter writer;
+    private final LinkEstimator estimator;
+    private final byte[] padded;
+
+    // guarded by this
+    private ScheduledFuture<?> task;
+    private int sequence;
+    private int pairSequence = -1;
+    private long pairRttNanos;
+
+    LinkProbe(FrameWriter writer, LinkEstimator estimator, int padding) {
+        super();
+        this.writer = writer;
+        this.estimator = estimator;
+        this.padded = new byte[HEADER_LENGTH + padding];
+        new Random().nextBytes(padded);
+    }
+
+    /**
+     * @param timer the executor's timer, {@code null} for the shared one
+     */
+    synchronized void start(long intervalMillis, ScheduledExecutorService timer) {
+        if (task == null) {
+            try {
+                task = (timer != null ? timer : TIMER).scheduleAtFixedRate(this::probe, 0, intervalMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ignored) {
+                // the executor is closing, and the session with it
+            }
+        }
+    }
+
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    void probe() {
+        int current;
+        synchronized (this) {
+            current = sequence++;
+            pairSequence = -1;
+        }
+        byte[] small = new byte[HEADER_LENGTH];
+        header(small, current, false);
+        // the padded one is queued right behind, a flush of the small one goes first since it does not fit a batch
+        byte[] large = padded.clone();
+        header(large, current, true);
+        writer.send(Frames.TYPE_PING, small, null);
+        writer.send(Frames.TYPE_PING, large, null);
+    }
+
+    /**
+     * Answers a peer's PING, on the reader thread.
+     */
+    void onPing(byte[] data, int length) throws FrameException {
+        if (length < HEADER_LENGTH) {
+            throw new FrameException("Short PING: " + length + " bytes");
+        }
+        byte[] pong = new byte[HEADER_LENGTH];
+        System.arraycopy(data, 0, pong, 0, HEADER_LENGTH);
+        writer.send(Frames.TYPE_PONG, pong, null);
+    }
+
+    void onPong(byte[] data, int length) throws FrameException {
+        long now = System.nanoTime();
+        if (length < HEADER_LENGTH) {
+            throw new FrameException("Short PONG: " + length + " bytes");
+        }
+        int current = Frames.readInt(data, 0);
+        long rtt = now - Frames.readLong(data, 4);
+        boolean isPadded = data[12] != 0;
+
+        if (!isPadded) {
+            estimator.onRtt(rtt);
+            synchronized (this) {
+                pairSequence = current;
+                pairRttNanos = rtt;
+            }
+            return;
+        }
+
+        long spread;
+        synchronized (this) {
+            if (current != pairSequence) {
+                return;
+            }
+            spread = rtt - pairRttNanos;
+            pairSequence = -1;
+        }
+        estimator.onPair(spread, padded.length - HEADER_LENGTH);
+    }
+
+    private static void header(byte[] ping, int sequence, boolean isPadded) {
+        Frames.writeInt(sequence, ping, 0);
+        Frames.writeLong(System.nanoTime(), ping, 4);
+        ping[12] = (byte) (isPadded ? 1 : 0);
+    }
+}
@@ -0,0 +1,55 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import java.util.zip.Deflater;
+
+/**
+ * Deflates payloads one at a time into a reused output buffer. The deflater is reset between frames, keeping its
+ * native state allocated for the whole connection. Not thread safe, it lives on the writer thread.
+ */
+public final class PayloadCompressor {
+
+    private final Deflater deflater;
+    private final byte[] dictionary;
+    private final int minLength;
+    private final byte[] output;
+
+    PayloadCompressor(byte[] dictionary, int level, int minLength, int maxPayloadLength) {
+        super();
+        // raw deflate, the frame already carries a length and optionally a checksum
+        this.deflater = new Deflater(level, true);
+        this.dictionary = dictionary;
+        this.minLength = minLength;
+        this.output = new byte[maxPayloadLength];
+    }
+
+    /**
+     * Deflates the payload into {@link #output()} and returns the compressed length, or -1 when compressing would
+     * not make the payload smaller and it should go out as it is.
+     */
+    public int compress(byte[] payload, int offset, int length) {
+        if (length < minLength) {
+            return -1;
+        }
+
+        deflater.reset();
+        deflater.setDictionary(dictionary);
+        deflater.setInput(payload, offset, length);
+        deflater.finish();
+
+        // anything that does not fit in fewer bytes than the input is not worth the receiver's time
+        int limit = Math.min(length - 1, output.length);
+        int written = 0;
+        while (!deflater.finished() && written < limit) {
+            written += deflater.deflate(output, written, limit - written);
+        }
+        return deflater.finished() ? written : -1;
+    }
+
+    public byte[] output() {
+        return this.output;
+    }
+
+    public void end() {
+        deflater.end();
+    }
+}
@@ -0,0 +1,57 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates compressed frames in place: the pooled buffer that carried the compressed payload is refilled with the
+ * plain one. Not thread safe, it lives on the reader thread.
+ */
+public final class PayloadDecompressor {
+
+    private final Inflater inflater;
+    private final byte[] dictionary;
+    private final int maxPayloadLength;
+    private final byte[] output;
+
+    PayloadDecompressor(byte[] dictionary, int maxPayloadLength) {
+        super();
+        this.inflater = new Inflater(true);
+        this.dictionary = dictionary;
+        this.maxPayloadLength = maxPayloadLength;
+        // one spare byte, zlib only sees the end of the stream while it has room to write
+        this.output = new byte[maxPayloadLength + 1];
+    }
+
+    /**
+     * Replaces the compressed payload of {@code frame} with the inflated one, tagged with {@code type}.
+     */
+    public void decompress(PooledBuffer frame, int type) throws FrameException {
+        inflater.reset();
+        inflater.setDictionary(dictionary);
+        inflater.setInput(frame.array(), 0, frame.length());
+
+        int length = 0;
+        try {
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(output, length, output.length - length);
+                length += inflated;
+                if (length > maxPayloadLength) {
+                    throw new FrameException("Compressed payload inflates past " + maxPayloadLength + " bytes");
+                }
+                // there is always room left to write, no progress means the input ran out
+                if (inflated == 0 && !inflater.finished()) {
+                    throw new FrameException("Truncated compressed payload");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new FrameException("Corrupt compressed payload: " + e.getMessage());
+        }
+
+        frame.fill(type, output, 0, length);
+    }
+
+    public void end() {
+        inflater.end();
+    }
+}
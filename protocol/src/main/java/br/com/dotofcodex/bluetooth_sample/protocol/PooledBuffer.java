@@ -0,0 +1,93 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A frame payload leased from a {@link BufferPool}. Whoever ends up holding it must call {@link #release()} once
+ * the payload has been consumed; the array is reused for later frames afterwards.
+ */
+public final class PooledBuffer {
+
+    private final BufferPool pool;
+    private final byte[] data;
+    private final AtomicBoolean leased;
+    private int type;
+    private int length;
+    private long receivedNanos;
+    private volatile Runnable releaseHook;
+
+    PooledBuffer(BufferPool pool, int size) {
+        super();
+        this.pool = pool;
+        this.data = new byte[size];
+        this.leased = new AtomicBoolean();
+    }
+
+    public byte[] array() {
+        return this.data;
+    }
+
+    public int length() {
+        return this.length;
+    }
+
+    public int type() {
+        return this.type;
+    }
+
+    /**
+     * {@link System#nanoTime()} when the frame was read off the socket, 0 unless the session keeps metrics.
+     */
+    public long receivedNanos() {
+        return this.receivedNanos;
+    }
+
+    void setReceivedNanos(long receivedNanos) {
+        this.receivedNanos = receivedNanos;
+    }
+
+    public void fill(int type, byte[] source, int offset, int length) {
+        if (length > data.length) {
+            throw new IllegalArgumentException("Payload of " + length + " bytes does not fit a " + data.length + " byte buffer");
+        }
+        System.arraycopy(source, offset, data, 0, length);
+        this.type = type;
+        this.length = length;
+    }
+
+    /**
+     * Adds to the payload, used to reassemble a frame that arrived in fragments.
+     */
+    void append(byte[] source, int offset, int length) throws FrameException {
+        if (this.length + length > data.length) {
+            throw new FrameException("Reassembled frame exceeds " + data.length + " bytes");
+        }
+        System.arraycopy(source, offset, data, this.length, length);
+        this.length += length;
+    }
+
+    /**
+     * Runs once, after the buffer went back to the pool; used to grant flow control credit.
+     */
+    void setReleaseHook(Runnable releaseHook) {
+        this.releaseHook = releaseHook;
+    }
+
+    public void release() {
+        if (!leased.compareAndSet(true, false)) {
+            throw new IllegalStateException("Buffer released twice");
+        }
+        Runnable hook = releaseHook;
+        releaseHook = null;
+        length = 0;
+        receivedNanos = 0;
+        pool.release(this);
+        if (hook != null) {
+            hook.run();
+        }
+    }
+
+    void lease() {
+        leased.set(true);
+    }
+}
@@ -0,0 +1,134 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import br.com.dotofcodex.bluetooth_sample.metrics.Metrics;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Live sessions keyed by remote address. Sends only enqueue on each session's writer, so a broadcast returns as
+ * soon as every peer has the frame queued and a slow peer only ever delays itself.
+ */
+public final class SessionRegistry {
+
+    private final ConcurrentMap<String, ChatSession> sessions;
+    private final Metrics metrics;
+    private volatile long probeIntervalMillis;
+    private volatile int inboundWindow;
+    private volatile Executor executor;
+
+    public SessionRegistry() {
+        this(null);
+    }
+
+    /**
+     * @param metrics every session registered before it starts gets its counters from here, may be {@code null}
+     */
+    public SessionRegistry(Metrics metrics) {
+        super();
+        this.sessions = new ConcurrentHashMap<>();
+        this.metrics = metrics;
+    }
+
+    /**
+     * {@code null} when the registry was created without metrics.
+     */
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Sessions registered from now on probe their link every {@code millis}, see {@link ChatSession#setProbeInterval}.
+     */
+    public void setProbeInterval(long millis) {
+        this.probeIntervalMillis = millis;
+    }
+
+    /**
+     * Sessions registered from now on, before they start, limit the frames their listener holds to {@code frames},
+     * see {@link ChatSession#setInboundWindow}.
+     */
+    public void setInboundWindow(int frames) {
+        this.inboundWindow = frames;
+    }
+
+    /**
+     * Sessions registered from now on, before they start, run on the executor's threads, see
+     * {@link ChatSession#setExecutor}.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Adds the session, closing any older session with the same address. Closed sessions drop out on their own.
+     */
+    public void register(ChatSession session) {
+        session.setRegistry(this);
+        if (metrics != null && session.getMetrics() == null) {
+            session.setMetrics(metrics.open(session.getAddress()));
+        }
+        if (probeIntervalMillis > 0) {
+            session.setProbeInterval(probeIntervalMillis);
+        }
+        if (inboundWindow > 0) {
+            session.setInboundWindow(inboundWindow);
+        }
+        if (executor != null) {
+            session.setExecutor(executor);
+        }
+        ChatSession previous = sessions.put(session.getAddress(), session);
+        if (previous != null && previous != session) {
+            previous.close();
+        }
+        if (!session.isOpen()) {
+            unregister(session);
+            if (session.getMetrics() != null) {
+                session.getMetrics().close();
+            }
+        }
+    }
+
+    public boolean unregister(ChatSession session) {
+        return sessions.remove(session.getAddress(), session);
+    }
+
+    public ChatSession get(String address) {
+        return sessions.get(address);
+    }
+
+    public Collection<ChatSession> getSessions() {
+        return Collections.unmodifiableCollection(sessions.values());
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Queues the frame on every session and returns how many accepted it. The payload is shared, not copied.
+     */
+    public int broadcast(int type, byte[] payload, FrameWriter.Callback callback) {
+        int accepted = 0;
+        for (ChatSession session : sessions.values()) {
+            if (session.send(type, payload, callback)) {
+                accepted++;
+            }
+        }
+        return accepted;
+    }
+
+    public boolean send(String address, int type, byte[] payload, FrameWriter.Callback callback) {
+        ChatSession session = sessions.get(address);
+        return session != null && session.send(type, payload, callback);
+    }
+
+    public void closeAll() {
+        for (ChatSession session : sessions.values()) {
+            session.close();
+        }
+    }
+}
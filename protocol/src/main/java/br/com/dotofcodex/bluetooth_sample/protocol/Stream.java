@@ -0,0 +1,74 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import java.util.ArrayDeque;
+
+/**
+ * A logical channel on a {@link ChatSession}. Frames sent on a stream are cut into fragments and interleaved with
+ * the other streams by priority, so a bulk stream never holds more than one fragment ahead of an interactive one.
+ * The peer delivers them reassembled, to its session listener, as if they had been sent whole.
+ *
+ * <p>Each stream may have at most {@code window} bytes the peer has not yet delivered; the peer grants credit back as
+ * it delivers, which keeps a bulk stream from filling the link's buffers.
+ */
+public final class Stream {
+
+    public static final int PRIORITY_BULK = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_INTERACTIVE = 2;
+
+    public static final int DEFAULT_WINDOW = 16 * 1024;
+
+    private final StreamMux mux;
+    private final int id;
+    private final int priority;
+    private final int window;
+    // guarded by the mux
+    final ArrayDeque<StreamMux.Message> queue;
+    int credit;
+
+    Stream(StreamMux mux, int id, int priority, int window) {
+        super();
+        this.mux = mux;
+        this.id = id;
+        this.priority = priority;
+        this.window = window;
+        this.queue = new ArrayDeque<>();
+        this.credit = window;
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
+    public int getPriority() {
+        return this.priority;
+    }
+
+    public int getWindow() {
+        return this.window;
+    }
+
+    public boolean send(int type, byte[] payload, FrameWriter.Callback callback) {
+        return send(type, payload, 0, payload.length, callback);
+    }
+
+    /**
+     * Queues a frame without blocking. The payload array is referenced until the callback has run; the callback
+     * runs once the last fragment reached the stream, or with the error when the session closed first.
+     */
+    public boolean send(int type, byte[] payload, int offset, int length, FrameWriter.Callback callback) {
+        return mux.send(this, type, payload, offset, length, callback);
+    }
+
+    /**
+     * Frames not yet fully handed to the writer, including the one being fragmented.
+     */
+    public int getQueueDepth() {
+        return mux.queueDepth(this);
+    }
+
+    @Override
+    public String toString() {
+        return "Stream[" + id + ", priority " + priority + "]";
+    }
+}
@@ -0,0 +1,433 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Multiplexes {@link Stream}s over one session. Frames sent on streams are cut into fragments of at most
+ * {@code fragmentSize} bytes and only {@link #MAX_QUEUED_FRAGMENTS} of them sit in the writer at a time, so a
+ * frame sent directly on the session or on a more urgent stream waits behind at most that much bulk data. The
+ * highest priority stream with data and credit goes next; streams of equal priority take turns. A stream holds at most
+ * {@link #MAX_QUEUED_MESSAGES} frames, one whose peer grants no credit rejects further frames like
+ * {@link FlowControl} does.
+ *
+ * <pre>
+ * STREAM_DATA    | stream id | flags (first, last) | frame type | fragment |
+ * STREAM_CREDIT  | stream id | bytes (int)                                 |
+ * </pre>
+ *
+ * The receiving side reassembles fragments into a pooled buffer and hands it to the session listener. Those buffers
+ * come from the pool the reader reads into, so at most {@link #MAX_REASSEMBLIES} streams are in the middle of a
+ * frame at a time: a sender starts no more, and a peer that does breaks the session instead of leaving the reader
+ * waiting for a buffer only it could free. Callbacks never run under the mux lock, they may send again.
+ */
+final class StreamMux {
+
+    static final int MAX_STREAMS = 256;
+    static final int HEADER_LENGTH = 3;
+    static final int FLAG_FIRST = 0x01;
+    static final int FLAG_LAST = 0x02;
+
+    static final int DEFAULT_FRAGMENT_SIZE = 1024;
+    // one fragment being written and one ready behind it
+    static final int MAX_QUEUED_FRAGMENTS = 2;
+    // frames waiting on one stream, as many as the writer's own queue holds
+    static final int MAX_QUEUED_MESSAGES = FrameWriter.DEFAULT_QUEUE_CAPACITY;
+    // streams mid frame, half the receive pool so the reader always has buffers to finish them
+    static final int MAX_REASSEMBLIES = ChatSession.RECEIVE_BUFFERS / 2;
+    // delivered bytes are credited back in batches of this size, or at the end of a frame
+    static final int CREDIT_BATCH = 4096;
+
+    private final ChatSession session;
+    private final FrameWriter writer;
+    private final BufferPool pool;
+    private final int fragmentSize;
+    private final Stream[] streams;
+    // open streams by id, scanned by the scheduler
+    private final ArrayList<Stream> open;
+    private final ArrayDeque<Fragment> free;
+    private final ArrayList<Message> failed;
+    private int turn;
+    // streams whose frame went out in part
+    private int sending;
+    private boolean pumping;
+    private IOException failure;
+
+    // receive side, reader thread only
+    private final PooledBuffer[] partial;
+    private final int[] uncredited;
+    private int reassembling;
+
+    StreamMux(ChatSession session, FrameWriter writer, BufferPool pool) {
+        this(session, writer, pool, DEFAULT_FRAGMENT_SIZE);
+    }
+
+    StreamMux(ChatSession session, FrameWriter writer, BufferPool pool, int fragmentSize) {
+        super();
+        this.session = session;
+        this.writer = writer;
+        this.pool = pool;
+        this.fragmentSize = fragmentSize;
+        this.streams = new Stream[MAX_STREAMS];
+        this.open = new ArrayList<>();
+        this.free = new ArrayDeque<>(MAX_QUEUED_FRAGMENTS);
+        for (int i = 0; i < MAX_QUEUED_FRAGMENTS; i++) {
+            free.add(new Fragment(HEADER_LENGTH + fragmentSize));
+        }
+        this.failed = new ArrayList<>();
+        this.partial = new PooledBuffer[MAX_STREAMS];
+        this.uncredited = new int[MAX_STREAMS];
+    }
+
+    synchronized Stream open(int id, int priority, int window) {
+        if (id < 0 || id >= MAX_STREAMS) {
+            throw new IllegalArgumentException("Invalid stream id: " + id);
+        }
+        if (window < CREDIT_BATCH) {
+            // the peer only credits full batches mid frame, a smaller window could never be refilled
+            throw new IllegalArgumentException("Stream window must be at least " + CREDIT_BATCH + " bytes");
+        }
+        Stream stream = streams[id];
+        if (stream == null) {
+            stream = new Stream(this, id, priority, window);
+            streams[id] = stream;
+            int index = 0;
+            while (index < open.size() && open.get(index).getId() < id) {
+                index++;
+            }
+            open.add(index, stream);
+        }
+        return stream;
+    }
+
+    boolean send(Stream stream, int type, byte[] payload, int offset, int length, FrameWriter.Callback callback) {
+        if (type < 0 || type > Frames.TYPE_MASK || (type & Frames.FLAG_COMPRESSED) != 0 || type == Frames.TYPE_HELLO
+                || type == Frames.TYPE_STREAM_DATA || type == Frames.TYPE_STREAM_CREDIT) {
+            throw new IllegalArgumentException("Invalid frame type for a stream: " + type);
+        }
+        if (length > pool.getBufferSize()) {
+            throw new IllegalArgumentException("Payload of " + length + " bytes does not fit a " + pool.getBufferSize() + " byte frame");
+        }
+
+        IOException error;
+        List<Message> failed;
+        synchronized (this) {
+            error = failure;
+            if (error == null && stream.queue.size() >= MAX_QUEUED_MESSAGES) {
+                error = new IOException("No credit from " + session.getAddress() + " on stream " + stream.getId() + " and "
+                        + MAX_QUEUED_MESSAGES + " frames waiting");
+            }
+            else if (error == null) {
+                stream.queue.add(new Message(type, payload, offset, length, callback));
+                pump();
+            }
+            failed = takeFailed();
+        }
+        complete(failed);
+
+        if (error != null) {
+            if (callback != null) {
+                callback.onComplete(error);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    synchronized int queueDepth(Stream stream) {
+        return stream.queue.size();
+    }
+
+    /**
+     * Fails everything still queued on the streams.
+     */
+    void close(IOException error) {
+        List<Message> failed;
+        synchronized (this) {
+            fail(error);
+            failed = takeFailed();
+        }
+        complete(failed);
+    }
+
+    void onCredit(byte[] data, int length) throws FrameException {
+        if (length < 5) {
+            throw new FrameException("Short stream credit from " + session.getAddress());
+        }
+        List<Message> failed;
+        synchronized (this) {
+            Stream stream = streams[data[0] & 0xFF];
+            if (stream != null) {
+                stream.credit += Frames.readInt(data, 1);
+                pump();
+            }
+            failed = takeFailed();
+        }
+        complete(failed);
+    }
+
+    /**
+     * Takes a fragment off the reader thread; the frame is released or handed on reassembled.
+     */
+    void onData(PooledBuffer frame) throws IOException {
+        byte[] data = frame.array();
+        int length = frame.length() - HEADER_LENGTH;
+        if (length < 0) {
+            frame.release();
+            throw new FrameException("Short stream fragment from " + session.getAddress());
+        }
+        int id = data[0] & 0xFF;
+        int flags = data[1];
+        int type = data[2] & 0xFF;
+        PooledBuffer target = partial[id];
+
+        if ((flags & FLAG_FIRST) != 0) {
+            if (target != null) {
+                frame.release();
+                throw new FrameException("Stream " + id + " from " + session.getAddress() + " started a frame before finishing the last");
+            }
+            if ((flags & FLAG_LAST) != 0) {
+                // a frame that fits one fragment is shifted in place, no second buffer
+                frame.fill(type, data, HEADER_LENGTH, length);
+                session.deliver(frame);
+                credit(id, length, true);
+                return;
+            }
+            if (reassembling >= MAX_REASSEMBLIES) {
+                frame.release();
+                throw new FrameException(session.getAddress() + " started frames on more than " + MAX_REASSEMBLIES + " streams at once");
+            }
+            try {
+                target = pool.acquire();
+            } catch (InterruptedException e) {
+                frame.release();
+                throw new IOException("Interrupted while reassembling stream " + id);
+            }
+            target.fill(type, data, HEADER_LENGTH, length);
+            partial[id] = target;
+            reassembling++;
+        }
+        else {
+            if (target == null) {
+                frame.release();
+                throw new FrameException("Stream " + id + " from " + session.getAddress() + " continued a frame it never started");
+            }
+            try {
+                target.append(data, HEADER_LENGTH, length);
+            } catch (FrameException e) {
+                frame.release();
+                throw e;
+            }
+        }
+        frame.release();
+
+        boolean last = (flags & FLAG_LAST) != 0;
+        if (last) {
+            partial[id] = null;
+            reassembling--;
+            session.deliver(target);
+        }
+        credit(id, length, last);
+    }
+
+    /**
+     * Gives back buffers of frames that will never be completed, once the reader has stopped.
+     */
+    void releasePartial() {
+        for (int i = 0; i < partial.length; i++) {
+            if (partial[i] != null) {
+                partial[i].release();
+                partial[i] = null;
+            }
+        }
+        reassembling = 0;
+    }
+
+    private void credit(int id, int length, boolean last) {
+        uncredited[id] += length;
+        if (uncredited[id] >= CREDIT_BATCH || (last && uncredited[id] > 0)) {
+            byte[] credit = new byte[5];
+            credit[0] = (byte) id;
+            Frames.writeInt(uncredited[id], credit, 1);
+            writer.send(Frames.TYPE_STREAM_CREDIT, credit, null);
+            uncredited[id] = 0;
+        }
+    }
+
+    private void onWritten(Fragment fragment, IOException error) {
+        Message done;
+        List<Message> failed;
+        synchronized (this) {
+            done = fragment.message;
+            fragment.message = null;
+            free.add(fragment);
+            if (error != null) {
+                // a rejected fragment leaves a hole in its frame, nothing after it on this session can be trusted
+                fail(error);
+            }
+            if (pumping) {
+                // the writer rejected a fragment from inside pump, the caller completes once it let go of the lock
+                if (done != null) {
+                    done.error = error;
+                    this.failed.add(done);
+                }
+                return;
+            }
+            pump();
+            failed = takeFailed();
+        }
+        if (done != null && done.callback != null) {
+            done.callback.onComplete(error);
+        }
+        complete(failed);
+    }
+
+    private void pump() {
+        pumping = true;
+        try {
+            while (failure == null && !free.isEmpty()) {
+                Stream stream = next();
+                if (stream == null) {
+                    return;
+                }
+
+                Message message = stream.queue.peek();
+                int length = Math.min(Math.min(fragmentSize, message.length - message.sent), stream.credit);
+                int flags = message.sent == 0 ? FLAG_FIRST : 0;
+                Fragment fragment = free.poll();
+                byte[] data = fragment.data;
+                System.arraycopy(message.payload, message.offset + message.sent, data, HEADER_LENGTH, length);
+                message.sent += length;
+                stream.credit -= length;
+                if (message.sent == message.length) {
+                    flags |= FLAG_LAST;
+                    stream.queue.poll();
+                    fragment.message = message;
+                }
+                if (flags == FLAG_FIRST) {
+                    sending++;
+                }
+                else if (flags == FLAG_LAST) {
+                    sending--;
+                }
+                data[0] = (byte) stream.getId();
+                data[1] = (byte) flags;
+                data[2] = (byte) message.type;
+
+                writer.send(Frames.TYPE_STREAM_DATA, data, 0, HEADER_LENGTH + length, fragment);
+            }
+        } finally {
+            pumping = false;
+        }
+    }
+
+    /**
+     * Highest priority stream that can send; among equals, the first after the one that went last.
+     */
+    private Stream next() {
+        int best = Integer.MIN_VALUE;
+        for (int i = 0; i < open.size(); i++) {
+            Stream stream = open.get(i);
+            if (isReady(stream) && stream.getPriority() > best) {
+                best = stream.getPriority();
+            }
+        }
+        if (best == Integer.MIN_VALUE) {
+            return null;
+        }
+
+        int count = open.size();
+        for (int i = 1; i <= count; i++) {
+            int index = (turn + i) % count;
+            Stream stream = open.get(index);
+            if (isReady(stream) && stream.getPriority() == best) {
+                turn = index;
+                return stream;
+            }
+        }
+        return null;
+    }
+
+    private boolean isReady(Stream stream) {
+        Message message = stream.queue.peek();
+        // an empty frame needs no credit
+        if (message == null || (stream.credit <= 0 && message.sent < message.length)) {
+            return false;
+        }
+        // a frame that would go out in part waits for a stream to finish its own
+        return message.sent > 0 || sending < MAX_REASSEMBLIES
+                || message.length <= Math.min(fragmentSize, stream.credit);
+    }
+
+    private void fail(IOException error) {
+        if (failure == null) {
+            failure = error;
+        }
+        for (int i = 0; i < open.size(); i++) {
+            Stream stream = open.get(i);
+            Message message;
+            while ((message = stream.queue.poll()) != null) {
+                message.error = failure;
+                failed.add(message);
+            }
+        }
+    }
+
+    private List<Message> takeFailed() {
+        if (failed.isEmpty()) {
+            return null;
+        }
+        List<Message> taken = new ArrayList<>(failed);
+        failed.clear();
+        return taken;
+    }
+
+    private static void complete(List<Message> messages) {
+        if (messages == null) {
+            return;
+        }
+        for (int i = 0; i < messages.size(); i++) {
+            Message message = messages.get(i);
+            if (message.callback != null) {
+                message.callback.onComplete(message.error);
+            }
+        }
+    }
+
+    static final class Message {
+        final int type;
+        final byte[] payload;
+        final int offset;
+        final int length;
+        final FrameWriter.Callback callback;
+        int sent;
+        IOException error;
+
+        Message(int type, byte[] payload, int offset, int length, FrameWriter.Callback callback) {
+            this.type = type;
+            this.payload = payload;
+            this.offset = offset;
+            this.length = length;
+            this.callback = callback;
+        }
+    }
+
+    /**
+     * A fragment buffer and its write callback, recycled so scheduling allocates nothing per fragment.
+     */
+    private final class Fragment implements FrameWriter.Callback {
+        final byte[] data;
+        Message message;
+
+        Fragment(int size) {
+            this.data = new byte[size];
+        }
+
+        @Override
+        public void onComplete(IOException error) {
+            onWritten(this, error);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes a UTF-8 byte stream that arrives in arbitrary pieces. A character split between two pieces is carried
+ * over and completed by the next one instead of being replaced, and decoded text is appended to a reusable buffer,
+ * so decoding allocates nothing once the buffers have grown. One instance per connection, not thread safe.
+ */
+public final class Utf8StreamDecoder {
+
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    // longest utf-8 sequence, the carry never holds a complete one
+    private static final int MAX_SEQUENCE_LENGTH = 4;
+
+    private final CharsetDecoder decoder;
+    private final CharBuffer chars;
+    private final ByteBuffer carry;
+    private final StringBuilder text;
+    private ByteBuffer input;
+
+    public Utf8StreamDecoder() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    public Utf8StreamDecoder(int bufferSize) {
+        super();
+        if (bufferSize < 2) {
+            // a supplementary character decodes to a surrogate pair, it has to fit at once
+            throw new IllegalArgumentException("Buffer must hold at least two chars: " + bufferSize);
+        }
+        this.decoder = UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.chars = CharBuffer.allocate(bufferSize);
+        this.carry = ByteBuffer.allocate(MAX_SEQUENCE_LENGTH);
+        this.text = new StringBuilder(bufferSize);
+    }
+
+    /**
+     * Appends the text in {@code data[offset, offset + length)} to {@link #text()}. Trailing bytes of an incomplete
+     * character are kept until the next call.
+     */
+    public void decode(byte[] data, int offset, int length) {
+        ByteBuffer in = wrap(data, offset, length);
+
+        // finish the character left over by the previous piece one byte at a time, it is at most three bytes short
+        while (carry.position() > 0 && in.hasRemaining()) {
+            carry.put(in.get());
+            carry.flip();
+            decode(carry, false);
+            carry.compact();
+        }
+
+        decode(in, false);
+        if (in.hasRemaining()) {
+            carry.put(in);
+        }
+    }
+
+    /**
+     * Ends the stream: an incomplete trailing character is replaced with U+FFFD. The decoder can be used for a new
+     * stream afterwards.
+     */
+    public void finish() {
+        carry.flip();
+        decode(carry, true);
+        carry.clear();
+
+        while (decoder.flush(chars).isOverflow()) {
+            drain();
+        }
+        drain();
+        decoder.reset();
+    }
+
+    /**
+     * Text decoded so far. The sequence is reused, copy it before calling {@link #clear()}.
+     */
+    public CharSequence text() {
+        return this.text;
+    }
+
+    /**
+     * Returns the text decoded so far and clears it. A partial character waiting for more bytes is kept.
+     */
+    public String take() {
+        String value = text.toString();
+        text.setLength(0);
+        return value;
+    }
+
+    public void clear() {
+        text.setLength(0);
+    }
+
+    /**
+     * Number of bytes held back waiting for the rest of their character.
+     */
+    public int pending() {
+        return carry.position();
+    }
+
+    public void reset() {
+        decoder.reset();
+        carry.clear();
+        chars.clear();
+        text.setLength(0);
+    }
+
+    private void decode(ByteBuffer source, boolean endOfInput) {
+        for (;;) {
+            CoderResult result = decoder.decode(source, chars, endOfInput);
+            drain();
+            if (!result.isOverflow()) {
+                return;
+            }
+        }
+    }
+
+    private void drain() {
+        text.append(chars.array(), 0, chars.position());
+        chars.clear();
+    }
+
+    private ByteBuffer wrap(byte[] data, int offset, int length) {
+        // pooled receive buffers come back over and over, keep the wrapper for the last one seen
+        if (input == null || input.array() != data) {
+            input = ByteBuffer.wrap(data);
+        }
+        input.clear();
+        input.position(offset);
+        input.limit(offset + length);
+        return input;
+    }
+}
@@ -0,0 +1,66 @@
+package br.com.dotofcodex.bluetooth_sample.relay;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers which sequence numbers of each source passed, in a sliding window of {@link #WINDOW} behind the highest
+ * one seen, as IPsec does against replays: a copy of a frame that already passed, or one too far behind to tell,
+ * is refused. Constant memory per source and only the sources heard from most recently are kept. Not thread safe.
+ */
+final class DuplicateFilter {
+
+    static final int WINDOW = 64;
+    static final int MAX_SOURCES = 1024;
+
+    private static final class Window {
+        private int highest;
+        // bit i set when highest - i passed
+        private long seen;
+
+        Window(int highest) {
+            this.highest = highest;
+            this.seen = 1L;
+        }
+    }
+
+    private final Map<Long, Window> sources;
+
+    DuplicateFilter() {
+        super();
+        this.sources = new LinkedHashMap<Long, Window>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Window> eldest) {
+                return size() > MAX_SOURCES;
+            }
+        };
+    }
+
+    /**
+     * {@code true} the first time the source's sequence number is offered.
+     */
+    boolean accept(long source, int sequence) {
+        Window window = sources.get(source);
+        if (window == null) {
+            sources.put(source, new Window(sequence));
+            return true;
+        }
+        // sequence numbers wrap, so only their distance counts
+        int ahead = sequence - window.highest;
+        if (ahead > 0) {
+            window.seen = ahead < WINDOW ? (window.seen << ahead) | 1L : 1L;
+            window.highest = sequence;
+            return true;
+        }
+        int behind = -ahead;
+        if (behind >= WINDOW || behind < 0) {
+            return false;
+        }
+        long bit = 1L << behind;
+        if ((window.seen & bit) != 0) {
+            return false;
+        }
+        window.seen |= bit;
+        return true;
+    }
+}
@@ -0,0 +1,560 @@
+package br.com.dotofcodex.bluetooth_sample.relay;
+
+import br.com.dotofcodex.bluetooth_sample.protocol.ChatSession;
+import br.com.dotofcodex.bluetooth_sample.protocol.FlowControl;
+import br.com.dotofcodex.bluetooth_sample.protocol.FrameException;
+import br.com.dotofcodex.bluetooth_sample.protocol.FrameWriter;
+import br.com.dotofcodex.bluetooth_sample.protocol.Frames;
+import br.com.dotofcodex.bluetooth_sample.protocol.PooledBuffer;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One node of a mesh of chat sessions, reaching nodes any number of hops away instead of only the other end of its
+ * own links. Every node has a random 64 bit id; neighbours advertise their routes to each other in ROUTE frames on
+ * connect and whenever a route changes, and a RELAY frame goes from node to node towards its destination.
+ *
+ * <pre>
+ * ROUTE | sender (long) | n (varint) | n x (node (long) | hops)
+ * RELAY | ttl | source (long) | destination (long) | sequence (int) | payload
+ * </pre>
+ *
+ * A relay does not decode what it forwards: it lowers the ttl byte in the pooled frame it read and hands that same
+ * array to the next hop's writer, releasing it once written, so a frame crosses a node without a copy. Frames whose
+ * ttl runs out are dropped, as are copies of frames that already passed, told apart by source and sequence. A
+ * frame for a neighbour that is out of reach, or that did not take it, waits in a queue of {@code parkCapacity}
+ * frames kept per next hop, the oldest dropped when it is full, and goes out once a route to its destination is
+ * back; only frames that wait are copied. Frames that waited may arrive after later ones. At most
+ * {@code maxParkedBytes} wait across all next hops, the oldest dropped first, and none longer than the hold-down
+ * time; routes unreachable for that long are forgotten too. Both are checked as frames and adverts come in.
+ *
+ * <p>{@link #attach} a session once it is started. Links stall a sender whose next hop has no room instead of
+ * dropping, so a slow hop slows the chain down; frames of other types go to {@code passthrough}.
+ */
+public final class RelayNode implements ChatSession.Listener {
+
+    public interface Listener {
+        /**
+         * A frame for this node, on the reader thread of the link it came in on. The listener owns the frame and
+         * must release it; the payload is at {@code offset}.
+         */
+        void onMessage(RelayNode node, long source, PooledBuffer frame, int offset, int length);
+    }
+
+    public static final int DEFAULT_TTL = 8;
+    public static final int DEFAULT_PARK_CAPACITY = 256;
+    public static final int DEFAULT_MAX_PARKED_BYTES = 1024 * 1024;
+    public static final long DEFAULT_HOLD_DOWN_MILLIS = 60 * 1000;
+
+    // ttl, source, destination, sequence
+    public static final int HEADER_LENGTH = 21;
+    public static final int MAX_PAYLOAD_LENGTH = Frames.DEFAULT_MAX_PAYLOAD_LENGTH - HEADER_LENGTH;
+
+    private final long id;
+    private final Listener listener;
+    private final ChatSession.Listener passthrough;
+    private final int parkCapacity;
+    private final int maxParkedBytes;
+    private final long holdDownNanos;
+    private final RouteTable routes;
+    private final DuplicateFilter filter;
+    // links whose neighbour advertised, both ways
+    private final Map<ChatSession, Long> neighbours;
+    private final Map<Long, ChatSession> links;
+    private final Map<Long, ArrayDeque<Parked>> parked;
+    private int parkedBytes;
+    private long lastExpiry;
+    private int sequence;
+    private long sent;
+    private long delivered;
+    private long forwarded;
+    private long duplicates;
+    private long expired;
+    private long unroutable;
+    private long waited;
+
+    public RelayNode(Listener listener, ChatSession.Listener passthrough) {
+        this(new Random().nextLong(), listener, passthrough, DEFAULT_PARK_CAPACITY);
+    }
+
+    public RelayNode(long id, Listener listener, ChatSession.Listener passthrough, int parkCapacity) {
+        this(id, listener, passthrough, parkCapacity, DEFAULT_MAX_PARKED_BYTES, DEFAULT_HOLD_DOWN_MILLIS);
+    }
+
+    /**
+     * @param parkCapacity frames waiting for one next hop at most
+     * @param maxParkedBytes bytes of frames waiting for any next hop at most
+     * @param holdDownMillis how long a frame waits and an unreachable route is kept
+     */
+    public RelayNode(long id, Listener listener, ChatSession.Listener passthrough, int parkCapacity, int maxParkedBytes,
+            long holdDownMillis) {
+        super();
+        if (parkCapacity < 0 || maxParkedBytes < 0) {
+            throw new IllegalArgumentException("Negative park capacity: " + parkCapacity + " frames, " + maxParkedBytes + " bytes");
+        }
+        this.id = id;
+        this.listener = listener;
+        this.passthrough = passthrough;
+        this.parkCapacity = parkCapacity;
+        this.maxParkedBytes = maxParkedBytes;
+        this.holdDownNanos = TimeUnit.MILLISECONDS.toNanos(holdDownMillis);
+        this.routes = new RouteTable(id);
+        this.filter = new DuplicateFilter();
+        this.neighbours = new HashMap<>();
+        this.links = new HashMap<>();
+        this.parked = new HashMap<>();
+        // a node that restarts must not look like a replay of its former self
+        this.sequence = new Random().nextInt();
+        this.lastExpiry = System.nanoTime();
+    }
+
+    public long getId() {
+        return this.id;
+    }
+
+    /**
+     * Makes the started session a link of this node, which must be its listener, and advertises the routes on it.
+     */
+    public void attach(ChatSession session) {
+        session.setFlowPolicy(FlowControl.POLICY_STALL, FlowControl.DEFAULT_CAPACITY, FlowControl.DEFAULT_STALL_MILLIS);
+        byte[] advert;
+        synchronized (this) {
+            Long neighbour = neighbours.get(session);
+            advert = advert(neighbour != null ? neighbour : 0L);
+        }
+        session.send(Frames.TYPE_ROUTE, advert, null);
+    }
+
+    /**
+     * Sends the payload towards {@code destination}; {@code false} when no route to it was ever heard of. A frame
+     * for a destination out of reach waits for a route.
+     */
+    public boolean send(long destination, byte[] payload, int offset, int length) {
+        if (length > MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Payload of " + length + " bytes, at most " + MAX_PAYLOAD_LENGTH);
+        }
+        byte[] frame = new byte[HEADER_LENGTH + length];
+        int next;
+        synchronized (this) {
+            next = sequence++;
+            sent++;
+        }
+        frame[0] = DEFAULT_TTL;
+        Frames.writeLong(id, frame, 1);
+        Frames.writeLong(destination, frame, 9);
+        Frames.writeInt(next, frame, 17);
+        System.arraycopy(payload, offset, frame, HEADER_LENGTH, length);
+        return forward(destination, frame, frame.length, null);
+    }
+
+    /**
+     * Hops to the destination, -1 while it is unknown or out of reach.
+     */
+    public synchronized int getHops(long destination) {
+        RouteTable.Route route = routes.get(destination);
+        return route != null && route.isReachable() ? route.getHops() : -1;
+    }
+
+    public synchronized int getNeighbourCount() {
+        return links.size();
+    }
+
+    /**
+     * Frames waiting for a next hop to come back.
+     */
+    public synchronized int getParked() {
+        int count = 0;
+        for (ArrayDeque<Parked> queue : parked.values()) {
+            count += queue.size();
+        }
+        return count;
+    }
+
+    public synchronized int getParkedBytes() {
+        return this.parkedBytes;
+    }
+
+    public synchronized long getSent() {
+        return this.sent;
+    }
+
+    public synchronized long getDelivered() {
+        return this.delivered;
+    }
+
+    public synchronized long getForwarded() {
+        return this.forwarded;
+    }
+
+    /**
+     * Copies of frames that already passed.
+     */
+    public synchronized long getDuplicates() {
+        return this.duplicates;
+    }
+
+    public synchronized long getExpired() {
+        return this.expired;
+    }
+
+    /**
+     * Frames dropped for lack of any route, or pushed out of a full park queue, or that waited too long.
+     */
+    public synchronized long getUnroutable() {
+        return this.unroutable;
+    }
+
+    /**
+     * Frames that ever had to wait for their next hop.
+     */
+    public synchronized long getWaited() {
+        return this.waited;
+    }
+
+    @Override
+    public void onFrame(ChatSession session, PooledBuffer frame) throws IOException {
+        switch (frame.type()) {
+            case Frames.TYPE_RELAY: {
+                onRelay(session, frame);
+                break;
+            }
+            case Frames.TYPE_ROUTE: {
+                try {
+                    onRoute(session, frame.array(), frame.length());
+                } finally {
+                    frame.release();
+                }
+                break;
+            }
+            default: {
+                if (passthrough != null) {
+                    passthrough.onFrame(session, frame);
+                }
+                else {
+                    frame.release();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onClosed(ChatSession session) {
+        Map<ChatSession, byte[]> adverts = null;
+        synchronized (this) {
+            Long neighbour = neighbours.remove(session);
+            if (neighbour != null && links.get(neighbour) == session) {
+                links.remove(neighbour);
+                if (routes.onNeighbourLost(neighbour, System.nanoTime())) {
+                    adverts = adverts();
+                }
+            }
+        }
+        advertise(adverts);
+        if (passthrough != null) {
+            passthrough.onClosed(session);
+        }
+    }
+
+    private void onRelay(ChatSession session, PooledBuffer frame) throws FrameException {
+        byte[] data = frame.array();
+        int length = frame.length();
+        if (length < HEADER_LENGTH) {
+            frame.release();
+            throw new FrameException("Short RELAY from " + session.getAddress());
+        }
+        int ttl = data[0] & 0xFF;
+        long source = Frames.readLong(data, 1);
+        long destination = Frames.readLong(data, 9);
+        synchronized (this) {
+            if (source == id || !filter.accept(source, Frames.readInt(data, 17))) {
+                duplicates++;
+                frame.release();
+                return;
+            }
+            if (destination == id) {
+                delivered++;
+            }
+            else if (ttl <= 1) {
+                expired++;
+                frame.release();
+                return;
+            }
+            else {
+                forwarded++;
+            }
+        }
+        if (destination == id) {
+            listener.onMessage(this, source, frame, HEADER_LENGTH, length - HEADER_LENGTH);
+            return;
+        }
+        // the only byte a relay writes
+        data[0] = (byte) (ttl - 1);
+        forward(destination, data, length, frame);
+    }
+
+    private void onRoute(ChatSession session, byte[] data, int length) throws FrameException {
+        if (length < 9) {
+            throw new FrameException("Short ROUTE from " + session.getAddress());
+        }
+        long neighbour = Frames.readLong(data, 0);
+        int position = 8;
+        int count = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (position >= length || shift > 28) {
+                throw new FrameException("Bad ROUTE from " + session.getAddress());
+            }
+            int b = data[position++] & 0xFF;
+            count |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (count < 0 || count > (length - position) / RouteTable.ENTRY_LENGTH) {
+            throw new FrameException("ROUTE of " + count + " entries past the frame from " + session.getAddress());
+        }
+
+        Map<ChatSession, byte[]> adverts = null;
+        synchronized (this) {
+            boolean joined = !Long.valueOf(neighbour).equals(neighbours.get(session));
+            if (joined) {
+                neighbours.put(session, neighbour);
+                ChatSession replaced = links.put(neighbour, session);
+                if (replaced != null && replaced != session) {
+                    neighbours.remove(replaced);
+                }
+            }
+            long now = System.nanoTime();
+            if (routes.onAdvert(neighbour, data, position, count, now) || joined) {
+                adverts = adverts();
+            }
+            expire(now);
+        }
+        advertise(adverts);
+        drainParked();
+    }
+
+    /**
+     * Hands the frame to the next hop towards the destination or parks it there. A pooled frame is released once
+     * the writer is done with it, or right away when it is copied into the park queue.
+     */
+    private boolean forward(long destination, byte[] frame, int length, PooledBuffer pooled) {
+        ChatSession link;
+        long nextHop;
+        boolean waiting;
+        synchronized (this) {
+            expire(System.nanoTime());
+            RouteTable.Route route = routes.get(destination);
+            if (route == null) {
+                unroutable++;
+                if (pooled != null) {
+                    pooled.release();
+                }
+                return false;
+            }
+            nextHop = route.getNextHop();
+            link = route.isReachable() ? links.get(nextHop) : null;
+            if (link == null) {
+                park(nextHop, frame, length, pooled);
+                return true;
+            }
+            waiting = parked.containsKey(nextHop);
+        }
+        link.send(Frames.TYPE_RELAY, frame, 0, length, new Handoff(nextHop, frame, length, pooled));
+        if (waiting) {
+            drainParked();
+        }
+        return true;
+    }
+
+    /**
+     * Called with the lock held.
+     */
+    private void park(long nextHop, byte[] frame, int length, PooledBuffer pooled) {
+        if (parkCapacity == 0 || length > maxParkedBytes) {
+            unroutable++;
+            if (pooled != null) {
+                pooled.release();
+            }
+            return;
+        }
+        byte[] copy = frame;
+        if (pooled != null) {
+            copy = new byte[length];
+            System.arraycopy(frame, 0, copy, 0, length);
+            pooled.release();
+        }
+        ArrayDeque<Parked> queue = parked.get(nextHop);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            parked.put(nextHop, queue);
+        }
+        if (queue.size() >= parkCapacity) {
+            parkedBytes -= queue.pollFirst().frame.length;
+            unroutable++;
+        }
+        while (parkedBytes + length > maxParkedBytes) {
+            dropOldest();
+        }
+        queue.addLast(new Parked(copy, System.nanoTime()));
+        parkedBytes += length;
+        waited++;
+    }
+
+    /**
+     * Drops the frame that waited longest for any next hop. Called with the lock held and something parked.
+     */
+    private void dropOldest() {
+        ArrayDeque<Parked> oldest = null;
+        for (ArrayDeque<Parked> queue : parked.values()) {
+            if (!queue.isEmpty() && (oldest == null || queue.peekFirst().since - oldest.peekFirst().since < 0)) {
+                oldest = queue;
+            }
+        }
+        parkedBytes -= oldest.pollFirst().frame.length;
+        unroutable++;
+    }
+
+    /**
+     * Drops the frames that waited past the hold-down time and forgets the routes unreachable as long, at most a
+     * few times per hold-down.
+     */
+    synchronized void expire(long now) {
+        if (now - lastExpiry < holdDownNanos / 4) {
+            return;
+        }
+        lastExpiry = now;
+        routes.expire(holdDownNanos, now);
+        Iterator<ArrayDeque<Parked>> queues = parked.values().iterator();
+        while (queues.hasNext()) {
+            ArrayDeque<Parked> queue = queues.next();
+            // oldest first in every queue
+            while (!queue.isEmpty() && now - queue.peekFirst().since >= holdDownNanos) {
+                parkedBytes -= queue.pollFirst().frame.length;
+                unroutable++;
+            }
+            if (queue.isEmpty()) {
+                queues.remove();
+            }
+        }
+    }
+
+    /**
+     * Sends the parked frames whose destination has a link again.
+     */
+    private void drainParked() {
+        List<Object[]> ready = null;
+        synchronized (this) {
+            Iterator<ArrayDeque<Parked>> queues = parked.values().iterator();
+            while (queues.hasNext()) {
+                ArrayDeque<Parked> queue = queues.next();
+                Iterator<Parked> frames = queue.iterator();
+                while (frames.hasNext()) {
+                    byte[] frame = frames.next().frame;
+                    RouteTable.Route route = routes.get(Frames.readLong(frame, 9));
+                    ChatSession link = route != null && route.isReachable() ? links.get(route.getNextHop()) : null;
+                    if (link != null) {
+                        frames.remove();
+                        parkedBytes -= frame.length;
+                        if (ready == null) {
+                            ready = new ArrayList<>();
+                        }
+                        ready.add(new Object[] { link, route.getNextHop(), frame });
+                    }
+                }
+                if (queue.isEmpty()) {
+                    queues.remove();
+                }
+            }
+        }
+        if (ready == null) {
+            return;
+        }
+        for (Object[] next : ready) {
+            byte[] frame = (byte[]) next[2];
+            ((ChatSession) next[0]).send(Frames.TYPE_RELAY, frame, 0, frame.length,
+                    new Handoff((Long) next[1], frame, frame.length, null));
+        }
+    }
+
+    /**
+     * Adverts for every link, each with the routes through that link's neighbour poisoned. Called with the lock held.
+     */
+    private Map<ChatSession, byte[]> adverts() {
+        Map<ChatSession, byte[]> adverts = new HashMap<>();
+        for (Map.Entry<Long, ChatSession> link : links.entrySet()) {
+            adverts.put(link.getValue(), advert(link.getKey()));
+        }
+        return adverts;
+    }
+
+    private byte[] advert(long neighbour) {
+        int count = routes.size() + 1;
+        byte[] advert = new byte[8 + Frames.varintLength(count) + routes.advertLength()];
+        Frames.writeLong(id, advert, 0);
+        int offset = Frames.writeVarint(count, advert, 8);
+        routes.advert(neighbour, advert, offset);
+        return advert;
+    }
+
+    private static void advertise(Map<ChatSession, byte[]> adverts) {
+        if (adverts == null) {
+            return;
+        }
+        for (Map.Entry<ChatSession, byte[]> advert : adverts.entrySet()) {
+            advert.getKey().send(Frames.TYPE_ROUTE, advert.getValue(), null);
+        }
+    }
+
+    private static final class Parked {
+        private final byte[] frame;
+        private final long since;
+
+        Parked(byte[] frame, long since) {
+            this.frame = frame;
+            this.since = since;
+        }
+    }
+
+    /**
+     * Releases the pooled frame once written, parks a copy when the next hop did not take it.
+     */
+    private final class Handoff implements FrameWriter.Callback {
+        private final long nextHop;
+        private final byte[] frame;
+        private final int length;
+        private final PooledBuffer pooled;
+
+        Handoff(long nextHop, byte[] frame, int length, PooledBuffer pooled) {
+            this.nextHop = nextHop;
+            this.frame = frame;
+            this.length = length;
+            this.pooled = pooled;
+        }
+
+        @Override
+        public void onComplete(IOException error) {
+            if (error == null) {
+                if (pooled != null) {
+                    pooled.release();
+                }
+                return;
+            }
+            synchronized (RelayNode.this) {
+                park(nextHop, frame, length, pooled);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RelayNode[%016x]", id);
+    }
+}
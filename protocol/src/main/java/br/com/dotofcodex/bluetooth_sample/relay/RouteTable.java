@@ -0,0 +1,193 @@
+package br.com.dotofcodex.bluetooth_sample.relay;
+
+import br.com.dotofcodex.bluetooth_sample.protocol.Frames;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Distance vector routes of one node: for every node heard of, the neighbour to hand its frames to and how many
+ * hops away it is. Each neighbour advertises its whole table; a route follows the neighbour that advertised the
+ * fewest hops, and a route through a neighbour that stopped advertising a destination, or went away, becomes
+ * unreachable at {@link #INFINITY} but keeps its next hop, so frames for it can wait there. A route unreachable for
+ * longer than the hold-down time is forgotten, and when the table is full the one unreachable longest makes room:
+ * ids are random on every start, so the nodes that went away would otherwise fill it for good. Routes learned from
+ * a neighbour are advertised back to it as unreachable, which keeps two nodes from counting to infinity between
+ * them. Not thread safe, {@link RelayNode} holds its lock.
+ */
+final class RouteTable {
+
+    // hops meaning unreachable, also the longest path a route may have
+    static final int INFINITY = 16;
+    // destinations kept at most, an advert has to fit one frame
+    static final int MAX_ROUTES = 1024;
+
+    // node id and hop count
+    static final int ENTRY_LENGTH = 9;
+
+    static final class Route {
+        private final long destination;
+        private long nextHop;
+        private int hops;
+        private long advert;
+        // System.nanoTime() when it became unreachable
+        private long lostAt;
+
+        Route(long destination, long nextHop, int hops) {
+            this.destination = destination;
+            this.nextHop = nextHop;
+            this.hops = hops;
+        }
+
+        long getDestination() {
+            return this.destination;
+        }
+
+        long getNextHop() {
+            return this.nextHop;
+        }
+
+        int getHops() {
+            return this.hops;
+        }
+
+        boolean isReachable() {
+            return hops < INFINITY;
+        }
+    }
+
+    private final long self;
+    private final Map<Long, Route> routes;
+    private long adverts;
+
+    RouteTable(long self) {
+        super();
+        this.self = self;
+        this.routes = new HashMap<>();
+    }
+
+    Route get(long destination) {
+        return routes.get(destination);
+    }
+
+    int size() {
+        return routes.size();
+    }
+
+    /**
+     * Applies the neighbour's advert of {@code count} entries at {@code offset}; {@code true} when a route changed.
+     */
+    boolean onAdvert(long neighbour, byte[] advert, int offset, int count, long now) {
+        long stamp = ++adverts;
+        boolean changed = false;
+        for (int i = 0; i < count; i++, offset += ENTRY_LENGTH) {
+            long destination = Frames.readLong(advert, offset);
+            if (destination == self) {
+                continue;
+            }
+            int hops = Math.min(advert[offset + 8] & 0xFF, INFINITY - 1) + 1;
+            Route route = routes.get(destination);
+            if (route == null) {
+                if (hops < INFINITY && (routes.size() < MAX_ROUTES || evictLongestLost())) {
+                    route = new Route(destination, neighbour, hops);
+                    routes.put(destination, route);
+                    changed = true;
+                }
+            }
+            else if (route.nextHop == neighbour) {
+                changed |= route.hops != hops;
+                setHops(route, hops, now);
+            }
+            else if (hops < route.hops) {
+                route.nextHop = neighbour;
+                setHops(route, hops, now);
+                changed = true;
+            }
+            if (route != null && route.nextHop == neighbour) {
+                route.advert = stamp;
+            }
+        }
+        // whatever the neighbour no longer lists it cannot reach
+        for (Route route : routes.values()) {
+            if (route.nextHop == neighbour && route.advert != stamp && route.isReachable()) {
+                setHops(route, INFINITY, now);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * The link to the neighbour is gone, everything behind it is unreachable until some advert says otherwise.
+     */
+    boolean onNeighbourLost(long neighbour, long now) {
+        boolean changed = false;
+        for (Route route : routes.values()) {
+            if (route.nextHop == neighbour && route.isReachable()) {
+                setHops(route, INFINITY, now);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Forgets the routes unreachable for at least {@code holdDownNanos}; returns how many.
+     */
+    int expire(long holdDownNanos, long now) {
+        int removed = 0;
+        Iterator<Route> iterator = routes.values().iterator();
+        while (iterator.hasNext()) {
+            Route route = iterator.next();
+            if (!route.isReachable() && now - route.lostAt >= holdDownNanos) {
+                iterator.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private boolean evictLongestLost() {
+        Route oldest = null;
+        for (Route route : routes.values()) {
+            if (!route.isReachable() && (oldest == null || route.lostAt - oldest.lostAt < 0)) {
+                oldest = route;
+            }
+        }
+        if (oldest == null) {
+            return false;
+        }
+        routes.remove(oldest.destination);
+        return true;
+    }
+
+    private static void setHops(Route route, int hops, long now) {
+        if (hops >= INFINITY && route.isReachable()) {
+            route.lostAt = now;
+        }
+        route.hops = hops;
+    }
+
+    /**
+     * Advert for {@code neighbour}: this node at 0 hops, then every route, those through the neighbour itself as
+     * unreachable. Returns the count of entries written from {@code offset}.
+     */
+    int advert(long neighbour, byte[] out, int offset) {
+        Frames.writeLong(self, out, offset);
+        out[offset + 8] = 0;
+        int count = 1;
+        offset += ENTRY_LENGTH;
+        for (Route route : routes.values()) {
+            Frames.writeLong(route.destination, out, offset);
+            out[offset + 8] = (byte) (route.nextHop == neighbour ? INFINITY : route.hops);
+            offset += ENTRY_LENGTH;
+            count++;
+        }
+        return count;
+    }
+
+    int advertLength() {
+        return (routes.size() + 1) * ENTRY_LENGTH;
+    }
+}
@@ -0,0 +1,57 @@
+package br.com.dotofcodex.bluetooth_sample.resume;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with full jitter: attempt {@code n} waits a random time between zero and
+ * {@code min(max, initial * 2^n)}, so peers that lost the same link do not all redial at once.
+ */
+public final class Backoff {
+
+    public static final long DEFAULT_INITIAL_MILLIS = 100;
+    public static final long DEFAULT_MAX_MILLIS = 10000;
+
+    // past this the cap is reached anyway, and the shift would overflow
+    private static final int MAX_SHIFT = 30;
+
+    private final long initialMillis;
+    private final long maxMillis;
+    private final Random random;
+    private int attempt;
+
+    public Backoff() {
+        this(DEFAULT_INITIAL_MILLIS, DEFAULT_MAX_MILLIS, new Random());
+    }
+
+    public Backoff(long initialMillis, long maxMillis, Random random) {
+        super();
+        if (initialMillis <= 0 || maxMillis < initialMillis) {
+            throw new IllegalArgumentException("Invalid backoff: " + initialMillis + " to " + maxMillis + " ms");
+        }
+        this.initialMillis = initialMillis;
+        this.maxMillis = maxMillis;
+        this.random = random;
+    }
+
+    public int getAttempt() {
+        return this.attempt;
+    }
+
+    /**
+     * Delay before the next attempt, in milliseconds.
+     */
+    public long next() {
+        long cap = Math.min(maxMillis, initialMillis << Math.min(attempt, MAX_SHIFT));
+        if (attempt < MAX_SHIFT) {
+            attempt++;
+        }
+        return (long) (random.nextDouble() * cap);
+    }
+
+    /**
+     * Starts over from the initial delay, once a connection held up.
+     */
+    public void reset() {
+        attempt = 0;
+    }
+}
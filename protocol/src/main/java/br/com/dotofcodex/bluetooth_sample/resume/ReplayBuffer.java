@@ -0,0 +1,97 @@
+package br.com.dotofcodex.bluetooth_sample.resume;
+
+/**
+ * Sequenced frames the peer has not acknowledged yet, in a ring indexed by sequence and bounded by their total
+ * size. Not thread safe, {@link ResumableSession} guards it.
+ */
+final class ReplayBuffer {
+
+    private static final int INITIAL_SLOTS = 64;
+
+    private final int capacity;
+    private byte[][] frames;
+    private int head;
+    private int count;
+    private long first;
+    private int bytes;
+
+    ReplayBuffer(int capacity) {
+        super();
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid replay capacity: " + capacity);
+        }
+        this.capacity = capacity;
+        this.frames = new byte[INITIAL_SLOTS][];
+    }
+
+    int getCapacity() {
+        return this.capacity;
+    }
+
+    int getBytes() {
+        return this.bytes;
+    }
+
+    int size() {
+        return this.count;
+    }
+
+    /**
+     * Sequence of the oldest frame kept, or the next one to be offered when empty.
+     */
+    long getFirstSequence() {
+        return this.first;
+    }
+
+    /**
+     * Keeps the frame until {@link #acknowledge(long)} passes it; {@code false} when it does not fit. Sequences
+     * follow each other without gaps.
+     */
+    boolean offer(long sequence, byte[] frame) {
+        if (sequence != first + count) {
+            throw new IllegalArgumentException("Expected sequence " + (first + count) + ", got " + sequence);
+        }
+        if (bytes + frame.length > capacity) {
+            return false;
+        }
+        if (count == frames.length) {
+            grow();
+        }
+        frames[(head + count) & (frames.length - 1)] = frame;
+        count++;
+        bytes += frame.length;
+        return true;
+    }
+
+    byte[] get(long sequence) {
+        if (sequence < first || sequence >= first + count) {
+            throw new IllegalArgumentException("Sequence " + sequence + " is not kept");
+        }
+        return frames[(head + (int) (sequence - first)) & (frames.length - 1)];
+    }
+
+    /**
+     * Drops every frame before {@code next}, the first sequence the peer has not received.
+     */
+    void acknowledge(long next) {
+        while (count > 0 && first < next) {
+            bytes -= frames[head].length;
+            frames[head] = null;
+            head = (head + 1) & (frames.length - 1);
+            count--;
+            first++;
+        }
+        if (count == 0 && first < next) {
+            first = next;
+        }
+    }
+
+    private void grow() {
+        byte[][] larger = new byte[frames.length * 2][];
+        for (int i = 0; i < count; i++) {
+            larger[i] = frames[(head + i) & (frames.length - 1)];
+        }
+        frames = larger;
+        head = 0;
+    }
+}
@@ -0,0 +1,447 @@
+package br.com.dotofcodex.bluetooth_sample.resume;
+
+import br.com.dotofcodex.bluetooth_sample.protocol.ChatSession;
+import br.com.dotofcodex.bluetooth_sample.protocol.FrameException;
+import br.com.dotofcodex.bluetooth_sample.protocol.FrameWriter;
+import br.com.dotofcodex.bluetooth_sample.protocol.Frames;
+import br.com.dotofcodex.bluetooth_sample.protocol.PooledBuffer;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+
+/**
+ * A conversation with one peer that outlives its connections. Frames sent here are numbered and kept in a
+ * {@link ReplayBuffer} until the peer acknowledges them; each new {@link ChatSession} opens with a RESUME carrying
+ * the session id and the next sequence expected, and each side sends again only what the other is missing.
+ *
+ * <pre>
+ * RESUME         | session id (long) | next sequence expected (long) |
+ * SEQUENCED      | sequence (long)   | frame type | payload          |
+ * SEQUENCE_ACK   | next sequence expected (long)                     |
+ * </pre>
+ *
+ * At most {@link #MAX_IN_FLIGHT} sequenced frames sit in the connection's writer at a time, the rest wait in the
+ * replay buffer, so a burst never overflows the writer's queue. Frames of any other type on the connection go to the
+ * passthrough listener unchanged, they are not replayed.
+ */
+public final class ResumableSession implements ChatSession.Listener {
+
+    public interface Listener {
+        /**
+         * Runs on the reader thread, in order and once per frame however often the link dropped. The listener owns
+         * the frame and must release it.
+         */
+        void onFrame(ResumableSession session, PooledBuffer frame) throws IOException;
+
+        /**
+         * Both ends exchanged RESUME on a new connection; {@code replayed} frames lost with the last one went out again.
+         */
+        void onResumed(ResumableSession session, int replayed);
+
+        void onSuspended(ResumableSession session);
+
+        /**
+         * The session was closed, by its owner or because its peer will not resume it; called once.
+         */
+        void onClosed(ResumableSession session);
+    }
+
+    public static final int DEFAULT_REPLAY_CAPACITY = 256 * 1024;
+
+    static final int RESUME_LENGTH = 16;
+    // sequence and frame type ahead of the payload
+    static final int HEADER_LENGTH = 9;
+    static final int ACK_EVERY = 16;
+    static final int MAX_IN_FLIGHT = 64;
+
+    private final long id;
+    private final Listener listener;
+    private final ChatSession.Listener passthrough;
+    private final ReplayBuffer replay;
+    private final Object delivery;
+
+    // guarded by this
+    private ChatSession current;
+    private String address;
+    private Written written;
+    private boolean resumed;
+    private boolean closed;
+    private boolean pumping;
+    private long nextSequence;
+    // next sequence to hand to the current connection's writer, and how many it holds
+    private long transmitted;
+    private int inFlight;
+    // sequences below this went out on some connection, anything sent again counts as retransmitted
+    private long sentEver;
+    private long suspendedAt;
+    private long lastRecoveryNanos;
+    private int resumptions;
+    private long retransmittedBytes;
+    private long retransmittedFrames;
+
+    // written by the reader thread under delivery
+    private volatile long received;
+    private int unacknowledged;
+
+    public ResumableSession(Listener listener, ChatSession.Listener passthrough) {
+        this(new SecureRandom().nextLong(), listener, passthrough, DEFAULT_REPLAY_CAPACITY);
+    }
+
+    /**
+     * @param passthrough gets frames that are not part of the session and every connection's close, may be {@code null}
+     * @param replayCapacity bytes of unacknowledged frames kept for replay, sends fail beyond that
+     */
+    public ResumableSession(long id, Listener listener, ChatSession.Listener passthrough, int replayCapacity) {
+        super();
+        this.id = id;
+        this.listener = listener;
+        this.passthrough = passthrough;
+        this.replay = new ReplayBuffer(replayCapacity);
+        this.delivery = new Object();
+    }
+
+    public long getId() {
+        return this.id;
+    }
+
+    /**
+     * The peer's address, as given by the first connection that carried the session or the dialler; it stays the
+     * same while the session is suspended. {@code null} before either.
+     */
+    public synchronized String getAddress() {
+        return this.address;
+    }
+
+    /**
+     * For a dialling side, which knows the peer's address before it ever connects.
+     */
+    synchronized void setAddress(String address) {
+        if (this.address == null) {
+            this.address = address;
+        }
+    }
+
+    /**
+     * The connection currently carrying the session, {@code null} while suspended.
+     */
+    public synchronized ChatSession getSession() {
+        return this.current;
+    }
+
+    public synchronized boolean isResumed() {
+        return this.resumed;
+    }
+
+    /**
+     * Whether the session lost its connection at least {@code nanos} before {@code now} and got none since.
+     */
+    synchronized boolean isSuspendedFor(long nanos, long now) {
+        return current == null && suspendedAt != 0 && now - suspendedAt >= nanos;
+    }
+
+    public synchronized int getResumptions() {
+        return this.resumptions;
+    }
+
+    /**
+     * From losing the last connection to having resumed on the next one, in nanoseconds.
+     */
+    public synchronized long getLastRecoveryNanos() {
+        return this.lastRecoveryNanos;
+    }
+
+    public synchronized long getRetransmittedBytes() {
+        return this.retransmittedBytes;
+    }
+
+    public synchronized long getRetransmittedFrames() {
+        return this.retransmittedFrames;
+    }
+
+    /**
+     * Bytes waiting for the peer's acknowledgement.
+     */
+    public synchronized int getPendingBytes() {
+        return replay.getBytes();
+    }
+
+    public boolean send(int type, byte[] payload) {
+        return send(type, payload, 0, payload.length);
+    }
+
+    /**
+     * Copies and numbers the frame; it goes out as soon as the session is resumed and the writer has room.
+     * Returns {@code false} when the replay buffer is full or the session was closed.
+     */
+    public boolean send(int type, byte[] payload, int offset, int length) {
+        if (type < 0 || type > 0xFF) {
+            throw new IllegalArgumentException("Invalid frame type: " + type);
+        }
+        byte[] frame = new byte[HEADER_LENGTH + length];
+        frame[8] = (byte) type;
+        System.arraycopy(payload, offset, frame, HEADER_LENGTH, length);
+
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            long sequence = nextSequence;
+            Frames.writeLong(sequence, frame, 0);
+            if (!replay.offer(sequence, frame)) {
+                return false;
+            }
+            nextSequence++;
+            pump();
+        }
+        return true;
+    }
+
+    /**
+     * Moves the session onto a started connection and offers to resume. An older connection still attached is
+     * closed.
+     */
+    public void attach(ChatSession session) {
+        ChatSession previous;
+        synchronized (this) {
+            if (session == current) {
+                return;
+            }
+            if (closed) {
+                previous = session;
+            }
+            else {
+                previous = current;
+                current = session;
+                if (address == null) {
+                    address = session.getAddress();
+                }
+                written = new Written();
+                resumed = false;
+            }
+        }
+        if (previous != null) {
+            previous.close();
+        }
+        if (previous == session) {
+            return;
+        }
+
+        byte[] resume = new byte[RESUME_LENGTH];
+        Frames.writeLong(id, resume, 0);
+        Frames.writeLong(received, resume, 8);
+        session.send(Frames.TYPE_RESUME, resume, null);
+    }
+
+    /**
+     * Closes the connection and stops for good; frames not acknowledged yet are lost.
+     */
+    public void close() {
+        ChatSession session;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            session = current;
+        }
+        if (session != null) {
+            session.close();
+        }
+        listener.onClosed(this);
+    }
+
+    @Override
+    public void onFrame(ChatSession session, PooledBuffer frame) throws IOException {
+        switch (frame.type()) {
+            case Frames.TYPE_SEQUENCED: {
+                deliver(session, frame);
+                break;
+            }
+            case Frames.TYPE_SEQUENCE_ACK: {
+                try {
+                    if (frame.length() < 8) {
+                        throw new FrameException("Short sequence ack from " + session.getAddress());
+                    }
+                    synchronized (this) {
+                        if (session == current) {
+                            replay.acknowledge(Math.min(Frames.readLong(frame.array(), 0), transmitted));
+                            pump();
+                        }
+                    }
+                } finally {
+                    frame.release();
+                }
+                break;
+            }
+            case Frames.TYPE_RESUME: {
+                try {
+                    onResume(session, frame.array(), frame.length());
+                } finally {
+                    frame.release();
+                }
+                break;
+            }
+            default: {
+                if (passthrough != null) {
+                    passthrough.onFrame(session, frame);
+                }
+                else {
+                    frame.release();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onClosed(ChatSession session) {
+        boolean suspended = false;
+        synchronized (this) {
+            if (session == current) {
+                current = null;
+                resumed = false;
+                suspendedAt = System.nanoTime();
+                suspended = true;
+            }
+        }
+        if (passthrough != null) {
+            passthrough.onClosed(session);
+        }
+        if (suspended) {
+            listener.onSuspended(this);
+        }
+    }
+
+    private void onResume(ChatSession session, byte[] data, int length) throws FrameException {
+        if (length < RESUME_LENGTH) {
+            throw new FrameException("Short RESUME from " + session.getAddress());
+        }
+        if (Frames.readLong(data, 0) != id) {
+            throw new FrameException("RESUME from " + session.getAddress() + " names another session");
+        }
+        long next = Frames.readLong(data, 8);
+
+        int replayed = 0;
+        synchronized (this) {
+            if (session != current || resumed) {
+                return;
+            }
+            if (next > nextSequence) {
+                throw new FrameException(session.getAddress() + " expects sequence " + next + " that was never sent");
+            }
+
+            if (next < replay.getFirstSequence()) {
+                throw new FrameException(session.getAddress() + " expects sequence " + next + " that it acknowledged before");
+            }
+
+            // everything before the peer's next sequence arrived, the rest goes out again in order
+            replay.acknowledge(next);
+            replayed = (int) Math.max(0, sentEver - next);
+            transmitted = next;
+            inFlight = 0;
+            resumed = true;
+            resumptions++;
+            if (suspendedAt != 0) {
+                lastRecoveryNanos = System.nanoTime() - suspendedAt;
+                suspendedAt = 0;
+            }
+            pump();
+        }
+        listener.onResumed(this, replayed);
+    }
+
+    /**
+     * Hands frames to the current writer up to {@link #MAX_IN_FLIGHT}. Called with the lock held.
+     */
+    private void pump() {
+        if (pumping) {
+            // a rejected send completes its callback right away, inside this loop
+            return;
+        }
+        pumping = true;
+        try {
+            while (resumed && inFlight < MAX_IN_FLIGHT && transmitted < nextSequence) {
+                byte[] frame = replay.get(transmitted);
+                inFlight++;
+                if (!current.send(Frames.TYPE_SEQUENCED, frame, written)) {
+                    // the writer is full of other frames or failing; a completion or the next resume picks up here
+                    return;
+                }
+                if (transmitted < sentEver) {
+                    retransmittedBytes += frame.length;
+                    retransmittedFrames++;
+                }
+                transmitted++;
+                if (transmitted > sentEver) {
+                    sentEver = transmitted;
+                }
+            }
+        } finally {
+            pumping = false;
+        }
+    }
+
+    private synchronized void onWritten(Written source, IOException error) {
+        if (source != written) {
+            // a connection that has been replaced failing what it still held
+            return;
+        }
+        inFlight--;
+        if (error == null) {
+            pump();
+        }
+    }
+
+    private void deliver(ChatSession session, PooledBuffer frame) throws IOException {
+        // one reader at a time, an old connection's reader may still be finishing while the new one starts
+        synchronized (delivery) {
+            synchronized (this) {
+                if (session != current) {
+                    frame.release();
+                    return;
+                }
+            }
+            byte[] data = frame.array();
+            if (frame.length() < HEADER_LENGTH) {
+                frame.release();
+                throw new FrameException("Short sequenced frame from " + session.getAddress());
+            }
+            long sequence = Frames.readLong(data, 0);
+            if (sequence < received) {
+                // delivered before the link dropped, the peer had not seen the acknowledgement
+                frame.release();
+                return;
+            }
+            if (sequence > received) {
+                frame.release();
+                throw new FrameException("Sequence gap from " + session.getAddress() + ": expected " + received + ", got " + sequence);
+            }
+            received = sequence + 1;
+
+            frame.fill(data[8] & 0xFF, data, HEADER_LENGTH, frame.length() - HEADER_LENGTH);
+            listener.onFrame(this, frame);
+
+            if (++unacknowledged >= ACK_EVERY) {
+                byte[] ack = new byte[8];
+                Frames.writeLong(received, ack, 0);
+                session.send(Frames.TYPE_SEQUENCE_ACK, ack, null);
+                unacknowledged = 0;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ResumableSession[" + Long.toHexString(id) + "]";
+    }
+
+    /**
+     * Write completions of one connection.
+     */
+    private final class Written implements FrameWriter.Callback {
+
+        @Override
+        public void onComplete(IOException error) {
+            onWritten(this, error);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package br.com.dotofcodex.bluetooth_sample.resume;
+
+import br.com.dotofcodex.bluetooth_sample.protocol.ChatSession;
+import br.com.dotofcodex.bluetooth_sample.protocol.FrameException;
+import br.com.dotofcodex.bluetooth_sample.protocol.Frames;
+import br.com.dotofcodex.bluetooth_sample.protocol.PooledBuffer;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accepting side of {@link ResumableSession}s, used as the session listener of a
+ * {@link br.com.dotofcodex.bluetooth_sample.protocol.ChatServer}. A connection belongs to no session until its first
+ * RESUME, which either picks up the session with that id or starts a new one.
+ *
+ * <p>A session suspended for longer than the resume window is closed and forgotten, and so is any session of a peer
+ * that starts a new one: it gave up on the old id and would never resume it.
+ */
+public final class ResumeAcceptor implements ChatSession.Listener {
+
+    public static final long DEFAULT_RESUME_WINDOW_MILLIS = 5 * 60 * 1000;
+
+    private final ResumableSession.Listener listener;
+    private final ChatSession.Listener passthrough;
+    private final int replayCapacity;
+    private final long resumeWindowNanos;
+    private final ConcurrentHashMap<Long, ResumableSession> sessions;
+    private final ConcurrentHashMap<ChatSession, ResumableSession> attached;
+
+    public ResumeAcceptor(ResumableSession.Listener listener, ChatSession.Listener passthrough) {
+        this(listener, passthrough, ResumableSession.DEFAULT_REPLAY_CAPACITY, DEFAULT_RESUME_WINDOW_MILLIS);
+    }
+
+    public ResumeAcceptor(ResumableSession.Listener listener, ChatSession.Listener passthrough, int replayCapacity) {
+        this(listener, passthrough, replayCapacity, DEFAULT_RESUME_WINDOW_MILLIS);
+    }
+
+    /**
+     * @param resumeWindowMillis how long a suspended session waits for its peer to resume it
+     */
+    public ResumeAcceptor(ResumableSession.Listener listener, ChatSession.Listener passthrough, int replayCapacity,
+            long resumeWindowMillis) {
+        super();
+        this.listener = listener;
+        this.passthrough = passthrough;
+        this.replayCapacity = replayCapacity;
+        this.resumeWindowNanos = TimeUnit.MILLISECONDS.toNanos(resumeWindowMillis);
+        this.sessions = new ConcurrentHashMap<>();
+        this.attached = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * The sessions still within their resume window.
+     */
+    public Collection<ResumableSession> getSessions() {
+        evict(null);
+        return Collections.unmodifiableCollection(sessions.values());
+    }
+
+    /**
+     * Closes the session and forgets it, a later RESUME with its id starts from scratch.
+     */
+    public void remove(ResumableSession session) {
+        sessions.remove(session.getId(), session);
+        session.close();
+    }
+
+    /**
+     * Forgets the sessions suspended past the resume window and, when a session was just created, the others of
+     * the same peer.
+     */
+    private void evict(ResumableSession created) {
+        String address = created != null ? created.getAddress() : null;
+        long now = System.nanoTime();
+        for (ResumableSession session : sessions.values()) {
+            if (session == created) {
+                continue;
+            }
+            boolean replaced = address != null && address.equals(session.getAddress());
+            if (replaced || session.isSuspendedFor(resumeWindowNanos, now)) {
+                remove(session);
+            }
+        }
+    }
+
+    public void closeAll() {
+        for (ResumableSession session : sessions.values()) {
+            remove(session);
+        }
+    }
+
+    @Override
+    public void onFrame(ChatSession session, PooledBuffer frame) throws IOException {
+        ResumableSession resumable = attached.get(session);
+        if (resumable == null && frame.type() == Frames.TYPE_RESUME) {
+            if (frame.length() < ResumableSession.RESUME_LENGTH) {
+                frame.release();
+                throw new FrameException("Short RESUME from " + session.getAddress());
+            }
+            long id = Frames.readLong(frame.array(), 0);
+            resumable = sessions.get(id);
+            ResumableSession created = null;
+            if (resumable == null) {
+                created = new ResumableSession(id, listener, passthrough, replayCapacity);
+                resumable = sessions.putIfAbsent(id, created);
+                if (resumable == null) {
+                    resumable = created;
+                }
+                else {
+                    created = null;
+                }
+            }
+            if (created != null) {
+                // before the RESUME answer, the peer already counts on the new session once it has it
+                created.setAddress(session.getAddress());
+                evict(created);
+            }
+            attached.put(session, resumable);
+            resumable.attach(session);
+        }
+
+        if (resumable != null) {
+            resumable.onFrame(session, frame);
+        }
+        else if (passthrough != null) {
+            passthrough.onFrame(session, frame);
+        }
+        else {
+            frame.release();
+        }
+    }
+
+    @Override
+    public void onClosed(ChatSession session) {
+        ResumableSession resumable = attached.remove(session);
+        if (resumable != null) {
+            resumable.onClosed(session);
+        }
+        else if (passthrough != null) {
+            passthrough.onClosed(session);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package br.com.dotofcodex.bluetooth_sample.resume;
+
+import br.com.dotofcodex.bluetooth_sample.metrics.Metrics;
+import br.com.dotofcodex.bluetooth_sample.protocol.ChatSession;
+import br.com.dotofcodex.bluetooth_sample.protocol.ConnectionListener;
+import br.com.dotofcodex.bluetooth_sample.protocol.ConnectionTask;
+import br.com.dotofcodex.bluetooth_sample.protocol.PooledBuffer;
+import br.com.dotofcodex.bluetooth_sample.protocol.SessionRegistry;
+import br.com.dotofcodex.bluetooth_sample.transport.Connector;
+import br.com.dotofcodex.bluetooth_sample.transport.Transport;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dials one peer and keeps a {@link ResumableSession} on it: whenever the connection fails or drops it dials again
+ * after a {@link Backoff} delay, until {@link #cancel()}. Each connection is registered like a plain
+ * {@link br.com.dotofcodex.bluetooth_sample.protocol.ChatClient} would, but the listener hears of it once the session
+ * is started and RESUME is queued.
+ */
+public class ResumingClient extends ConnectionTask {
+
+    private final Connector connector;
+    private final SessionRegistry registry;
+    private final ResumableSession session;
+    private final ConnectionListener listener;
+    private final Backoff backoff;
+    private volatile boolean closed;
+    // the connection being waited on, cancel ends the wait
+    private volatile Connection current;
+
+    public ResumingClient(Connector connector, SessionRegistry registry, ResumableSession session, ConnectionListener listener) {
+        this(connector, registry, session, listener, new Backoff());
+    }
+
+    public ResumingClient(Connector connector, SessionRegistry registry, ResumableSession session, ConnectionListener listener, Backoff backoff) {
+        super("ResumingClient-" + connector.getRemoteAddress());
+        this.connector = connector;
+        this.registry = registry;
+        this.session = session;
+        this.listener = listener;
+        this.backoff = backoff;
+        session.setAddress(connector.getRemoteAddress());
+    }
+
+    public ResumableSession getSession() {
+        return this.session;
+    }
+
+    @Override
+    protected void work() {
+        boolean connectedBefore = false;
+        while (!closed) {
+            listener.onConnecting();
+
+            ChatSession chat;
+            Connection connection = new Connection();
+            long start = System.nanoTime();
+            try {
+                Transport transport = connector.connect();
+                Metrics metrics = registry.getMetrics();
+                if (metrics != null) {
+                    metrics.onConnect(System.nanoTime() - start);
+                    if (connectedBefore) {
+                        metrics.onReconnect();
+                    }
+                }
+                try {
+                    chat = new ChatSession(transport, connection);
+                } catch (IOException e) {
+                    try {
+                        transport.close();
+                    } catch (IOException ignored) {  }
+                    throw e;
+                }
+            } catch (IOException e) {
+                if (closed) {
+                    break;
+                }
+                listener.onConnectionFailed(e);
+                pause();
+                continue;
+            }
+
+            connectedBefore = true;
+            int resumptions = session.getResumptions();
+            current = connection;
+            if (closed) {
+                chat.close();
+                break;
+            }
+            registry.register(chat);
+            // HELLO and RESUME go out first, whatever the listener sends on the new link follows them
+            chat.start();
+            session.attach(chat);
+            listener.onConnected(chat);
+
+            try {
+                connection.closed.await();
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                current = null;
+            }
+            if (session.getResumptions() > resumptions) {
+                // the link held long enough to resume, a new drop starts from the shortest delay
+                backoff.reset();
+            }
+            pause();
+        }
+    }
+
+    /**
+     * Stops dialling and closes the session.
+     */
+    @Override
+    public void cancel() {
+        closed = true;
+        connector.cancel();
+        session.close();
+        Connection connection = current;
+        if (connection != null) {
+            connection.closed.countDown();
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    private synchronized void pause() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff.next());
+        try {
+            long remaining;
+            while (!closed && (remaining = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        } catch (InterruptedException e) {
+            closed = true;
+        }
+    }
+
+    /**
+     * Feeds one connection to the session and tells the dial loop when it is gone.
+     */
+    private final class Connection implements ChatSession.Listener {
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        @Override
+        public void onFrame(ChatSession chat, PooledBuffer frame) throws IOException {
+            session.onFrame(chat, frame);
+        }
+
+        @Override
+        public void onClosed(ChatSession chat) {
+            session.onClosed(chat);
+            closed.countDown();
+        }
+    }
+}
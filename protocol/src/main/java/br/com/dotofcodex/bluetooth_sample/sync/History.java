@@ -0,0 +1,248 @@
+package br.com.dotofcodex.bluetooth_sample.sync;
+
+import br.com.dotofcodex.bluetooth_sample.journal.Journal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The messages exchanged with one peer as a set both ends can compare without sending it. Every message gets a
+ * 64 bit key hashed from who wrote it and its payload, the same on both devices whatever either one's clock said
+ * when it was journaled; the n-th copy of an identical message gets a key of its own. Keys are kept sorted next to
+ * running sums of their hashes, so the count and fingerprint of any range of keys cost two binary searches.
+ *
+ * <p>The ranges {@link HistorySync} compares are the nodes of a 16-ary tree over the key space: the root holds
+ * every key and a node at depth {@code d} the keys whose top {@code 4 * d} bits are its prefix. The tree is never
+ * built, a node's fingerprint is read off the sums when it is asked for.
+ *
+ * <p>Who wrote a message is stored as seen from this device but hashed as seen from the side that started the
+ * sync, which is why a history belongs to one side of one sync. Not thread safe.
+ */
+public final class History {
+
+    /**
+     * One message; {@code outgoing} when this device wrote it.
+     */
+    public static final class Item {
+        private final long timeMillis;
+        private final boolean outgoing;
+        private final byte[] payload;
+        private long key;
+
+        Item(long timeMillis, boolean outgoing, byte[] payload) {
+            this.timeMillis = timeMillis;
+            this.outgoing = outgoing;
+            this.payload = payload;
+        }
+
+        public long getTimeMillis() {
+            return this.timeMillis;
+        }
+
+        public boolean isOutgoing() {
+            return this.outgoing;
+        }
+
+        public byte[] getPayload() {
+            return this.payload;
+        }
+
+        long getKey() {
+            return this.key;
+        }
+    }
+
+    // nibbles in a key, the deepest a range goes
+    static final int MAX_DEPTH = 16;
+
+    private static final int READ_BATCH = 1024;
+    private static final long DUPLICATE_STEP = 0x9E3779B97F4A7C15L;
+
+    private static final Comparator<Item> BY_KEY = (Item a, Item b) -> {
+        long x = a.key ^ Long.MIN_VALUE;
+        long y = b.key ^ Long.MIN_VALUE;
+        return x < y ? -1 : (x == y ? 0 : 1);
+    };
+
+    private final boolean initiator;
+    private final List<Item> added;
+    private Item[] items;
+    // sorted keys with the sign bit flipped, so signed order is the unsigned order of the keys
+    private long[] keys;
+    // sums[i] is the sum of the hashes of the first i keys
+    private long[] sums;
+
+    /**
+     * @param initiator whether this side starts the sync, both ends must agree on it
+     */
+    public History(boolean initiator) {
+        super();
+        this.initiator = initiator;
+        this.added = new ArrayList<>();
+    }
+
+    /**
+     * Everything the journal still keeps, oldest first. Reads the whole journal, keep it off the main thread.
+     */
+    public static History read(Journal journal, boolean initiator) {
+        History history = new History(initiator);
+        List<Journal.Entry> entries = new ArrayList<>(READ_BATCH);
+        long sequence = journal.getFirstSequence();
+        int read;
+        do {
+            entries.clear();
+            read = journal.read(sequence, READ_BATCH, entries);
+            for (Journal.Entry entry : entries) {
+                history.add(entry.getTimeMillis(), entry.isOutgoing(), entry.getPayload());
+            }
+            sequence += read;
+        } while (read > 0);
+        return history;
+    }
+
+    public boolean isInitiator() {
+        return this.initiator;
+    }
+
+    public void add(long timeMillis, boolean outgoing, byte[] payload) {
+        added.add(new Item(timeMillis, outgoing, payload));
+        items = null;
+    }
+
+    public int size() {
+        return added.size();
+    }
+
+    /**
+     * Count of the keys under the node, {@code prefix} holding its top {@code 4 * depth} bits.
+     */
+    int count(int depth, long prefix) {
+        seal();
+        return upper(depth, prefix) - lower(prefix);
+    }
+
+    /**
+     * Sum of the hashes of the keys under the node; equal counts and fingerprints mean equal ranges.
+     */
+    long fingerprint(int depth, long prefix) {
+        seal();
+        return sums[upper(depth, prefix)] - sums[lower(prefix)];
+    }
+
+    /**
+     * Index of the first key under the node, the node's keys follow up to {@link #count}.
+     */
+    int first(long prefix) {
+        seal();
+        return lower(prefix);
+    }
+
+    long keyAt(int index) {
+        return keys[index] ^ Long.MIN_VALUE;
+    }
+
+    Item itemAt(int index) {
+        return items[index];
+    }
+
+    /**
+     * The message with the key, {@code null} if this side does not hold it.
+     */
+    Item find(long key) {
+        seal();
+        int index = Arrays.binarySearch(keys, key ^ Long.MIN_VALUE);
+        return index >= 0 ? items[index] : null;
+    }
+
+    private int lower(long prefix) {
+        return search(prefix ^ Long.MIN_VALUE);
+    }
+
+    private int upper(int depth, long prefix) {
+        if (depth == 0) {
+            return keys.length;
+        }
+        long last = depth < MAX_DEPTH ? prefix | (-1L >>> (4 * depth)) : prefix;
+        if (last == -1L) {
+            return keys.length;
+        }
+        return search((last + 1) ^ Long.MIN_VALUE);
+    }
+
+    // index of the first key not below the biased key
+    private int search(long biased) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (keys[middle] < biased) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private void seal() {
+        if (items != null) {
+            return;
+        }
+        Item[] sorted = added.toArray(new Item[0]);
+        for (Item item : sorted) {
+            item.key = hash(item.outgoing == initiator, item.payload);
+        }
+        // copies of one message share a hash and sort next to each other, the n-th one is told apart by n; both
+        // ends count the same copies, so they agree on the keys of all but the copies one of them lacks
+        Arrays.sort(sorted, BY_KEY);
+        boolean duplicates = false;
+        long run = 0;
+        int copy = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            long hash = sorted[i].key;
+            if (i > 0 && hash == run) {
+                copy++;
+                sorted[i].key = mix(hash + copy * DUPLICATE_STEP);
+                duplicates = true;
+            }
+            else {
+                run = hash;
+                copy = 0;
+            }
+        }
+        if (duplicates) {
+            Arrays.sort(sorted, BY_KEY);
+        }
+
+        long[] sortedKeys = new long[sorted.length];
+        long[] runningSums = new long[sorted.length + 1];
+        for (int i = 0; i < sorted.length; i++) {
+            sortedKeys[i] = sorted[i].key ^ Long.MIN_VALUE;
+            runningSums[i + 1] = runningSums[i] + mix(sorted[i].key);
+        }
+        keys = sortedKeys;
+        sums = runningSums;
+        items = sorted;
+    }
+
+    /**
+     * FNV-1a over who wrote the message and its payload, finished with the murmur3 mixer.
+     */
+    static long hash(boolean byInitiator, byte[] payload) {
+        long hash = 0xCBF29CE484222325L;
+        hash = (hash ^ (byInitiator ? 1 : 2)) * 0x100000001B3L;
+        for (byte b : payload) {
+            hash = (hash ^ (b & 0xFF)) * 0x100000001B3L;
+        }
+        return mix(hash);
+    }
+
+    static long mix(long value) {
+        value = (value ^ (value >>> 33)) * 0xFF51AFD7ED558CCDL;
+        value = (value ^ (value >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return value ^ (value >>> 33);
+    }
+}
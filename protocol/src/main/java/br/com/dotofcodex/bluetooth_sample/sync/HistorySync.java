@@ -0,0 +1,559 @@
+package br.com.dotofcodex.bluetooth_sample.sync;
+
+import br.com.dotofcodex.bluetooth_sample.protocol.ChatSession;
+import br.com.dotofcodex.bluetooth_sample.protocol.FrameException;
+import br.com.dotofcodex.bluetooth_sample.protocol.FrameWriter;
+import br.com.dotofcodex.bluetooth_sample.protocol.Frames;
+import br.com.dotofcodex.bluetooth_sample.protocol.PooledBuffer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Brings two {@link History}s of the same conversation together after a reconnect, moving only what one side lacks
+ * instead of resending everything. Both ends compare the nodes of the tree of key ranges, starting at the root,
+ * and only descend into the ones whose count or fingerprint differ; once a differing node holds a few keys its keys
+ * are listed, and what is missing goes over as whole messages. A handful of differences in a million messages
+ * costs a few turns of a few hundred bytes each, plus the messages themselves.
+ *
+ * <p>The ends take turns, the side that connected goes first. A turn is one or more SYNC frames, the last one
+ * flagged, each a list of entries:
+ *
+ * <pre>
+ * FINGERPRINT | node | count (varint) | sum (long)          the sender's summary of a node
+ * CHILDREN    | node | 16 x (count (varint) | sum, if any)  the same for each child of a node that differed
+ * KEYS        | node | n (varint) | n x key (long)          the sender's keys of a small node that differed
+ * WANT        | n (varint) | n x key (long)                 messages the sender lacks
+ * ITEM        | time (long) | by initiator | length (varint) | payload
+ *
+ * node: depth (byte) | the prefix's top (depth + 1) / 2 bytes
+ * </pre>
+ *
+ * Every entry is answered by entries in the next turn or needs no answer, so the sync is done when a turn is empty:
+ * the side sending it stops, and so does the one receiving it.
+ *
+ * <p>{@link #onFrame} queues the frames from the session's reader thread, from before {@link #run} starts on;
+ * {@link #run} blocks on the caller's thread until the sync is done. Never more than {@link #WINDOW} frames are
+ * outstanding on the session. What came in is returned, storing it is up to the caller.
+ */
+public final class HistorySync {
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 60000;
+
+    // frames queued on the session at a time
+    static final int WINDOW = 8;
+    // a node that differs and holds no more than this many keys has them listed instead of being split
+    static final int LEAF_SIZE = 16;
+    static final int FANOUT = 16;
+
+    static final int FLAG_END_OF_TURN = 0x01;
+
+    static final int FINGERPRINT = 1;
+    static final int CHILDREN = 2;
+    static final int KEYS = 3;
+    static final int WANT = 4;
+    static final int ITEM = 5;
+
+    // entry kind, time, author and the longest varint
+    static final int ITEM_HEADER_LENGTH = 1 + 8 + 1 + Frames.MAX_VARINT_LENGTH;
+    static final int MAX_FRAME_LENGTH = Frames.DEFAULT_MAX_PAYLOAD_LENGTH;
+
+    private static final byte[] CLOSED = new byte[0];
+
+    /**
+     * What one side of a sync moved.
+     */
+    public static final class Result {
+        private final List<History.Item> received;
+        private final int sent;
+        private final long bytesSent;
+        private final long bytesReceived;
+        private final int turns;
+        private final long nanos;
+
+        Result(List<History.Item> received, int sent, long bytesSent, long bytesReceived, int turns, long nanos) {
+            this.received = received;
+            this.sent = sent;
+            this.bytesSent = bytesSent;
+            this.bytesReceived = bytesReceived;
+            this.turns = turns;
+            this.nanos = nanos;
+        }
+
+        /**
+         * The messages this side lacked, in no particular order.
+         */
+        public List<History.Item> getReceived() {
+            return this.received;
+        }
+
+        /**
+         * Messages sent to the peer.
+         */
+        public int getSent() {
+            return this.sent;
+        }
+
+        /**
+         * Payload bytes of the sync frames sent, the frame headers not counted.
+         */
+        public long getBytesSent() {
+            return this.bytesSent;
+        }
+
+        public long getBytesReceived() {
+            return this.bytesReceived;
+        }
+
+        /**
+         * Turns taken by both sides together, the last, empty one included.
+         */
+        public int getTurns() {
+            return this.turns;
+        }
+
+        public long getNanos() {
+            return this.nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("sync: %d messages in, %d out, %d bytes in, %d out, %d turns, %d ms",
+                    received.size(), sent, bytesReceived, bytesSent, turns, nanos / 1000000);
+        }
+    }
+
+    private final ChatSession session;
+    private final boolean initiator;
+    private final BlockingQueue<byte[]> incoming;
+    // buffers not queued on the session, a buffer returns once the writer is done with it
+    private final BlockingQueue<byte[]> free;
+    private volatile IOException failure;
+
+    // owned by the thread in run
+    private History history;
+    private long deadline;
+    private byte[] out;
+    private int outLength;
+    private int written;
+    private byte[] in;
+    private int position;
+    private List<History.Item> received;
+    private int sent;
+    private long bytesSent;
+    private long bytesReceived;
+    private int turns;
+
+    /**
+     * @param initiator whether this side goes first, the one that connected
+     */
+    public HistorySync(ChatSession session, boolean initiator) {
+        super();
+        this.session = session;
+        this.initiator = initiator;
+        this.incoming = new LinkedBlockingQueue<>();
+        this.free = new ArrayBlockingQueue<>(WINDOW);
+        for (int i = 0; i < WINDOW; i++) {
+            free.add(new byte[MAX_FRAME_LENGTH]);
+        }
+    }
+
+    public boolean isInitiator() {
+        return this.initiator;
+    }
+
+    /**
+     * Queues a copy of a SYNC frame and releases it. Anything else is left to the caller and {@code false} returned.
+     */
+    public boolean onFrame(PooledBuffer frame) {
+        if (frame.type() != Frames.TYPE_SYNC) {
+            return false;
+        }
+        try {
+            byte[] copy = new byte[frame.length()];
+            System.arraycopy(frame.array(), 0, copy, 0, copy.length);
+            incoming.add(copy);
+        } finally {
+            frame.release();
+        }
+        return true;
+    }
+
+    /**
+     * The session closed, a sync still running fails.
+     */
+    public void onClosed() {
+        incoming.add(CLOSED);
+    }
+
+    /**
+     * Takes turns with the peer until neither side has anything left to send. Blocks, keep it off the main thread.
+     *
+     * @throws IOException when the connection is lost, the peer sends something malformed or the sync takes longer
+     * than {@code timeoutMillis}
+     */
+    public Result run(History history, long timeoutMillis) throws IOException {
+        if (history.isInitiator() != initiator) {
+            throw new IllegalArgumentException("History of the other side of the sync");
+        }
+        this.history = history;
+        this.received = new ArrayList<>();
+        long start = System.nanoTime();
+        deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            if (initiator) {
+                writeFingerprint(0, 0L);
+                endTurn();
+            }
+            while (receiveTurn() && endTurn()) {
+                // each turn answers the one before, until one is empty
+            }
+            // every frame on the stream before the time is taken
+            List<byte[]> buffers = new ArrayList<>(WINDOW);
+            for (int i = 0; i < WINDOW; i++) {
+                buffers.add(take(free));
+            }
+            free.addAll(buffers);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("History sync interrupted");
+        }
+        return new Result(received, sent, bytesSent, bytesReceived, turns, System.nanoTime() - start);
+    }
+
+    /**
+     * Reads the peer's turn, answering as it goes; {@code false} when the turn was empty.
+     */
+    private boolean receiveTurn() throws IOException, InterruptedException {
+        boolean entries = false;
+        while (true) {
+            byte[] frame = take(incoming);
+            if (frame == CLOSED) {
+                incoming.add(CLOSED);
+                throw new IOException("Connection to " + session.getAddress() + " lost during the history sync");
+            }
+            if (frame.length == 0) {
+                throw new FrameException("Empty sync frame from " + session.getAddress());
+            }
+            bytesReceived += frame.length;
+            in = frame;
+            position = 1;
+            while (position < frame.length) {
+                readEntry();
+                entries = true;
+            }
+            if ((frame[0] & FLAG_END_OF_TURN) != 0) {
+                turns++;
+                return entries;
+            }
+        }
+    }
+
+    /**
+     * Sends what is left of this side's turn, flagged as its end; {@code false} when the turn was empty.
+     */
+    private boolean endTurn() throws IOException, InterruptedException {
+        boolean entries = written > 0 || (out != null && outLength > 1);
+        flush(FLAG_END_OF_TURN);
+        written = 0;
+        turns++;
+        return entries;
+    }
+
+    private void readEntry() throws IOException, InterruptedException {
+        int kind = readByte();
+        switch (kind) {
+            case FINGERPRINT: {
+                int depth = readDepth();
+                long prefix = readPrefix(depth);
+                int count = readVarint();
+                compare(depth, prefix, count, readLong());
+                break;
+            }
+            case CHILDREN: {
+                int depth = readDepth();
+                if (depth >= History.MAX_DEPTH) {
+                    throw new FrameException("Sync node too deep from " + session.getAddress());
+                }
+                long prefix = readPrefix(depth);
+                for (int i = 0; i < FANOUT; i++) {
+                    int count = readVarint();
+                    compare(depth + 1, child(depth, prefix, i), count, count > 0 ? readLong() : 0L);
+                }
+                break;
+            }
+            case KEYS: {
+                int depth = readDepth();
+                long prefix = readPrefix(depth);
+                onKeys(depth, prefix, readVarint());
+                break;
+            }
+            case WANT: {
+                for (int n = readVarint(); n > 0; n--) {
+                    History.Item item = history.find(readLong());
+                    if (item != null) {
+                        writeItem(item);
+                    }
+                }
+                break;
+            }
+            case ITEM: {
+                long timeMillis = readLong();
+                boolean byInitiator = readByte() != 0;
+                int length = readVarint();
+                if (length > in.length - position) {
+                    throw new FrameException("Sync item of " + length + " bytes past the frame from " + session.getAddress());
+                }
+                byte[] payload = new byte[length];
+                System.arraycopy(in, position, payload, 0, length);
+                position += length;
+                received.add(new History.Item(timeMillis, byInitiator == initiator, payload));
+                break;
+            }
+            default: {
+                throw new FrameException("Unknown sync entry " + kind + " from " + session.getAddress());
+            }
+        }
+    }
+
+    /**
+     * Answers the peer's summary of a node with whatever narrows the difference down.
+     */
+    private void compare(int depth, long prefix, int count, long fingerprint) throws IOException, InterruptedException {
+        int mine = history.count(depth, prefix);
+        if (mine == count && (mine == 0 || history.fingerprint(depth, prefix) == fingerprint)) {
+            return;
+        }
+        if (count == 0) {
+            // the peer has none of them
+            int first = history.first(prefix);
+            for (int i = first; i < first + mine; i++) {
+                writeItem(history.itemAt(i));
+            }
+        }
+        else if (mine <= LEAF_SIZE || depth == History.MAX_DEPTH) {
+            writeKeys(depth, prefix, mine);
+        }
+        else {
+            writeChildren(depth, prefix);
+        }
+    }
+
+    /**
+     * Merges the peer's keys of a node with this side's: sends what the peer lacks and asks for the rest.
+     */
+    private void onKeys(int depth, long prefix, int count) throws IOException, InterruptedException {
+        if (count > (in.length - position) / 8) {
+            throw new FrameException("Sync keys past the frame from " + session.getAddress());
+        }
+        int index = history.first(prefix);
+        int end = index + history.count(depth, prefix);
+        List<Long> wanted = null;
+        for (int n = 0; n < count; n++) {
+            long key = readLong();
+            long biased = key ^ Long.MIN_VALUE;
+            while (index < end && (history.keyAt(index) ^ Long.MIN_VALUE) < biased) {
+                writeItem(history.itemAt(index++));
+            }
+            if (index < end && history.keyAt(index) == key) {
+                index++;
+            }
+            else {
+                if (wanted == null) {
+                    wanted = new ArrayList<>();
+                }
+                wanted.add(key);
+            }
+        }
+        while (index < end) {
+            writeItem(history.itemAt(index++));
+        }
+        if (wanted != null) {
+            writeWant(wanted);
+        }
+    }
+
+    private void writeFingerprint(int depth, long prefix) throws IOException, InterruptedException {
+        reserve(1 + 9 + Frames.MAX_VARINT_LENGTH + 8);
+        out[outLength++] = FINGERPRINT;
+        writeNode(depth, prefix);
+        int count = history.count(depth, prefix);
+        outLength = Frames.writeVarint(count, out, outLength);
+        writeLong(count > 0 ? history.fingerprint(depth, prefix) : 0L);
+    }
+
+    private void writeChildren(int depth, long prefix) throws IOException, InterruptedException {
+        reserve(1 + 9 + FANOUT * (Frames.MAX_VARINT_LENGTH + 8));
+        out[outLength++] = CHILDREN;
+        writeNode(depth, prefix);
+        for (int i = 0; i < FANOUT; i++) {
+            long node = child(depth, prefix, i);
+            int count = history.count(depth + 1, node);
+            outLength = Frames.writeVarint(count, out, outLength);
+            if (count > 0) {
+                writeLong(history.fingerprint(depth + 1, node));
+            }
+        }
+    }
+
+    private void writeKeys(int depth, long prefix, int count) throws IOException, InterruptedException {
+        reserve(1 + 9 + Frames.MAX_VARINT_LENGTH + 8 * count);
+        out[outLength++] = KEYS;
+        writeNode(depth, prefix);
+        outLength = Frames.writeVarint(count, out, outLength);
+        int first = history.first(prefix);
+        for (int i = first; i < first + count; i++) {
+            writeLong(history.keyAt(i));
+        }
+    }
+
+    private void writeWant(List<Long> keys) throws IOException, InterruptedException {
+        int from = 0;
+        while (from < keys.size()) {
+            reserve(1 + Frames.MAX_VARINT_LENGTH + 8);
+            int count = Math.min(keys.size() - from, (MAX_FRAME_LENGTH - outLength - 1 - Frames.MAX_VARINT_LENGTH) / 8);
+            out[outLength++] = WANT;
+            outLength = Frames.writeVarint(count, out, outLength);
+            for (int i = from; i < from + count; i++) {
+                writeLong(keys.get(i));
+            }
+            from += count;
+        }
+    }
+
+    private void writeItem(History.Item item) throws IOException, InterruptedException {
+        byte[] payload = item.getPayload();
+        if (ITEM_HEADER_LENGTH + payload.length > MAX_FRAME_LENGTH - 1) {
+            // longer than any chat message, it stays on this side
+            return;
+        }
+        reserve(ITEM_HEADER_LENGTH + payload.length);
+        out[outLength++] = ITEM;
+        writeLong(item.getTimeMillis());
+        out[outLength++] = (byte) (item.isOutgoing() == initiator ? 1 : 0);
+        outLength = Frames.writeVarint(payload.length, out, outLength);
+        System.arraycopy(payload, 0, out, outLength, payload.length);
+        outLength += payload.length;
+        sent++;
+    }
+
+    private void writeNode(int depth, long prefix) {
+        out[outLength++] = (byte) depth;
+        for (int i = 0; i < (depth + 1) / 2; i++) {
+            out[outLength++] = (byte) (prefix >>> (56 - 8 * i));
+        }
+    }
+
+    private void writeLong(long value) {
+        Frames.writeLong(value, out, outLength);
+        outLength += 8;
+    }
+
+    /**
+     * Makes room for an entry of up to {@code length} bytes, sending the frame being filled when it has none.
+     */
+    private void reserve(int length) throws IOException, InterruptedException {
+        if (out == null) {
+            out = take(free);
+            outLength = 1;
+        }
+        else if (outLength + length > MAX_FRAME_LENGTH) {
+            flush(0);
+            out = take(free);
+            outLength = 1;
+        }
+    }
+
+    private void flush(int flags) throws IOException, InterruptedException {
+        if (out == null) {
+            out = take(free);
+            outLength = 1;
+        }
+        IOException error = failure;
+        if (error != null) {
+            throw error;
+        }
+        final byte[] frame = out;
+        int length = outLength;
+        frame[0] = (byte) flags;
+        out = null;
+        outLength = 0;
+        bytesSent += length;
+        written++;
+        FrameWriter.Callback done = (IOException e) -> {
+            if (e != null) {
+                failure = e;
+            }
+            free.add(frame);
+        };
+        if (!session.send(Frames.TYPE_SYNC, frame, 0, length, done)) {
+            throw failure != null ? failure : new IOException("History sync frame not queued to " + session.getAddress());
+        }
+    }
+
+    private <T> T take(BlockingQueue<T> queue) throws IOException, InterruptedException {
+        T next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        if (next == null) {
+            throw new IOException("History sync with " + session.getAddress() + " timed out");
+        }
+        return next;
+    }
+
+    private int readByte() throws FrameException {
+        if (position >= in.length) {
+            throw new FrameException("Truncated sync frame from " + session.getAddress());
+        }
+        return in[position++] & 0xFF;
+    }
+
+    private int readDepth() throws FrameException {
+        int depth = readByte();
+        if (depth > History.MAX_DEPTH) {
+            throw new FrameException("Sync node of depth " + depth + " from " + session.getAddress());
+        }
+        return depth;
+    }
+
+    private long readPrefix(int depth) throws FrameException {
+        long prefix = 0;
+        for (int i = 0; i < (depth + 1) / 2; i++) {
+            prefix |= (long) readByte() << (56 - 8 * i);
+        }
+        // the low nibble of an odd depth's last byte is no part of the prefix
+        return depth < History.MAX_DEPTH ? prefix & ~(-1L >>> (4 * depth)) : prefix;
+    }
+
+    private long readLong() throws FrameException {
+        if (in.length - position < 8) {
+            throw new FrameException("Truncated sync frame from " + session.getAddress());
+        }
+        long value = Frames.readLong(in, position);
+        position += 8;
+        return value;
+    }
+
+    private int readVarint() throws FrameException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    break;
+                }
+                return value;
+            }
+        }
+        throw new FrameException("Bad varint in a sync frame from " + session.getAddress());
+    }
+
+    static long child(int depth, long prefix, int index) {
+        return prefix | ((long) index << (60 - 4 * depth));
+    }
+}
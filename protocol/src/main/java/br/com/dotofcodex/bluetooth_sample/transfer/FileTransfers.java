@@ -0,0 +1,200 @@
+package br.com.dotofcodex.bluetooth_sample.transfer;
+
+import br.com.dotofcodex.bluetooth_sample.protocol.ChatSession;
+import br.com.dotofcodex.bluetooth_sample.protocol.FrameException;
+import br.com.dotofcodex.bluetooth_sample.protocol.Frames;
+import br.com.dotofcodex.bluetooth_sample.protocol.PooledBuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bulk file transfer over chat sessions, one file per direction and session at a time.
+ *
+ * <pre>
+ * sender                               receiver
+ *   OFFER id, size, sha-256, name  -->
+ *                                  <--  ACCEPT id, offset     resume point, bytes already verified
+ *   CHUNK id, offset, crc32, data  -->                        up to window chunks outstanding
+ *                                  <--  ACK id, offset        cumulative, or a rewind after a bad chunk
+ *                                  <--  COMPLETE id, status   whole file checked against the sha-256
+ * </pre>
+ *
+ * The sender reads chunks with a {@link java.nio.channels.FileChannel} into a fixed set of buffers and the receiver
+ * writes them from the pooled frame straight to a {@code <sha-256>.part} file, so memory does not grow with the
+ * file. Offering the same file again after a disconnect continues from the receiver's part file. Chunks travel on a
+ * bulk {@link br.com.dotofcodex.bluetooth_sample.protocol.Stream}, chat sent on the session goes ahead of them.
+ */
+public final class FileTransfers {
+
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+    public static final int DEFAULT_WINDOW = 8;
+
+    // the stream chunks are sent on, and what it may have undelivered on the link
+    public static final int STREAM_ID = 1;
+    static final int STREAM_WINDOW = 64 * 1024;
+
+    // id, offset, crc32
+    static final int CHUNK_HEADER_LENGTH = 16;
+    static final int DIGEST_LENGTH = 32;
+
+    static final int ACK_REWIND = 0x01;
+
+    static final int STATUS_OK = 0;
+    static final int STATUS_CORRUPT = 1;
+    static final int STATUS_FAILED = 2;
+
+    private final File directory;
+    private final TransferListener listener;
+    private final int chunkSize;
+    private final int window;
+    private final AtomicInteger ids;
+    private final ConcurrentHashMap<ChatSession, OutgoingTransfer> outgoing;
+    private final ConcurrentHashMap<ChatSession, IncomingTransfer> incoming;
+
+    public FileTransfers(File directory, TransferListener listener) {
+        this(directory, listener, DEFAULT_CHUNK_SIZE, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param directory where received files and their partial copies are kept
+     * @param window chunks the sender may have outstanding before it waits for an ack
+     */
+    public FileTransfers(File directory, TransferListener listener, int chunkSize, int window) {
+        super();
+        if (chunkSize <= 0 || chunkSize + CHUNK_HEADER_LENGTH > Frames.DEFAULT_MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        }
+        if (window <= 0) {
+            throw new IllegalArgumentException("Invalid window: " + window);
+        }
+        this.directory = directory;
+        this.listener = listener;
+        this.chunkSize = chunkSize;
+        this.window = window;
+        this.ids = new AtomicInteger();
+        this.outgoing = new ConcurrentHashMap<>();
+        this.incoming = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Offers {@code file} to the peer; the outcome goes to the listener. Hashes the whole file before returning,
+     * keep it off the UI thread.
+     */
+    public void send(ChatSession session, File file) throws IOException {
+        OutgoingTransfer transfer = new OutgoingTransfer(this, session, ids.incrementAndGet(), file, chunkSize, window, listener);
+        if (outgoing.putIfAbsent(session, transfer) != null) {
+            transfer.close();
+            throw new IOException("A transfer to " + session.getAddress() + " is already running");
+        }
+        try {
+            transfer.offer();
+        } catch (IOException e) {
+            outgoing.remove(session, transfer);
+            transfer.close();
+            throw e;
+        }
+    }
+
+    public boolean isSending(ChatSession session) {
+        return outgoing.containsKey(session);
+    }
+
+    /**
+     * Handles transfer frames and releases them. Anything else is left to the caller and {@code false} returned.
+     */
+    public boolean onFrame(ChatSession session, PooledBuffer frame) throws IOException {
+        switch (frame.type()) {
+            case Frames.TYPE_FILE_OFFER:
+            case Frames.TYPE_FILE_CHUNK: {
+                try {
+                    onIncoming(session, frame);
+                } finally {
+                    frame.release();
+                }
+                return true;
+            }
+            case Frames.TYPE_FILE_ACCEPT:
+            case Frames.TYPE_FILE_ACK:
+            case Frames.TYPE_FILE_COMPLETE: {
+                try {
+                    if (frame.length() < 5) {
+                        throw new FrameException("Short transfer frame from " + session.getAddress());
+                    }
+                    OutgoingTransfer transfer = outgoing.get(session);
+                    if (transfer != null && transfer.getId() == Frames.readInt(frame.array(), 0)) {
+                        transfer.onFrame(frame.type(), frame.array(), frame.length());
+                    }
+                } finally {
+                    frame.release();
+                }
+                return true;
+            }
+            default: {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Fails the session's outgoing transfer and stops the incoming one; its part file stays for a later resume.
+     */
+    public void onClosed(ChatSession session) {
+        OutgoingTransfer sending = outgoing.remove(session);
+        if (sending != null) {
+            sending.fail(new IOException("Connection to " + session.getAddress() + " lost"));
+        }
+        IncomingTransfer receiving = incoming.remove(session);
+        if (receiving != null) {
+            receiving.close();
+        }
+    }
+
+    void finished(ChatSession session, OutgoingTransfer transfer) {
+        outgoing.remove(session, transfer);
+    }
+
+    void finished(ChatSession session, IncomingTransfer transfer) {
+        incoming.remove(session, transfer);
+    }
+
+    private void onIncoming(ChatSession session, PooledBuffer frame) throws IOException {
+        if (frame.type() == Frames.TYPE_FILE_OFFER) {
+            IncomingTransfer previous = incoming.remove(session);
+            if (previous != null) {
+                previous.close();
+            }
+            IncomingTransfer transfer = IncomingTransfer.accept(this, session, directory, frame.array(), frame.length(), listener);
+            if (transfer != null) {
+                incoming.put(session, transfer);
+                transfer.start();
+            }
+            return;
+        }
+
+        IncomingTransfer transfer = incoming.get(session);
+        if (frame.length() >= CHUNK_HEADER_LENGTH && transfer != null && transfer.getId() == Frames.readInt(frame.array(), 0)) {
+            transfer.onChunk(frame.array(), frame.length());
+        }
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
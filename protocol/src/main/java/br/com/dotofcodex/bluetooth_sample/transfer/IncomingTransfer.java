@@ -0,0 +1,257 @@
+package br.com.dotofcodex.bluetooth_sample.transfer;
+
+import br.com.dotofcodex.bluetooth_sample.protocol.ChatSession;
+import br.com.dotofcodex.bluetooth_sample.protocol.FrameException;
+import br.com.dotofcodex.bluetooth_sample.protocol.Frames;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Receiving side of one file. Chunks are only taken in order: each is checked against its CRC32, written at its
+ * offset and fed to the running SHA-256, so the part file never holds unverified bytes and can be resumed from its
+ * length. Everything runs on the session's reader thread.
+ */
+final class IncomingTransfer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int HASH_BUFFER_SIZE = 16 * 1024;
+
+    private final FileTransfers owner;
+    private final ChatSession session;
+    private final int id;
+    private final String name;
+    private final long size;
+    private final byte[] expectedDigest;
+    private final int ackEvery;
+    private final File directory;
+    private final File part;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final MessageDigest digest;
+    private final CRC32 crc;
+    private final TransferListener listener;
+    private ByteBuffer wrapper;
+    private long received;
+    private int unacknowledged;
+    private boolean rewinding;
+    private boolean done;
+
+    private IncomingTransfer(FileTransfers owner, ChatSession session, int id, String name, long size, byte[] expectedDigest,
+                             int window, File directory, TransferListener listener) throws IOException {
+        super();
+        this.owner = owner;
+        this.session = session;
+        this.id = id;
+        this.name = name;
+        this.size = size;
+        this.expectedDigest = expectedDigest;
+        // cumulative acks for half the sender's window keep it busy without an ack per chunk
+        this.ackEvery = Math.max(1, window / 2);
+        this.directory = directory;
+        this.part = new File(directory, FileTransfers.hex(expectedDigest) + ".part");
+        this.raf = new RandomAccessFile(part, "rw");
+        this.channel = raf.getChannel();
+        this.digest = FileTransfers.sha256();
+        this.crc = new CRC32();
+        this.listener = listener;
+    }
+
+    /**
+     * Parses an OFFER and opens the part file, picking up what an earlier attempt left there.
+     */
+    static IncomingTransfer accept(FileTransfers owner, ChatSession session, File directory, byte[] offer, int length,
+                                   TransferListener listener) throws IOException {
+        if (length < 47 || length < 47 + (offer[46] & 0xFF)) {
+            throw new FrameException("Short file offer from " + session.getAddress());
+        }
+        int id = Frames.readInt(offer, 0);
+        long size = Frames.readLong(offer, 4);
+        byte[] digest = Arrays.copyOfRange(offer, 12, 12 + FileTransfers.DIGEST_LENGTH);
+        int window = ((offer[44] & 0xFF) << 8) | (offer[45] & 0xFF);
+        // only the last path segment, the sender does not get to pick the directory
+        String name = new File(new String(offer, 47, offer[46] & 0xFF, UTF_8)).getName();
+        if (size < 0 || name.isEmpty() || name.equals("..")) {
+            throw new FrameException("Invalid file offer from " + session.getAddress());
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            reply(session, id, FileTransfers.STATUS_FAILED);
+            listener.onComplete(name, null, new IOException("Cannot create " + directory));
+            return null;
+        }
+        IncomingTransfer transfer = new IncomingTransfer(owner, session, id, name, size, digest, window, directory, listener);
+        try {
+            transfer.resume();
+        } catch (IOException e) {
+            transfer.fail(e);
+            return null;
+        }
+        return transfer;
+    }
+
+    int getId() {
+        return this.id;
+    }
+
+    /**
+     * Tells the sender where to continue.
+     */
+    void start() {
+        byte[] accept = new byte[12];
+        Frames.writeInt(id, accept, 0);
+        Frames.writeLong(received, accept, 4);
+        session.send(Frames.TYPE_FILE_ACCEPT, accept, null);
+        listener.onProgress(name, received, size);
+
+        if (received == size) {
+            verify();
+        }
+    }
+
+    void onChunk(byte[] chunk, int length) {
+        if (done) {
+            return;
+        }
+
+        long offset = Frames.readLong(chunk, 4);
+        int dataLength = length - FileTransfers.CHUNK_HEADER_LENGTH;
+        if (offset != received || offset + dataLength > size) {
+            // still in flight from before a rewind, the sender comes back to this offset
+            return;
+        }
+
+        crc.reset();
+        crc.update(chunk, FileTransfers.CHUNK_HEADER_LENGTH, dataLength);
+        if ((int) crc.getValue() != Frames.readInt(chunk, 12)) {
+            if (!rewinding) {
+                rewinding = true;
+                acknowledge(FileTransfers.ACK_REWIND);
+            }
+            return;
+        }
+
+        try {
+            ByteBuffer data = wrap(chunk, FileTransfers.CHUNK_HEADER_LENGTH, dataLength);
+            long position = offset;
+            while (data.hasRemaining()) {
+                position += channel.write(data, position);
+            }
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+
+        digest.update(chunk, FileTransfers.CHUNK_HEADER_LENGTH, dataLength);
+        received += dataLength;
+        rewinding = false;
+
+        if (received == size) {
+            acknowledge(0);
+            verify();
+        }
+        else if (++unacknowledged >= ackEvery) {
+            acknowledge(0);
+        }
+    }
+
+    /**
+     * Stops without touching the part file, the next offer of the same file resumes from it.
+     */
+    void close() {
+        done = true;
+        try {
+            raf.close();
+        } catch (IOException ignored) {  }
+    }
+
+    private void resume() throws IOException {
+        long existing = channel.size();
+        if (existing > size) {
+            channel.truncate(size);
+            existing = size;
+        }
+
+        // the running digest has to cover what is already on disk
+        ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+        long position = 0;
+        while (position < existing) {
+            buffer.clear();
+            if (existing - position < buffer.capacity()) {
+                buffer.limit((int) (existing - position));
+            }
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            digest.update(buffer.array(), 0, read);
+            position += read;
+        }
+        received = position;
+    }
+
+    private void acknowledge(int flags) {
+        byte[] ack = new byte[13];
+        Frames.writeInt(id, ack, 0);
+        Frames.writeLong(received, ack, 4);
+        ack[12] = (byte) flags;
+        session.send(Frames.TYPE_FILE_ACK, ack, null);
+        unacknowledged = 0;
+        listener.onProgress(name, received, size);
+    }
+
+    private void verify() {
+        close();
+        owner.finished(session, this);
+
+        if (!Arrays.equals(digest.digest(), expectedDigest)) {
+            // nothing in the part file can be trusted any more, start over next time
+            part.delete();
+            reply(session, id, FileTransfers.STATUS_CORRUPT);
+            listener.onComplete(name, null, new IOException(name + " does not match its SHA-256"));
+            return;
+        }
+
+        File target = new File(directory, name);
+        if ((target.exists() && !target.delete()) || !part.renameTo(target)) {
+            reply(session, id, FileTransfers.STATUS_FAILED);
+            listener.onComplete(name, null, new IOException("Cannot move " + part + " to " + target));
+            return;
+        }
+        reply(session, id, FileTransfers.STATUS_OK);
+        listener.onComplete(name, target, null);
+    }
+
+    private void fail(IOException error) {
+        close();
+        owner.finished(session, this);
+        reply(session, id, FileTransfers.STATUS_FAILED);
+        listener.onComplete(name, null, error);
+    }
+
+    private ByteBuffer wrap(byte[] data, int offset, int length) {
+        // pooled receive buffers come back over and over, keep the wrapper for the last one seen
+        if (wrapper == null || wrapper.array() != data) {
+            wrapper = ByteBuffer.wrap(data);
+        }
+        wrapper.clear();
+        wrapper.position(offset);
+        wrapper.limit(offset + length);
+        return wrapper;
+    }
+
+    private static void reply(ChatSession session, int id, int status) {
+        byte[] complete = new byte[5];
+        Frames.writeInt(id, complete, 0);
+        complete[4] = (byte) status;
+        session.send(Frames.TYPE_FILE_COMPLETE, complete, null);
+    }
+}
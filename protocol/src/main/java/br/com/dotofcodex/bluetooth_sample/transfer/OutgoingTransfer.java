@@ -0,0 +1,221 @@
+package br.com.dotofcodex.bluetooth_sample.transfer;
+
+import br.com.dotofcodex.bluetooth_sample.protocol.ChatSession;
+import br.com.dotofcodex.bluetooth_sample.protocol.Frames;
+import br.com.dotofcodex.bluetooth_sample.protocol.Stream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.zip.CRC32;
+
+/**
+ * Sending side of one file. Chunks are read into a fixed set of {@code window} buffers; a buffer returns once the
+ * writer has put its chunk on the socket, and no more than {@code window} chunks go unacknowledged. Acks arrive on
+ * the reader thread and write completions on the writer thread, both pump the next chunks under the same lock.
+ */
+final class OutgoingTransfer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // a name longer than this is cut, the offer has to fit one frame
+    private static final int MAX_NAME_LENGTH = 255;
+
+    private final FileTransfers owner;
+    private final ChatSession session;
+    private final Stream stream;
+    private final int id;
+    private final File file;
+    private final String name;
+    private final int chunkSize;
+    private final int window;
+    private final TransferListener listener;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long size;
+    private final ArrayDeque<ByteBuffer> free;
+    private final CRC32 crc;
+    private long next;
+    private long acknowledged;
+    private boolean accepted;
+    private boolean done;
+
+    OutgoingTransfer(FileTransfers owner, ChatSession session, int id, File file, int chunkSize, int window, TransferListener listener) throws IOException {
+        super();
+        this.owner = owner;
+        this.session = session;
+        this.stream = session.openStream(FileTransfers.STREAM_ID, Stream.PRIORITY_BULK, FileTransfers.STREAM_WINDOW);
+        this.id = id;
+        this.file = file;
+        this.name = file.getName();
+        this.chunkSize = chunkSize;
+        this.window = window;
+        this.listener = listener;
+        this.raf = new RandomAccessFile(file, "r");
+        this.channel = raf.getChannel();
+        this.size = channel.size();
+        this.free = new ArrayDeque<>(window);
+        for (int i = 0; i < window; i++) {
+            free.add(ByteBuffer.allocate(FileTransfers.CHUNK_HEADER_LENGTH + chunkSize));
+        }
+        this.crc = new CRC32();
+    }
+
+    int getId() {
+        return this.id;
+    }
+
+    /**
+     * Hashes the file and queues the OFFER.
+     */
+    void offer() throws IOException {
+        MessageDigest digest = FileTransfers.sha256();
+        ByteBuffer buffer = free.peek();
+        long position = 0;
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException(name + " shrank while being hashed");
+            }
+            digest.update(buffer.array(), 0, read);
+            position += read;
+        }
+
+        byte[] encodedName = name.getBytes(UTF_8);
+        int nameLength = Math.min(encodedName.length, MAX_NAME_LENGTH);
+        byte[] offer = new byte[4 + 8 + FileTransfers.DIGEST_LENGTH + 2 + 1 + nameLength];
+        Frames.writeInt(id, offer, 0);
+        Frames.writeLong(size, offer, 4);
+        System.arraycopy(digest.digest(), 0, offer, 12, FileTransfers.DIGEST_LENGTH);
+        offer[44] = (byte) (window >>> 8);
+        offer[45] = (byte) window;
+        offer[46] = (byte) nameLength;
+        System.arraycopy(encodedName, 0, offer, 47, nameLength);
+
+        if (!session.send(Frames.TYPE_FILE_OFFER, offer, null)) {
+            throw new IOException("Could not queue the offer for " + name);
+        }
+    }
+
+    synchronized void onFrame(int type, byte[] data, int length) {
+        if (done) {
+            return;
+        }
+
+        switch (type) {
+            case Frames.TYPE_FILE_ACCEPT:
+            case Frames.TYPE_FILE_ACK: {
+                if (length < 12) {
+                    fail(new IOException("Short acknowledgement for " + name));
+                    return;
+                }
+                long offset = Frames.readLong(data, 4);
+                if (offset < acknowledged || offset > size) {
+                    fail(new IOException("Acknowledged offset " + offset + " out of range for " + name));
+                    return;
+                }
+
+                if (type == Frames.TYPE_FILE_ACCEPT) {
+                    // the receiver already holds everything before the offset from an earlier attempt
+                    accepted = true;
+                    next = offset;
+                }
+                else if (length > 12 && (data[12] & FileTransfers.ACK_REWIND) != 0) {
+                    // a chunk failed its checksum, go back and send everything from there again
+                    next = offset;
+                }
+                if (offset > acknowledged || type == Frames.TYPE_FILE_ACCEPT) {
+                    acknowledged = offset;
+                    listener.onProgress(name, acknowledged, size);
+                }
+                pump();
+                break;
+            }
+            case Frames.TYPE_FILE_COMPLETE: {
+                int status = data[4];
+                if (status == FileTransfers.STATUS_OK) {
+                    acknowledged = size;
+                    finish(null);
+                }
+                else if (status == FileTransfers.STATUS_CORRUPT) {
+                    finish(new IOException(name + " failed verification on the receiver"));
+                }
+                else {
+                    finish(new IOException("Receiver could not store " + name));
+                }
+                break;
+            }
+        }
+    }
+
+    synchronized void fail(IOException error) {
+        if (!done) {
+            finish(error);
+        }
+    }
+
+    void close() {
+        try {
+            raf.close();
+        } catch (IOException ignored) {  }
+    }
+
+    private void pump() {
+        long limit = (long) window * chunkSize;
+        while (!done && accepted && next < size && next - acknowledged < limit && !free.isEmpty()) {
+            ByteBuffer buffer = free.poll();
+            int length = (int) Math.min(chunkSize, size - next);
+
+            buffer.clear();
+            buffer.position(FileTransfers.CHUNK_HEADER_LENGTH);
+            buffer.limit(FileTransfers.CHUNK_HEADER_LENGTH + length);
+            try {
+                while (buffer.hasRemaining()) {
+                    long position = next + buffer.position() - FileTransfers.CHUNK_HEADER_LENGTH;
+                    if (channel.read(buffer, position) < 0) {
+                        throw new IOException(name + " shrank while being sent");
+                    }
+                }
+            } catch (IOException e) {
+                free.add(buffer);
+                finish(e);
+                return;
+            }
+
+            byte[] chunk = buffer.array();
+            crc.reset();
+            crc.update(chunk, FileTransfers.CHUNK_HEADER_LENGTH, length);
+            Frames.writeInt(id, chunk, 0);
+            Frames.writeLong(next, chunk, 4);
+            Frames.writeInt((int) crc.getValue(), chunk, 12);
+            next += length;
+
+            // a rejected send completes the callback right away, which fails the transfer
+            stream.send(Frames.TYPE_FILE_CHUNK, chunk, 0, FileTransfers.CHUNK_HEADER_LENGTH + length,
+                    (IOException error) -> onWritten(buffer, error));
+        }
+    }
+
+    private synchronized void onWritten(ByteBuffer buffer, IOException error) {
+        free.add(buffer);
+        if (error != null) {
+            fail(error);
+        }
+        else {
+            pump();
+        }
+    }
+
+    private void finish(IOException error) {
+        done = true;
+        close();
+        owner.finished(session, this);
+        listener.onComplete(name, file, error);
+    }
+}
@@ -0,0 +1,21 @@
+package br.com.dotofcodex.bluetooth_sample.transfer;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Progress of file transfers in either direction. Runs on the session's reader or writer thread.
+ */
+public interface TransferListener {
+
+    /**
+     * @param transferred bytes acknowledged by the receiver when sending, bytes verified and written when receiving
+     */
+    void onProgress(String name, long transferred, long size);
+
+    /**
+     * {@code error} is {@code null} once the receiver verified the whole file; {@code file} is the source when
+     * sending and the verified copy when receiving.
+     */
+    void onComplete(String name, File file, IOException error);
+}
@@ -0,0 +1,21 @@
+package br.com.dotofcodex.bluetooth_sample.transport;
+
+import java.io.IOException;
+
+/**
+ * Dials one specific peer.
+ */
+public interface Connector {
+
+    String getRemoteAddress();
+
+    /**
+     * Blocks until connected. Each call makes a new connection attempt.
+     */
+    Transport connect() throws IOException;
+
+    /**
+     * Aborts an attempt blocked in {@link #connect()} from another thread, which then throws.
+     */
+    void cancel();
+}
@@ -0,0 +1,73 @@
+package br.com.dotofcodex.bluetooth_sample.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Applies a {@link LinkProfile} to the outgoing direction of another transport, typically TCP. Wrap both ends to
+ * shape both directions. Writes go through a {@link LinkPipe} and a pump thread forwards them once they are due;
+ * when the emulated link breaks the underlying transport is closed.
+ */
+public final class EmulatedTransport implements Transport {
+
+    private final Transport transport;
+    private final LinkPipe pipe;
+    private final Thread pump;
+
+    public EmulatedTransport(Transport transport, LinkProfile profile) throws IOException {
+        super();
+        this.transport = transport;
+        this.pipe = new LinkPipe(profile);
+
+        final InputStream source = pipe.getInputStream();
+        final OutputStream target = transport.getOutputStream();
+        this.pump = new Thread(() -> {
+            byte[] buffer = new byte[4096];
+            try {
+                int read;
+                while ((read = source.read(buffer, 0, buffer.length)) >= 0) {
+                    target.write(buffer, 0, read);
+                    target.flush();
+                }
+            } catch (IOException ignored) {
+                // link broken or closed, either way the peer has to notice
+            }
+            closeQuietly();
+        }, "EmulatedTransport-" + transport.getRemoteAddress());
+        this.pump.setDaemon(true);
+        this.pump.start();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return transport.getRemoteAddress();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return transport.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return pipe.getOutputStream();
+    }
+
+    public void disconnect() {
+        pipe.disconnect();
+        closeQuietly();
+    }
+
+    @Override
+    public void close() throws IOException {
+        pipe.closeReader();
+        transport.close();
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ignored) {  }
+    }
+}
@@ -0,0 +1,166 @@
+package br.com.dotofcodex.bluetooth_sample.transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process address space for {@link InMemoryTransport}s. Servers listen on a name, connectors dial it, and every
+ * link created here follows the network's {@link LinkProfile}. Connecting takes one round trip of link latency.
+ */
+public final class InMemoryNetwork {
+
+    private final LinkProfile profile;
+    private final ConcurrentMap<String, Server> servers;
+    private final AtomicInteger openTransports;
+
+    public InMemoryNetwork() {
+        this(LinkProfile.UNLIMITED);
+    }
+
+    public InMemoryNetwork(LinkProfile profile) {
+        super();
+        this.profile = profile;
+        this.servers = new ConcurrentHashMap<>();
+        this.openTransports = new AtomicInteger();
+    }
+
+    public LinkProfile getProfile() {
+        return this.profile;
+    }
+
+    /**
+     * Number of transport ends created on this network that have not been closed yet.
+     */
+    public int getOpenTransports() {
+        return openTransports.get();
+    }
+
+    /**
+     * Number of servers listening on this network.
+     */
+    public int getListeners() {
+        return servers.size();
+    }
+
+    public TransportServer listen(String address) throws IOException {
+        Server server = new Server(address);
+        if (servers.putIfAbsent(address, server) != null) {
+            throw new IOException("Address already in use: " + address);
+        }
+        return server;
+    }
+
+    public Connector connector(String from, String to) {
+        return new InMemoryConnector(from, to);
+    }
+
+    private InMemoryTransport[] link(String from, String to) {
+        InMemoryTransport[] ends = InMemoryTransport.pair(from, to, profile, (InMemoryTransport transport) -> openTransports.decrementAndGet());
+        openTransports.addAndGet(2);
+        return ends;
+    }
+
+    private final class Server implements TransportServer {
+        private final String address;
+        private final LinkedBlockingQueue<InMemoryTransport> pending;
+        private volatile boolean closed;
+
+        Server(String address) {
+            this.address = address;
+            this.pending = new LinkedBlockingQueue<>();
+        }
+
+        @Override
+        public Transport accept() throws IOException {
+            try {
+                while (!closed) {
+                    InMemoryTransport transport = pending.poll(50, TimeUnit.MILLISECONDS);
+                    if (transport != null) {
+                        return transport;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            throw new IOException("Server closed");
+        }
+
+        boolean offer(InMemoryTransport transport) {
+            return !closed && pending.offer(transport);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            servers.remove(address, this);
+            InMemoryTransport transport;
+            while ((transport = pending.poll()) != null) {
+                transport.close();
+            }
+        }
+    }
+
+    private final class InMemoryConnector implements Connector {
+        private final String from;
+        private final String to;
+        private volatile Thread connecting;
+        private volatile boolean cancelled;
+
+        InMemoryConnector(String from, String to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return this.to;
+        }
+
+        @Override
+        public Transport connect() throws IOException {
+            cancelled = false;
+            connecting = Thread.currentThread();
+            try {
+                long roundTrip = 2 * profile.getLatencyNanos();
+                if (roundTrip > 0) {
+                    TimeUnit.NANOSECONDS.sleep(roundTrip);
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Connect to " + to + " cancelled");
+            } finally {
+                connecting = null;
+            }
+            if (cancelled) {
+                throw new InterruptedIOException("Connect to " + to + " cancelled");
+            }
+
+            Server server = servers.get(to);
+            if (server == null) {
+                throw new IOException("Connection refused: " + to);
+            }
+
+            InMemoryTransport[] ends = link(from, to);
+            if (!server.offer(ends[1])) {
+                ends[0].close();
+                ends[1].close();
+                throw new IOException("Connection refused: " + to);
+            }
+            return ends[0];
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            Thread thread = connecting;
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+}
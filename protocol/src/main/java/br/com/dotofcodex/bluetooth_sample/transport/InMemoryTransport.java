@@ -0,0 +1,91 @@
+package br.com.dotofcodex.bluetooth_sample.transport;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * One end of an in-process link made of two {@link LinkPipe}s. Stands in for an RFCOMM socket in JVM tests and
+ * benchmarks.
+ */
+public final class InMemoryTransport implements Transport {
+
+    public interface CloseListener {
+        void onClosed(InMemoryTransport transport);
+    }
+
+    private final String remoteAddress;
+    private final LinkPipe in;
+    private final LinkPipe out;
+    private final CloseListener listener;
+    private boolean closed;
+
+    private InMemoryTransport(String remoteAddress, LinkPipe in, LinkPipe out, CloseListener listener) {
+        super();
+        this.remoteAddress = remoteAddress;
+        this.in = in;
+        this.out = out;
+        this.listener = listener;
+    }
+
+    /**
+     * Creates both ends of a link; the first is the end at {@code first}, talking to {@code second}.
+     */
+    public static InMemoryTransport[] pair(String first, String second, LinkProfile profile) {
+        return pair(first, second, profile, null);
+    }
+
+    static InMemoryTransport[] pair(String first, String second, LinkProfile profile, CloseListener listener) {
+        LinkPipe forward = new LinkPipe(profile);
+        // the reverse direction draws its own random sequence
+        LinkPipe backward = new LinkPipe(profile.toBuilder().seed(profile.getSeed() + 1).build());
+        return new InMemoryTransport[] {
+                new InMemoryTransport(second, backward, forward, listener),
+                new InMemoryTransport(first, forward, backward, listener)
+        };
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return this.remoteAddress;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return in.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out.getOutputStream();
+    }
+
+    /**
+     * Breaks the link in both directions, as a radio dropout would.
+     */
+    public void disconnect() {
+        in.disconnect();
+        out.disconnect();
+        close();
+    }
+
+    public boolean isClosed() {
+        synchronized (this) {
+            return closed;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        out.closeWriter();
+        in.closeReader();
+        if (listener != null) {
+            listener.onClosed(this);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package br.com.dotofcodex.bluetooth_sample.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One direction of an emulated link. Every write is stamped with the time it becomes readable, derived from the
+ * profile's bandwidth, latency and jitter, and the reader blocks until then. Bytes are never reordered. The pipe
+ * holds at most {@code capacity} bytes in flight, beyond that writers block like on a full socket buffer.
+ */
+public final class LinkPipe {
+
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private final LinkProfile profile;
+    private final int capacity;
+    private final Random random;
+    private final ArrayDeque<Chunk> chunks;
+    private final InputStream input;
+    private final OutputStream output;
+
+    private int buffered;
+    private long written;
+    private long linkFreeAt;
+    private long lastDeliverAt;
+    private boolean writerClosed;
+    private boolean readerClosed;
+    private IOException broken;
+
+    public LinkPipe(LinkProfile profile) {
+        this(profile, DEFAULT_CAPACITY);
+    }
+
+    public LinkPipe(LinkProfile profile, int capacity) {
+        super();
+        this.profile = profile;
+        this.capacity = capacity;
+        this.random = new Random(profile.getSeed());
+        this.chunks = new ArrayDeque<>();
+        this.input = new PipeInputStream();
+        this.output = new PipeOutputStream();
+    }
+
+    public InputStream getInputStream() {
+        return this.input;
+    }
+
+    public OutputStream getOutputStream() {
+        return this.output;
+    }
+
+    /**
+     * Fails both ends immediately, as if the radio link had been lost.
+     */
+    public synchronized void disconnect() {
+        if (broken == null) {
+            broken = new IOException("Link disconnected");
+        }
+        chunks.clear();
+        buffered = 0;
+        notifyAll();
+    }
+
+    public synchronized boolean isBroken() {
+        return broken != null;
+    }
+
+    /**
+     * Lets the reader drain what is in flight and then see the end of the stream.
+     */
+    synchronized void closeWriter() {
+        writerClosed = true;
+        notifyAll();
+    }
+
+    synchronized void closeReader() {
+        readerClosed = true;
+        chunks.clear();
+        buffered = 0;
+        notifyAll();
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int count = Math.min(len, capacity);
+            while (true) {
+                checkWritable();
+                if (buffered + count <= capacity) {
+                    break;
+                }
+                await(0);
+            }
+
+            written += count;
+            if (profile.getDisconnectAfterBytes() > 0 && written > profile.getDisconnectAfterBytes()
+                    || profile.getDisconnectRate() > 0 && random.nextDouble() < profile.getDisconnectRate()) {
+                disconnect();
+                checkWritable();
+            }
+
+            if (profile.getDropRate() <= 0 || random.nextDouble() >= profile.getDropRate()) {
+                enqueue(b, off, count);
+            }
+            off += count;
+            len -= count;
+        }
+    }
+
+    private void enqueue(byte[] b, int off, int len) {
+        long now = System.nanoTime();
+        long deliverAt = now;
+
+        if (profile.isShaped()) {
+            if (profile.getBytesPerSecond() > 0) {
+                linkFreeAt = Math.max(now, linkFreeAt) + len * TimeUnit.SECONDS.toNanos(1) / profile.getBytesPerSecond();
+                deliverAt = linkFreeAt;
+            }
+            deliverAt += profile.getLatencyNanos();
+            if (profile.getJitterNanos() > 0) {
+                deliverAt += (long) (random.nextDouble() * profile.getJitterNanos());
+            }
+            // jitter must not reorder a byte stream
+            deliverAt = Math.max(deliverAt, lastDeliverAt);
+            lastDeliverAt = deliverAt;
+        }
+
+        byte[] data = new byte[len];
+        System.arraycopy(b, off, data, 0, len);
+        chunks.addLast(new Chunk(data, deliverAt));
+        buffered += len;
+        notifyAll();
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        while (true) {
+            if (readerClosed) {
+                throw new IOException("Pipe closed");
+            }
+            if (broken != null) {
+                throw broken;
+            }
+
+            Chunk head = chunks.peekFirst();
+            if (head == null) {
+                if (writerClosed) {
+                    return -1;
+                }
+                await(0);
+                continue;
+            }
+
+            long delay = head.deliverAt - System.nanoTime();
+            if (delay > 0) {
+                await(delay);
+                continue;
+            }
+
+            // take everything that is due, up to len
+            int total = 0;
+            while (head != null && total < len && head.deliverAt <= System.nanoTime()) {
+                int count = Math.min(len - total, head.data.length - head.position);
+                System.arraycopy(head.data, head.position, b, off + total, count);
+                head.position += count;
+                total += count;
+                if (head.position == head.data.length) {
+                    chunks.pollFirst();
+                    head = chunks.peekFirst();
+                }
+            }
+            buffered -= total;
+            notifyAll();
+            return total;
+        }
+    }
+
+    private synchronized int available() {
+        int total = 0;
+        long now = System.nanoTime();
+        for (Chunk chunk : chunks) {
+            if (chunk.deliverAt > now) {
+                break;
+            }
+            total += chunk.data.length - chunk.position;
+        }
+        return total;
+    }
+
+    private void checkWritable() throws IOException {
+        if (broken != null) {
+            throw broken;
+        }
+        if (readerClosed || writerClosed) {
+            throw new IOException("Pipe closed");
+        }
+    }
+
+    private void await(long nanos) throws InterruptedIOException {
+        try {
+            if (nanos > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, nanos);
+            }
+            else {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static final class Chunk {
+        final byte[] data;
+        final long deliverAt;
+        int position;
+
+        Chunk(byte[] data, long deliverAt) {
+            this.data = data;
+            this.deliverAt = deliverAt;
+        }
+    }
+
+    private final class PipeInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int read = LinkPipe.this.read(one, 0, 1);
+            return read < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return LinkPipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return LinkPipe.this.available();
+        }
+
+        @Override
+        public void close() {
+            closeReader();
+        }
+    }
+
+    private final class PipeOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            LinkPipe.this.write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            LinkPipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            closeWriter();
+        }
+    }
+}
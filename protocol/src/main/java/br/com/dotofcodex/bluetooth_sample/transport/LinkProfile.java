@@ -0,0 +1,155 @@
+package br.com.dotofcodex.bluetooth_sample.transport;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Characteristics the emulated transports impose on every byte they carry: a bandwidth cap, a one-way latency
+ * with random jitter, writes that are silently lost and links that break. Zero means unlimited or disabled.
+ */
+public final class LinkProfile {
+
+    public static final LinkProfile UNLIMITED = builder().build();
+
+    private final long bytesPerSecond;
+    private final long latencyNanos;
+    private final long jitterNanos;
+    private final double dropRate;
+    private final double disconnectRate;
+    private final long disconnectAfterBytes;
+    private final long seed;
+
+    private LinkProfile(Builder builder) {
+        super();
+        this.bytesPerSecond = builder.bytesPerSecond;
+        this.latencyNanos = builder.latencyNanos;
+        this.jitterNanos = builder.jitterNanos;
+        this.dropRate = builder.dropRate;
+        this.disconnectRate = builder.disconnectRate;
+        this.disconnectAfterBytes = builder.disconnectAfterBytes;
+        this.seed = builder.seed;
+    }
+
+    /**
+     * What a classic bluetooth link tends to give an RFCOMM socket in practice.
+     */
+    public static LinkProfile rfcomm() {
+        return builder()
+                .bandwidth(80 * 1024)
+                .latency(20, TimeUnit.MILLISECONDS)
+                .jitter(10, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public Builder toBuilder() {
+        Builder builder = new Builder();
+        builder.bytesPerSecond = bytesPerSecond;
+        builder.latencyNanos = latencyNanos;
+        builder.jitterNanos = jitterNanos;
+        builder.dropRate = dropRate;
+        builder.disconnectRate = disconnectRate;
+        builder.disconnectAfterBytes = disconnectAfterBytes;
+        builder.seed = seed;
+        return builder;
+    }
+
+    public long getBytesPerSecond() {
+        return this.bytesPerSecond;
+    }
+
+    public long getLatencyNanos() {
+        return this.latencyNanos;
+    }
+
+    public long getJitterNanos() {
+        return this.jitterNanos;
+    }
+
+    public double getDropRate() {
+        return this.dropRate;
+    }
+
+    public double getDisconnectRate() {
+        return this.disconnectRate;
+    }
+
+    public long getDisconnectAfterBytes() {
+        return this.disconnectAfterBytes;
+    }
+
+    public long getSeed() {
+        return this.seed;
+    }
+
+    public boolean isShaped() {
+        return bytesPerSecond > 0 || latencyNanos > 0 || jitterNanos > 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LinkProfile[%d B/s, latency %d us, jitter %d us, drop %.4f, disconnect %.4f/%d B]",
+                bytesPerSecond, latencyNanos / 1000, jitterNanos / 1000, dropRate, disconnectRate, disconnectAfterBytes);
+    }
+
+    public static final class Builder {
+        private long bytesPerSecond;
+        private long latencyNanos;
+        private long jitterNanos;
+        private double dropRate;
+        private double disconnectRate;
+        private long disconnectAfterBytes;
+        private long seed = 42;
+
+        private Builder() {
+            super();
+        }
+
+        public Builder bandwidth(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        public Builder latency(long latency, TimeUnit unit) {
+            this.latencyNanos = unit.toNanos(latency);
+            return this;
+        }
+
+        public Builder jitter(long jitter, TimeUnit unit) {
+            this.jitterNanos = unit.toNanos(jitter);
+            return this;
+        }
+
+        /**
+         * Probability that a single write is lost on the way; the stream carries on with the bytes after it.
+         */
+        public Builder dropRate(double dropRate) {
+            this.dropRate = dropRate;
+            return this;
+        }
+
+        /**
+         * Probability that a single write breaks the link instead of being delivered.
+         */
+        public Builder disconnectRate(double disconnectRate) {
+            this.disconnectRate = disconnectRate;
+            return this;
+        }
+
+        public Builder disconnectAfter(long bytes) {
+            this.disconnectAfterBytes = bytes;
+            return this;
+        }
+
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public LinkProfile build() {
+            return new LinkProfile(this);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package br.com.dotofcodex.bluetooth_sample.transport;
+
+import java.io.IOException;
+
+/**
+ * Hands out a transport that is already connected on the first {@link #connect()}, and dials through another
+ * connector after that, so the connection that won a race is not dialled twice.
+ */
+public final class PrimedConnector implements Connector {
+
+    private final Connector delegate;
+    private Transport primed;
+
+    public PrimedConnector(Transport primed, Connector delegate) {
+        super();
+        this.primed = primed;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return delegate.getRemoteAddress();
+    }
+
+    @Override
+    public Transport connect() throws IOException {
+        synchronized (this) {
+            Transport transport = primed;
+            if (transport != null) {
+                primed = null;
+                return transport;
+            }
+        }
+        return delegate.connect();
+    }
+
+    @Override
+    public void cancel() {
+        Transport transport;
+        synchronized (this) {
+            transport = primed;
+            primed = null;
+        }
+        if (transport != null) {
+            try {
+                transport.close();
+            } catch (IOException ignored) {  }
+        }
+        delegate.cancel();
+    }
+}
@@ -0,0 +1,47 @@
+package br.com.dotofcodex.bluetooth_sample.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+public final class TcpConnector implements Connector {
+
+    private final int port;
+    private final int timeoutMillis;
+    private volatile Socket socket;
+
+    public TcpConnector(int port, int timeoutMillis) {
+        super();
+        this.port = port;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return InetAddress.getLoopbackAddress().getHostAddress() + ":" + port;
+    }
+
+    @Override
+    public Transport connect() throws IOException {
+        Socket socket = new Socket();
+        this.socket = socket;
+        try {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), timeoutMillis);
+            return new TcpTransport(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void cancel() {
+        Socket socket = this.socket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {  }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package br.com.dotofcodex.bluetooth_sample.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Localhost TCP stand-in for an RFCOMM socket, for runs that should cross a real kernel socket.
+ */
+public final class TcpTransport implements Transport {
+
+    private final Socket socket;
+
+    public TcpTransport(Socket socket) throws IOException {
+        super();
+        this.socket = socket;
+        // frames are already coalesced by the writer, nagle would only add latency
+        socket.setTcpNoDelay(true);
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return socket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,32 @@
+package br.com.dotofcodex.bluetooth_sample.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+
+/**
+ * Listens on the loopback interface. Pass port 0 to get a free port, see {@link #getPort()}.
+ */
+public final class TcpTransportServer implements TransportServer {
+
+    private final ServerSocket serverSocket;
+
+    public TcpTransportServer(int port) throws IOException {
+        super();
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public Transport accept() throws IOException {
+        return new TcpTransport(serverSocket.accept());
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
@@ -0,0 +1,19 @@
+package br.com.dotofcodex.bluetooth_sample.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A connected, reliable byte stream to one peer, such as an RFCOMM socket. Closing it makes blocked reads and
+ * writes on both ends fail or see the end of the stream.
+ */
+public interface Transport extends Closeable {
+
+    String getRemoteAddress();
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+}
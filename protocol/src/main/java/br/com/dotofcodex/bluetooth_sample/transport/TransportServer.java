@@ -0,0 +1,12 @@
+package br.com.dotofcodex.bluetooth_sample.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Listening endpoint. {@link #accept()} blocks until a peer connects; closing the server makes it throw.
+ */
+public interface TransportServer extends Closeable {
+
+    Transport accept() throws IOException;
+}
@@ -0,0 +1,152 @@
+package br.com.dotofcodex.bluetooth_sample.delivery;
+
+import br.com.dotofcodex.bluetooth_sample.metrics.Histogram;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+public class FrameBatcherTest {
+
+    @Test
+    public void batcher_schedulesOneDrainForManyOffers() {
+        List<Runnable> scheduled = new ArrayList<>();
+        List<String> delivered = new ArrayList<>();
+        FrameBatcher<String> batcher = new FrameBatcher<>(10, scheduled::add, (List<String> batch, int dropped) -> delivered.addAll(batch));
+
+        batcher.offer("a");
+        batcher.offer("b");
+        batcher.offer("c");
+        assertEquals(1, scheduled.size());
+
+        scheduled.get(0).run();
+        assertEquals(3, delivered.size());
+
+        batcher.offer("d");
+        assertEquals(2, scheduled.size());
+    }
+
+    @Test
+    public void batcher_dropsOldestWhenTheUiFallsBehind() {
+        List<Runnable> scheduled = new ArrayList<>();
+        List<String> delivered = new ArrayList<>();
+        AtomicInteger lost = new AtomicInteger();
+        FrameBatcher<String> batcher = new FrameBatcher<>(2, scheduled::add, (List<String> batch, int dropped) -> {
+            delivered.addAll(batch);
+            lost.addAndGet(dropped);
+        });
+
+        for (String item : new String[] { "1", "2", "3", "4", "5" }) {
+            batcher.offer(item);
+        }
+        scheduled.get(0).run();
+
+        assertEquals(2, delivered.size());
+        assertEquals("4", delivered.get(0));
+        assertEquals("5", delivered.get(1));
+        assertEquals(3, lost.get());
+    }
+
+    @Test
+    public void batcher_recordsDeliveryLatencyOfTheItemsItKeeps() {
+        List<Runnable> scheduled = new ArrayList<>();
+        Histogram latency = new Histogram();
+        FrameBatcher<String> batcher = new FrameBatcher<>(2, scheduled::add, (List<String> batch, int dropped) -> { }, latency);
+
+        long now = System.nanoTime();
+        batcher.offer("dropped", now - TimeUnit.SECONDS.toNanos(10));
+        batcher.offer("old", now - TimeUnit.MILLISECONDS.toNanos(50));
+        batcher.offer("new");
+        scheduled.get(0).run();
+
+        Histogram.Snapshot snapshot = latency.snapshot();
+        assertEquals(2, snapshot.getCount());
+        assertTrue(snapshot.getMax() >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(snapshot.getMax() < TimeUnit.SECONDS.toNanos(10));
+    }
+
+    @Test
+    public void uiWorkPerSecond_staysFlatAsIncomingRateRises() throws InterruptedException {
+        int[] rates = { 10000, 50000, 200000 };
+        long[] work = new long[rates.length];
+        for (int i = 0; i < rates.length; i++) {
+            Result result = run(rates[i], 100, 200, 1000);
+            work[i] = result.uiNanos;
+            System.out.printf("%6d msg/s in: %3d drains/s, %6d items/s delivered, %5.2f ms ui work/s%n",
+                    rates[i], result.drains, result.items, result.uiNanos / 1e6);
+
+            // never more than one drain per 60 Hz frame, never more than a batch worth of items
+            assertTrue(result.drains <= 62);
+            assertTrue(result.items <= result.drains * 100);
+        }
+
+        // input grew twentyfold, ui work must not follow
+        assertTrue("ui work " + work[0] + " ns -> " + work[2] + " ns", work[2] < work[0] * 4);
+    }
+
+    private static Result run(int rate, int capacity, int historySize, long millis) throws InterruptedException {
+        Result result = new Result();
+        MessageHistory<String> history = new MessageHistory<>(historySize);
+        AtomicBoolean due = new AtomicBoolean();
+        Runnable[] drain = new Runnable[1];
+        FrameBatcher<String> batcher = new FrameBatcher<>(capacity, (Runnable runnable) -> {
+            drain[0] = runnable;
+            due.set(true);
+        }, (List<String> batch, int dropped) -> {
+            history.addAll(batch);
+            result.items += batch.size();
+        });
+
+        String[] messages = new String[1000];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = "message " + i;
+        }
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread producer = new Thread(() -> {
+            int perMilli = rate / 1000;
+            long next = System.nanoTime();
+            int n = 0;
+            while (running.get()) {
+                for (int i = 0; i < perMilli; i++) {
+                    batcher.offer(messages[n++ % messages.length]);
+                }
+                next += TimeUnit.MILLISECONDS.toNanos(1);
+                LockSupport.parkNanos(next - System.nanoTime());
+            }
+        });
+        producer.start();
+
+        // the main thread: one vsync every 16.7 ms, runs the drain if one was scheduled
+        long frame = TimeUnit.MICROSECONDS.toNanos(16667);
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        long vsync = System.nanoTime();
+        while (vsync + frame <= end) {
+            vsync += frame;
+            LockSupport.parkNanos(vsync - System.nanoTime());
+            if (due.getAndSet(false)) {
+                long start = System.nanoTime();
+                drain[0].run();
+                result.uiNanos += System.nanoTime() - start;
+                result.drains++;
+            }
+        }
+
+        running.set(false);
+        producer.join();
+        return result;
+    }
+
+    private static class Result {
+        int drains;
+        long items;
+        long uiNanos;
+    }
+}
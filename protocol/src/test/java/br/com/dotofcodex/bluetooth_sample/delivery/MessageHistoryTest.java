@@ -0,0 +1,36 @@
+package br.com.dotofcodex.bluetooth_sample.delivery;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class MessageHistoryTest {
+
+    @Test
+    public void history_keepsMostRecentEntriesOldestFirst() {
+        MessageHistory<String> history = new MessageHistory<>(3);
+        assertEquals(0, history.addAll(Arrays.asList("a", "b")));
+        assertEquals(1, history.addAll(Arrays.asList("c", "d")));
+
+        assertEquals(3, history.size());
+        assertEquals("b", history.get(0));
+        assertEquals("d", history.get(2));
+    }
+
+    @Test
+    public void history_keepsOnlyTheTailOfAnOversizedBatch() {
+        MessageHistory<String> history = new MessageHistory<>(2);
+        history.add("old");
+        assertEquals(1, history.addAll(Arrays.asList("1", "2", "3", "4")));
+
+        assertEquals("3", history.get(0));
+        assertEquals("4", history.get(1));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void history_rejectsIndexPastSize() {
+        new MessageHistory<String>(4).get(0);
+    }
+}
@@ -0,0 +1,286 @@
+package br.com.dotofcodex.bluetooth_sample.discovery;
+
+import br.com.dotofcodex.bluetooth_sample.transport.Connector;
+import br.com.dotofcodex.bluetooth_sample.transport.Transport;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ConnectOrchestratorTest {
+
+    private static final List<ConnectOrchestrator.Rule> LENOVO = Collections.singletonList(ConnectOrchestrator.nameContains("lenovo", 1));
+
+    @Test
+    public void race_picksTheFastestViablePeer() throws Exception {
+        // a room full of devices: some answer slowly, some refuse after a while, some never answer
+        FakeConnector[] room = {
+                new FakeConnector("a", 900, true),
+                new FakeConnector("b", 80, false),
+                new FakeConnector("c", 150, true),
+                new FakeConnector("d", 400, true),
+                new FakeConnector("e", 30, false),
+                new FakeConnector("f", Long.MAX_VALUE, true),
+        };
+        Outcome outcome = new Outcome();
+        ConnectOrchestrator orchestrator = new ConnectOrchestrator(LENOVO, 3, 2000, outcome);
+        for (FakeConnector connector : room) {
+            assertTrue(orchestrator.offer(connector, "Lenovo " + connector.getRemoteAddress(), -60));
+        }
+        orchestrator.finish();
+
+        assertTrue(outcome.done.await(5, TimeUnit.SECONDS));
+        assertSame(room[2], outcome.winner);
+        assertSame(room[2], orchestrator.getWinner());
+        assertNull(outcome.error);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(orchestrator.getElapsedNanos());
+        System.out.printf("first connection after %d ms over %d attempts, dialling in order would take %d ms%n",
+                elapsed, orchestrator.getAttempts(), 900 + 80 + 150);
+        assertTrue("took " + elapsed + " ms", elapsed < 600);
+
+        // the losers still dialling were cancelled, the ones still queued never dialled
+        assertTrue(room[0].cancelled);
+        assertTrue(room[3].cancelled);
+        assertEquals(0, room[4].dials);
+        assertEquals(0, room[5].dials);
+        assertEquals(4, orchestrator.getAttempts());
+    }
+
+    @Test
+    public void race_dialsTheBestRankedCandidateWhenAnAttemptFrees() throws Exception {
+        DeviceCache cache = new DeviceCache(null, DeviceCache.DEFAULT_TTL_MILLIS, 16, System::currentTimeMillis);
+        cache.onConnected("known", "Phone");
+        List<ConnectOrchestrator.Rule> rules = Arrays.asList(ConnectOrchestrator.nameContains("lenovo", 1),
+                ConnectOrchestrator.connectedBefore(cache, 2));
+
+        List<String> dialled = new CopyOnWriteArrayList<>();
+        Outcome outcome = new Outcome();
+        ConnectOrchestrator orchestrator = new ConnectOrchestrator(rules, 1, 2000, outcome);
+        assertTrue(orchestrator.offer(new FakeConnector("busy", 100, false, dialled), "Lenovo busy", -40));
+        assertTrue(orchestrator.offer(new FakeConnector("weak", 10, true, dialled), "Lenovo weak", -90));
+        assertTrue(orchestrator.offer(new FakeConnector("strong", 10, true, dialled), "Lenovo strong", -50));
+        assertTrue(orchestrator.offer(new FakeConnector("known", 10, true, dialled), "Phone", -95));
+        assertFalse(orchestrator.offer(new FakeConnector("other", 10, true, dialled), "Headset", -30));
+        assertFalse(orchestrator.offer(new FakeConnector("weak", 10, true, dialled), "Lenovo weak", -90));
+
+        assertTrue(outcome.done.await(5, TimeUnit.SECONDS));
+        assertEquals("known", outcome.winner.getRemoteAddress());
+        assertEquals(Arrays.asList("busy", "known"), dialled);
+        assertFalse(orchestrator.offer(new FakeConnector("late", 10, true, dialled), "Lenovo late", -30));
+    }
+
+    @Test
+    public void race_failsWithTheLastErrorOnceEveryAttemptTimedOut() throws Exception {
+        FakeConnector silent = new FakeConnector("silent", Long.MAX_VALUE, true);
+        Outcome outcome = new Outcome();
+        ConnectOrchestrator orchestrator = new ConnectOrchestrator(LENOVO, 2, 100, outcome);
+        orchestrator.offer(silent, "Lenovo", -60);
+        orchestrator.finish();
+
+        assertTrue(outcome.done.await(5, TimeUnit.SECONDS));
+        assertNull(outcome.winner);
+        assertTrue(String.valueOf(outcome.error), outcome.error instanceof SocketTimeoutException);
+        assertTrue(silent.cancelled);
+        assertTrue(orchestrator.isDone());
+    }
+
+    @Test
+    public void race_closesTransportsThatConnectAfterTheWinner() throws Exception {
+        FakeConnector fast = new FakeConnector("fast", 10, true);
+        // ignores cancel, like a socket that connected just as it was closed
+        FakeConnector stubborn = new FakeConnector("stubborn", 150, true) {
+            @Override
+            public void cancel() {
+                cancelled = true;
+            }
+        };
+        Outcome outcome = new Outcome();
+        ConnectOrchestrator orchestrator = new ConnectOrchestrator(LENOVO, 2, 2000, outcome);
+        orchestrator.offer(stubborn, "Lenovo", -60);
+        orchestrator.offer(fast, "Lenovo", -60);
+
+        assertTrue(outcome.done.await(5, TimeUnit.SECONDS));
+        assertSame(fast, outcome.winner);
+        assertTrue(stubborn.connected.await(5, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!stubborn.transport.closed && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(stubborn.transport.closed);
+        assertFalse(fast.transport.closed);
+    }
+
+    @Test
+    public void race_neverWinsWithALinkItsDeadlineClosed() throws Exception {
+        CountDownLatch deadline = new CountDownLatch(1);
+        // connects right at the deadline, whose cancel closes the new link as an rfcomm socket would
+        FakeConnector onTime = new FakeConnector("on time", 0, true) {
+            @Override
+            public Transport connect() throws IOException {
+                transport = new FakeTransport("on time");
+                try {
+                    deadline.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                return transport;
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                transport.close();
+                deadline.countDown();
+            }
+        };
+        Outcome outcome = new Outcome();
+        ConnectOrchestrator orchestrator = new ConnectOrchestrator(LENOVO, 1, 50, outcome);
+        orchestrator.offer(onTime, "Lenovo", -60);
+        orchestrator.finish();
+
+        assertTrue(outcome.done.await(5, TimeUnit.SECONDS));
+        assertNull(outcome.winner);
+        assertTrue(String.valueOf(outcome.error), outcome.error instanceof SocketTimeoutException);
+        assertTrue(onTime.transport.closed);
+
+        // connecting before the deadline wins, and the deadline leaves the link alone
+        FakeConnector early = new FakeConnector("early", 10, true);
+        outcome = new Outcome();
+        orchestrator = new ConnectOrchestrator(LENOVO, 1, 50, outcome);
+        orchestrator.offer(early, "Lenovo", -60);
+        assertTrue(outcome.done.await(5, TimeUnit.SECONDS));
+        assertSame(early, outcome.winner);
+        Thread.sleep(100);
+        assertFalse(early.cancelled);
+        assertFalse(early.transport.closed);
+    }
+
+    @Test
+    public void finish_withoutCandidatesFailsRightAway() {
+        Outcome outcome = new Outcome();
+        ConnectOrchestrator orchestrator = new ConnectOrchestrator(LENOVO, outcome);
+        orchestrator.finish();
+        assertEquals(0, outcome.done.getCount());
+        assertNull(outcome.error);
+        assertNull(orchestrator.getWinner());
+    }
+
+    private static final class Outcome implements ConnectOrchestrator.Listener {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Connector winner;
+        volatile IOException error;
+
+        @Override
+        public void onConnected(ConnectOrchestrator orchestrator, Connector winner, Transport transport) {
+            this.winner = winner;
+            done.countDown();
+        }
+
+        @Override
+        public void onFailed(ConnectOrchestrator orchestrator, IOException error) {
+            this.error = error;
+            done.countDown();
+        }
+    }
+
+    /**
+     * Answers after a fixed delay, or refuses after it when not viable.
+     */
+    private static class FakeConnector implements Connector {
+        private final String address;
+        private final long latencyMillis;
+        private final boolean viable;
+        private final List<String> dialled;
+        private final CountDownLatch aborted = new CountDownLatch(1);
+        final CountDownLatch connected = new CountDownLatch(1);
+        volatile boolean cancelled;
+        volatile int dials;
+        volatile FakeTransport transport;
+
+        FakeConnector(String address, long latencyMillis, boolean viable) {
+            this(address, latencyMillis, viable, null);
+        }
+
+        FakeConnector(String address, long latencyMillis, boolean viable, List<String> dialled) {
+            this.address = address;
+            this.latencyMillis = latencyMillis;
+            this.viable = viable;
+            this.dialled = dialled;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return this.address;
+        }
+
+        @Override
+        public Transport connect() throws IOException {
+            dials++;
+            if (dialled != null) {
+                dialled.add(address);
+            }
+            try {
+                if (aborted.await(latencyMillis, TimeUnit.MILLISECONDS)) {
+                    throw new InterruptedIOException("Connect to " + address + " cancelled");
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (!viable) {
+                throw new IOException("Connection refused: " + address);
+            }
+            transport = new FakeTransport(address);
+            connected.countDown();
+            return transport;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            aborted.countDown();
+        }
+    }
+
+    private static final class FakeTransport implements Transport {
+        private final String address;
+        volatile boolean closed;
+
+        FakeTransport(String address) {
+            this.address = address;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return this.address;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return new ByteArrayOutputStream();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package br.com.dotofcodex.bluetooth_sample.discovery;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DeviceCacheTest {
+
+    private static final long TTL = 60000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final FakeClock clock = new FakeClock();
+
+    @Test
+    public void onFound_keepsNameAndOutcomeAcrossSightings() {
+        DeviceCache cache = new DeviceCache(null, TTL, 16, clock);
+        assertNull(cache.onFound("00:11", "Lenovo", -60));
+        cache.onConnected("00:11", null);
+
+        clock.now += 1000;
+        DeviceCache.Entry previous = cache.onFound("00:11", null, -70);
+        assertEquals(-60, previous.getRssi());
+
+        DeviceCache.Entry entry = cache.get("00:11");
+        assertEquals("Lenovo", entry.getName());
+        assertEquals(-70, entry.getRssi());
+        assertEquals(1000, entry.getLastSeenMillis());
+        assertEquals(DeviceCache.OUTCOME_CONNECTED, entry.getOutcome());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void get_expiresEntriesPastTheTtl() {
+        DeviceCache cache = new DeviceCache(null, TTL, 16, clock);
+        cache.onFound("00:11", "a", -60);
+        clock.now += TTL;
+        assertNotNull(cache.get("00:11"));
+        clock.now += 1;
+        assertNull(cache.get("00:11"));
+        assertEquals(0, cache.size());
+        // an expired entry is news again
+        assertNull(cache.onFound("00:11", "a", -60));
+    }
+
+    @Test
+    public void getLastConnected_isTheNewestSuccessfulDial() {
+        DeviceCache cache = new DeviceCache(null, TTL, 16, clock);
+        assertNull(cache.getLastConnected());
+
+        cache.onConnected("00:11", "a");
+        clock.now += 10;
+        cache.onConnected("00:22", "b");
+        assertEquals("00:22", cache.getLastConnected().getAddress());
+
+        clock.now += 10;
+        cache.onConnectFailed("00:22");
+        assertNull(cache.getLastConnected());
+        assertEquals(DeviceCache.OUTCOME_FAILED, cache.get("00:22").getOutcome());
+        assertEquals("b", cache.get("00:22").getName());
+
+        clock.now += 10;
+        cache.onConnected("00:11", null);
+        assertEquals("a", cache.getLastConnected().getName());
+
+        clock.now += TTL + 1;
+        assertNull(cache.getLastConnected());
+    }
+
+    @Test
+    public void capacity_evictsTheLeastRecentlyUsed() {
+        DeviceCache cache = new DeviceCache(null, TTL, 3, clock);
+        cache.onFound("1", null, 0);
+        cache.onFound("2", null, 0);
+        cache.onFound("3", null, 0);
+        cache.get("1");
+        cache.onFound("4", null, 0);
+
+        assertEquals(3, cache.size());
+        assertNull(cache.get("2"));
+        assertNotNull(cache.get("1"));
+    }
+
+    @Test
+    public void save_roundTripsLiveEntries() throws IOException {
+        File file = new File(folder.getRoot(), "devices.cache");
+        DeviceCache cache = new DeviceCache(file, TTL, 16, clock);
+        cache.onFound("00:11", "old", -80);
+        clock.now += TTL / 2;
+        cache.onFound("00:22", null, DeviceCache.UNKNOWN_RSSI);
+        cache.onConnected("00:33", "dialled");
+        cache.save();
+
+        clock.now += TTL / 2 + 1;
+        DeviceCache loaded = new DeviceCache(file, TTL, 16, clock);
+        loaded.load();
+
+        List<DeviceCache.Entry> entries = loaded.getEntries();
+        assertEquals(2, entries.size());
+        assertNull(loaded.get("00:11"));
+        assertNull(loaded.get("00:22").getName());
+        assertEquals(DeviceCache.UNKNOWN_RSSI, loaded.get("00:22").getRssi());
+        assertEquals("00:33", loaded.getLastConnected().getAddress());
+        assertFalse(new File(folder.getRoot(), "devices.cache.tmp").exists());
+    }
+
+    @Test
+    public void load_startsEmptyWithoutAUsableFile() throws IOException {
+        File file = new File(folder.getRoot(), "devices.cache");
+        DeviceCache cache = new DeviceCache(file, TTL, 16, clock);
+        cache.load();
+        assertEquals(0, cache.size());
+
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+        }
+        cache.onFound("00:11", null, 0);
+        cache.load();
+        assertEquals(0, cache.size());
+    }
+
+    private static final class FakeClock implements DeviceCache.Clock {
+        long now;
+
+        @Override
+        public long millis() {
+            return now;
+        }
+    }
+}
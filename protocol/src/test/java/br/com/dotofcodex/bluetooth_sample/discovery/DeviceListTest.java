@@ -0,0 +1,122 @@
+package br.com.dotofcodex.bluetooth_sample.discovery;
+
+import br.com.dotofcodex.bluetooth_sample.protocol.AllocationMeter;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DeviceListTest {
+
+    // built once, so making them is no part of what is measured
+    private static final String[] ADDRESSES = new String[1024];
+
+    static {
+        for (int i = 0; i < ADDRESSES.length; i++) {
+            ADDRESSES[i] = String.format("00:00:00:00:%02X:%02X", i >> 8, i & 0xff);
+        }
+    }
+
+    private final Counting counting = new Counting();
+    private final DeviceList list = new DeviceList(counting);
+
+    @Test
+    public void bondedAndFound_shareOneRow() {
+        list.onBonded("00:11", "Lenovo");
+        list.onFound("00:22", null, -80);
+        list.onFound("00:11", null, -60);
+        list.setConnected("00:11", true);
+
+        assertEquals(2, list.size());
+        DeviceList.Device device = list.get(list.indexOf("00:11"));
+        assertEquals("Lenovo", device.getName());
+        assertEquals(-60, device.getRssi());
+        assertTrue(device.isBonded());
+        assertTrue(device.isConnected());
+        assertEquals("Lenovo  00:11  -60 dBm  connected", device.toString());
+        assertEquals(2, counting.inserted);
+        assertEquals(2, counting.changed);
+    }
+
+    @Test
+    public void sameValues_reportNothing() {
+        list.onFound("00:11", "Moto", -60);
+        list.onFound("00:11", "Moto", -60);
+        list.onFound("00:11", null, -60);
+        list.setConnected("00:11", false);
+        list.setConnected("00:22", false);
+
+        assertEquals(1, list.size());
+        assertEquals(1, counting.inserted);
+        assertEquals(0, counting.changed);
+        assertEquals(-1, list.indexOf("00:22"));
+    }
+
+    @Test
+    public void updateCost_staysConstantAsTheListGrows() {
+        Random random = new Random(1);
+        int updates = 50000;
+        // warm up the code path before anything is measured
+        grow(100);
+        measure(random, updates);
+
+        long[] nanos = new long[4];
+        long[] bytes = new long[4];
+        int[] sizes = { 100, 200, 400, 800 };
+        for (int i = 0; i < sizes.length; i++) {
+            grow(sizes[i]);
+            counting.inserted = 0;
+            counting.changed = 0;
+            long allocated = AllocationMeter.allocatedBytes();
+            long start = System.nanoTime();
+            measure(random, updates);
+            nanos[i] = (System.nanoTime() - start) / updates;
+            bytes[i] = (AllocationMeter.allocatedBytes() - allocated) / updates;
+            // one row redrawn per sighting, nothing inserted or refreshed wholesale
+            assertEquals(0, counting.inserted);
+            assertTrue(counting.changed <= updates);
+        }
+
+        System.out.println(String.format("ns per update at 100, 200, 400, 800 devices: %d %d %d %d; bytes %d %d %d %d",
+                nanos[0], nanos[1], nanos[2], nanos[3], bytes[0], bytes[1], bytes[2], bytes[3]));
+        // the new row is the only garbage, however many there are
+        assertTrue(bytes[3] + " bytes at 800 devices, " + bytes[0] + " at 100", bytes[3] <= bytes[0] + 1);
+        assertTrue(nanos[3] + " ns at 800 devices, " + nanos[0] + " at 100", nanos[3] <= 3 * Math.max(nanos[0], 50));
+    }
+
+    private void grow(int size) {
+        while (list.size() < size) {
+            int n = list.size();
+            list.onFound(address(n), "device " + n, -90);
+        }
+    }
+
+    private void measure(Random random, int updates) {
+        int size = list.size();
+        for (int i = 0; i < updates; i++) {
+            int n = random.nextInt(size);
+            list.onFound(address(n), null, -40 - (i & 31));
+        }
+    }
+
+    private static String address(int n) {
+        return ADDRESSES[n];
+    }
+
+    private static final class Counting implements DeviceList.Listener {
+        private int inserted;
+        private int changed;
+
+        @Override
+        public void onInserted(int position) {
+            inserted++;
+        }
+
+        @Override
+        public void onChanged(int position) {
+            changed++;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package br.com.dotofcodex.bluetooth_sample.journal;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class JournalTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void append_readsBackInOrder() throws IOException {
+        Journal journal = new Journal(folder.newFolder("peer"));
+        assertEquals(0, journal.append(1000, false, bytes("oi")));
+        assertEquals(1, journal.append(2000, true, bytes("tudo bem?")));
+        assertEquals(2, journal.append(3000, false, new byte[0]));
+        assertEquals(3, journal.getNextSequence());
+
+        List<Journal.Entry> entries = new ArrayList<>();
+        assertEquals(3, journal.read(0, 10, entries));
+        assertEquals("oi", text(entries.get(0)));
+        assertFalse(entries.get(0).isOutgoing());
+        assertEquals(1000, entries.get(0).getTimeMillis());
+        assertEquals("tudo bem?", text(entries.get(1)));
+        assertTrue(entries.get(1).isOutgoing());
+        assertEquals(0, entries.get(2).getPayload().length);
+        assertEquals(2, entries.get(2).getSequence());
+
+        entries.clear();
+        assertEquals(0, journal.read(3, 10, entries));
+        assertEquals(2, journal.readBefore(3, 2, entries));
+        assertEquals(1, entries.get(0).getSequence());
+        journal.close();
+    }
+
+    @Test
+    public void read_findsAnyMessageThroughTheIndex() throws IOException {
+        Journal journal = new Journal(folder.newFolder("peer"), 256 * 1024, 512, 64);
+        int count = 100000;
+        for (int i = 0; i < count; i++) {
+            journal.append(i, (i & 1) == 1, bytes(message(i)));
+        }
+        assertTrue(journal.getSizeBytes() > 256 * 1024);
+
+        Random random = new Random(1);
+        List<Journal.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            int sequence = random.nextInt(count);
+            entries.clear();
+            int read = journal.read(sequence, 3, entries);
+            assertEquals(Math.min(3, count - sequence), read);
+            for (int j = 0; j < read; j++) {
+                assertEquals(sequence + j, entries.get(j).getSequence());
+                assertEquals(message(sequence + j), text(entries.get(j)));
+                assertEquals(sequence + j, entries.get(j).getTimeMillis());
+            }
+        }
+        journal.close();
+    }
+
+    @Test
+    public void append_rollsOverAndDropsOldSegments() throws IOException {
+        File directory = folder.newFolder("peer");
+        Journal journal = new Journal(directory, 1024, 128, 3);
+        for (int i = 0; i < 1000; i++) {
+            journal.append(i, false, bytes(message(i)));
+        }
+        assertEquals(1000, journal.getNextSequence());
+        assertTrue(journal.getFirstSequence() > 0);
+        // a log and an index per segment
+        assertEquals(6, directory.list().length);
+
+        List<Journal.Entry> entries = new ArrayList<>();
+        // scrollback ends at the oldest kept message
+        journal.read(0, 1, entries);
+        assertEquals(journal.getFirstSequence(), entries.get(0).getSequence());
+        assertEquals(message((int) journal.getFirstSequence()), text(entries.get(0)));
+
+        // reads run across segment boundaries
+        entries.clear();
+        long from = journal.getFirstSequence();
+        assertEquals(1000 - from, journal.read(from, 1000, entries));
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(from + i, entries.get(i).getSequence());
+        }
+        journal.close();
+    }
+
+    @Test
+    public void append_fillsSegmentsWhateverTheIndexInterval() throws IOException {
+        File directory = folder.newFolder("peer");
+        // a single index entry per segment, lookups scan from the start
+        Journal journal = new Journal(directory, 64 * 1024, Integer.MAX_VALUE, 4);
+        for (int i = 0; i < 1000; i++) {
+            journal.append(i, false, bytes(message(i)));
+        }
+        assertEquals(2, directory.list().length);
+
+        List<Journal.Entry> entries = new ArrayList<>();
+        journal.read(777, 1, entries);
+        assertEquals(message(777), text(entries.get(0)));
+        journal.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void append_rejectsRecordsLargerThanASegment() throws IOException {
+        Journal journal = new Journal(folder.newFolder("peer"), 1024, 128, 3);
+        journal.append(0, false, new byte[1024]);
+    }
+
+    @Test
+    public void open_recoversWhatWasAppended() throws IOException {
+        File directory = folder.newFolder("peer");
+        Journal journal = new Journal(directory, 1024, 128, 8);
+        for (int i = 0; i < 100; i++) {
+            journal.append(i, false, bytes(message(i)));
+        }
+        long first = journal.getFirstSequence();
+        journal.close();
+
+        Journal reopened = new Journal(directory, 1024, 128, 8);
+        assertEquals(first, reopened.getFirstSequence());
+        assertEquals(100, reopened.getNextSequence());
+        assertEquals(100, reopened.append(100, true, bytes(message(100))));
+
+        List<Journal.Entry> entries = new ArrayList<>();
+        reopened.read(95, 10, entries);
+        assertEquals(6, entries.size());
+        assertEquals(message(100), text(entries.get(5)));
+        assertTrue(entries.get(5).isOutgoing());
+        reopened.close();
+    }
+
+    @Test
+    public void open_dropsATornRecord() throws IOException {
+        File directory = folder.newFolder("peer");
+        Journal journal = new Journal(directory, 64 * 1024, 128, 8);
+        journal.append(1, false, bytes("primeira"));
+        journal.append(2, false, bytes("segunda"));
+        journal.close();
+
+        // as if the process died halfway through writing the payload of the second record
+        RandomAccessFile log = new RandomAccessFile(new File(directory, Segment.name(0, "log")), "rw");
+        int second = Segment.HEADER_LENGTH + "primeira".length();
+        log.seek(second + Segment.HEADER_LENGTH + 2);
+        log.write('X');
+        log.close();
+
+        Journal reopened = new Journal(directory, 64 * 1024, 128, 8);
+        assertEquals(1, reopened.getNextSequence());
+        assertEquals(1, reopened.append(3, false, bytes("terceira")));
+        List<Journal.Entry> entries = new ArrayList<>();
+        reopened.read(0, 10, entries);
+        assertEquals(2, entries.size());
+        assertEquals("terceira", text(entries.get(1)));
+        reopened.close();
+    }
+
+    @Test
+    public void journals_writeOffersOfEveryPeer() throws Exception {
+        final List<IOException> errors = new ArrayList<>();
+        Journals journals = new Journals(folder.getRoot(), (String peer, IOException error) -> errors.add(error));
+        journals.start();
+        byte[] buffer = bytes("xxoixx");
+        for (int i = 0; i < 500; i++) {
+            // the caller reuses its buffer right away
+            assertTrue(journals.offer(i % 2 == 0 ? "00:11:22:33:44:55" : "66:77:88:99:AA:BB", false, buffer, 2, 2));
+            buffer[2] = 'n';
+            buffer[3] = 'o';
+        }
+        journals.close();
+        assertTrue(errors.isEmpty());
+        assertEquals(500, journals.getWritten());
+        assertTrue(new File(folder.getRoot(), "00_11_22_33_44_55").isDirectory());
+
+        Journal journal = new Journal(new File(folder.getRoot(), "00_11_22_33_44_55"));
+        assertEquals(250, journal.getNextSequence());
+        List<Journal.Entry> entries = new ArrayList<>();
+        journal.read(0, 2, entries);
+        assertEquals("oi", text(entries.get(0)));
+        assertEquals("no", text(entries.get(1)));
+        journal.close();
+    }
+
+    @Test
+    public void journals_closeWritesEverythingWhenInterrupted() throws Exception {
+        Journals journals = new Journals(folder.getRoot(), (String peer, IOException error) -> fail(error.toString()));
+        journals.start();
+        byte[] buffer = bytes("oi");
+        for (int i = 0; i < 500; i++) {
+            assertTrue(journals.offer("00:11:22:33:44:55", true, buffer, 0, 2));
+        }
+        // as from an executor shutting down
+        Thread.currentThread().interrupt();
+        journals.close();
+        assertTrue(Thread.interrupted());
+        assertEquals(500, journals.getWritten());
+    }
+
+    private static String message(int i) {
+        return "mensagem número " + i + (i % 7 == 0 ? ", com um pouco mais de texto para variar o tamanho" : "");
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(UTF_8);
+    }
+
+    private static String text(Journal.Entry entry) {
+        return new String(entry.getPayload(), UTF_8);
+    }
+}
@@ -0,0 +1,327 @@
+package br.com.dotofcodex.bluetooth_sample.load;
+
+import br.com.dotofcodex.bluetooth_sample.metrics.Histogram;
+import br.com.dotofcodex.bluetooth_sample.protocol.ChatClient;
+import br.com.dotofcodex.bluetooth_sample.protocol.ChatServer;
+import br.com.dotofcodex.bluetooth_sample.protocol.ChatSession;
+import br.com.dotofcodex.bluetooth_sample.protocol.ConnectionExecutor;
+import br.com.dotofcodex.bluetooth_sample.protocol.ConnectionListener;
+import br.com.dotofcodex.bluetooth_sample.protocol.Frames;
+import br.com.dotofcodex.bluetooth_sample.protocol.PooledBuffer;
+import br.com.dotofcodex.bluetooth_sample.protocol.SessionRegistry;
+import br.com.dotofcodex.bluetooth_sample.transport.InMemoryNetwork;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Field-like traffic for the chat engine on one JVM: {@link ChatServer}s and {@link ChatClient}s connected over an
+ * {@link InMemoryNetwork}, every client sending messages of random size at its own pace and every server echoing
+ * them back. Each message carries the time it was due, not the time it went out, so a sender that falls behind
+ * shows up as latency instead of as a quietly lower rate.
+ *
+ * <p>{@link #run(Listener)} samples throughput, round trip percentiles, heap and threads once per interval and
+ * returns the totals; {@code ./gradlew :protocol:soak} runs it from the command line for as long as asked.
+ */
+public final class LoadGenerator implements Closeable {
+
+    public interface Listener {
+        void onSample(LoadReport.Sample sample);
+    }
+
+    // a connection has a session at both ends, with a reader and a writer each
+    private static final int THREADS_PER_CLIENT = 1 + 4 + 1;
+    private static final long CONNECT_TIMEOUT_MILLIS = 10 * 1000;
+    private static final long DRAIN_TIMEOUT_MILLIS = 5 * 1000;
+
+    private final LoadProfile profile;
+    private final InMemoryNetwork network;
+    private final ConnectionExecutor executor;
+    private final List<ChatServer> servers;
+    private final List<ChatClient> clients;
+    private final List<SessionRegistry> registries;
+    private final ChatSession[] sessions;
+    private final CountDownLatch senders;
+    private final AtomicLong sent;
+    private final AtomicLong received;
+    private final AtomicLong dropped;
+    private final AtomicLong bytesReceived;
+    private final Histogram oneWay;
+    private final Histogram roundTrip;
+    private final AtomicReference<Histogram> intervalRoundTrip;
+    private final MemoryMXBean memory;
+    private final ThreadMXBean threads;
+    private volatile boolean running;
+
+    public LoadGenerator(LoadProfile profile) {
+        super();
+        this.profile = profile;
+        this.network = new InMemoryNetwork(profile.getLink());
+        this.executor = new ConnectionExecutor("Load", profile.getServers() + profile.getClients() * THREADS_PER_CLIENT,
+                ConnectionExecutor.DEFAULT_KEEP_ALIVE_MILLIS);
+        this.servers = new ArrayList<>();
+        this.clients = new ArrayList<>();
+        this.registries = new ArrayList<>();
+        this.sessions = new ChatSession[profile.getClients()];
+        this.senders = new CountDownLatch(profile.getClients());
+        this.sent = new AtomicLong();
+        this.received = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.bytesReceived = new AtomicLong();
+        this.oneWay = new Histogram();
+        this.roundTrip = new Histogram();
+        this.intervalRoundTrip = new AtomicReference<>(new Histogram());
+        this.memory = ManagementFactory.getMemoryMXBean();
+        this.threads = ManagementFactory.getThreadMXBean();
+    }
+
+    /**
+     * {@code name=value} settings as {@link LoadProfile#parse(String...)} reads them.
+     */
+    public static void main(String[] args) throws Exception {
+        LoadProfile profile = LoadProfile.parse(args);
+        System.out.println(profile);
+        try (LoadGenerator generator = new LoadGenerator(profile)) {
+            LoadReport report = generator.run(System.out::println);
+            System.out.println(report);
+        }
+    }
+
+    /**
+     * Connects every peer, sends for the profile's duration, waits for the last echoes and reports. Blocks the
+     * calling thread, which takes the samples; {@code listener} may be {@code null}.
+     */
+    public LoadReport run(Listener listener) throws IOException, InterruptedException {
+        connect();
+
+        long heapBefore = retainedHeap();
+        running = true;
+        long start = System.nanoTime();
+        for (int i = 0; i < sessions.length; i++) {
+            final int client = i;
+            executor.execute("LoadSender-" + client, () -> send(client, start));
+        }
+
+        List<LoadReport.Sample> samples = new ArrayList<>();
+        long lastSample = start;
+        long lastReceived = 0;
+        long lastBytes = 0;
+        long next = start;
+        do {
+            next += profile.getSampleNanos();
+            sleepUntil(next);
+            long now = System.nanoTime();
+            long receivedNow = received.get();
+            long bytesNow = bytesReceived.get();
+            double seconds = (now - lastSample) / 1e9;
+            LoadReport.Sample sample = new LoadReport.Sample(now - start, (receivedNow - lastReceived) / seconds,
+                    (bytesNow - lastBytes) / seconds, intervalRoundTrip.getAndSet(new Histogram()).snapshot(),
+                    memory.getHeapMemoryUsage().getUsed(), threads.getThreadCount(),
+                    sent.get() - receivedNow - dropped.get());
+            samples.add(sample);
+            if (listener != null) {
+                listener.onSample(sample);
+            }
+            lastSample = now;
+            lastReceived = receivedNow;
+            lastBytes = bytesNow;
+        } while (next - start < profile.getDurationNanos());
+
+        running = false;
+        senders.await();
+        long elapsed = System.nanoTime() - start;
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        while (received.get() + dropped.get() < sent.get() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return new LoadReport(profile, samples, elapsed, sent.get(), received.get(), dropped.get(), bytesReceived.get(),
+                oneWay.snapshot(), roundTrip.snapshot(), heapBefore, retainedHeap());
+    }
+
+    /**
+     * Number of transports on the network still open, 0 once closed.
+     */
+    public int getOpenTransports() {
+        return network.getOpenTransports();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        for (ChatServer server : servers) {
+            server.cancel();
+        }
+        for (ChatClient client : clients) {
+            client.cancel();
+        }
+        for (SessionRegistry registry : registries) {
+            registry.closeAll();
+        }
+        executor.close();
+    }
+
+    private void connect() throws IOException, InterruptedException {
+        final CountDownLatch connected = new CountDownLatch(sessions.length);
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        ChatSession.Listener echo = new Echo();
+        for (int s = 0; s < profile.getServers(); s++) {
+            SessionRegistry registry = newRegistry();
+            ChatServer server = new ChatServer(network.listen("server-" + s), registry, echo, new Connected(null, 0, null, null));
+            servers.add(server);
+            server.start(executor);
+        }
+
+        ChatSession.Listener receiver = new Receiver();
+        for (int i = 0; i < sessions.length; i++) {
+            String server = "server-" + (i % profile.getServers());
+            ChatClient client = new ChatClient(network.connector("client-" + i, server), newRegistry(), receiver,
+                    new Connected(sessions, i, connected, failure));
+            clients.add(client);
+            client.start(executor);
+        }
+
+        if (!connected.await(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            IOException error = new IOException(String.format("Only %d of %d clients connected",
+                    sessions.length - connected.getCount(), sessions.length));
+            if (failure.get() != null) {
+                error.initCause(failure.get());
+            }
+            throw error;
+        }
+    }
+
+    private SessionRegistry newRegistry() {
+        SessionRegistry registry = new SessionRegistry();
+        registry.setExecutor(executor);
+        registries.add(registry);
+        return registry;
+    }
+
+    private void send(int client, long start) {
+        Random random = new Random(profile.getSeed() + client);
+        ChatSession session = sessions[client];
+        // spread the first messages instead of every client sending at once
+        long due = start + (long) (random.nextDouble() * 1e9 / profile.getMessagesPerSecond());
+        try {
+            while (running && session.isOpen()) {
+                sleepUntil(due);
+                byte[] message = new byte[profile.nextSize(random)];
+                Frames.writeLong(due, message, 0);
+                if (session.send(Frames.TYPE_DATA, message, null)) {
+                    sent.getAndIncrement();
+                }
+                else {
+                    dropped.getAndIncrement();
+                }
+                due += profile.nextGapNanos(random);
+            }
+        } finally {
+            senders.countDown();
+        }
+    }
+
+    private static void sleepUntil(long nanos) {
+        long wait;
+        while ((wait = nanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    private long retainedHeap() {
+        // twice, objects with finalizers only go on the second
+        System.gc();
+        System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Sends every message back to the client it came from.
+     */
+    private final class Echo implements ChatSession.Listener {
+
+        @Override
+        public void onFrame(ChatSession session, PooledBuffer frame) {
+            try {
+                if (frame.type() == Frames.TYPE_DATA) {
+                    oneWay.record(System.nanoTime() - Frames.readLong(frame.array(), 0));
+                    if (!session.send(Frames.TYPE_DATA, Arrays.copyOf(frame.array(), frame.length()), null)) {
+                        dropped.getAndIncrement();
+                    }
+                }
+            } finally {
+                frame.release();
+            }
+        }
+
+        @Override
+        public void onClosed(ChatSession session) {
+        }
+    }
+
+    private final class Receiver implements ChatSession.Listener {
+
+        @Override
+        public void onFrame(ChatSession session, PooledBuffer frame) {
+            try {
+                if (frame.type() == Frames.TYPE_DATA) {
+                    long nanos = System.nanoTime() - Frames.readLong(frame.array(), 0);
+                    roundTrip.record(nanos);
+                    intervalRoundTrip.get().record(nanos);
+                    bytesReceived.getAndAdd(frame.length());
+                    received.getAndIncrement();
+                }
+            } finally {
+                frame.release();
+            }
+        }
+
+        @Override
+        public void onClosed(ChatSession session) {
+        }
+    }
+
+    private static final class Connected implements ConnectionListener {
+        private final ChatSession[] sessions;
+        private final int index;
+        private final CountDownLatch connected;
+        private final AtomicReference<IOException> failure;
+
+        Connected(ChatSession[] sessions, int index, CountDownLatch connected, AtomicReference<IOException> failure) {
+            this.sessions = sessions;
+            this.index = index;
+            this.connected = connected;
+            this.failure = failure;
+        }
+
+        @Override
+        public void onConnecting() {
+        }
+
+        @Override
+        public void onConnected(ChatSession session) {
+            if (sessions != null) {
+                sessions[index] = session;
+                connected.countDown();
+            }
+        }
+
+        @Override
+        public void onConnectionFailed(IOException error) {
+            if (failure != null) {
+                failure.set(error);
+            }
+        }
+    }
+}
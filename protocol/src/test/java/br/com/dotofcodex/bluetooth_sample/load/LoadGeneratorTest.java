@@ -0,0 +1,61 @@
+package br.com.dotofcodex.bluetooth_sample.load;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * A few seconds of the soak, failing when throughput, latency, heap or threads cross what the engine did when the
+ * thresholds were set, with room for a slow build machine.
+ */
+public class LoadGeneratorTest {
+
+    private static final double MIN_THROUGHPUT_SHARE = 0.9;
+    private static final long MAX_P99_MILLIS = 50;
+    private static final long MAX_HEAP_GROWTH = 16 * 1024 * 1024;
+    private static final int MAX_THREAD_GROWTH = 2;
+
+    @Test
+    public void shortSoak_staysWithinThresholds() throws Exception {
+        LoadProfile profile = LoadProfile.builder()
+                .peers(2, 4)
+                .messageSizes(16, 2048)
+                .exponentialSizes()
+                .rate(250)
+                .poisson()
+                .duration(5, TimeUnit.SECONDS)
+                .sampleEvery(1, TimeUnit.SECONDS)
+                .build();
+
+        LoadReport report;
+        LoadGenerator generator = new LoadGenerator(profile);
+        try {
+            report = generator.run(System.out::println);
+        } finally {
+            generator.close();
+        }
+        System.out.println(report);
+
+        assertEquals(5, report.getSamples().size());
+        assertEquals(0, report.getDropped());
+        assertEquals(report.getSent(), report.getReceived());
+        double offered = profile.getClients() * profile.getMessagesPerSecond();
+        assertTrue(String.format("%.0f of %.0f msg/s", report.getMessagesPerSecond(), offered),
+                report.getMessagesPerSecond() >= MIN_THROUGHPUT_SHARE * offered);
+        assertTrue(report.getRoundTrip().format(1e6), report.getRoundTrip().getPercentile(99) <= TimeUnit.MILLISECONDS.toNanos(MAX_P99_MILLIS));
+        assertTrue(report.getHeapGrowth() + " bytes", report.getHeapGrowth() <= MAX_HEAP_GROWTH);
+        assertTrue(report.getThreadGrowth() + " threads", report.getThreadGrowth() <= MAX_THREAD_GROWTH);
+        assertEquals(0, generator.getOpenTransports());
+    }
+
+    @Test
+    public void parse_readsTheSoakSettings() {
+        LoadProfile profile = LoadProfile.parse("servers=3", "clients=5", "rate=2.5", "duration=3600", "link=rfcomm");
+        assertEquals(15, profile.getClients());
+        assertEquals(2.5, profile.getMessagesPerSecond(), 0);
+        assertEquals(TimeUnit.HOURS.toNanos(1), profile.getDurationNanos());
+        assertTrue(profile.getLink().isShaped());
+    }
+}
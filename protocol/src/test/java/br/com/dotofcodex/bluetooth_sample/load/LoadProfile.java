@@ -0,0 +1,248 @@
+package br.com.dotofcodex.bluetooth_sample.load;
+
+import br.com.dotofcodex.bluetooth_sample.transport.LinkProfile;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a {@link LoadGenerator} run looks like: how many servers and clients, how big and how frequent the messages
+ * every client sends, over which links and for how long.
+ */
+public final class LoadProfile {
+
+    // the send time travels in the first bytes of every message
+    public static final int MIN_MESSAGE_SIZE = 8;
+
+    private final int servers;
+    private final int clientsPerServer;
+    private final int minSize;
+    private final int maxSize;
+    private final boolean exponentialSizes;
+    private final double messagesPerSecond;
+    private final boolean poisson;
+    private final long durationNanos;
+    private final long sampleNanos;
+    private final LinkProfile link;
+    private final long seed;
+
+    private LoadProfile(Builder builder) {
+        super();
+        this.servers = builder.servers;
+        this.clientsPerServer = builder.clientsPerServer;
+        this.minSize = builder.minSize;
+        this.maxSize = builder.maxSize;
+        this.exponentialSizes = builder.exponentialSizes;
+        this.messagesPerSecond = builder.messagesPerSecond;
+        this.poisson = builder.poisson;
+        this.durationNanos = builder.durationNanos;
+        this.sampleNanos = builder.sampleNanos;
+        this.link = builder.link;
+        this.seed = builder.seed;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Reads {@code name=value} pairs, as the soak task passes them; names are the builder's, durations are in
+     * seconds and {@code link} is {@code unlimited} or {@code rfcomm}.
+     */
+    public static LoadProfile parse(String... args) {
+        Builder builder = builder();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Expected name=value: " + arg);
+            }
+            String name = arg.substring(0, equals);
+            String value = arg.substring(equals + 1);
+            switch (name) {
+                case "servers":
+                    builder.servers = Integer.parseInt(value);
+                    break;
+                case "clients":
+                    builder.clientsPerServer = Integer.parseInt(value);
+                    break;
+                case "minSize":
+                    builder.minSize = Integer.parseInt(value);
+                    break;
+                case "maxSize":
+                    builder.maxSize = Integer.parseInt(value);
+                    break;
+                case "exponentialSizes":
+                    builder.exponentialSizes = Boolean.parseBoolean(value);
+                    break;
+                case "rate":
+                    builder.messagesPerSecond = Double.parseDouble(value);
+                    break;
+                case "poisson":
+                    builder.poisson = Boolean.parseBoolean(value);
+                    break;
+                case "duration":
+                    builder.duration(Long.parseLong(value), TimeUnit.SECONDS);
+                    break;
+                case "sample":
+                    builder.sampleEvery(Long.parseLong(value), TimeUnit.SECONDS);
+                    break;
+                case "link":
+                    builder.link("rfcomm".equals(value) ? LinkProfile.rfcomm() : LinkProfile.UNLIMITED);
+                    break;
+                case "seed":
+                    builder.seed = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown setting: " + name);
+            }
+        }
+        return builder.build();
+    }
+
+    public int getServers() {
+        return this.servers;
+    }
+
+    public int getClientsPerServer() {
+        return this.clientsPerServer;
+    }
+
+    public int getClients() {
+        return servers * clientsPerServer;
+    }
+
+    public double getMessagesPerSecond() {
+        return this.messagesPerSecond;
+    }
+
+    public long getDurationNanos() {
+        return this.durationNanos;
+    }
+
+    public long getSampleNanos() {
+        return this.sampleNanos;
+    }
+
+    public LinkProfile getLink() {
+        return this.link;
+    }
+
+    public long getSeed() {
+        return this.seed;
+    }
+
+    /**
+     * Size of the next message, uniform between the bounds or exponential with the mean halfway between them and
+     * cut at the largest.
+     */
+    int nextSize(Random random) {
+        if (exponentialSizes) {
+            double mean = (maxSize - minSize) / 2.0;
+            return (int) Math.min(maxSize, minSize - mean * Math.log(1 - random.nextDouble()));
+        }
+        return minSize + random.nextInt(maxSize - minSize + 1);
+    }
+
+    /**
+     * Nanoseconds from one message of a client to its next: fixed, or exponential for arrivals as a Poisson process.
+     */
+    long nextGapNanos(Random random) {
+        double mean = 1e9 / messagesPerSecond;
+        return (long) (poisson ? -mean * Math.log(1 - random.nextDouble()) : mean);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LoadProfile[%d servers x %d clients, %d-%d B %s, %.1f msg/s per client%s, %d s, %s]",
+                servers, clientsPerServer, minSize, maxSize, exponentialSizes ? "exponential" : "uniform",
+                messagesPerSecond, poisson ? " poisson" : "", TimeUnit.NANOSECONDS.toSeconds(durationNanos), link);
+    }
+
+    public static final class Builder {
+        private int servers = 1;
+        private int clientsPerServer = 1;
+        private int minSize = 64;
+        private int maxSize = 512;
+        private boolean exponentialSizes;
+        private double messagesPerSecond = 10;
+        private boolean poisson;
+        private long durationNanos = TimeUnit.SECONDS.toNanos(10);
+        private long sampleNanos = TimeUnit.SECONDS.toNanos(1);
+        private LinkProfile link = LinkProfile.UNLIMITED;
+        private long seed = 42;
+
+        private Builder() {
+            super();
+        }
+
+        public Builder peers(int servers, int clientsPerServer) {
+            this.servers = servers;
+            this.clientsPerServer = clientsPerServer;
+            return this;
+        }
+
+        public Builder messageSizes(int minSize, int maxSize) {
+            this.minSize = minSize;
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        /**
+         * Mostly small messages and now and then a big one, rather than every size as likely.
+         */
+        public Builder exponentialSizes() {
+            this.exponentialSizes = true;
+            return this;
+        }
+
+        /**
+         * Messages every client sends per second, evenly spaced.
+         */
+        public Builder rate(double messagesPerSecond) {
+            this.messagesPerSecond = messagesPerSecond;
+            return this;
+        }
+
+        /**
+         * The same average rate, at random moments as independent users would send.
+         */
+        public Builder poisson() {
+            this.poisson = true;
+            return this;
+        }
+
+        public Builder duration(long duration, TimeUnit unit) {
+            this.durationNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        public Builder sampleEvery(long interval, TimeUnit unit) {
+            this.sampleNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        public Builder link(LinkProfile link) {
+            this.link = link;
+            return this;
+        }
+
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public LoadProfile build() {
+            if (servers < 1 || clientsPerServer < 1) {
+                throw new IllegalArgumentException("At least one server and one client per server");
+            }
+            if (minSize < MIN_MESSAGE_SIZE || maxSize < minSize) {
+                throw new IllegalArgumentException(String.format("Message sizes %d to %d, at least %d", minSize, maxSize,
+                        MIN_MESSAGE_SIZE));
+            }
+            if (messagesPerSecond <= 0 || sampleNanos <= 0 || durationNanos < sampleNanos) {
+                throw new IllegalArgumentException("Rate, sample interval and a duration of at least one interval");
+            }
+            return new LoadProfile(this);
+        }
+    }
+}
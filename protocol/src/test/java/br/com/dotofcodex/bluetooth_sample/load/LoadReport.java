@@ -0,0 +1,202 @@
+package br.com.dotofcodex.bluetooth_sample.load;
+
+import br.com.dotofcodex.bluetooth_sample.metrics.Histogram;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What a {@link LoadGenerator} run measured: the samples taken along the way and the totals at the end.
+ */
+public final class LoadReport {
+
+    private final LoadProfile profile;
+    private final List<Sample> samples;
+    private final long elapsedNanos;
+    private final long sent;
+    private final long received;
+    private final long dropped;
+    private final long bytesReceived;
+    private final Histogram.Snapshot oneWay;
+    private final Histogram.Snapshot roundTrip;
+    private final long heapBefore;
+    private final long heapAfter;
+
+    LoadReport(LoadProfile profile, List<Sample> samples, long elapsedNanos, long sent, long received, long dropped,
+               long bytesReceived, Histogram.Snapshot oneWay, Histogram.Snapshot roundTrip, long heapBefore, long heapAfter) {
+        super();
+        this.profile = profile;
+        this.samples = Collections.unmodifiableList(samples);
+        this.elapsedNanos = elapsedNanos;
+        this.sent = sent;
+        this.received = received;
+        this.dropped = dropped;
+        this.bytesReceived = bytesReceived;
+        this.oneWay = oneWay;
+        this.roundTrip = roundTrip;
+        this.heapBefore = heapBefore;
+        this.heapAfter = heapAfter;
+    }
+
+    public LoadProfile getProfile() {
+        return this.profile;
+    }
+
+    public List<Sample> getSamples() {
+        return this.samples;
+    }
+
+    /**
+     * Messages the clients handed to their sessions.
+     */
+    public long getSent() {
+        return this.sent;
+    }
+
+    /**
+     * Messages that made it to a server and back.
+     */
+    public long getReceived() {
+        return this.received;
+    }
+
+    /**
+     * Messages a session refused, on the way out or on the echo, because too many were waiting for the peer.
+     */
+    public long getDropped() {
+        return this.dropped;
+    }
+
+    /**
+     * Round trips per second over the whole run.
+     */
+    public double getMessagesPerSecond() {
+        return received * 1e9 / elapsedNanos;
+    }
+
+    public double getBytesPerSecond() {
+        return bytesReceived * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * Client to server, from when each message was due to be sent, in nanoseconds.
+     */
+    public Histogram.Snapshot getOneWay() {
+        return this.oneWay;
+    }
+
+    /**
+     * Client to server and back, in nanoseconds.
+     */
+    public Histogram.Snapshot getRoundTrip() {
+        return this.roundTrip;
+    }
+
+    /**
+     * Heap still in use after a full collection at the end, less the same at the start.
+     */
+    public long getHeapGrowth() {
+        return heapAfter - heapBefore;
+    }
+
+    /**
+     * Live threads at the busiest sample less those at the first.
+     */
+    public int getThreadGrowth() {
+        int most = 0;
+        for (Sample sample : samples) {
+            most = Math.max(most, sample.getThreads());
+        }
+        return samples.isEmpty() ? 0 : most - samples.get(0).getThreads();
+    }
+
+    /**
+     * Several lines meant for a console.
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append(profile).append('\n');
+        text.append(String.format("%.1f s: %d sent, %d round trips, %d dropped; %.0f msg/s, %.0f B/s%n", elapsedNanos / 1e9,
+                sent, received, dropped, getMessagesPerSecond(), getBytesPerSecond()));
+        text.append("one way ms: ").append(oneWay.format(1e6)).append(String.format(" p99.9=%.2f%n",
+                oneWay.getPercentile(99.9) / 1e6));
+        text.append("round trip ms: ").append(roundTrip.format(1e6)).append(String.format(" p99.9=%.2f%n",
+                roundTrip.getPercentile(99.9) / 1e6));
+        text.append(String.format("heap after gc %d KiB -> %d KiB, threads +%d", heapBefore / 1024, heapAfter / 1024,
+                getThreadGrowth()));
+        return text.toString();
+    }
+
+    /**
+     * One interval of the run.
+     */
+    public static final class Sample {
+        private final long elapsedNanos;
+        private final double messagesPerSecond;
+        private final double bytesPerSecond;
+        private final Histogram.Snapshot roundTrip;
+        private final long heapUsed;
+        private final int threads;
+        private final long inFlight;
+
+        Sample(long elapsedNanos, double messagesPerSecond, double bytesPerSecond, Histogram.Snapshot roundTrip,
+               long heapUsed, int threads, long inFlight) {
+            this.elapsedNanos = elapsedNanos;
+            this.messagesPerSecond = messagesPerSecond;
+            this.bytesPerSecond = bytesPerSecond;
+            this.roundTrip = roundTrip;
+            this.heapUsed = heapUsed;
+            this.threads = threads;
+            this.inFlight = inFlight;
+        }
+
+        public long getElapsedNanos() {
+            return this.elapsedNanos;
+        }
+
+        /**
+         * Round trips per second during the interval.
+         */
+        public double getMessagesPerSecond() {
+            return this.messagesPerSecond;
+        }
+
+        public double getBytesPerSecond() {
+            return this.bytesPerSecond;
+        }
+
+        /**
+         * Round trips that ended during the interval, in nanoseconds.
+         */
+        public Histogram.Snapshot getRoundTrip() {
+            return this.roundTrip;
+        }
+
+        /**
+         * Heap in use when the sample was taken, garbage included.
+         */
+        public long getHeapUsed() {
+            return this.heapUsed;
+        }
+
+        public int getThreads() {
+            return this.threads;
+        }
+
+        /**
+         * Messages sent and neither back nor dropped yet.
+         */
+        public long getInFlight() {
+            return this.inFlight;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%6.1f s %8.0f msg/s %10.0f B/s  rtt p50 %6.2f p99 %6.2f p99.9 %6.2f max %6.2f ms  "
+                    + "heap %6d KiB  %3d threads  %d in flight", elapsedNanos / 1e9, messagesPerSecond, bytesPerSecond,
+                    roundTrip.getPercentile(50) / 1e6, roundTrip.getPercentile(99) / 1e6,
+                    roundTrip.getPercentile(99.9) / 1e6, roundTrip.getMax() / 1e6, heapUsed / 1024, threads, inFlight);
+        }
+    }
+}
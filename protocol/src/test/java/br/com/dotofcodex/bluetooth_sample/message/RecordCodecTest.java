@@ -0,0 +1,206 @@
+package br.com.dotofcodex.bluetooth_sample.message;
+
+import br.com.dotofcodex.bluetooth_sample.protocol.AllocationMeter;
+import br.com.dotofcodex.bluetooth_sample.protocol.FrameException;
+import br.com.dotofcodex.bluetooth_sample.protocol.Utf8StreamDecoder;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class RecordCodecTest {
+
+    private final RecordWriter writer = new RecordWriter();
+    private final RecordReader reader = new RecordReader();
+
+    @Test
+    public void records_roundTrip() throws FrameException {
+        SensorReading reading = new SensorReading();
+        reading.setSensor(1);
+        reading.setTimeMillis(1600000000123L);
+        reading.setAccuracy(3);
+        reading.setValues(0.25f, -9.81f, Float.MIN_VALUE);
+        reading.setUnit("m/s²");
+        SensorReading readBack = read(reading, new SensorReading());
+        assertEquals(1600000000123L, readBack.getTimeMillis());
+        assertEquals(3, readBack.getAccuracy());
+        assertEquals(-9.81f, readBack.getY(), 0);
+        assertEquals(Float.MIN_VALUE, readBack.getZ(), 0);
+        assertEquals("m/s²", readBack.getUnit().toString());
+        assertEquals(1, reader.getVersion());
+
+        Command command = new Command();
+        command.setId(Integer.MIN_VALUE);
+        command.setName("ligar lâmpada");
+        command.setArgument(Long.MAX_VALUE);
+        Command commandBack = read(command, new Command());
+        assertEquals(Integer.MIN_VALUE, commandBack.getId());
+        assertEquals("ligar lâmpada", commandBack.getName().toString());
+        assertEquals(Long.MAX_VALUE, commandBack.getArgument());
+
+        Ack ack = new Ack();
+        ack.setId(-7);
+        ack.setStatus(Ack.STATUS_FAILED);
+        ack.setMessage("sem bateria 🔋");
+        Ack ackBack = read(ack, new Ack());
+        assertEquals(-7, ackBack.getId());
+        assertEquals(Ack.STATUS_FAILED, ackBack.getStatus());
+        assertEquals("sem bateria 🔋", ackBack.getMessage().toString());
+    }
+
+    @Test
+    public void integers_smallNegativesStayShort() {
+        assertEquals(0, Records.zigzag(0));
+        assertEquals(1, Records.zigzag(-1));
+        assertEquals(2, Records.zigzag(1));
+        assertEquals(-1L, Records.zigzag(Long.MIN_VALUE));
+        for (long value : new long[] { 0, -1, 1, 63, -64, Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE }) {
+            assertEquals(value, Records.unzigzag(Records.zigzag(value)));
+        }
+
+        Ack ack = new Ack();
+        ack.setId(-1);
+        // type, version, tag and a single byte for the id
+        assertEquals(4, writer.write(ack));
+        ack.setId(-64);
+        assertEquals(4, writer.write(ack));
+        ack.setId(Integer.MIN_VALUE);
+        assertEquals(8, writer.write(ack));
+    }
+
+    @Test
+    public void defaults_areLeftOutAndClearedOnRead() throws FrameException {
+        Command empty = new Command();
+        assertEquals(2, writer.write(empty));
+
+        Command command = new Command();
+        command.setId(5);
+        command.setName("x");
+        read(command, command);
+        // the next message has none of the fields, nothing of the previous one may remain
+        read(empty, command);
+        assertEquals(0, command.getId());
+        assertEquals(0, command.getName().length());
+    }
+
+    @Test
+    public void strings_matchTheJdkEncoding() throws FrameException {
+        String[] texts = { "olá", "coração", "€", "😀 emoji", "\uD800 unpaired", "end \uDBFF" };
+        Ack ack = new Ack();
+        Ack back = new Ack();
+        for (String text : texts) {
+            ack.setMessage(text);
+            int length = writer.write(ack);
+            byte[] expected = text.getBytes(Utf8StreamDecoder.UTF_8);
+            assertEquals(text, expected.length, Records.utf8Length(text));
+            // type, version, tag, one byte of length
+            assertArrayEquals(text, expected, Arrays.copyOfRange(writer.array(), 4, length));
+            reader.begin(writer.array(), 0, length);
+            reader.read(back);
+            assertEquals(new String(expected, Utf8StreamDecoder.UTF_8), back.getMessage().toString());
+        }
+    }
+
+    @Test
+    public void newerFields_areSkippedByOlderReaders() throws FrameException {
+        int length = writer.write(new NewerSensorReading());
+        SensorReading reading = new SensorReading();
+        reader.begin(writer.array(), 0, length);
+        assertEquals(2, reader.getVersion());
+        reader.read(reading);
+        assertEquals(42, reading.getSensor());
+        assertEquals(1.5f, reading.getX(), 0);
+        assertEquals("lux", reading.getUnit().toString());
+    }
+
+    @Test(expected = FrameException.class)
+    public void truncated_isRejected() throws FrameException {
+        Command command = new Command();
+        command.setName("desligar");
+        int length = writer.write(command);
+        reader.begin(writer.array(), 0, length - 1);
+        reader.read(new Command());
+    }
+
+    @Test(expected = FrameException.class)
+    public void wrongWireType_isRejected() throws FrameException {
+        // a string where the id is expected
+        Ack ack = new Ack();
+        ack.setMessage("x");
+        int length = writer.write(ack);
+        writer.array()[2] = (byte) Records.tag(1, Records.WIRE_LENGTH);
+        reader.begin(writer.array(), 0, length);
+        reader.read(new Ack());
+    }
+
+    @Test
+    public void encodeAndDecode_allocateNothing() throws FrameException {
+        SensorReading reading = new SensorReading();
+        reading.setSensor(1);
+        reading.setUnit("m/s²");
+        SensorReading back = new SensorReading();
+
+        for (int i = 0; i < 20000; i++) {
+            roundTrip(reading, back, i);
+        }
+        long before = AllocationMeter.allocatedBytes();
+        for (int i = 0; i < 100000; i++) {
+            roundTrip(reading, back, i);
+        }
+        long allocated = AllocationMeter.allocatedBytes() - before;
+        assertEquals(99999 * 0.5f, back.getX(), 0);
+        assertTrue("allocated " + allocated + " bytes for 100000 records", allocated < 16 * 1024);
+    }
+
+    private void roundTrip(SensorReading reading, SensorReading back, int i) throws FrameException {
+        reading.setTimeMillis(i);
+        reading.setValues(i * 0.5f, -i, i);
+        int length = writer.write(reading);
+        reader.begin(writer.array(), 0, length);
+        reader.read(back);
+    }
+
+    private <R extends Record> R read(Record record, R into) throws FrameException {
+        int length = writer.write(record);
+        assertEquals(record.getType(), reader.begin(writer.array(), 0, length));
+        return reader.read(into);
+    }
+
+    /**
+     * A later version of the reading with fields of every wire type the current one does not know.
+     */
+    private static final class NewerSensorReading implements Record {
+
+        @Override
+        public int getType() {
+            return SensorReading.TYPE;
+        }
+
+        @Override
+        public int getVersion() {
+            return 2;
+        }
+
+        @Override
+        public void writeFields(RecordWriter out) {
+            out.writeInt(1, 42);
+            out.writeString(20, "calibrado");
+            out.writeFloat(4, 1.5f);
+            out.writeDouble(21, Math.PI);
+            out.writeLong(22, -1);
+            out.writeFloat(23, 2f);
+            out.writeString(7, "lux");
+        }
+
+        @Override
+        public void clear() {
+        }
+
+        @Override
+        public boolean readField(RecordReader in, int field) {
+            return false;
+        }
+    }
+}
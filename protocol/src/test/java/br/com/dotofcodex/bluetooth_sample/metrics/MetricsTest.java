@@ -0,0 +1,135 @@
+package br.com.dotofcodex.bluetooth_sample.metrics;
+
+import br.com.dotofcodex.bluetooth_sample.protocol.ChatSession;
+import br.com.dotofcodex.bluetooth_sample.protocol.Frames;
+import br.com.dotofcodex.bluetooth_sample.protocol.PooledBuffer;
+import br.com.dotofcodex.bluetooth_sample.protocol.SessionRegistry;
+import br.com.dotofcodex.bluetooth_sample.transport.InMemoryTransport;
+import br.com.dotofcodex.bluetooth_sample.transport.LinkProfile;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    @Test
+    public void histogram_percentilesStayWithinTheBucketError() {
+        Histogram histogram = new Histogram();
+        for (long value = 1; value <= 100000; value++) {
+            histogram.record(value * 1000);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(100000, snapshot.getCount());
+        assertEquals(100000000, snapshot.getMax());
+        assertEquals(50000500, snapshot.getMean(), 1);
+        for (double percentile : new double[] { 1, 50, 90, 99, 99.9 }) {
+            double expected = percentile * 1000000;
+            long actual = snapshot.getPercentile(percentile);
+            assertTrue(percentile + ": " + actual, actual >= expected && actual <= expected * 1.125);
+        }
+        assertEquals(0, new Histogram().snapshot().getPercentile(99));
+    }
+
+    @Test
+    public void histogram_bucketsCoverEveryLong() {
+        long[] values = { 0, 1, 7, 8, 9, 15, 16, 17, 1000, 1L << 40, Long.MAX_VALUE };
+        int previous = -1;
+        for (long value : values) {
+            int bucket = Histogram.bucket(value);
+            assertTrue(bucket >= previous);
+            assertTrue(value + " above its bucket", value <= Histogram.upperBound(bucket));
+            assertTrue(value + " below its bucket", bucket == 0 || value > Histogram.upperBound(bucket - 1));
+            previous = bucket;
+        }
+    }
+
+    @Test
+    public void histogram_countsEveryValueRecordedConcurrently() throws InterruptedException {
+        final Histogram histogram = new Histogram();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int seed = i;
+            threads[i] = new Thread(() -> {
+                Random random = new Random(seed);
+                for (int n = 0; n < 100000; n++) {
+                    histogram.record(random.nextInt(1000000));
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(400000, snapshot.getCount());
+        assertTrue(snapshot.getMax() < 1000000);
+        assertEquals(snapshot.getMax(), snapshot.getPercentile(100));
+    }
+
+    @Test
+    public void sessions_countTrafficAndKeepItAfterClosing() throws Exception {
+        Metrics metrics = new Metrics();
+        SessionRegistry registry = new SessionRegistry(metrics);
+        int messages = 200;
+        final CountDownLatch received = new CountDownLatch(messages);
+        ChatSession.Listener listener = new ChatSession.Listener() {
+            @Override
+            public void onFrame(ChatSession session, PooledBuffer frame) {
+                assertTrue(frame.receivedNanos() > 0);
+                frame.release();
+                received.countDown();
+            }
+
+            @Override
+            public void onClosed(ChatSession session) {
+            }
+        };
+        InMemoryTransport[] ends = InMemoryTransport.pair("a", "b", LinkProfile.UNLIMITED);
+        ChatSession a = new ChatSession(ends[0], listener);
+        ChatSession b = new ChatSession(ends[1], listener);
+        a.setCompression(null);
+        b.setCompression(null);
+        registry.register(a);
+        registry.register(b);
+        a.start();
+        b.start();
+
+        byte[] payload = new byte[100];
+        for (int i = 0; i < messages; i++) {
+            assertTrue(a.send(Frames.TYPE_DATA, payload, null));
+        }
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        // the writer counts a batch once its write returned, which may be after the peer read it
+        long deadline = System.currentTimeMillis() + 2000;
+        while (a.getMetrics().snapshot().getFramesOut() < messages + 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+
+        ConnectionMetrics.Snapshot sent = a.getMetrics().snapshot();
+        ConnectionMetrics.Snapshot arrived = b.getMetrics().snapshot();
+        // every message and the HELLO
+        assertEquals(messages + 1, sent.getFramesOut());
+        assertEquals(messages + 1, arrived.getFramesIn());
+        assertEquals(sent.getBytesOut(), arrived.getBytesIn());
+        assertEquals(messages + 1, sent.getWriteLatency().getCount());
+        assertTrue(arrived.getReadSizes().getCount() > 0);
+        assertEquals(2, metrics.snapshot().getOpen().size());
+
+        metrics.onConnect(TimeUnit.MILLISECONDS.toNanos(40));
+        a.close();
+        b.close();
+
+        Metrics.Snapshot total = metrics.snapshot();
+        assertEquals(2, total.getConnections());
+        assertEquals(0, total.getOpen().size());
+        assertEquals(sent.getBytesOut() + arrived.getBytesOut(), total.getBytesOut());
+        assertEquals(sent.getFramesOut() + arrived.getFramesOut(), total.getWriteLatency().getCount());
+        assertEquals(1, total.getConnectTime().getCount());
+        System.out.println(total);
+    }
+}
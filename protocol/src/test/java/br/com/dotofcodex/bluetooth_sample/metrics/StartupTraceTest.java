@@ -0,0 +1,29 @@
+package br.com.dotofcodex.bluetooth_sample.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StartupTraceTest {
+
+    private long now = 5000000000L;
+
+    @Test
+    public void markers_countFromTheStartAndKeepTheFirstTime() {
+        StartupTrace trace = new StartupTrace(() -> now);
+        assertEquals(-1, trace.getMillis(StartupTrace.FIRST_FRAME));
+
+        now += 180000000L;
+        assertTrue(trace.mark(StartupTrace.FIRST_FRAME));
+        now += 420000000L;
+        assertTrue(trace.mark(StartupTrace.BLUETOOTH_READY));
+        now += 1000000000L;
+        // a later frame is no first frame
+        assertFalse(trace.mark(StartupTrace.FIRST_FRAME));
+
+        assertEquals(180, trace.getMillis(StartupTrace.FIRST_FRAME));
+        assertEquals(600, trace.getMillis(StartupTrace.BLUETOOTH_READY));
+        assertTrue(trace.isMarked(StartupTrace.BLUETOOTH_READY));
+        assertEquals("startup: first_frame=180ms bluetooth_ready=600ms", trace.toString());
+    }
+}
@@ -0,0 +1,23 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Reads the per-thread allocation counter of HotSpot based JVMs, used by the tests that assert on garbage.
+ */
+public final class AllocationMeter {
+
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private AllocationMeter() {
+        super();
+    }
+
+    public static long allocatedBytes(Thread thread) {
+        return THREADS.getThreadAllocatedBytes(thread.getId());
+    }
+
+    public static long allocatedBytes() {
+        return allocatedBytes(Thread.currentThread());
+    }
+}
@@ -0,0 +1,137 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void pool_recyclesReleasedBuffers() throws InterruptedException {
+        BufferPool pool = new BufferPool(2, 16);
+        PooledBuffer first = pool.acquire();
+        first.release();
+
+        assertSame(first, pool.acquire());
+        assertEquals(1, pool.available());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void pool_rejectsDoubleRelease() throws InterruptedException {
+        PooledBuffer buffer = new BufferPool(1, 16).acquire();
+        buffer.release();
+        buffer.release();
+    }
+
+    @Test
+    public void pool_blocksWhenExhaustedUntilABufferIsReleased() throws InterruptedException {
+        BufferPool pool = new BufferPool(1, 16);
+        PooledBuffer held = pool.acquire();
+        assertNull(pool.tryAcquire(10, TimeUnit.MILLISECONDS));
+
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                pool.acquire();
+                acquired.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+
+        assertFalse(acquired.await(50, TimeUnit.MILLISECONDS));
+        held.release();
+        assertTrue(acquired.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void reader_neverOverwritesUnconsumedFramesAndAllocatesNothingWhenWarm() throws Exception {
+        final int frames = 50000;
+        final int warmup = 10000;
+        final int size = 128;
+        final BufferPool pool = new BufferPool(8, size);
+
+        final PipedInputStream in = new PipedInputStream(16 * 1024);
+        final PipedOutputStream out = new PipedOutputStream(in);
+        Thread writer = new Thread(() -> {
+            FrameEncoder encoder = new FrameEncoder(false);
+            byte[] payload = new byte[size];
+            try {
+                for (int i = 0; i < frames; i++) {
+                    fillPattern(payload, i);
+                    encoder.write(out, Frames.TYPE_DATA, payload, 0, 1 + i % size);
+                }
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+
+        // the consumer plays the main thread: it checks every payload and only then hands the buffer back
+        final BlockingQueue<PooledBuffer> delivered = new ArrayBlockingQueue<>(pool.getCapacity());
+        final AtomicReference<AssertionError> failure = new AtomicReference<>();
+        Thread consumer = new Thread(() -> {
+            try {
+                for (int i = 0; i < frames; i++) {
+                    PooledBuffer frame = delivered.take();
+                    if (i % 97 == 0) {
+                        Thread.sleep(1);
+                    }
+                    assertEquals(1 + i % size, frame.length());
+                    for (int j = 0; j < frame.length(); j++) {
+                        assertEquals((byte) (i + j), frame.array()[j]);
+                    }
+                    frame.release();
+                }
+            } catch (AssertionError e) {
+                failure.set(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        final long[] allocated = new long[2];
+        final int[] count = { 0 };
+        FrameReader reader = new FrameReader(in, pool, (PooledBuffer frame) -> {
+            if (count[0] == warmup) {
+                allocated[0] = AllocationMeter.allocatedBytes();
+            }
+            else if (count[0] == frames - 1) {
+                allocated[1] = AllocationMeter.allocatedBytes();
+            }
+            count[0]++;
+            delivered.add(frame);
+        });
+
+        writer.start();
+        consumer.start();
+        reader.run();
+        consumer.join(10000);
+        writer.join();
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        assertEquals(frames, count[0]);
+        assertEquals(pool.getCapacity(), pool.available());
+
+        long bytes = allocated[1] - allocated[0];
+        assertTrue("read loop allocated " + bytes + " bytes in steady state", bytes < 16 * 1024);
+    }
+
+    private static void fillPattern(byte[] payload, int sequence) {
+        for (int j = 0; j < payload.length; j++) {
+            payload[j] = (byte) (sequence + j);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import br.com.dotofcodex.bluetooth_sample.transport.Connector;
+import br.com.dotofcodex.bluetooth_sample.transport.InMemoryNetwork;
+import br.com.dotofcodex.bluetooth_sample.transport.LinkProfile;
+import br.com.dotofcodex.bluetooth_sample.transport.TcpConnector;
+import br.com.dotofcodex.bluetooth_sample.transport.TcpTransportServer;
+import br.com.dotofcodex.bluetooth_sample.transport.TransportServer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ChatServerTest {
+
+    @Test
+    public void serverAndClients_exchangeFramesOverEmulatedLinks() throws Exception {
+        InMemoryNetwork network = new InMemoryNetwork(LinkProfile.rfcomm());
+        exchange(network.listen("hub"), new Connector[] {
+                network.connector("peer-1", "hub"),
+                network.connector("peer-2", "hub"),
+                network.connector("peer-3", "hub")
+        });
+        assertEquals(0, network.getOpenTransports());
+    }
+
+    @Test
+    public void serverAndClients_exchangeFramesOverTcp() throws Exception {
+        TcpTransportServer server = new TcpTransportServer(0);
+        exchange(server, new Connector[] {
+                new TcpConnector(server.getPort(), 1000),
+                new TcpConnector(server.getPort(), 1000)
+        });
+    }
+
+    private static void exchange(TransportServer transportServer, Connector[] connectors) throws Exception {
+        SessionRegistry hub = new SessionRegistry();
+        // every client is a separate device with a registry of its own
+        SessionRegistry[] peers = new SessionRegistry[connectors.length];
+        Inbox hubInbox = new Inbox();
+        Inbox peerInbox = new Inbox();
+        CountDownLatch connected = new CountDownLatch(connectors.length * 2);
+        ConnectionListener listener = new ConnectionListener() {
+            @Override
+            public void onConnecting() {
+            }
+
+            @Override
+            public void onConnected(ChatSession session) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onConnectionFailed(IOException error) {
+                error.printStackTrace();
+            }
+        };
+
+        ChatServer server = new ChatServer(transportServer, hub, hubInbox, listener);
+        server.start();
+        for (int i = 0; i < connectors.length; i++) {
+            peers[i] = new SessionRegistry();
+            new ChatClient(connectors[i], peers[i], peerInbox, listener).start();
+        }
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+
+        assertEquals(connectors.length, hub.broadcast(Frames.TYPE_DATA, "hello".getBytes(), null));
+        for (int i = 0; i < connectors.length; i++) {
+            assertEquals("hello", peerInbox.take());
+        }
+
+        for (SessionRegistry peer : peers) {
+            assertEquals(1, peer.broadcast(Frames.TYPE_DATA, "hi".getBytes(), null));
+        }
+        for (int i = 0; i < connectors.length; i++) {
+            assertEquals("hi", hubInbox.take());
+        }
+
+        server.cancel();
+        for (SessionRegistry peer : peers) {
+            peer.closeAll();
+        }
+        hub.closeAll();
+        assertTrue(server.join(1000));
+        assertFalse(server.isRunning());
+    }
+
+    private static class Inbox implements ChatSession.Listener {
+        private final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onFrame(ChatSession session, PooledBuffer frame) {
+            messages.add(new String(frame.array(), 0, frame.length()));
+            frame.release();
+        }
+
+        @Override
+        public void onClosed(ChatSession session) {
+        }
+
+        String take() throws InterruptedException {
+            return messages.poll(5, TimeUnit.SECONDS);
+        }
+    }
+}
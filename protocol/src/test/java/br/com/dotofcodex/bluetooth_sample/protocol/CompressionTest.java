@@ -0,0 +1,169 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import br.com.dotofcodex.bluetooth_sample.transport.InMemoryTransport;
+import br.com.dotofcodex.bluetooth_sample.transport.LinkProfile;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CompressionTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String[] MESSAGES = {
+            "Bom dia! Tudo bem com você? Estou chegando aí em dez minutos.",
+            "{\"device\":\"Lenovo K6\",\"rssi\":-61,\"battery\":87,\"temperature\":23.5,\"timestamp\":1589212800}",
+            "Obrigado, até amanhã então. Não esquece de trazer o carregador por favor",
+            "Oi, você está aqui agora? Onde?"
+    };
+
+    @Test
+    public void compressor_roundTripsMessages() throws Exception {
+        PayloadCompressor compressor = Compression.DEFAULT.newCompressor(Frames.DEFAULT_MAX_PAYLOAD_LENGTH);
+        PayloadDecompressor decompressor = Compression.DEFAULT.newDecompressor(Frames.DEFAULT_MAX_PAYLOAD_LENGTH);
+        BufferPool pool = new BufferPool(1, Frames.DEFAULT_MAX_PAYLOAD_LENGTH);
+
+        for (String message : MESSAGES) {
+            byte[] plain = message.getBytes(UTF_8);
+            int compressed = compressor.compress(plain, 0, plain.length);
+            assertTrue(message, compressed > 0 && compressed < plain.length);
+
+            PooledBuffer frame = pool.acquire();
+            frame.fill(Frames.TYPE_DATA | Frames.FLAG_COMPRESSED, compressor.output(), 0, compressed);
+            decompressor.decompress(frame, Frames.TYPE_DATA);
+            assertEquals(Frames.TYPE_DATA, frame.type());
+            assertEquals(message, new String(frame.array(), 0, frame.length(), UTF_8));
+            frame.release();
+        }
+        compressor.end();
+        decompressor.end();
+    }
+
+    @Test
+    public void compressor_roundTripsLargePayload() throws Exception {
+        StringBuilder text = new StringBuilder();
+        Random random = new Random(1);
+        while (text.length() < Frames.DEFAULT_MAX_PAYLOAD_LENGTH) {
+            text.append(MESSAGES[random.nextInt(MESSAGES.length)]).append('\n');
+        }
+        // exactly the largest payload a frame can carry
+        byte[] plain = Arrays.copyOf(text.toString().getBytes(UTF_8), Frames.DEFAULT_MAX_PAYLOAD_LENGTH);
+
+        PayloadCompressor compressor = Compression.DEFAULT.newCompressor(Frames.DEFAULT_MAX_PAYLOAD_LENGTH);
+        PayloadDecompressor decompressor = Compression.DEFAULT.newDecompressor(Frames.DEFAULT_MAX_PAYLOAD_LENGTH);
+        int compressed = compressor.compress(plain, 0, plain.length);
+        assertTrue(compressed > 0 && compressed < plain.length / 4);
+
+        PooledBuffer frame = new BufferPool(1, Frames.DEFAULT_MAX_PAYLOAD_LENGTH).acquire();
+        frame.fill(Frames.TYPE_DATA, compressor.output(), 0, compressed);
+        decompressor.decompress(frame, Frames.TYPE_DATA);
+        assertArrayEquals(plain, Arrays.copyOf(frame.array(), frame.length()));
+    }
+
+    @Test
+    public void compressor_skipsShortAndIncompressiblePayloads() {
+        PayloadCompressor compressor = Compression.DEFAULT.newCompressor(Frames.DEFAULT_MAX_PAYLOAD_LENGTH);
+        assertEquals(-1, compressor.compress("oi".getBytes(UTF_8), 0, 2));
+
+        byte[] noise = new byte[512];
+        new Random(2).nextBytes(noise);
+        assertEquals(-1, compressor.compress(noise, 0, noise.length));
+
+        // still usable after bailing out halfway
+        byte[] plain = MESSAGES[0].getBytes(UTF_8);
+        assertTrue(compressor.compress(plain, 0, plain.length) > 0);
+        compressor.end();
+    }
+
+    @Test(expected = FrameException.class)
+    public void decompressor_rejectsCorruptPayload() throws Exception {
+        PooledBuffer frame = new BufferPool(1, 64).acquire();
+        frame.fill(Frames.TYPE_DATA, new byte[] { (byte) 0xFF, 1, 2, 3, 4, 5 }, 0, 6);
+        Compression.DEFAULT.newDecompressor(64).decompress(frame, Frames.TYPE_DATA);
+    }
+
+    @Test(expected = FrameException.class)
+    public void decompressor_rejectsPayloadInflatingPastLimit() throws Exception {
+        byte[] zeros = new byte[4096];
+        PayloadCompressor compressor = Compression.DEFAULT.newCompressor(zeros.length);
+        int compressed = compressor.compress(zeros, 0, zeros.length);
+
+        PooledBuffer frame = new BufferPool(1, zeros.length).acquire();
+        frame.fill(Frames.TYPE_DATA, compressor.output(), 0, compressed);
+        Compression.DEFAULT.newDecompressor(1024).decompress(frame, Frames.TYPE_DATA);
+    }
+
+    @Test
+    public void sessions_negotiateCompressionWhenBothOfferIt() throws Exception {
+        assertNegotiated(Compression.DEFAULT, Compression.DEFAULT, true);
+    }
+
+    @Test
+    public void sessions_stayPlainWhenOneSideDeclines() throws Exception {
+        assertNegotiated(Compression.DEFAULT, null, false);
+        assertNegotiated(null, Compression.DEFAULT, false);
+    }
+
+    @Test
+    public void sessions_stayPlainWhenDictionariesDiffer() throws Exception {
+        Compression other = new Compression("another dictionary entirely".getBytes(UTF_8), 6, 24);
+        assertNegotiated(Compression.DEFAULT, other, false);
+    }
+
+    private static void assertNegotiated(Compression first, Compression second, boolean expected) throws Exception {
+        InMemoryTransport[] ends = InMemoryTransport.pair("first", "second", LinkProfile.UNLIMITED);
+        Inbox inbox = new Inbox();
+        ChatSession a = new ChatSession(ends[0], inbox);
+        ChatSession b = new ChatSession(ends[1], inbox);
+        a.setCompression(first);
+        b.setCompression(second);
+        a.start();
+        b.start();
+
+        // each side's HELLO precedes its first message, so a round trip settles the negotiation
+        for (String message : MESSAGES) {
+            a.send(Frames.TYPE_DATA, message.getBytes(UTF_8), null);
+            assertEquals(message, inbox.take());
+            b.send(Frames.TYPE_DATA, message.getBytes(UTF_8), null);
+            assertEquals(message, inbox.take());
+        }
+        assertEquals(expected, a.isCompressing());
+        assertEquals(expected, b.isCompressing());
+
+        a.close();
+        b.close();
+    }
+
+    private static final class Inbox implements ChatSession.Listener {
+        private final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onFrame(ChatSession session, PooledBuffer frame) {
+            try {
+                assertEquals(Frames.TYPE_DATA, frame.type());
+                messages.add(new String(frame.array(), 0, frame.length(), UTF_8));
+            } finally {
+                frame.release();
+            }
+        }
+
+        @Override
+        public void onClosed(ChatSession session) {
+        }
+
+        String take() throws InterruptedException {
+            String message = messages.poll(5, TimeUnit.SECONDS);
+            assertNotNull("no message within 5 seconds", message);
+            return message;
+        }
+    }
+}
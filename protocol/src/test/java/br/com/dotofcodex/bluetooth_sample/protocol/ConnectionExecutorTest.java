@@ -0,0 +1,177 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import br.com.dotofcodex.bluetooth_sample.transport.InMemoryNetwork;
+import br.com.dotofcodex.bluetooth_sample.transport.InMemoryTransport;
+import br.com.dotofcodex.bluetooth_sample.transport.LinkProfile;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ConnectionExecutorTest {
+
+    private static final int PEERS = 3;
+    // the accept loop, a dial per peer and a reader and a writer per session at both ends
+    private static final int MAX_TASKS = 1 + PEERS + 4 * PEERS;
+
+    private final ConnectionExecutor executor = new ConnectionExecutor("Connection", MAX_TASKS, 60 * 1000);
+
+    @After
+    public void tearDown() {
+        executor.close();
+    }
+
+    @Test
+    public void startStopCycles_keepThreadsAndSocketsConstant() throws Exception {
+        InMemoryNetwork network = new InMemoryNetwork(LinkProfile.UNLIMITED);
+        int[] threads = new int[20];
+        int[] jvmThreads = new int[threads.length];
+        for (int i = 0; i < threads.length; i++) {
+            cycle(network);
+            awaitIdle();
+            assertEquals("cycle " + i, 0, network.getOpenTransports());
+            assertEquals("cycle " + i, 0, network.getListeners());
+            threads[i] = executor.getThreadCount();
+            jvmThreads[i] = Thread.activeCount();
+        }
+
+        System.out.println(String.format("%d start-stop cycles: %d threads in the executor after the first, %d after the last, "
+                + "at most %d; %d threads in the jvm after the first, %d after the last", threads.length, threads[0],
+                threads[threads.length - 1], executor.getLargestThreadCount(), jvmThreads[0], jvmThreads[threads.length - 1]));
+        // a thread per task and cycle would be hundreds by now
+        assertTrue(executor.getLargestThreadCount() <= MAX_TASKS);
+        for (int i = 1; i < threads.length; i++) {
+            assertTrue("cycle " + i + ": " + threads[i] + " threads", threads[i] <= MAX_TASKS);
+            assertTrue("cycle " + i + ": " + jvmThreads[i] + " threads", jvmThreads[i] - threads[i] <= jvmThreads[0] - threads[0]);
+        }
+        // only the threads a busier cycle needed are added, never one per cycle
+        assertTrue(threads[threads.length - 1] - threads[1] < threads.length / 2);
+    }
+
+    @Test
+    public void executorAtItsLimit_closesNewSessions() throws IOException {
+        ConnectionExecutor small = new ConnectionExecutor("Small", 2, 60 * 1000);
+        try {
+            InMemoryTransport[] first = InMemoryTransport.pair("a", "b", LinkProfile.UNLIMITED);
+            InMemoryTransport[] second = InMemoryTransport.pair("c", "d", LinkProfile.UNLIMITED);
+            ChatSession running = new ChatSession(first[0], new Inbox());
+            running.setExecutor(small);
+            running.start();
+            assertTrue(running.isOpen());
+
+            // its reader and writer would be the third and fourth thread
+            ChatSession rejected = new ChatSession(second[0], new Inbox());
+            rejected.setExecutor(small);
+            rejected.start();
+            assertFalse(rejected.isOpen());
+            assertTrue(second[0].isClosed());
+            running.close();
+        } finally {
+            assertTrue(small.close(1000));
+        }
+    }
+
+    @Test
+    public void close_endsLoopsNobodyCancelled() throws Exception {
+        InMemoryNetwork network = new InMemoryNetwork(LinkProfile.UNLIMITED);
+        ChatServer server = new ChatServer(network.listen("hub"), new SessionRegistry(), new Inbox(), new Quiet());
+        server.start(executor);
+        assertTrue(server.isRunning());
+
+        assertTrue(executor.close(1000));
+        assertTrue(server.join(0));
+        assertEquals(0, executor.getThreadCount());
+        assertTrue(executor.isClosed());
+    }
+
+    /**
+     * A server and a few clients connect, exchange a message each way and are torn down.
+     */
+    private void cycle(InMemoryNetwork network) throws Exception {
+        CountDownLatch connected = new CountDownLatch(2 * PEERS);
+        ConnectionListener listener = new Quiet() {
+            @Override
+            public void onConnected(ChatSession session) {
+                connected.countDown();
+            }
+        };
+        SessionRegistry hub = new SessionRegistry();
+        hub.setExecutor(executor);
+        Inbox hubInbox = new Inbox();
+        Inbox peerInbox = new Inbox();
+        ChatServer server = new ChatServer(network.listen("hub"), hub, hubInbox, listener);
+        server.start(executor);
+
+        SessionRegistry[] peers = new SessionRegistry[PEERS];
+        ChatClient[] clients = new ChatClient[PEERS];
+        for (int i = 0; i < PEERS; i++) {
+            peers[i] = new SessionRegistry();
+            peers[i].setExecutor(executor);
+            clients[i] = new ChatClient(network.connector("peer-" + i, "hub"), peers[i], peerInbox, listener);
+            clients[i].start(executor);
+        }
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+
+        assertEquals(PEERS, hub.broadcast(Frames.TYPE_DATA, "oi".getBytes(), null));
+        for (SessionRegistry peer : peers) {
+            assertEquals(1, peer.broadcast(Frames.TYPE_DATA, "olá".getBytes(), null));
+        }
+        for (int i = 0; i < PEERS; i++) {
+            assertNotNull(peerInbox.messages.poll(1, TimeUnit.SECONDS));
+            assertNotNull(hubInbox.messages.poll(1, TimeUnit.SECONDS));
+        }
+
+        server.cancel();
+        for (SessionRegistry peer : peers) {
+            peer.closeAll();
+        }
+        hub.closeAll();
+        assertTrue(server.join(1000));
+        for (ChatClient client : clients) {
+            assertTrue(client.join(1000));
+        }
+    }
+
+    private void awaitIdle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (executor.getActiveCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, executor.getActiveCount());
+    }
+
+    private static class Inbox implements ChatSession.Listener {
+        private final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onFrame(ChatSession session, PooledBuffer frame) {
+            messages.add(new String(frame.array(), 0, frame.length()));
+            frame.release();
+        }
+
+        @Override
+        public void onClosed(ChatSession session) {
+        }
+    }
+
+    private static class Quiet implements ConnectionListener {
+        @Override
+        public void onConnecting() {
+        }
+
+        @Override
+        public void onConnected(ChatSession session) {
+        }
+
+        @Override
+        public void onConnectionFailed(IOException error) {
+        }
+    }
+}
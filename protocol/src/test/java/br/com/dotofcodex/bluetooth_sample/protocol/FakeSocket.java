@@ -0,0 +1,40 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Stand-in for a connected socket: reads block until the socket is closed, writes go to the given stream.
+ */
+class FakeSocket implements Closeable {
+
+    final CountDownLatch closed = new CountDownLatch(1);
+    final OutputStream os;
+    final InputStream is = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            try {
+                closed.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return -1;
+        }
+    };
+
+    FakeSocket(OutputStream os) {
+        this.os = os;
+    }
+
+    ChatSession open(String address, ChatSession.Listener listener) {
+        return new ChatSession(address, is, os, this, listener);
+    }
+
+    @Override
+    public void close() {
+        closed.countDown();
+    }
+}
@@ -0,0 +1,255 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import br.com.dotofcodex.bluetooth_sample.transport.InMemoryTransport;
+import br.com.dotofcodex.bluetooth_sample.transport.LinkProfile;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class FlowControlTest {
+
+    // frames the receiving listener keeps until the test releases them, like a consumer falling behind
+    private final BlockingQueue<PooledBuffer> held = new LinkedBlockingQueue<>();
+    private ChatSession sender;
+    private ChatSession receiver;
+
+    @After
+    public void tearDown() {
+        if (sender != null) {
+            sender.close();
+            receiver.close();
+        }
+        PooledBuffer frame;
+        while ((frame = held.poll()) != null) {
+            frame.release();
+        }
+    }
+
+    @Test
+    public void window_boundsFramesTheListenerHolds() throws Exception {
+        open(8, FlowControl.POLICY_DROP_NEWEST, 10, 0);
+
+        int accepted = 0;
+        for (int i = 0; i < 100; i++) {
+            if (sender.send(Frames.TYPE_DATA, message(i, 64), null)) {
+                accepted++;
+            }
+        }
+        assertEquals(18, accepted);
+        awaitHeld(8);
+        Thread.sleep(50);
+        assertEquals(8, held.size());
+        assertEquals(8, receiver.getFlowControl().getOutstanding());
+        assertEquals(10, sender.getFlowControl().getPending());
+        assertEquals(82, sender.getFlowControl().getDropped());
+
+        // releasing frames lets the waiting ones through, in order
+        List<Integer> received = new ArrayList<>();
+        while (received.size() < 18) {
+            PooledBuffer frame = held.poll(1, TimeUnit.SECONDS);
+            assertNotNull("received " + received, frame);
+            received.add(Frames.readInt(frame.array(), 0));
+            frame.release();
+        }
+        for (int i = 0; i < 18; i++) {
+            assertEquals(i, (int) received.get(i));
+        }
+        assertEquals(0, sender.getFlowControl().getPending());
+    }
+
+    @Test
+    public void dropOldest_keepsTheNewestFrames() throws Exception {
+        open(2, FlowControl.POLICY_DROP_OLDEST, 4, 0);
+
+        AtomicInteger failed = new AtomicInteger();
+        for (int i = 0; i < 20; i++) {
+            assertTrue(sender.send(Frames.TYPE_DATA, message(i, 64), (IOException error) -> {
+                if (error != null) {
+                    failed.incrementAndGet();
+                }
+            }));
+        }
+        assertEquals(14, failed.get());
+
+        List<Integer> received = new ArrayList<>();
+        while (received.size() < 6) {
+            PooledBuffer frame = held.poll(1, TimeUnit.SECONDS);
+            assertNotNull("received " + received, frame);
+            received.add(Frames.readInt(frame.array(), 0));
+            frame.release();
+        }
+        assertEquals("[0, 1, 16, 17, 18, 19]", received.toString());
+    }
+
+    @Test
+    public void stall_pacesTheSenderToTheConsumer() throws Exception {
+        open(4, FlowControl.POLICY_STALL, 0, 5000);
+
+        int count = 300;
+        AtomicInteger rejected = new AtomicInteger();
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                if (!sender.send(Frames.TYPE_DATA, message(i, 256), null)) {
+                    rejected.incrementAndGet();
+                }
+            }
+        });
+        producer.start();
+
+        int maxOutstanding = 0;
+        for (int i = 0; i < count; i++) {
+            PooledBuffer frame = held.poll(1, TimeUnit.SECONDS);
+            assertNotNull("stuck after " + i, frame);
+            assertEquals(i, Frames.readInt(frame.array(), 0));
+            maxOutstanding = Math.max(maxOutstanding, receiver.getFlowControl().getOutstanding());
+            frame.release();
+            if (i % 10 == 0) {
+                Thread.sleep(1);
+            }
+        }
+        producer.join(1000);
+        assertEquals(0, rejected.get());
+        assertTrue(sender.getFlowControl().getStalls() > 0);
+        assertTrue("outstanding " + maxOutstanding, maxOutstanding <= 4);
+    }
+
+    @Test
+    public void stall_givesUpAfterTheTimeout() throws Exception {
+        open(1, FlowControl.POLICY_STALL, 0, 100);
+
+        assertTrue(sender.send(Frames.TYPE_DATA, message(0, 16), null));
+        long start = System.nanoTime();
+        AtomicInteger errors = new AtomicInteger();
+        assertFalse(sender.send(Frames.TYPE_DATA, message(1, 16), (IOException error) -> errors.incrementAndGet()));
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("waited " + waited + " ms", waited >= 90 && waited < 1000);
+        assertEquals(1, errors.get());
+    }
+
+    @Test
+    public void fastProducer_throttledConsumer_heapStaysBounded() throws Exception {
+        open(8, FlowControl.POLICY_DROP_NEWEST, FlowControl.DEFAULT_CAPACITY, 0);
+        long baseline = usedAfterGc();
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong attempted = new AtomicLong();
+        AtomicLong consumed = new AtomicLong();
+        AtomicInteger maxHeld = new AtomicInteger();
+        Thread producer = new Thread(() -> {
+            int i = 0;
+            while (running.get()) {
+                // a fresh array per message, as an app would send them
+                sender.send(Frames.TYPE_DATA, message(i++, 1024), null);
+                attempted.incrementAndGet();
+            }
+        });
+        Thread consumer = new Thread(() -> {
+            try {
+                while (running.get()) {
+                    PooledBuffer frame = held.poll(100, TimeUnit.MILLISECONDS);
+                    if (frame != null) {
+                        maxHeld.set(Math.max(maxHeld.get(), receiver.getFlowControl().getOutstanding()));
+                        frame.release();
+                        consumed.incrementAndGet();
+                        // about 500 messages a second
+                        Thread.sleep(2);
+                    }
+                }
+            } catch (InterruptedException ignored) {  }
+        });
+        producer.start();
+        consumer.start();
+
+        long peak = 0;
+        for (int i = 0; i < 10; i++) {
+            Thread.sleep(200);
+            peak = Math.max(peak, usedAfterGc() - baseline);
+        }
+        running.set(false);
+        producer.join();
+        consumer.join();
+
+        System.out.println(String.format("%d messages of 1 KB offered, %d consumed, %d dropped; heap grew at most %d KB, "
+                        + "at most %d frames held by the receiver, %d waiting at the sender", attempted.get(), consumed.get(),
+                sender.getFlowControl().getDropped(), peak / 1024, maxHeld.get(), sender.getFlowControl().getPending()));
+        assertTrue(attempted.get() > 50 * consumed.get());
+        assertTrue(maxHeld.get() <= 8);
+        assertTrue(sender.getFlowControl().getPending() <= FlowControl.DEFAULT_CAPACITY);
+        // the sender's queue, the writer's and what is on the link, never the whole offered volume
+        assertTrue("heap grew " + peak / 1024 + " KB", peak < 8 * 1024 * 1024);
+    }
+
+    private void open(int window, int policy, int capacity, long stallMillis) throws Exception {
+        InMemoryTransport[] ends = InMemoryTransport.pair("sender", "receiver", LinkProfile.UNLIMITED);
+        ChatSession.Listener keep = new ChatSession.Listener() {
+            @Override
+            public void onFrame(ChatSession session, PooledBuffer frame) {
+                held.add(frame);
+            }
+
+            @Override
+            public void onClosed(ChatSession session) {
+            }
+        };
+        sender = new ChatSession(ends[0], keep);
+        receiver = new ChatSession(ends[1], keep);
+        receiver.setInboundWindow(window);
+        sender.setFlowPolicy(policy, capacity, stallMillis);
+        receiver.start();
+        sender.start();
+
+        // the window is known once the receiver's HELLO arrived
+        long deadline = System.currentTimeMillis() + 1000;
+        while (sender.getFlowControl().getCredits() != window && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(window, sender.getFlowControl().getCredits());
+    }
+
+    private void awaitHeld(int frames) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (held.size() < frames && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static byte[] message(int index, int size) {
+        // random, so compression does not shrink what the link carries
+        byte[] message = new byte[size];
+        new Random(index).nextBytes(message);
+        Frames.writeInt(index, message, 0);
+        return message;
+    }
+
+    /**
+     * What survived the collection; the producer allocates too fast for the heap usage read after it to mean much.
+     */
+    private static long usedAfterGc() {
+        System.gc();
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage usage = pool.getType() == MemoryType.HEAP ? pool.getCollectionUsage() : null;
+            if (usage != null) {
+                used += usage.getUsed();
+            }
+        }
+        return used;
+    }
+}
@@ -0,0 +1,214 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class FrameWriterTest {
+
+    @Test
+    public void writer_coalescesSmallFramesIntoFewWrites() throws Exception {
+        CountingOutputStream out = new CountingOutputStream(0);
+        FrameWriter writer = new FrameWriter(out, new FrameEncoder(true), 2048, 4096, 5);
+        int messages = 1000;
+        CountDownLatch done = new CountDownLatch(messages);
+
+        for (int i = 0; i < messages; i++) {
+            assertTrue(writer.send(Frames.TYPE_DATA, payload(i), (IOException error) -> {
+                assertNull(error);
+                done.countDown();
+            }));
+        }
+        writer.start();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        writer.close();
+
+        assertTrue("used " + out.writes.get() + " writes", out.writes.get() < messages / 10);
+
+        List<byte[]> received = decode(out.toByteArray());
+        assertEquals(messages, received.size());
+        for (int i = 0; i < messages; i++) {
+            assertArrayEquals(payload(i), received.get(i));
+        }
+    }
+
+    @Test
+    public void writer_flushesLoneFrameWithinLatencyBudget() throws Exception {
+        CountingOutputStream out = new CountingOutputStream(0);
+        FrameWriter writer = new FrameWriter(out, new FrameEncoder(false), 16, 4096, 20);
+        writer.start();
+
+        CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+        writer.send(Frames.TYPE_DATA, payload(1), (IOException error) -> done.countDown());
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        writer.close();
+
+        assertTrue("took " + elapsedMillis + " ms", elapsedMillis < 500);
+        assertEquals(1, out.writes.get());
+    }
+
+    @Test
+    public void writer_writesLargeFramesDirectly() throws Exception {
+        CountingOutputStream out = new CountingOutputStream(0);
+        FrameWriter writer = new FrameWriter(out, new FrameEncoder(true), 16, 64, 0);
+        writer.start();
+
+        byte[] large = new byte[1000];
+        CountDownLatch done = new CountDownLatch(2);
+        writer.send(Frames.TYPE_DATA, payload(7), (IOException error) -> done.countDown());
+        writer.send(Frames.TYPE_DATA, large, (IOException error) -> done.countDown());
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        writer.close();
+
+        List<byte[]> received = decode(out.toByteArray());
+        assertArrayEquals(payload(7), received.get(0));
+        assertArrayEquals(large, received.get(1));
+    }
+
+    @Test
+    public void writer_rejectsFramesWhenQueueIsFull() throws Exception {
+        CountDownLatch unblock = new CountDownLatch(1);
+        OutputStream stuck = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    unblock.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+        FrameWriter writer = new FrameWriter(stuck, new FrameEncoder(false), 4, 64, 0);
+        writer.start();
+
+        AtomicReference<IOException> rejected = new AtomicReference<>();
+        boolean accepted = true;
+        for (int i = 0; i < 10 && accepted; i++) {
+            accepted = writer.send(Frames.TYPE_DATA, payload(i), rejected::set);
+            Thread.sleep(5);
+        }
+
+        assertFalse(accepted);
+        assertNotNull(rejected.get());
+        unblock.countDown();
+        writer.close();
+    }
+
+    @Test
+    public void writer_failsPendingFramesWhenTheStreamBreaks() throws Exception {
+        OutputStream broken = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("broken pipe");
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                throw new IOException("broken pipe");
+            }
+        };
+        FrameWriter writer = new FrameWriter(broken, new FrameEncoder(false), 16, 64, 0);
+        writer.start();
+
+        CountDownLatch failed = new CountDownLatch(1);
+        writer.send(Frames.TYPE_DATA, payload(1), (IOException error) -> {
+            if (error != null) {
+                failed.countDown();
+            }
+        });
+        assertTrue(failed.await(1, TimeUnit.SECONDS));
+
+        AtomicReference<IOException> later = new AtomicReference<>();
+        assertFalse(writer.send(Frames.TYPE_DATA, payload(2), later::set));
+        assertNotNull(later.get());
+    }
+
+    @Test
+    public void coalescedWrites_outperformOneWritePerMessage() throws Exception {
+        int messages = 20000;
+        // every write call costs about as much as a small rfcomm packet plus a syscall
+        long perWriteNanos = TimeUnit.MICROSECONDS.toNanos(20);
+
+        CountingOutputStream direct = new CountingOutputStream(perWriteNanos);
+        FrameEncoder encoder = new FrameEncoder(true);
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            byte[] payload = payload(i);
+            encoder.write(direct, Frames.TYPE_DATA, payload, 0, payload.length);
+        }
+        long directNanos = System.nanoTime() - start;
+
+        CountingOutputStream coalesced = new CountingOutputStream(perWriteNanos);
+        FrameWriter writer = new FrameWriter(coalesced, new FrameEncoder(true), 1024, 4096, 2);
+        CountDownLatch done = new CountDownLatch(messages);
+        writer.start();
+        start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            // a full queue rejects the frame, the caller backs off and retries
+            while (!writer.send(Frames.TYPE_DATA, payload(i), (IOException error) -> {
+                if (error == null) {
+                    done.countDown();
+                }
+            })) {
+                Thread.yield();
+            }
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        long coalescedNanos = System.nanoTime() - start;
+        writer.close();
+
+        System.out.printf("per-call writes: %d writes, %.0f msg/s; coalesced: %d writes, %.0f msg/s%n",
+                direct.writes.get(), messages / (directNanos / 1e9),
+                coalesced.writes.get(), messages / (coalescedNanos / 1e9));
+        assertTrue(coalescedNanos < directNanos);
+    }
+
+    private static byte[] payload(int i) {
+        return ("message " + i).getBytes();
+    }
+
+    private static List<byte[]> decode(byte[] stream) throws IOException {
+        List<byte[]> frames = new ArrayList<>();
+        new FrameDecoder(Frames.DEFAULT_MAX_PAYLOAD_LENGTH, (int type, byte[] buffer, int offset, int length) -> {
+            byte[] copy = new byte[length];
+            System.arraycopy(buffer, offset, copy, 0, length);
+            frames.add(copy);
+        }).decode(stream, 0, stream.length);
+        return frames;
+    }
+
+    private static class CountingOutputStream extends ByteArrayOutputStream {
+        final AtomicInteger writes = new AtomicInteger();
+        private final long costNanos;
+
+        CountingOutputStream(long costNanos) {
+            this.costNanos = costNanos;
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes.incrementAndGet();
+            long until = System.nanoTime() + costNanos;
+            while (System.nanoTime() < until) {
+                // busy wait, sleeping is far too coarse for microseconds
+            }
+            super.write(b, off, len);
+        }
+    }
+}
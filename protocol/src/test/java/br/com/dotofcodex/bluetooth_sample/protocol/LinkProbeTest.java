@@ -0,0 +1,146 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import br.com.dotofcodex.bluetooth_sample.transport.InMemoryTransport;
+import br.com.dotofcodex.bluetooth_sample.transport.LinkProfile;
+
+import org.junit.Test;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LinkProbeTest {
+
+    private static final ChatSession.Listener IGNORE = new ChatSession.Listener() {
+        @Override
+        public void onFrame(ChatSession session, PooledBuffer frame) {
+            frame.release();
+        }
+
+        @Override
+        public void onClosed(ChatSession session) {
+        }
+    };
+
+    @Test
+    public void estimator_followsRfc6298() {
+        LinkEstimator estimator = new LinkEstimator();
+        assertEquals(3000, estimator.getTimeoutNanos(3000));
+
+        estimator.onRtt(100);
+        assertEquals(100, estimator.getSmoothedRttNanos());
+        assertEquals(50, estimator.getRttVariationNanos());
+        assertEquals(300, estimator.getTimeoutNanos(3000));
+
+        estimator.onRtt(180);
+        // RTTVAR = 3/4 * 50 + 1/4 * |100 - 180|, SRTT = 7/8 * 100 + 1/8 * 180
+        assertEquals(57, estimator.getRttVariationNanos());
+        assertEquals(110, estimator.getSmoothedRttNanos());
+        assertEquals(100, estimator.getMinRttNanos());
+        assertEquals(5, estimator.getJitterNanos());
+        assertEquals(2, estimator.getSamples());
+    }
+
+    @Test
+    public void estimator_averagesPacketPairs() {
+        LinkEstimator estimator = new LinkEstimator();
+        assertEquals(1234, estimator.getBandwidthDelayBytes(1234));
+
+        // 4096 bytes spread over 16 ms is 256000 B/s
+        estimator.onPair(TimeUnit.MILLISECONDS.toNanos(16), 4096);
+        assertEquals(256000, estimator.getThroughput());
+        estimator.onPair(0, 4096);
+        estimator.onPair(-5, 4096);
+        assertEquals(256000, estimator.getThroughput());
+
+        estimator.onPair(TimeUnit.MILLISECONDS.toNanos(8), 4096);
+        assertEquals(256000 + (512000 - 256000) / 8, estimator.getThroughput());
+
+        estimator.onRtt(TimeUnit.MILLISECONDS.toNanos(40));
+        assertEquals(288000 * 40 / 1000, estimator.getBandwidthDelayBytes(1234));
+    }
+
+    @Test
+    public void probe_measuresEmulatedLink() throws Exception {
+        LinkProfile profile = LinkProfile.builder()
+                .bandwidth(256 * 1024)
+                .latency(20, TimeUnit.MILLISECONDS)
+                .build();
+        LinkEstimator estimator = probe(profile, 3000);
+
+        assertTrue(estimator.toString(), estimator.getSamples() >= 10);
+        assertEquals(estimator.toString(), 40, estimator.getSmoothedRttNanos() / 1e6, 5);
+        assertEquals(estimator.toString(), 40, estimator.getMinRttNanos() / 1e6, 5);
+        assertEquals(estimator.toString(), 256 * 1024, estimator.getThroughput(), 256 * 1024 * 0.2);
+        assertTrue(estimator.toString(), estimator.getJitterNanos() < TimeUnit.MILLISECONDS.toNanos(2));
+    }
+
+    @Test
+    public void probe_seesJitter() throws Exception {
+        LinkProfile profile = LinkProfile.builder()
+                .bandwidth(256 * 1024)
+                .latency(20, TimeUnit.MILLISECONDS)
+                .jitter(10, TimeUnit.MILLISECONDS)
+                .seed(7)
+                .build();
+        LinkEstimator estimator = probe(profile, 3000);
+
+        assertTrue(estimator.toString(), estimator.getSamples() >= 10);
+        assertTrue(estimator.toString(), estimator.getJitterNanos() > TimeUnit.MILLISECONDS.toNanos(2));
+        assertTrue(estimator.toString(), estimator.getRttVariationNanos() > TimeUnit.MILLISECONDS.toNanos(2));
+        assertTrue(estimator.toString(), estimator.getTimeoutNanos(0) > estimator.getSmoothedRttNanos());
+    }
+
+    @Test
+    public void probe_staysOffUnlessAsked() throws Exception {
+        InMemoryTransport[] ends = InMemoryTransport.pair("a", "b", LinkProfile.UNLIMITED);
+        ChatSession a = new ChatSession(ends[0], IGNORE);
+        ChatSession b = new ChatSession(ends[1], IGNORE);
+        a.start();
+        b.start();
+        Thread.sleep(300);
+        assertEquals(0, a.getLinkEstimator().getSamples());
+        assertEquals(0, b.getLinkEstimator().getSamples());
+        a.close();
+        b.close();
+    }
+
+    @Test
+    public void probe_runsOnTheExecutorsTimer() throws Exception {
+        ConnectionExecutor executor = new ConnectionExecutor();
+        ScheduledThreadPoolExecutor timer = (ScheduledThreadPoolExecutor) executor.getTimer();
+        InMemoryTransport[] ends = InMemoryTransport.pair("a", "b", LinkProfile.UNLIMITED);
+        ChatSession a = new ChatSession(ends[0], IGNORE);
+        ChatSession b = new ChatSession(ends[1], IGNORE);
+        a.setExecutor(executor);
+        b.setExecutor(executor);
+        a.setProbeInterval(50);
+        a.start();
+        b.start();
+        Thread.sleep(500);
+        assertTrue(a.getLinkEstimator().toString(), a.getLinkEstimator().getSamples() > 0);
+        assertEquals(1, timer.getQueue().size());
+
+        a.close();
+        b.close();
+        // stopping the probe takes its task off the timer, closing the executor ends every thread
+        assertEquals(0, timer.getQueue().size());
+        assertTrue(executor.close(1000));
+    }
+
+    private static LinkEstimator probe(LinkProfile profile, long millis) throws Exception {
+        InMemoryTransport[] ends = InMemoryTransport.pair("a", "b", profile);
+        ChatSession a = new ChatSession(ends[0], IGNORE);
+        ChatSession b = new ChatSession(ends[1], IGNORE);
+        a.setProbeInterval(100);
+        a.start();
+        b.start();
+        Thread.sleep(millis);
+        a.close();
+        b.close();
+        // b only answered
+        assertEquals(0, b.getLinkEstimator().getSamples());
+        return a.getLinkEstimator();
+    }
+}
@@ -0,0 +1,206 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class SessionRegistryTest {
+
+    private static final ChatSession.Listener IGNORE = new ChatSession.Listener() {
+        @Override
+        public void onFrame(ChatSession session, PooledBuffer frame) {
+            frame.release();
+        }
+
+        @Override
+        public void onClosed(ChatSession session) {
+        }
+    };
+
+    @Test
+    public void registry_replacesSessionWithSameAddress() {
+        SessionRegistry registry = new SessionRegistry();
+        FakeSocket first = new FakeSocket(new CountingStream(0));
+        FakeSocket second = new FakeSocket(new CountingStream(0));
+        ChatSession old = first.open("00:11", IGNORE);
+        ChatSession current = second.open("00:11", IGNORE);
+
+        registry.register(old);
+        registry.register(current);
+
+        assertSame(current, registry.get("00:11"));
+        assertFalse(old.isOpen());
+        assertEquals(0, first.closed.getCount());
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void registry_dropsSessionsWhenTheyClose() throws InterruptedException {
+        SessionRegistry registry = new SessionRegistry();
+        FakeSocket socket = new FakeSocket(new CountingStream(0));
+        CountDownLatch closed = new CountDownLatch(1);
+        ChatSession session = socket.open("00:22", new ChatSession.Listener() {
+            @Override
+            public void onFrame(ChatSession session, PooledBuffer frame) {
+                frame.release();
+            }
+
+            @Override
+            public void onClosed(ChatSession session) {
+                closed.countDown();
+            }
+        });
+        registry.register(session);
+        session.start();
+
+        // the peer hanging up ends the read loop, which closes the session
+        socket.close();
+        assertTrue(closed.await(1, TimeUnit.SECONDS));
+        assertNull(registry.get("00:22"));
+    }
+
+    @Test
+    public void broadcast_isNotHeldBackBySlowPeer() throws InterruptedException {
+        SessionRegistry registry = new SessionRegistry();
+        CountDownLatch release = new CountDownLatch(1);
+        OutputStream stuck = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+        List<FakeSocket> sockets = new ArrayList<>();
+        sockets.add(new FakeSocket(stuck));
+        for (int i = 0; i < 3; i++) {
+            sockets.add(new FakeSocket(new CountingStream(0)));
+        }
+        for (int i = 0; i < sockets.size(); i++) {
+            ChatSession session = sockets.get(i).open("peer-" + i, IGNORE);
+            registry.register(session);
+            session.start();
+        }
+
+        int messages = 200;
+        CountDownLatch delivered = new CountDownLatch(messages * 3);
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            registry.broadcast(Frames.TYPE_DATA, new byte[16], (IOException error) -> {
+                if (error == null) {
+                    delivered.countDown();
+                }
+            });
+        }
+        long broadcastMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        assertTrue("broadcast took " + broadcastMillis + " ms", broadcastMillis < 1000);
+        release.countDown();
+        registry.closeAll();
+    }
+
+    @Test
+    public void targetedSend_reachesOnlyThatPeer() throws InterruptedException {
+        SessionRegistry registry = new SessionRegistry();
+        CountingStream a = new CountingStream(0);
+        CountingStream b = new CountingStream(0);
+        ChatSession first = new FakeSocket(a).open("a", IGNORE);
+        ChatSession second = new FakeSocket(b).open("b", IGNORE);
+        registry.register(first);
+        registry.register(second);
+        first.start();
+        second.start();
+
+        CountDownLatch sent = new CountDownLatch(1);
+        assertTrue(registry.send("b", Frames.TYPE_DATA, new byte[10], (IOException error) -> sent.countDown()));
+        assertFalse(registry.send("c", Frames.TYPE_DATA, new byte[10], null));
+        assertTrue(sent.await(1, TimeUnit.SECONDS));
+
+        // the opening HELLO is all the other peer ever sees
+        int hello = Frames.encodedLength(ChatSession.HELLO_WINDOW_LENGTH, true);
+        long deadline = System.currentTimeMillis() + 1000;
+        while (a.bytes.get() < hello && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(20);
+        assertEquals(hello, a.bytes.get());
+        assertTrue(b.bytes.get() > hello + 10);
+        registry.closeAll();
+    }
+
+    @Test
+    public void broadcastThroughput_fromOneToSevenPeers() throws InterruptedException {
+        int messages = 20000;
+        byte[] payload = new byte[64];
+        // a piconet holds at most seven active peers
+        for (int peers = 1; peers <= 7; peers++) {
+            SessionRegistry registry = new SessionRegistry();
+            for (int i = 0; i < peers; i++) {
+                ChatSession session = new FakeSocket(new CountingStream(TimeUnit.MICROSECONDS.toNanos(20))).open("peer-" + i, IGNORE);
+                registry.register(session);
+                session.start();
+            }
+
+            AtomicLong written = new AtomicLong();
+            FrameWriter.Callback callback = (IOException error) -> {
+                if (error == null) {
+                    written.incrementAndGet();
+                }
+            };
+            long accepted = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                int queued = registry.broadcast(Frames.TYPE_DATA, payload, callback);
+                if (queued < peers) {
+                    // some writer is saturated, back off like a paced producer would
+                    Thread.sleep(0, 100000);
+                }
+                accepted += queued;
+            }
+            long deadline = System.currentTimeMillis() + 30000;
+            while (written.get() < accepted && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            assertEquals(accepted, written.get());
+            System.out.printf("broadcast to %d peers: %.0f msg/s, %.0f frames/s written, %d rejected%n",
+                    peers, messages / seconds, written.get() / seconds, (long) messages * peers - accepted);
+            registry.closeAll();
+        }
+    }
+
+    private static class CountingStream extends OutputStream {
+        final AtomicLong bytes = new AtomicLong();
+        private final long costNanos;
+
+        CountingStream(long costNanos) {
+            this.costNanos = costNanos;
+        }
+
+        @Override
+        public void write(int b) {
+            bytes.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            long until = System.nanoTime() + costNanos;
+            while (System.nanoTime() < until) {
+                // per write cost of a real socket
+            }
+            bytes.addAndGet(len);
+        }
+    }
+}
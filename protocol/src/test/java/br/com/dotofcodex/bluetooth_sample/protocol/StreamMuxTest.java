@@ -0,0 +1,340 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import br.com.dotofcodex.bluetooth_sample.transport.InMemoryTransport;
+import br.com.dotofcodex.bluetooth_sample.transport.LinkProfile;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StreamMuxTest {
+
+    private static final int TYPE_BULK = 20;
+    private static final int TYPE_CHAT = 21;
+
+    private static final ChatSession.Listener IGNORE = new ChatSession.Listener() {
+        @Override
+        public void onFrame(ChatSession session, PooledBuffer frame) {
+            frame.release();
+        }
+
+        @Override
+        public void onClosed(ChatSession session) {
+        }
+    };
+
+    @Test
+    public void stream_reassemblesLargeFrames() throws Exception {
+        Peers peers = new Peers(LinkProfile.UNLIMITED);
+        Stream stream = peers.near.openStream(3, Stream.PRIORITY_NORMAL);
+        assertSame(stream, peers.near.openStream(3, Stream.PRIORITY_BULK));
+
+        byte[] large = new byte[Frames.DEFAULT_MAX_PAYLOAD_LENGTH];
+        new Random(1).nextBytes(large);
+        byte[] small = { 1, 2, 3 };
+        CountDownLatch written = new CountDownLatch(3);
+        assertTrue(stream.send(TYPE_BULK, large, (IOException error) -> written.countDown()));
+        assertTrue(stream.send(TYPE_CHAT, small, (IOException error) -> written.countDown()));
+        assertTrue(stream.send(TYPE_CHAT, new byte[0], (IOException error) -> written.countDown()));
+
+        assertArrayEquals(large, peers.next(TYPE_BULK));
+        assertArrayEquals(small, peers.next(TYPE_CHAT));
+        assertEquals(0, peers.next(TYPE_CHAT).length);
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        peers.close();
+    }
+
+    @Test
+    public void stream_interleavesWithEqualPriority() throws Exception {
+        Peers peers = new Peers(LinkProfile.UNLIMITED);
+        Stream first = peers.near.openStream(1, Stream.PRIORITY_NORMAL);
+        Stream second = peers.near.openStream(2, Stream.PRIORITY_NORMAL);
+
+        byte[] a = new byte[40000];
+        byte[] b = new byte[40000];
+        Arrays.fill(a, (byte) 'a');
+        Arrays.fill(b, (byte) 'b');
+        first.send(TYPE_BULK, a, null);
+        second.send(TYPE_CHAT, b, null);
+
+        assertArrayEquals(a, peers.next(TYPE_BULK));
+        assertArrayEquals(b, peers.next(TYPE_CHAT));
+        peers.close();
+    }
+
+    @Test
+    public void stream_interleavesMoreStreamsThanTheReceivePoolHolds() throws Exception {
+        Peers peers = new Peers(LinkProfile.UNLIMITED);
+        int count = ChatSession.RECEIVE_BUFFERS + 4;
+        for (int id = 0; id < count; id++) {
+            byte[] payload = new byte[3 * StreamMux.DEFAULT_FRAGMENT_SIZE];
+            Arrays.fill(payload, (byte) id);
+            assertTrue(peers.near.openStream(id, Stream.PRIORITY_NORMAL).send(TYPE_BULK, payload, null));
+        }
+
+        boolean[] seen = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            byte[] payload = peers.next(TYPE_BULK);
+            assertEquals(3 * StreamMux.DEFAULT_FRAGMENT_SIZE, payload.length);
+            int id = payload[0];
+            assertFalse(seen[id]);
+            seen[id] = true;
+            for (byte b : payload) {
+                assertEquals(id, b);
+            }
+        }
+        peers.close();
+    }
+
+    @Test
+    public void stream_closesASessionWhosePeerStartsTooManyFrames() throws Exception {
+        InMemoryTransport[] ends = InMemoryTransport.pair("near", "far", LinkProfile.UNLIMITED);
+        ChatSession near = new ChatSession(ends[0], IGNORE);
+        CountDownLatch closed = new CountDownLatch(1);
+        ChatSession far = new ChatSession(ends[1], new ChatSession.Listener() {
+            @Override
+            public void onFrame(ChatSession session, PooledBuffer frame) {
+                frame.release();
+            }
+
+            @Override
+            public void onClosed(ChatSession session) {
+                closed.countDown();
+            }
+        });
+        near.start();
+        far.start();
+
+        // first fragments only, each one a reassembly the far end would have to hold on to
+        for (int id = 0; id <= StreamMux.MAX_REASSEMBLIES; id++) {
+            byte[] fragment = new byte[StreamMux.HEADER_LENGTH + 100];
+            fragment[0] = (byte) id;
+            fragment[1] = StreamMux.FLAG_FIRST;
+            fragment[2] = TYPE_BULK;
+            near.send(Frames.TYPE_STREAM_DATA, fragment, null);
+        }
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+        near.close();
+    }
+
+    @Test
+    public void stream_stopsAtItsWindowWithoutCredit() throws Exception {
+        // nothing ever comes back on a fake socket, so no credit either
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        FakeSocket socket = new FakeSocket(wire);
+        ChatSession session = socket.open("silent", IGNORE);
+        session.setCompression(null);
+        session.start();
+
+        int window = 8 * 1024;
+        Stream bulk = session.openStream(1, Stream.PRIORITY_BULK, window);
+        Stream chat = session.openStream(2, Stream.PRIORITY_INTERACTIVE);
+        bulk.send(TYPE_BULK, new byte[60000], null);
+        CountDownLatch chatted = new CountDownLatch(2);
+        chat.send(TYPE_CHAT, new byte[100], (IOException error) -> chatted.countDown());
+        session.send(TYPE_CHAT, new byte[100], (IOException error) -> chatted.countDown());
+        assertTrue(chatted.await(1, TimeUnit.SECONDS));
+        Thread.sleep(50);
+
+        int bulkBytes = 0;
+        int chatFrames = 0;
+        List<PooledBuffer> frames = new ArrayList<>();
+        try {
+            new FrameReader(new ByteArrayInputStream(wire.toByteArray()), new BufferPool(256, Frames.DEFAULT_MAX_PAYLOAD_LENGTH), frames::add).run();
+        } catch (IOException ignored) {  }
+        for (PooledBuffer frame : frames) {
+            if (frame.type() == Frames.TYPE_STREAM_DATA && frame.array()[0] == 1) {
+                bulkBytes += frame.length() - StreamMux.HEADER_LENGTH;
+            }
+            else if (frame.type() == TYPE_CHAT || frame.type() == Frames.TYPE_STREAM_DATA) {
+                chatFrames++;
+            }
+        }
+
+        assertEquals(window, bulkBytes);
+        assertEquals(2, chatFrames);
+        assertEquals(1, bulk.getQueueDepth());
+        session.close();
+    }
+
+    @Test
+    public void stream_rejectsFramesPastItsQueueWithoutCredit() throws Exception {
+        FakeSocket socket = new FakeSocket(new ByteArrayOutputStream());
+        ChatSession session = socket.open("silent", IGNORE);
+        session.start();
+        Stream bulk = session.openStream(1, Stream.PRIORITY_BULK, StreamMux.CREDIT_BATCH);
+        // the first one goes out in part and uses up the window, nothing after it can go
+        for (int i = 0; i < StreamMux.MAX_QUEUED_MESSAGES; i++) {
+            assertTrue(bulk.send(TYPE_BULK, new byte[StreamMux.CREDIT_BATCH + 1], null));
+        }
+        assertEquals(StreamMux.MAX_QUEUED_MESSAGES, bulk.getQueueDepth());
+
+        BlockingQueue<IOException[]> outcomes = new LinkedBlockingQueue<>();
+        assertFalse(bulk.send(TYPE_BULK, new byte[10], (IOException error) -> outcomes.add(new IOException[] { error })));
+        IOException[] outcome = outcomes.poll(1, TimeUnit.SECONDS);
+        assertNotNull(outcome);
+        assertNotNull(outcome[0]);
+        assertEquals(StreamMux.MAX_QUEUED_MESSAGES, bulk.getQueueDepth());
+        // other streams are not held back by it
+        assertTrue(session.openStream(2, Stream.PRIORITY_INTERACTIVE).send(TYPE_CHAT, new byte[10], null));
+        session.close();
+    }
+
+    @Test
+    public void stream_failsQueuedFramesOnClose() throws Exception {
+        FakeSocket socket = new FakeSocket(new ByteArrayOutputStream());
+        ChatSession session = socket.open("closing", IGNORE);
+        session.start();
+        Stream bulk = session.openStream(1, Stream.PRIORITY_BULK, StreamMux.CREDIT_BATCH);
+        bulk.send(TYPE_BULK, new byte[20000], null);
+
+        BlockingQueue<IOException[]> outcomes = new LinkedBlockingQueue<>();
+        bulk.send(TYPE_BULK, new byte[10], (IOException error) -> outcomes.add(new IOException[] { error }));
+        session.close();
+
+        IOException[] outcome = outcomes.poll(1, TimeUnit.SECONDS);
+        assertNotNull(outcome);
+        assertNotNull(outcome[0]);
+        assertFalse(bulk.send(TYPE_BULK, new byte[10], null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void stream_rejectsWindowBelowCreditBatch() {
+        new FakeSocket(new ByteArrayOutputStream()).open("small", IGNORE).openStream(1, Stream.PRIORITY_BULK, 1024);
+    }
+
+    @Test
+    public void chatLatency_underBulkTransfer() throws Exception {
+        LinkProfile profile = LinkProfile.builder()
+                .bandwidth(1024 * 1024)
+                .latency(15, TimeUnit.MILLISECONDS)
+                .jitter(5, TimeUnit.MILLISECONDS)
+                .build();
+
+        long[] fifo = measureChat(profile, false);
+        long[] muxed = measureChat(profile, true);
+        System.out.printf("chat latency under 2 MB bulk, 1 MB/s 10-20 ms link: fifo p50 %d ms p99 %d ms bulk %d ms, "
+                + "streams p50 %d ms p99 %d ms bulk %d ms%n", fifo[0], fifo[1], fifo[2], muxed[0], muxed[1], muxed[2]);
+        assertTrue(muxed[1] * 5 < fifo[1]);
+        assertTrue("p99 " + muxed[1] + " ms", muxed[1] < 150);
+    }
+
+    /**
+     * Sends 2 MB of bulk frames and a timestamped chat frame every 10 ms while the bulk data is under way, returns the
+     * chat p50, p99 and the bulk transfer time in milliseconds.
+     */
+    private static long[] measureChat(LinkProfile profile, boolean streams) throws Exception {
+        Peers peers = new Peers(profile);
+        Stream bulk = peers.near.openStream(1, Stream.PRIORITY_BULK, 32 * 1024);
+        Stream chat = peers.near.openStream(2, Stream.PRIORITY_INTERACTIVE);
+
+        // random, so compression does not shrink the bulk data
+        byte[] chunk = new byte[16 * 1024];
+        new Random(2).nextBytes(chunk);
+        int chunks = 128;
+        for (int i = 0; i < chunks; i++) {
+            if (streams) {
+                bulk.send(TYPE_BULK, chunk, null);
+            }
+            else {
+                peers.near.send(TYPE_BULK, chunk, null);
+            }
+        }
+
+        long start = System.nanoTime();
+        List<Long> latencies = new ArrayList<>();
+        int bulkReceived = 0;
+        long bulkNanos = 0;
+        int chatsSent = 0;
+        long nextChat = System.nanoTime();
+        long deadline = System.currentTimeMillis() + 30000;
+        while ((bulkReceived < chunks || latencies.size() < chatsSent) && System.currentTimeMillis() < deadline) {
+            long now = System.nanoTime();
+            if (bulkReceived < chunks && now >= nextChat) {
+                chatsSent++;
+                byte[] message = new byte[64];
+                Frames.writeLong(now, message, 0);
+                if (streams) {
+                    chat.send(TYPE_CHAT, message, null);
+                }
+                else {
+                    peers.near.send(TYPE_CHAT, message, null);
+                }
+                nextChat += TimeUnit.MILLISECONDS.toNanos(10);
+            }
+
+            PooledBuffer frame = peers.received.poll(1, TimeUnit.MILLISECONDS);
+            while (frame != null) {
+                if (frame.type() == TYPE_BULK) {
+                    if (++bulkReceived == chunks) {
+                        bulkNanos = System.nanoTime() - start;
+                    }
+                }
+                else {
+                    latencies.add(System.nanoTime() - Frames.readLong(frame.array(), 0));
+                }
+                frame.release();
+                frame = peers.received.poll();
+            }
+        }
+        peers.close();
+
+        assertEquals(chunks, bulkReceived);
+        assertEquals(chatsSent, latencies.size());
+        Collections.sort(latencies);
+        long p50 = latencies.get(latencies.size() / 2);
+        long p99 = latencies.get(latencies.size() * 99 / 100);
+        return new long[] { TimeUnit.NANOSECONDS.toMillis(p50), TimeUnit.NANOSECONDS.toMillis(p99), TimeUnit.NANOSECONDS.toMillis(bulkNanos) };
+    }
+
+    private static final class Peers {
+        final InMemoryTransport[] ends;
+        final ChatSession near;
+        final ChatSession far;
+        final BlockingQueue<PooledBuffer> received = new LinkedBlockingQueue<>();
+
+        Peers(LinkProfile profile) throws IOException {
+            ends = InMemoryTransport.pair("near", "far", profile);
+            near = new ChatSession(ends[0], IGNORE);
+            far = new ChatSession(ends[1], new ChatSession.Listener() {
+                @Override
+                public void onFrame(ChatSession session, PooledBuffer frame) {
+                    received.add(frame);
+                }
+
+                @Override
+                public void onClosed(ChatSession session) {
+                }
+            });
+            near.start();
+            far.start();
+        }
+
+        byte[] next(int type) throws InterruptedException {
+            PooledBuffer frame = received.poll(5, TimeUnit.SECONDS);
+            assertNotNull("no frame within 5 seconds", frame);
+            assertEquals(type, frame.type());
+            byte[] payload = Arrays.copyOf(frame.array(), frame.length());
+            frame.release();
+            return payload;
+        }
+
+        void close() {
+            near.close();
+            far.close();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package br.com.dotofcodex.bluetooth_sample.protocol;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Utf8StreamDecoderTest {
+
+    private static final String[] WORDS = {
+            "Olá", "coração", "informação", "não", "pão", "açúcar", "você", "avô", "Pedro", "Ferreira", "ímã",
+            "maçã", "ação", "€", "日本語", "😀", "👍", "chat", "bluetooth", "a"
+    };
+
+    @Test
+    public void decode_matchesWholeStringForRandomSplits() {
+        Random random = new Random(1);
+        for (int run = 0; run < 500; run++) {
+            String expected = randomText(random, 1 + random.nextInt(400));
+            byte[] bytes = expected.getBytes(Utf8StreamDecoder.UTF_8);
+
+            Utf8StreamDecoder decoder = new Utf8StreamDecoder(2 + random.nextInt(64));
+            int offset = 0;
+            while (offset < bytes.length) {
+                int length = Math.min(bytes.length - offset, random.nextInt(16));
+                decoder.decode(bytes, offset, length);
+                offset += length;
+            }
+            decoder.finish();
+            assertEquals(expected, decoder.take());
+        }
+    }
+
+    @Test
+    public void decode_handlesEverySplitPointOfMultiByteCharacters() {
+        String expected = "ãé€😀x";
+        byte[] bytes = expected.getBytes(Utf8StreamDecoder.UTF_8);
+
+        for (int split = 0; split <= bytes.length; split++) {
+            Utf8StreamDecoder decoder = new Utf8StreamDecoder();
+            decoder.decode(bytes, 0, split);
+            decoder.decode(bytes, split, bytes.length - split);
+            assertEquals(0, decoder.pending());
+            assertEquals(expected, decoder.take());
+        }
+    }
+
+    @Test
+    public void decode_smallestBufferHoldsSurrogatePairs() {
+        byte[] bytes = "😀👍😀".getBytes(Utf8StreamDecoder.UTF_8);
+
+        Utf8StreamDecoder decoder = new Utf8StreamDecoder(2);
+        decoder.decode(bytes, 0, bytes.length);
+        assertEquals("😀👍😀", decoder.take());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsBufferTooSmallForSurrogatePair() {
+        new Utf8StreamDecoder(1);
+    }
+
+    @Test
+    public void decode_oneByteAtATime() {
+        String expected = randomText(new Random(2), 300);
+        byte[] bytes = expected.getBytes(Utf8StreamDecoder.UTF_8);
+
+        Utf8StreamDecoder decoder = new Utf8StreamDecoder(8);
+        for (int i = 0; i < bytes.length; i++) {
+            decoder.decode(bytes, i, 1);
+        }
+        assertEquals(expected, decoder.take());
+    }
+
+    @Test
+    public void decode_holdsBackPartialCharacterUntilCompleted() {
+        byte[] bytes = "ação".getBytes(Utf8StreamDecoder.UTF_8);
+
+        Utf8StreamDecoder decoder = new Utf8StreamDecoder();
+        decoder.decode(bytes, 0, 2);
+        assertEquals("a", decoder.take());
+        assertEquals(1, decoder.pending());
+
+        decoder.decode(bytes, 2, bytes.length - 2);
+        assertEquals("ção", decoder.take());
+    }
+
+    @Test
+    public void decode_reusesTheSameArrayAtDifferentOffsets() {
+        // pooled receive buffers are refilled in place between reads
+        byte[] buffer = new byte[32];
+        byte[] first = "pão".getBytes(Utf8StreamDecoder.UTF_8);
+        byte[] second = "ímã".getBytes(Utf8StreamDecoder.UTF_8);
+
+        Utf8StreamDecoder decoder = new Utf8StreamDecoder();
+        System.arraycopy(first, 0, buffer, 5, first.length);
+        decoder.decode(buffer, 5, first.length - 1);
+        Arrays.fill(buffer, (byte) 0);
+        buffer[10] = first[first.length - 1];
+        System.arraycopy(second, 0, buffer, 11, second.length);
+        decoder.decode(buffer, 10, second.length + 1);
+
+        assertEquals("pãoímã", decoder.take());
+    }
+
+    @Test
+    public void finish_replacesTruncatedCharacter() {
+        byte[] bytes = "é".getBytes(Utf8StreamDecoder.UTF_8);
+
+        Utf8StreamDecoder decoder = new Utf8StreamDecoder();
+        decoder.decode(new byte[] { 'o', 'k', bytes[0] }, 0, 3);
+        decoder.finish();
+        assertEquals("ok�", decoder.take());
+        assertEquals(0, decoder.pending());
+
+        // usable for the next stream
+        decoder.decode(bytes, 0, bytes.length);
+        assertEquals("é", decoder.take());
+    }
+
+    @Test
+    public void decode_replacesMalformedBytes() {
+        Utf8StreamDecoder decoder = new Utf8StreamDecoder();
+        decoder.decode(new byte[] { 'a', (byte) 0xFF, 'b' }, 0, 3);
+        assertEquals("a�b", decoder.take());
+
+        // a lead byte followed by ascii is not swallowed with it
+        decoder.decode(new byte[] { (byte) 0xE2 }, 0, 1);
+        decoder.decode(new byte[] { 'c' }, 0, 1);
+        assertEquals("�c", decoder.take());
+    }
+
+    @Test
+    public void decode_doesNotAllocateOnceWarm() {
+        byte[] bytes = randomText(new Random(3), 200).getBytes(Utf8StreamDecoder.UTF_8);
+        Utf8StreamDecoder decoder = new Utf8StreamDecoder();
+
+        for (int i = 0; i < 10000; i++) {
+            feed(decoder, bytes);
+        }
+
+        long before = AllocationMeter.allocatedBytes();
+        for (int i = 0; i < 1000; i++) {
+            feed(decoder, bytes);
+        }
+        long allocated = AllocationMeter.allocatedBytes() - before;
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    private static void feed(Utf8StreamDecoder decoder, byte[] bytes) {
+        // odd sized pieces, so characters keep straddling them
+        for (int offset = 0; offset < bytes.length; offset += 7) {
+            decoder.decode(bytes, offset, Math.min(7, bytes.length - offset));
+        }
+        decoder.clear();
+    }
+
+    static String randomText(Random random, int words) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,302 @@
+package br.com.dotofcodex.bluetooth_sample.relay;
+
+import br.com.dotofcodex.bluetooth_sample.protocol.ChatSession;
+import br.com.dotofcodex.bluetooth_sample.protocol.Frames;
+import br.com.dotofcodex.bluetooth_sample.protocol.PooledBuffer;
+import br.com.dotofcodex.bluetooth_sample.transport.InMemoryTransport;
+import br.com.dotofcodex.bluetooth_sample.transport.LinkProfile;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RelayNodeTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final List<ChatSession> sessions = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (ChatSession session : sessions) {
+            session.close();
+        }
+    }
+
+    @Test
+    public void send_crossesAChainOfRelays() throws Exception {
+        Inbox inbox = new Inbox();
+        RelayNode a = new RelayNode(1, new Inbox(), null, 16);
+        RelayNode b = new RelayNode(2, new Inbox(), null, 16);
+        RelayNode c = new RelayNode(3, inbox, null, 16);
+        link(a, b);
+        link(b, c);
+        await(() -> a.getHops(3) == 2 && c.getHops(1) == 2);
+
+        assertFalse(a.send(42, text("nobody"), 0, 6));
+        assertEquals(1, a.getUnroutable());
+        for (int i = 0; i < 100; i++) {
+            byte[] message = text("hello " + i);
+            assertTrue(a.send(3, message, 0, message.length));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals("1: hello " + i, inbox.take());
+        }
+        assertEquals(100, b.getForwarded());
+        assertEquals(100, c.getDelivered());
+        assertEquals(0, b.getParked());
+    }
+
+    @Test
+    public void onFrame_dropsCopiesAndExpiredFrames() throws Exception {
+        Inbox inbox = new Inbox();
+        RelayNode b = new RelayNode(2, new Inbox(), null, 16);
+        RelayNode c = new RelayNode(3, inbox, null, 16);
+        link(b, c);
+        // a peer speaking the frames itself, as node 9
+        InMemoryTransport[] ends = InMemoryTransport.pair("raw", "b", LinkProfile.UNLIMITED);
+        ChatSession raw = new ChatSession(ends[0], new Inbox());
+        ChatSession toB = new ChatSession(ends[1], b);
+        sessions.add(raw);
+        sessions.add(toB);
+        raw.start();
+        toB.start();
+        b.attach(toB);
+        byte[] advert = new byte[8 + 1 + RouteTable.ENTRY_LENGTH];
+        Frames.writeLong(9, advert, 0);
+        advert[8] = 1;
+        Frames.writeLong(9, advert, 9);
+        raw.send(Frames.TYPE_ROUTE, advert, null);
+        await(() -> c.getHops(9) == 2);
+
+        raw.send(Frames.TYPE_RELAY, relay(8, 9, 3, 5, "once"), null);
+        raw.send(Frames.TYPE_RELAY, relay(8, 9, 3, 5, "once"), null);
+        raw.send(Frames.TYPE_RELAY, relay(1, 9, 3, 6, "too far"), null);
+        raw.send(Frames.TYPE_RELAY, relay(2, 9, 3, 4, "late but new"), null);
+        assertEquals("9: once", inbox.take());
+        assertEquals("9: late but new", inbox.take());
+        await(() -> b.getDuplicates() == 1 && b.getExpired() == 1);
+        assertEquals(2, b.getForwarded());
+        assertNull(inbox.poll(100));
+    }
+
+    @Test
+    public void send_waitsForTheNextHopToComeBack() throws Exception {
+        Inbox inbox = new Inbox();
+        RelayNode a = new RelayNode(1, new Inbox(), null, 16);
+        RelayNode b = new RelayNode(2, new Inbox(), null, 16);
+        RelayNode c = new RelayNode(3, inbox, null, 16);
+        link(a, b);
+        InMemoryTransport[] bc = link(b, c);
+        await(() -> a.getHops(3) == 2);
+
+        bc[0].disconnect();
+        await(() -> a.getHops(3) == -1 && b.getNeighbourCount() == 1);
+        // more than fit, the oldest go
+        for (int i = 0; i < 20; i++) {
+            byte[] message = text("offline " + i);
+            assertTrue(a.send(3, message, 0, message.length));
+        }
+        await(() -> a.getParked() + b.getParked() == 16);
+        assertEquals(4, a.getUnroutable() + b.getUnroutable());
+
+        link(b, c);
+        Set<String> received = new HashSet<>();
+        for (int i = 0; i < 16; i++) {
+            received.add(inbox.take());
+        }
+        for (int i = 4; i < 20; i++) {
+            assertTrue(received.contains("1: offline " + i));
+        }
+        assertEquals(0, a.getParked() + b.getParked());
+        assertEquals(2, a.getHops(3));
+    }
+
+    @Test
+    public void onAdvert_forgetsRoutesTheNeighbourDropped() {
+        RouteTable table = new RouteTable(1);
+        byte[] advert = new byte[3 * RouteTable.ENTRY_LENGTH];
+        entry(advert, 0, 2, 0);
+        entry(advert, 1, 3, 1);
+        entry(advert, 2, 1, 1);
+        assertTrue(table.onAdvert(2, advert, 0, 3, 0));
+        assertEquals(2, table.size());
+        assertEquals(2, table.get(3).getHops());
+        assertFalse(table.onAdvert(2, advert, 0, 3, 0));
+
+        // a shorter way through another neighbour wins
+        byte[] shorter = new byte[2 * RouteTable.ENTRY_LENGTH];
+        entry(shorter, 0, 4, 0);
+        entry(shorter, 1, 3, 0);
+        assertTrue(table.onAdvert(4, shorter, 0, 2, 0));
+        assertEquals(4, table.get(3).getNextHop());
+        assertEquals(1, table.get(3).getHops());
+
+        // routes learned from 4 go back to it poisoned
+        byte[] out = new byte[table.advertLength()];
+        assertEquals(4, table.advert(4, out, 0));
+        for (int i = 1; i < 4; i++) {
+            long destination = Frames.readLong(out, i * RouteTable.ENTRY_LENGTH);
+            int hops = out[i * RouteTable.ENTRY_LENGTH + 8];
+            assertEquals(destination == 2 ? 1 : RouteTable.INFINITY, hops);
+        }
+
+        assertTrue(table.onAdvert(4, shorter, 0, 1, 0));
+        assertFalse(table.get(3).isReachable());
+        assertEquals(4, table.get(3).getNextHop());
+        assertTrue(table.onNeighbourLost(2, 0));
+        assertFalse(table.get(2).isReachable());
+    }
+
+    @Test
+    public void expire_forgetsRoutesLostPastTheHoldDown() {
+        RouteTable table = new RouteTable(1);
+        long second = TimeUnit.SECONDS.toNanos(1);
+        // every node that ever came and went, a full table of them
+        byte[] advert = new byte[RouteTable.MAX_ROUTES * RouteTable.ENTRY_LENGTH];
+        for (int i = 0; i < RouteTable.MAX_ROUTES; i++) {
+            entry(advert, i, 100 + i, 1);
+        }
+        assertTrue(table.onAdvert(2, advert, 0, RouteTable.MAX_ROUTES, 0));
+        assertTrue(table.onNeighbourLost(2, second));
+
+        // a new node makes room for itself
+        byte[] fresh = new byte[RouteTable.ENTRY_LENGTH];
+        entry(fresh, 0, 5, 0);
+        assertTrue(table.onAdvert(5, fresh, 0, 1, 2 * second));
+        assertEquals(1, table.get(5).getHops());
+        assertEquals(RouteTable.MAX_ROUTES, table.size());
+
+        assertEquals(0, table.expire(10 * second, 10 * second));
+        assertEquals(RouteTable.MAX_ROUTES - 1, table.expire(10 * second, 11 * second));
+        assertEquals(1, table.size());
+        assertTrue(table.get(5).isReachable());
+    }
+
+    @Test
+    public void park_staysWithinItsBytesAndHoldDown() throws Exception {
+        Inbox inbox = new Inbox();
+        RelayNode a = new RelayNode(1, new Inbox(), null, 16, 1000, 60000);
+        RelayNode b = new RelayNode(2, new Inbox(), null, 16, 1000, 60000);
+        RelayNode c = new RelayNode(3, inbox, null, 16, 1000, 60000);
+        link(a, b);
+        InMemoryTransport[] bc = link(b, c);
+        await(() -> a.getHops(3) == 2);
+        bc[0].disconnect();
+        await(() -> a.getHops(3) == -1 && b.getNeighbourCount() == 1);
+
+        byte[] message = new byte[100];
+        for (int i = 0; i < 30; i++) {
+            assertTrue(a.send(3, message, 0, message.length));
+            assertTrue(a.getParkedBytes() <= 1000);
+            assertTrue(b.getParkedBytes() <= 1000);
+        }
+        // 121 bytes a frame, 8 of them fit
+        await(() -> a.getParked() + b.getParked() >= 8);
+        assertTrue(a.getParked() <= 8 && b.getParked() <= 8);
+
+        long later = System.nanoTime() + TimeUnit.MINUTES.toNanos(2);
+        a.expire(later);
+        b.expire(later);
+        assertEquals(0, a.getParked() + b.getParked());
+        assertEquals(0, a.getParkedBytes() + b.getParkedBytes());
+        assertEquals(-1, a.getHops(3));
+        assertFalse(a.send(3, message, 0, message.length));
+    }
+
+    @Test
+    public void accept_refusesReplaysWithinTheWindow() {
+        DuplicateFilter filter = new DuplicateFilter();
+        assertTrue(filter.accept(1, Integer.MAX_VALUE - 1));
+        assertTrue(filter.accept(1, Integer.MAX_VALUE + 2));
+        assertTrue(filter.accept(1, Integer.MAX_VALUE));
+        assertFalse(filter.accept(1, Integer.MAX_VALUE));
+        assertFalse(filter.accept(1, Integer.MAX_VALUE + 2));
+        assertTrue(filter.accept(2, Integer.MAX_VALUE));
+        assertTrue(filter.accept(1, Integer.MAX_VALUE + 100));
+        assertFalse(filter.accept(1, Integer.MAX_VALUE + 2));
+    }
+
+    private InMemoryTransport[] link(RelayNode first, RelayNode second) throws IOException {
+        InMemoryTransport[] ends = InMemoryTransport.pair("node-" + second.getId(), "node-" + first.getId(),
+                LinkProfile.UNLIMITED);
+        ChatSession near = new ChatSession(ends[0], first);
+        ChatSession far = new ChatSession(ends[1], second);
+        sessions.add(near);
+        sessions.add(far);
+        near.start();
+        far.start();
+        first.attach(near);
+        second.attach(far);
+        return ends;
+    }
+
+    private static byte[] relay(int ttl, long source, long destination, int sequence, String payload) {
+        byte[] text = text(payload);
+        byte[] frame = new byte[RelayNode.HEADER_LENGTH + text.length];
+        frame[0] = (byte) ttl;
+        Frames.writeLong(source, frame, 1);
+        Frames.writeLong(destination, frame, 9);
+        Frames.writeInt(sequence, frame, 17);
+        System.arraycopy(text, 0, frame, RelayNode.HEADER_LENGTH, text.length);
+        return frame;
+    }
+
+    private static void entry(byte[] advert, int index, long destination, int hops) {
+        Frames.writeLong(destination, advert, index * RouteTable.ENTRY_LENGTH);
+        advert[index * RouteTable.ENTRY_LENGTH + 8] = (byte) hops;
+    }
+
+    private static void await(Callable<Boolean> condition) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.call()) {
+            assertTrue("Timed out", System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static byte[] text(String text) {
+        return text.getBytes(UTF_8);
+    }
+
+    private static final class Inbox implements RelayNode.Listener, ChatSession.Listener {
+        private final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onMessage(RelayNode node, long source, PooledBuffer frame, int offset, int length) {
+            messages.add(source + ": " + new String(frame.array(), offset, length, UTF_8));
+            frame.release();
+        }
+
+        @Override
+        public void onFrame(ChatSession session, PooledBuffer frame) {
+            frame.release();
+        }
+
+        @Override
+        public void onClosed(ChatSession session) {
+        }
+
+        String take() throws InterruptedException {
+            String message = messages.poll(5, TimeUnit.SECONDS);
+            assertNotNull("Timed out", message);
+            return message;
+        }
+
+        String poll(long millis) throws InterruptedException {
+            return messages.poll(millis, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package br.com.dotofcodex.bluetooth_sample.resume;
+
+import br.com.dotofcodex.bluetooth_sample.protocol.ChatServer;
+import br.com.dotofcodex.bluetooth_sample.protocol.ChatSession;
+import br.com.dotofcodex.bluetooth_sample.protocol.ConnectionListener;
+import br.com.dotofcodex.bluetooth_sample.protocol.Frames;
+import br.com.dotofcodex.bluetooth_sample.protocol.PooledBuffer;
+import br.com.dotofcodex.bluetooth_sample.protocol.SessionRegistry;
+import br.com.dotofcodex.bluetooth_sample.transport.InMemoryNetwork;
+import br.com.dotofcodex.bluetooth_sample.transport.LinkProfile;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ResumableSessionTest {
+
+    private static final ConnectionListener QUIET = new ConnectionListener() {
+        @Override
+        public void onConnecting() {
+        }
+
+        @Override
+        public void onConnected(ChatSession session) {
+        }
+
+        @Override
+        public void onConnectionFailed(IOException error) {
+        }
+    };
+
+    @Test
+    public void replayBuffer_keepsUnacknowledgedFramesWithinCapacity() {
+        ReplayBuffer buffer = new ReplayBuffer(100);
+        assertTrue(buffer.offer(0, new byte[40]));
+        assertTrue(buffer.offer(1, new byte[40]));
+        assertFalse(buffer.offer(2, new byte[40]));
+        assertEquals(80, buffer.getBytes());
+
+        buffer.acknowledge(1);
+        assertEquals(1, buffer.size());
+        assertEquals(1, buffer.getFirstSequence());
+        byte[] frame = new byte[40];
+        assertTrue(buffer.offer(2, frame));
+        assertSame(frame, buffer.get(2));
+
+        buffer.acknowledge(3);
+        assertEquals(0, buffer.size());
+        assertEquals(0, buffer.getBytes());
+        assertEquals(3, buffer.getFirstSequence());
+    }
+
+    @Test
+    public void replayBuffer_growsPastItsInitialSlots() {
+        ReplayBuffer buffer = new ReplayBuffer(1024 * 1024);
+        for (int i = 0; i < 1000; i++) {
+            byte[] frame = new byte[8];
+            Frames.writeInt(i, frame, 0);
+            assertTrue(buffer.offer(i, frame));
+            if (i % 3 == 0) {
+                buffer.acknowledge(i / 2);
+            }
+        }
+        for (long sequence = buffer.getFirstSequence(); sequence < 1000; sequence++) {
+            assertEquals(sequence, Frames.readInt(buffer.get(sequence), 0));
+        }
+    }
+
+    @Test
+    public void backoff_growsToItsCapWithJitter() {
+        Backoff backoff = new Backoff(10, 200, new Random(7));
+        long[] caps = { 10, 20, 40, 80, 160, 200, 200, 200 };
+        boolean jittered = false;
+        for (long cap : caps) {
+            long delay = backoff.next();
+            assertTrue(delay + " > " + cap, delay >= 0 && delay <= cap);
+            jittered |= delay != cap;
+        }
+        assertTrue(jittered);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(backoff.next() <= 200);
+        }
+
+        backoff.reset();
+        assertTrue(backoff.next() <= 10);
+    }
+
+    @Test
+    public void session_deliversEverythingOnceAcrossRepeatedDisconnects() throws Exception {
+        // every link breaks after 256 KB in either direction, so the exchange below needs several
+        LinkProfile profile = LinkProfile.builder()
+                .bandwidth(1024 * 1024)
+                .latency(5, TimeUnit.MILLISECONDS)
+                .disconnectAfter(256 * 1024)
+                .build();
+        InMemoryNetwork network = new InMemoryNetwork(profile);
+
+        Inbox hubInbox = new Inbox(true);
+        ResumeAcceptor acceptor = new ResumeAcceptor(hubInbox, null, 1024 * 1024);
+        ChatServer server = new ChatServer(network.listen("hub"), new SessionRegistry(), acceptor, QUIET);
+        server.start();
+
+        Inbox phoneInbox = new Inbox(false);
+        ResumableSession phone = new ResumableSession(phoneInbox, null);
+        SessionRegistry registry = new SessionRegistry();
+        ResumingClient client = new ResumingClient(network.connector("phone", "hub"), registry, phone, QUIET,
+                new Backoff(20, 500, new Random(3)));
+        client.start();
+
+        int messages = 10000;
+        // random, so compression does not shrink what goes over the link
+        byte[] payload = new byte[100];
+        new Random(5).nextBytes(payload);
+        long sentBytes = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            Frames.writeInt(i, payload, 0);
+            while (!phone.send(Frames.TYPE_DATA, payload)) {
+                // the replay buffer is full until the hub acknowledges, like a paced producer
+                Thread.sleep(1);
+            }
+            sentBytes += payload.length;
+        }
+
+        long deadline = System.currentTimeMillis() + 30000;
+        while (phoneInbox.count < messages && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        assertNull(hubInbox.error, hubInbox.error);
+        assertNull(phoneInbox.error, phoneInbox.error);
+        assertEquals(messages, hubInbox.count);
+        assertEquals(messages, phoneInbox.count);
+
+        ResumableSession hub = acceptor.getSessions().iterator().next();
+        // the same addresses through every reconnect
+        assertEquals("phone", hub.getAddress());
+        assertEquals("hub", phone.getAddress());
+        int disconnects = phone.getResumptions() - 1;
+        assertTrue("only " + disconnects + " disconnects", disconnects >= 3);
+        long retransmitted = phone.getRetransmittedBytes() + hub.getRetransmittedBytes();
+        long total = 0;
+        long worst = 0;
+        for (long recovery : phoneInbox.recoveries) {
+            total += recovery;
+            worst = Math.max(worst, recovery);
+        }
+        System.out.printf("%d messages each way in %.2f s over %d disconnects: recovery mean %.1f ms max %.1f ms, "
+                        + "retransmitted %d bytes in %d frames (%.1f%% of %d payload bytes)%n",
+                messages, seconds, disconnects, total / 1e6 / phoneInbox.recoveries.size(), worst / 1e6,
+                retransmitted, phone.getRetransmittedFrames() + hub.getRetransmittedFrames(),
+                100.0 * retransmitted / (2 * sentBytes), 2 * sentBytes);
+        assertTrue("worst recovery " + worst / 1000000 + " ms", worst < TimeUnit.SECONDS.toNanos(2));
+
+        client.cancel();
+        assertTrue(client.join(1000));
+        server.cancel();
+        acceptor.closeAll();
+        assertFalse(client.isRunning());
+    }
+
+    @Test
+    public void acceptor_forgetsSessionsReplacedOrPastTheResumeWindow() throws Exception {
+        InMemoryNetwork network = new InMemoryNetwork();
+        Inbox hubInbox = new Inbox(false);
+        ResumeAcceptor acceptor = new ResumeAcceptor(hubInbox, null, 64 * 1024, 300);
+        ChatServer server = new ChatServer(network.listen("hub"), new SessionRegistry(), acceptor, QUIET);
+        server.start();
+
+        // a peer that restarts comes back with a fresh id every time
+        for (int i = 0; i < 20; i++) {
+            connect(network, acceptor, "phone");
+            assertEquals(1, acceptor.getSessions().size());
+        }
+        // the listener hears of each session forgotten, to drop what it kept for it
+        assertEquals(19, hubInbox.closed.size());
+        ResumableSession tablet = connect(network, acceptor, "tablet");
+        assertEquals(2, acceptor.getSessions().size());
+        assertEquals("tablet", address(acceptor, tablet.getId()));
+
+        Thread.sleep(400);
+        assertTrue(acceptor.getSessions().isEmpty());
+        assertEquals(21, hubInbox.closed.size());
+        server.cancel();
+        acceptor.closeAll();
+    }
+
+    /**
+     * Opens a session from {@code address} to the hub and drops it once resumed, with frames still unacknowledged.
+     */
+    private static ResumableSession connect(InMemoryNetwork network, ResumeAcceptor acceptor, String address) throws Exception {
+        Inbox inbox = new Inbox(false);
+        ResumableSession session = new ResumableSession(inbox, null);
+        ResumingClient client = new ResumingClient(network.connector(address, "hub"), new SessionRegistry(), session,
+                QUIET, new Backoff(20, 500, new Random(3)));
+        client.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!session.isResumed() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(session.isResumed());
+        for (ResumableSession hub : acceptor.getSessions()) {
+            // the hub keeps what it sends until acknowledged, the peer goes away before that
+            hub.send(Frames.TYPE_DATA, new byte[1000]);
+        }
+        client.cancel();
+        assertTrue(client.join(1000));
+        assertEquals(Collections.singletonList(session), inbox.closed);
+        return session;
+    }
+
+    private static String address(ResumeAcceptor acceptor, long id) {
+        for (ResumableSession session : acceptor.getSessions()) {
+            if (session.getId() == id) {
+                return session.getAddress();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks that numbered messages arrive in order and exactly once; the hub echoes each one back.
+     */
+    private static final class Inbox implements ResumableSession.Listener {
+        private final boolean echo;
+        final List<Long> recoveries = new CopyOnWriteArrayList<>();
+        final List<ResumableSession> closed = new CopyOnWriteArrayList<>();
+        volatile int count;
+        volatile String error;
+
+        Inbox(boolean echo) {
+            this.echo = echo;
+        }
+
+        @Override
+        public void onFrame(ResumableSession session, PooledBuffer frame) {
+            int index = Frames.readInt(frame.array(), 0);
+            if (index != count && error == null) {
+                error = "expected message " + count + ", got " + index;
+            }
+            count++;
+            if (echo && !session.send(frame.type(), frame.array(), 0, frame.length())) {
+                error = "echo of " + index + " did not fit the replay buffer";
+            }
+            frame.release();
+        }
+
+        @Override
+        public void onResumed(ResumableSession session, int replayed) {
+            if (session.getResumptions() > 1) {
+                recoveries.add(session.getLastRecoveryNanos());
+            }
+        }
+
+        @Override
+        public void onSuspended(ResumableSession session) {
+        }
+
+        @Override
+        public void onClosed(ResumableSession session) {
+            closed.add(session);
+        }
+    }
+}
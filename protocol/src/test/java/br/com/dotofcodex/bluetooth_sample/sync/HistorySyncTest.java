@@ -0,0 +1,218 @@
+package br.com.dotofcodex.bluetooth_sample.sync;
+
+import br.com.dotofcodex.bluetooth_sample.journal.Journal;
+import br.com.dotofcodex.bluetooth_sample.protocol.ChatSession;
+import br.com.dotofcodex.bluetooth_sample.protocol.PooledBuffer;
+import br.com.dotofcodex.bluetooth_sample.transport.InMemoryTransport;
+import br.com.dotofcodex.bluetooth_sample.transport.LinkProfile;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HistorySyncTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<ChatSession> sessions = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (ChatSession session : sessions) {
+            session.close();
+        }
+    }
+
+    @Test
+    public void sync_movesOnlyWhatEachSideLacks() throws Exception {
+        History client = new History(true);
+        History server = new History(false);
+        Random random = new Random(3);
+        long full = 0;
+        for (int i = 0; i < 20000; i++) {
+            byte[] payload = message(random, i);
+            boolean fromClient = random.nextBoolean();
+            client.add(i, fromClient, payload);
+            server.add(i + 7, !fromClient, payload);
+            full += payload.length;
+        }
+        // the same text sent again is a message of its own
+        client.add(20000, true, text("ok"));
+        server.add(20001, false, text("ok"));
+        client.add(20002, true, text("ok"));
+        // written while the other side was away
+        for (int i = 0; i < 5; i++) {
+            client.add(30000 + i, i % 2 == 0, text("offline client " + i));
+        }
+        for (int i = 0; i < 3; i++) {
+            server.add(40000 + i, true, text("offline server " + i));
+        }
+
+        HistorySync.Result[] results = sync(client, server);
+        System.out.println("client " + results[0]);
+        System.out.println("server " + results[1]);
+
+        assertEquals(texts("offline server 0", "offline server 1", "offline server 2"), texts(results[0].getReceived()));
+        assertEquals(texts("ok", "offline client 0", "offline client 1", "offline client 2", "offline client 3",
+                "offline client 4"), texts(results[1].getReceived()));
+        for (History.Item item : results[0].getReceived()) {
+            assertFalse(item.isOutgoing());
+            assertTrue(item.getTimeMillis() >= 40000);
+        }
+        int outgoing = 0;
+        for (History.Item item : results[1].getReceived()) {
+            outgoing += item.isOutgoing() ? 1 : 0;
+        }
+        // what the client wrote arrives as the client's, the two it had from the server as the server's own
+        assertEquals(2, outgoing);
+        assertEquals(results[0].getTurns(), results[1].getTurns());
+        long moved = results[0].getBytesSent() + results[1].getBytesSent();
+        assertTrue(moved + " bytes against " + full, moved * 50 < full);
+    }
+
+    @Test
+    public void sync_ofEqualHistoriesIsOneRoundTrip() throws Exception {
+        History client = new History(true);
+        History server = new History(false);
+        for (int i = 0; i < 1000; i++) {
+            client.add(i, i % 3 == 0, text("message " + i));
+            server.add(i, i % 3 != 0, text("message " + i));
+        }
+
+        HistorySync.Result[] results = sync(client, server);
+
+        assertEquals(2, results[0].getTurns());
+        assertEquals(0, results[0].getReceived().size());
+        assertEquals(0, results[1].getReceived().size());
+        assertTrue(results[0].getBytesSent() + results[1].getBytesSent() < 32);
+    }
+
+    @Test
+    public void sync_fillsAnEmptySide() throws Exception {
+        History client = new History(true);
+        History server = new History(false);
+        for (int i = 0; i < 3000; i++) {
+            server.add(i, true, text("message " + i));
+        }
+
+        HistorySync.Result[] results = sync(client, server);
+
+        assertEquals(3000, results[0].getReceived().size());
+        assertEquals(3000, results[1].getSent());
+        assertEquals(0, results[1].getReceived().size());
+    }
+
+    @Test
+    public void read_keysJournaledMessagesLikeTheirPeer() throws Exception {
+        Journal journal = new Journal(folder.newFolder("peer"), 64 * 1024, 512, 4);
+        History server = new History(false);
+        for (int i = 0; i < 2000; i++) {
+            journal.append(i, i % 2 == 0, text("message " + i));
+            if (i != 1500) {
+                server.add(i + 100, i % 2 != 0, text("message " + i));
+            }
+        }
+
+        HistorySync.Result[] results = sync(History.read(journal, true), server);
+        journal.close();
+
+        assertEquals(0, results[0].getReceived().size());
+        assertEquals(texts("message 1500"), texts(results[1].getReceived()));
+        assertFalse(results[1].getReceived().get(0).isOutgoing());
+    }
+
+    @Test(expected = IOException.class)
+    public void run_failsWhenTheConnectionIsLost() throws Exception {
+        InMemoryTransport[] ends = InMemoryTransport.pair("client", "server", LinkProfile.UNLIMITED);
+        HistorySync sync = new HistorySync(open(ends[0]), true);
+        bind(sync);
+        ends[1].close();
+        sync.run(new History(true), 5000);
+    }
+
+    private HistorySync.Result[] sync(History client, History server) throws Exception {
+        InMemoryTransport[] ends = InMemoryTransport.pair("client", "server", LinkProfile.UNLIMITED);
+        HistorySync near = new HistorySync(open(ends[0]), true);
+        HistorySync far = new HistorySync(open(ends[1]), false);
+        bind(near);
+        bind(far);
+
+        FutureTask<HistorySync.Result> responder = new FutureTask<>(() -> far.run(server, 10000));
+        new Thread(responder, "Responder").start();
+        HistorySync.Result initiated = near.run(client, 10000);
+        return new HistorySync.Result[] { initiated, responder.get(10, TimeUnit.SECONDS) };
+    }
+
+    private final List<HistorySync> syncs = new ArrayList<>();
+
+    private ChatSession open(InMemoryTransport end) throws IOException {
+        ChatSession session = new ChatSession(end, new ChatSession.Listener() {
+            @Override
+            public void onFrame(ChatSession session, PooledBuffer frame) {
+                HistorySync sync = syncs.get(sessions.indexOf(session));
+                if (!sync.onFrame(frame)) {
+                    frame.release();
+                }
+            }
+
+            @Override
+            public void onClosed(ChatSession session) {
+                int index = sessions.indexOf(session);
+                if (index < syncs.size()) {
+                    syncs.get(index).onClosed();
+                }
+            }
+        });
+        sessions.add(session);
+        return session;
+    }
+
+    private void bind(HistorySync sync) {
+        syncs.add(sync);
+        sessions.get(syncs.size() - 1).start();
+    }
+
+    private static byte[] message(Random random, int i) {
+        StringBuilder text = new StringBuilder("message ").append(i).append(' ');
+        for (int n = random.nextInt(40); n > 0; n--) {
+            text.append((char) ('a' + random.nextInt(26)));
+        }
+        return text(text.toString());
+    }
+
+    private static byte[] text(String text) {
+        return text.getBytes(UTF_8);
+    }
+
+    private static Set<String> texts(String... texts) {
+        Set<String> set = new HashSet<>();
+        for (String text : texts) {
+            set.add(text);
+        }
+        return set;
+    }
+
+    private static Set<String> texts(List<History.Item> items) {
+        Set<String> set = new HashSet<>();
+        for (History.Item item : items) {
+            assertTrue(set.add(new String(item.getPayload(), UTF_8)));
+        }
+        return set;
+    }
+}
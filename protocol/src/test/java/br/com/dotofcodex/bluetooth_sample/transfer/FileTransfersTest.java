@@ -0,0 +1,285 @@
+package br.com.dotofcodex.bluetooth_sample.transfer;
+
+import br.com.dotofcodex.bluetooth_sample.protocol.ChatSession;
+import br.com.dotofcodex.bluetooth_sample.protocol.FrameEncoder;
+import br.com.dotofcodex.bluetooth_sample.protocol.FrameReader;
+import br.com.dotofcodex.bluetooth_sample.protocol.BufferPool;
+import br.com.dotofcodex.bluetooth_sample.protocol.Frames;
+import br.com.dotofcodex.bluetooth_sample.protocol.PooledBuffer;
+import br.com.dotofcodex.bluetooth_sample.transport.InMemoryTransport;
+import br.com.dotofcodex.bluetooth_sample.transport.LinkProfile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FileTransfersTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void send_deliversIdenticalFile() throws Exception {
+        File source = randomFile("firmware.bin", 3 * 1024 * 1024 + 123);
+        File inbox = folder.newFolder("inbox");
+
+        Link link = new Link(LinkProfile.UNLIMITED, inbox, FileTransfers.DEFAULT_WINDOW);
+        link.sender.send(link.near, source);
+
+        assertNull(link.senderEvents.outcome());
+        assertNull(link.receiverEvents.outcome());
+        assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(new File(inbox, "firmware.bin").toPath()));
+        assertEquals(1, inbox.list().length);
+        link.close();
+    }
+
+    @Test
+    public void send_deliversEmptyFile() throws Exception {
+        File source = randomFile("empty.log", 0);
+        File inbox = folder.newFolder("inbox");
+
+        Link link = new Link(LinkProfile.UNLIMITED, inbox, FileTransfers.DEFAULT_WINDOW);
+        link.sender.send(link.near, source);
+
+        assertNull(link.senderEvents.outcome());
+        assertEquals(0, new File(inbox, "empty.log").length());
+        link.close();
+    }
+
+    @Test
+    public void send_windowBeatsStopAndWaitOnALatentLink() throws Exception {
+        File source = randomFile("app.log", 512 * 1024);
+        LinkProfile profile = LinkProfile.builder().bandwidth(1024 * 1024).latency(20, TimeUnit.MILLISECONDS).build();
+
+        long stopAndWait = timeTransfer(source, profile, 1);
+        long windowed = timeTransfer(source, profile, FileTransfers.DEFAULT_WINDOW);
+        System.out.printf("512 KB over 1 MB/s, 20 ms latency: window 1 %d ms, window %d %d ms%n",
+                stopAndWait, FileTransfers.DEFAULT_WINDOW, windowed);
+        assertTrue(windowed * 2 < stopAndWait);
+    }
+
+    @Test
+    public void send_resumesFromPartFileAfterDisconnect() throws Exception {
+        int size = 2 * 1024 * 1024;
+        File source = randomFile("dump.bin", size);
+        File inbox = folder.newFolder("inbox");
+        LinkProfile profile = LinkProfile.builder().bandwidth(4 * 1024 * 1024).build();
+
+        Link first = new Link(profile, inbox, FileTransfers.DEFAULT_WINDOW);
+        first.sender.send(first.near, source);
+        while (first.receiverEvents.progress < size / 3) {
+            Thread.sleep(5);
+        }
+        first.ends[0].disconnect();
+        assertNotNull(first.senderEvents.outcome());
+        first.close();
+
+        Link second = new Link(profile, inbox, FileTransfers.DEFAULT_WINDOW);
+        second.sender.send(second.near, source);
+        assertNull(second.senderEvents.outcome());
+        assertTrue("resumed at " + second.senderEvents.firstProgress, second.senderEvents.firstProgress >= size / 3);
+        assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(new File(inbox, "dump.bin").toPath()));
+        System.out.printf("resumed at %d of %d bytes%n", second.senderEvents.firstProgress, size);
+        second.close();
+    }
+
+    @Test
+    public void send_failsWhenFileChangesAfterOffer() throws Exception {
+        File source = randomFile("changing.bin", 256 * 1024);
+        File inbox = folder.newFolder("inbox");
+
+        // the transfer waits for the link, so the file changes between hashing and sending
+        Link link = new Link(LinkProfile.builder().latency(50, TimeUnit.MILLISECONDS).build(), inbox, FileTransfers.DEFAULT_WINDOW);
+        link.sender.send(link.near, source);
+        try (RandomAccessFile raf = new RandomAccessFile(source, "rw")) {
+            raf.seek(1000);
+            raf.write(new byte[] { 1, 2, 3, 4 });
+        }
+
+        assertNotNull(link.senderEvents.outcome());
+        assertNotNull(link.receiverEvents.outcome());
+        assertFalse(new File(inbox, "changing.bin").exists());
+        assertEquals(0, inbox.list().length);
+        link.close();
+    }
+
+    @Test
+    public void receiver_rewindsOnCorruptChunk() throws Exception {
+        File inbox = folder.newFolder("inbox");
+        InMemoryTransport[] ends = InMemoryTransport.pair("sender", "receiver", LinkProfile.UNLIMITED);
+        Events events = new Events();
+        FileTransfers transfers = new FileTransfers(inbox, events);
+        ChatSession receiver = new ChatSession(ends[1], new Router(transfers));
+        receiver.setCompression(null);
+        receiver.start();
+
+        // play the sender by hand: offer eight bytes, send a chunk with a bad checksum, then the right one
+        byte[] data = { 1, 2, 3, 4, 5, 6, 7, 8 };
+        byte[] digest = FileTransfers.sha256().digest(data);
+        byte[] offer = new byte[48];
+        Frames.writeInt(9, offer, 0);
+        Frames.writeLong(data.length, offer, 4);
+        System.arraycopy(digest, 0, offer, 12, digest.length);
+        offer[45] = 2;
+        offer[46] = 1;
+        offer[47] = 'x';
+
+        OutputStream os = ends[0].getOutputStream();
+        FrameEncoder encoder = new FrameEncoder(true);
+        BlockingQueue<PooledBuffer> replies = new LinkedBlockingQueue<>();
+        Thread reader = new Thread(() -> {
+            try {
+                new FrameReader(ends[0].getInputStream(), new BufferPool(16, Frames.DEFAULT_MAX_PAYLOAD_LENGTH), replies::add).run();
+            } catch (IOException ignored) {  }
+        });
+        reader.start();
+
+        encoder.write(os, Frames.TYPE_FILE_OFFER, offer, 0, offer.length);
+        assertEquals(Frames.TYPE_FILE_ACCEPT, next(replies).type());
+
+        byte[] chunk = new byte[FileTransfers.CHUNK_HEADER_LENGTH + data.length];
+        Frames.writeInt(9, chunk, 0);
+        Frames.writeLong(0, chunk, 4);
+        System.arraycopy(data, 0, chunk, FileTransfers.CHUNK_HEADER_LENGTH, data.length);
+        Frames.writeInt(12345, chunk, 12);
+        encoder.write(os, Frames.TYPE_FILE_CHUNK, chunk, 0, chunk.length);
+
+        PooledBuffer rewind = next(replies);
+        assertEquals(Frames.TYPE_FILE_ACK, rewind.type());
+        assertEquals(0, Frames.readLong(rewind.array(), 4));
+        assertEquals(FileTransfers.ACK_REWIND, rewind.array()[12]);
+
+        java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+        crc.update(data, 0, data.length);
+        Frames.writeInt((int) crc.getValue(), chunk, 12);
+        encoder.write(os, Frames.TYPE_FILE_CHUNK, chunk, 0, chunk.length);
+
+        assertEquals(Frames.TYPE_FILE_ACK, next(replies).type());
+        PooledBuffer complete = next(replies);
+        assertEquals(Frames.TYPE_FILE_COMPLETE, complete.type());
+        assertEquals(FileTransfers.STATUS_OK, complete.array()[4]);
+        assertNull(events.outcome());
+        assertArrayEquals(data, Files.readAllBytes(new File(inbox, "x").toPath()));
+
+        receiver.close();
+        ends[0].close();
+    }
+
+    private long timeTransfer(File source, LinkProfile profile, int window) throws Exception {
+        File inbox = folder.newFolder();
+        Link link = new Link(profile, inbox, window);
+        long start = System.nanoTime();
+        link.sender.send(link.near, source);
+        assertNull(link.senderEvents.outcome());
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        link.close();
+        return elapsed;
+    }
+
+    private File randomFile(String name, int size) throws IOException {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        File file = new File(folder.getRoot(), name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        return file;
+    }
+
+    private static PooledBuffer next(BlockingQueue<PooledBuffer> replies) throws InterruptedException {
+        while (true) {
+            PooledBuffer frame = replies.poll(5, TimeUnit.SECONDS);
+            assertNotNull("no reply within 5 seconds", frame);
+            if (frame.type() != Frames.TYPE_HELLO) {
+                return frame;
+            }
+        }
+    }
+
+    /**
+     * Two sessions over an in-memory link, each routing frames to its own {@link FileTransfers}.
+     */
+    private static final class Link {
+        final InMemoryTransport[] ends;
+        final Events senderEvents = new Events();
+        final Events receiverEvents = new Events();
+        final FileTransfers sender;
+        final FileTransfers receiver;
+        final ChatSession near;
+        final ChatSession far;
+
+        Link(LinkProfile profile, File inbox, int window) throws IOException {
+            ends = InMemoryTransport.pair("sender", "receiver", profile);
+            sender = new FileTransfers(new File(inbox, "unused"), senderEvents, FileTransfers.DEFAULT_CHUNK_SIZE, window);
+            receiver = new FileTransfers(inbox, receiverEvents);
+            near = new ChatSession(ends[0], new Router(sender));
+            far = new ChatSession(ends[1], new Router(receiver));
+            near.start();
+            far.start();
+        }
+
+        void close() {
+            near.close();
+            far.close();
+        }
+    }
+
+    private static final class Router implements ChatSession.Listener {
+        private final FileTransfers transfers;
+
+        Router(FileTransfers transfers) {
+            this.transfers = transfers;
+        }
+
+        @Override
+        public void onFrame(ChatSession session, PooledBuffer frame) throws IOException {
+            if (!transfers.onFrame(session, frame)) {
+                frame.release();
+            }
+        }
+
+        @Override
+        public void onClosed(ChatSession session) {
+            transfers.onClosed(session);
+        }
+    }
+
+    private static final class Events implements TransferListener {
+        private final BlockingQueue<IOException[]> outcomes = new LinkedBlockingQueue<>();
+        volatile long progress;
+        volatile long firstProgress = -1;
+
+        @Override
+        public void onProgress(String name, long transferred, long size) {
+            if (firstProgress < 0) {
+                firstProgress = transferred;
+            }
+            progress = transferred;
+        }
+
+        @Override
+        public void onComplete(String name, File file, IOException error) {
+            outcomes.add(new IOException[] { error });
+        }
+
+        IOException outcome() throws InterruptedException {
+            IOException[] outcome = outcomes.poll(30, TimeUnit.SECONDS);
+            assertNotNull("transfer did not finish within 30 seconds", outcome);
+            return outcome[0];
+        }
+    }
+}
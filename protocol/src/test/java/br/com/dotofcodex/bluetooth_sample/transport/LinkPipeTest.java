@@ -0,0 +1,124 @@
+package br.com.dotofcodex.bluetooth_sample.transport;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LinkPipeTest {
+
+    @Test
+    public void pipe_deliversBytesInOrder() throws Exception {
+        LinkPipe pipe = new LinkPipe(LinkProfile.builder().jitter(2, TimeUnit.MILLISECONDS).build(), 1024);
+        byte[] data = new byte[100000];
+        new Random(1).nextBytes(data);
+
+        Thread writer = write(pipe.getOutputStream(), data, 333);
+        byte[] received = readFully(pipe.getInputStream(), data.length);
+        writer.join();
+
+        assertArrayEquals(data, received);
+        assertEquals(-1, pipe.getInputStream().read());
+    }
+
+    @Test
+    public void pipe_addsLatency() throws Exception {
+        LinkPipe pipe = new LinkPipe(LinkProfile.builder().latency(50, TimeUnit.MILLISECONDS).build());
+        long start = System.nanoTime();
+        pipe.getOutputStream().write(7);
+
+        assertEquals(7, pipe.getInputStream().read());
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("took " + elapsedMillis + " ms", elapsedMillis >= 45);
+    }
+
+    @Test
+    public void pipe_capsBandwidth() throws Exception {
+        LinkPipe pipe = new LinkPipe(LinkProfile.builder().bandwidth(200 * 1024).build(), 8 * 1024);
+        byte[] data = new byte[100 * 1024];
+
+        long start = System.nanoTime();
+        Thread writer = write(pipe.getOutputStream(), data, 1000);
+        readFully(pipe.getInputStream(), data.length);
+        writer.join();
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // 100 KiB at 200 KiB/s
+        assertTrue("took " + elapsedMillis + " ms", elapsedMillis >= 450 && elapsedMillis < 1500);
+    }
+
+    @Test
+    public void pipe_dropsWrites() throws Exception {
+        LinkPipe pipe = new LinkPipe(LinkProfile.builder().dropRate(0.5).build());
+        OutputStream out = pipe.getOutputStream();
+        for (int i = 0; i < 1000; i++) {
+            out.write(i);
+        }
+        out.close();
+
+        int received = 0;
+        while (pipe.getInputStream().read() >= 0) {
+            received++;
+        }
+        assertTrue("received " + received, received > 350 && received < 650);
+    }
+
+    @Test(expected = IOException.class)
+    public void pipe_disconnectsAfterConfiguredBytes() throws Exception {
+        LinkPipe pipe = new LinkPipe(LinkProfile.builder().disconnectAfter(100).build());
+        pipe.getOutputStream().write(new byte[60]);
+        pipe.getOutputStream().write(new byte[60]);
+    }
+
+    @Test
+    public void disconnect_failsBlockedReader() throws Exception {
+        LinkPipe pipe = new LinkPipe(LinkProfile.UNLIMITED);
+        final IOException[] failure = new IOException[1];
+        Thread reader = new Thread(() -> {
+            try {
+                pipe.getInputStream().read();
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        reader.start();
+        Thread.sleep(20);
+
+        pipe.disconnect();
+        reader.join(1000);
+        assertNotNull(failure[0]);
+    }
+
+    static Thread write(OutputStream out, byte[] data, int chunk) {
+        Thread writer = new Thread(() -> {
+            try {
+                for (int offset = 0; offset < data.length; offset += chunk) {
+                    out.write(data, offset, Math.min(chunk, data.length - offset));
+                }
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        writer.start();
+        return writer;
+    }
+
+    static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int read = in.read(data, offset, length - offset);
+            if (read < 0) {
+                throw new IOException("Stream ended after " + offset + " bytes");
+            }
+            offset += read;
+        }
+        return data;
+    }
+}
@@ -0,0 +1,103 @@
+package br.com.dotofcodex.bluetooth_sample.transport;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class TransportTest {
+
+    @Test
+    public void inMemoryNetwork_connectsAndTracksOpenTransports() throws Exception {
+        InMemoryNetwork network = new InMemoryNetwork();
+        TransportServer server = network.listen("hub");
+        Transport client = network.connector("peer", "hub").connect();
+        Transport accepted = server.accept();
+
+        assertEquals("hub", client.getRemoteAddress());
+        assertEquals("peer", accepted.getRemoteAddress());
+        assertEquals(2, network.getOpenTransports());
+
+        client.getOutputStream().write(new byte[] { 1, 2, 3 });
+        assertArrayEquals(new byte[] { 1, 2, 3 }, LinkPipeTest.readFully(accepted.getInputStream(), 3));
+
+        client.close();
+        assertEquals(-1, accepted.getInputStream().read());
+        accepted.close();
+        assertEquals(0, network.getOpenTransports());
+        server.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void inMemoryNetwork_refusesUnknownAddress() throws Exception {
+        new InMemoryNetwork().connector("peer", "nobody").connect();
+    }
+
+    @Test
+    public void inMemoryConnector_canBeCancelled() throws Exception {
+        InMemoryNetwork network = new InMemoryNetwork(LinkProfile.builder().latency(5, TimeUnit.SECONDS).build());
+        network.listen("hub");
+        Connector connector = network.connector("peer", "hub");
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        Thread dialer = new Thread(() -> {
+            try {
+                connector.connect();
+            } catch (IOException e) {
+                failure.set(e);
+            }
+        });
+        dialer.start();
+        Thread.sleep(20);
+
+        connector.cancel();
+        dialer.join(1000);
+        assertNotNull(failure.get());
+    }
+
+    @Test
+    public void inMemoryTransport_disconnectFailsThePeer() throws Exception {
+        InMemoryTransport[] ends = InMemoryTransport.pair("a", "b", LinkProfile.UNLIMITED);
+        ends[0].disconnect();
+
+        try {
+            ends[1].getInputStream().read();
+            fail("read after disconnect");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void tcpTransport_roundTripsOverLoopback() throws Exception {
+        TcpTransportServer server = new TcpTransportServer(0);
+        Transport client = new TcpConnector(server.getPort(), 1000).connect();
+        Transport accepted = server.accept();
+
+        client.getOutputStream().write(new byte[] { 4, 5, 6 });
+        assertArrayEquals(new byte[] { 4, 5, 6 }, LinkPipeTest.readFully(accepted.getInputStream(), 3));
+
+        client.close();
+        accepted.close();
+        server.close();
+    }
+
+    @Test
+    public void emulatedTcpTransport_addsLatency() throws Exception {
+        TcpTransportServer server = new TcpTransportServer(0);
+        Transport client = new EmulatedTransport(new TcpConnector(server.getPort(), 1000).connect(),
+                LinkProfile.builder().latency(40, TimeUnit.MILLISECONDS).build());
+        Transport accepted = server.accept();
+
+        long start = System.nanoTime();
+        client.getOutputStream().write(9);
+        assertEquals(9, accepted.getInputStream().read());
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("took " + elapsedMillis + " ms", elapsedMillis >= 35);
+
+        client.close();
+        accepted.close();
+        server.close();
+    }
+}